@@ -0,0 +1,558 @@
+package nsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32C;
+
+// Chat history kept in a directory of memory-mapped segment files, named after
+// the sequence number of their first record. Each record is
+//
+//   [int size][int crc32c][long seq][long time][byte kind][short peer length][peer]
+//   [int text length][text][int size]
+//
+// The trailing size lets history be read backwards, and the checksum finds the
+// end of a segment that was being written when the process died. Every
+// INDEX_INTERVAL-th record of a segment goes into a sparse in-memory index of
+// sequence numbers and timestamps, rebuilt from the record headers on open.
+//
+// append() never blocks: records are written by one thread, which forces the
+// segment to disk once for every batch it drains.
+//
+// Segments that are dropped get unmapped before their file is deleted, as Windows
+// refuses to delete a mapped file. There is no public API for that, so
+// sun.misc.Unsafe.invokeCleaner is looked up at runtime; without it the mapping
+// goes when the buffer is collected and a failed delete is reported.
+public class ChatLog implements Closeable {
+    public static final byte SENT = 0;
+    public static final byte RECEIVED = 1;
+
+    // Told about records that could not be written and segments that could not be
+    // deleted, on the writer thread or the one calling open()
+    public interface Listener {
+        void failed(IOException error);
+    }
+
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENTS = 64;
+    private static final int INDEX_INTERVAL = 32;
+    private static final int RECORD_OVERHEAD = 4 + 4 + 8 + 8 + 1 + 2 + 4 + 4;
+    private static final String SUFFIX = ".log";
+
+    public static final class Entry {
+        private final long seq;
+        private final long time;
+        private final byte kind;
+        private final String peer;
+        private final String text;
+
+        Entry(long seq, long time, byte kind, String peer, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.kind = kind;
+            this.peer = peer;
+            this.text = text;
+        }
+
+        public long getSeq() {
+            return seq;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        // Null in entries replayed by the peer
+        public String getPeer() {
+            return peer;
+        }
+
+        public String getText() {
+            return text;
+        }
+    }
+
+    private static final class Segment {
+        final File file;
+        final long firstSeq;
+        final MappedByteBuffer map;
+        int end;
+        long nextSeq;
+        // Sparse index: the sequence number, time and offset of every INDEX_INTERVAL-th record
+        long[] seqs = new long[16];
+        long[] times = new long[16];
+        int[] offsets = new int[16];
+        int indexed;
+        int records;
+
+        Segment(File file, long firstSeq, MappedByteBuffer map) {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.map = map;
+            this.nextSeq = firstSeq;
+        }
+
+        void recordAdded(long seq, long time, int offset) {
+            if (records++ % INDEX_INTERVAL == 0) {
+                if (indexed == seqs.length) {
+                    seqs = Arrays.copyOf(seqs, indexed * 2);
+                    times = Arrays.copyOf(times, indexed * 2);
+                    offsets = Arrays.copyOf(offsets, indexed * 2);
+                }
+                seqs[indexed] = seq;
+                times[indexed] = time;
+                offsets[indexed] = offset;
+                indexed++;
+            }
+            nextSeq = seq + 1;
+        }
+    }
+
+    private static final Entry CLOSE = new Entry(0, 0, (byte) 0, null, null);
+    // Unsafe.invokeCleaner bound to the Unsafe instance, or null
+    private static final MethodHandle UNMAP = lookupUnmap();
+
+    private final File directory;
+    private final Listener listener;
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final List<Segment> segments = new ArrayList<>();
+    private final LinkedBlockingQueue<Entry> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final Thread shutdownHook = new Thread(this::close, "nsync-chat-log-close");
+    private final CRC32C crc = new CRC32C();
+    private volatile boolean closed;
+
+    private ChatLog(File directory, Listener listener, FileChannel lockChannel, FileLock lock) {
+        this.directory = directory;
+        this.listener = listener;
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+        this.writer = new Thread(this::writeLoop, "nsync-chat-log");
+        writer.setDaemon(true);
+    }
+
+    // ~/.nsync/history/<name>, or under -Dnsync.history
+    public static File defaultDirectory(String name) {
+        String base = System.getProperty("nsync.history", System.getProperty("user.home") + File.separator + ".nsync" + File.separator + "history");
+        return new File(base, name);
+    }
+
+    // Failures after open() are dropped
+    public static ChatLog open(File directory) throws IOException {
+        return open(directory, error -> { });
+    }
+
+    // Only one process can have a directory open
+    public static ChatLog open(File directory, Listener listener) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        FileChannel lockChannel = FileChannel.open(new File(directory, "lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException(directory + " is in use by another process");
+        }
+        ChatLog log = new ChatLog(directory, listener, lockChannel, lock);
+        try {
+            log.load();
+        } catch (IOException e) {
+            log.closeFiles();
+            throw e;
+        }
+        log.writer.start();
+        Runtime.getRuntime().addShutdownHook(log.shutdownHook);
+        return log;
+    }
+
+    private void load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        List<File> sorted = new ArrayList<>(files != null ? Arrays.asList(files) : Collections.emptyList());
+        sorted.sort(null);
+        for (File file : sorted) {
+            long firstSeq;
+            try {
+                firstSeq = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            Segment segment;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                segment = new Segment(file, firstSeq, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            }
+            if (!segments.isEmpty() && firstSeq != segments.get(segments.size() - 1).nextSeq) {
+                // A gap means the older segments belong to some other history
+                for (Segment older : segments) {
+                    delete(older);
+                }
+                segments.clear();
+            }
+            scan(segment, file == sorted.get(sorted.size() - 1));
+            segments.add(segment);
+        }
+    }
+
+    // Finds the records of a segment, checksums are only checked in the last one
+    private void scan(Segment segment, boolean last) {
+        ByteBuffer map = segment.map.duplicate();
+        int position = 0;
+        while (position + RECORD_OVERHEAD <= map.capacity()) {
+            int size = map.getInt(position);
+            if (size < RECORD_OVERHEAD || size > map.capacity() - position || map.getInt(position + size - 4) != size) {
+                break;
+            }
+            long seq = map.getLong(position + 8);
+            if (seq != segment.nextSeq || (last && checksum(map, position, size) != map.getInt(position + 4))) {
+                break;
+            }
+            segment.recordAdded(seq, map.getLong(position + 16), position);
+            position += size;
+        }
+        segment.end = position;
+        if (last && position + 4 <= map.capacity() && map.getInt(position) != 0) {
+            // Clear what is left of a torn record so it is not mistaken for one later
+            for (int i = position; i < map.capacity(); i++) {
+                map.put(i, (byte) 0);
+            }
+        }
+    }
+
+    private int checksum(ByteBuffer map, int position, int size) {
+        ByteBuffer body = map.duplicate();
+        body.limit(position + size - 4).position(position + 8);
+        crc.reset();
+        crc.update(body);
+        return (int) crc.getValue();
+    }
+
+    // Queues a record, it is written and synced in the background
+    public void append(byte kind, String peer, String text) {
+        if (!closed) {
+            pending.add(new Entry(0, System.currentTimeMillis(), kind, peer != null ? peer : "", text));
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            pending.drainTo(batch);
+            MappedByteBuffer dirty = null;
+            boolean closing = false;
+            synchronized (this) {
+                for (Entry entry : batch) {
+                    if (entry == CLOSE) {
+                        closing = true;
+                        break;
+                    }
+                    try {
+                        dirty = write(entry);
+                    } catch (IOException e) {
+                        listener.failed(e);
+                    }
+                }
+            }
+            batch.clear();
+            // One sync for the whole batch
+            if (dirty != null) {
+                dirty.force();
+            }
+            if (closing) {
+                return;
+            }
+        }
+    }
+
+    // Called with the lock held, returns the segment that was written to
+    private MappedByteBuffer write(Entry entry) throws IOException {
+        byte[] peer = entry.peer.getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+        if (peer.length > 0xFFFF) {
+            peer = Arrays.copyOf(peer, 0xFFFF);
+        }
+        int size = RECORD_OVERHEAD + peer.length + text.length;
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segment.end + size > segment.map.capacity()) {
+            if (segment != null) {
+                segment.map.force();
+            }
+            segment = roll(segment == null ? 1 : segment.nextSeq, size);
+        }
+        long seq = segment.nextSeq;
+        ByteBuffer record = segment.map.duplicate();
+        record.position(segment.end);
+        record.putInt(size).putInt(0).putLong(seq).putLong(entry.time).put(entry.kind)
+            .putShort((short) peer.length).put(peer).putInt(text.length).put(text).putInt(size);
+        record.putInt(segment.end + 4, checksum(record, segment.end, size));
+        segment.recordAdded(seq, entry.time, segment.end);
+        segment.end += size;
+        return segment.map;
+    }
+
+    private Segment roll(long firstSeq, int size) throws IOException {
+        File file = new File(directory, String.format("%020d", firstSeq) + SUFFIX);
+        Segment segment;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = new Segment(file, firstSeq, channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT_SIZE, size)));
+        }
+        segments.add(segment);
+        while (segments.size() > MAX_SEGMENTS) {
+            delete(segments.remove(0));
+        }
+        return segment;
+    }
+
+    // Called with the lock held, once the segment is out of segments
+    private void delete(Segment segment) {
+        unmap(segment.map);
+        if (!segment.file.delete() && segment.file.exists()) {
+            listener.failed(new IOException("Cannot delete " + segment.file));
+        }
+    }
+
+    // Nothing may touch map afterwards, the JVM would crash
+    private static void unmap(MappedByteBuffer map) {
+        if (UNMAP != null) {
+            try {
+                UNMAP.invoke((ByteBuffer) map);
+            } catch (Throwable e) {
+                // Unmapped once collected then
+            }
+        }
+    }
+
+    private static MethodHandle lookupUnmap() {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup().findVirtual(unsafeClass, "invokeCleaner",
+                MethodType.methodType(void.class, ByteBuffer.class)).bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not on this runtime
+            return null;
+        }
+    }
+
+    // The sequence number the next record will get
+    public synchronized long getNextSeq() {
+        return segments.isEmpty() ? 1 : segments.get(segments.size() - 1).nextSeq;
+    }
+
+    // The first record written at or after time, using the index to skip to it
+    public synchronized long seqAt(long time) {
+        int s = segments.size() - 1;
+        while (s > 0 && (segments.get(s).indexed == 0 || segments.get(s).times[0] > time)) {
+            s--;
+        }
+        for (; s >= 0 && s < segments.size(); s++) {
+            Segment segment = segments.get(s);
+            int i = segment.indexed - 1;
+            while (i > 0 && segment.times[i] > time) {
+                i--;
+            }
+            ByteBuffer map = segment.map.duplicate();
+            for (int position = i < 0 ? 0 : segment.offsets[i]; position < segment.end; position += map.getInt(position)) {
+                if (map.getLong(position + 16) >= time) {
+                    return map.getLong(position + 8);
+                }
+            }
+        }
+        return getNextSeq();
+    }
+
+    // Up to count records of peer (all peers when null) older than seq, oldest first
+    public List<Entry> before(long seq, int count, String peer) {
+        return read(seq, count, peer, 0);
+    }
+
+    // The last count records of peer written since time
+    public List<Entry> recent(String peer, int count, long since) {
+        long first = seqAt(since);
+        return read(Long.MAX_VALUE, count, peer, first);
+    }
+
+    private synchronized List<Entry> read(long seq, int count, String peer, long minSeq) {
+        List<Entry> entries = new ArrayList<>();
+        int s = segments.size() - 1;
+        while (s >= 0 && segments.get(s).firstSeq > seq) {
+            s--;
+        }
+        if (s < 0) {
+            return entries;
+        }
+        int position = offsetOf(segments.get(s), seq);
+        byte[] peerBytes = peer != null ? peer.getBytes(StandardCharsets.UTF_8) : null;
+        while (entries.size() < count && s >= 0) {
+            Segment segment = segments.get(s);
+            ByteBuffer map = segment.map.duplicate();
+            while (position > 0 && entries.size() < count) {
+                position -= map.getInt(position - 4);
+                if (map.getLong(position + 8) < minSeq) {
+                    return reversed(entries);
+                }
+                if (peerBytes == null || peerEquals(map, position, peerBytes)) {
+                    entries.add(decode(map, position));
+                }
+            }
+            if (--s >= 0) {
+                position = segments.get(s).end;
+            }
+        }
+        return reversed(entries);
+    }
+
+    // Offset of the record seq in segment, or its end when seq comes later
+    private static int offsetOf(Segment segment, long seq) {
+        if (seq >= segment.nextSeq) {
+            return segment.end;
+        }
+        int i = segment.indexed - 1;
+        while (i > 0 && segment.seqs[i] > seq) {
+            i--;
+        }
+        ByteBuffer map = segment.map.duplicate();
+        int position = segment.offsets[i];
+        while (map.getLong(position + 8) < seq) {
+            position += map.getInt(position);
+        }
+        return position;
+    }
+
+    private static boolean peerEquals(ByteBuffer map, int position, byte[] peer) {
+        if ((map.getShort(position + 25) & 0xFFFF) != peer.length) {
+            return false;
+        }
+        for (int i = 0; i < peer.length; i++) {
+            if (map.get(position + 27 + i) != peer[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Entry decode(ByteBuffer map, int position) {
+        ByteBuffer record = map.duplicate();
+        record.position(position + 8);
+        long seq = record.getLong();
+        long time = record.getLong();
+        byte kind = record.get();
+        byte[] peer = new byte[record.getShort() & 0xFFFF];
+        record.get(peer);
+        byte[] text = new byte[record.getInt()];
+        record.get(text);
+        return new Entry(seq, time, kind, new String(peer, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8));
+    }
+
+    private static List<Entry> reversed(List<Entry> entries) {
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    // CHAT_HISTORY payload: [short count] then [long time][byte kind][int length][UTF-8 text] per entry
+    public static byte[] toHistory(List<Entry> entries) {
+        List<byte[]> texts = new ArrayList<>();
+        int size = 2;
+        for (Entry entry : entries) {
+            byte[] text = entry.text.getBytes(StandardCharsets.UTF_8);
+            texts.add(text);
+            size += 13 + text.length;
+        }
+        ByteBuffer history = ByteBuffer.allocate(size);
+        history.putShort((short) entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            history.putLong(entries.get(i).time).put(entries.get(i).kind).putInt(texts.get(i).length).put(texts.get(i));
+        }
+        return history.array();
+    }
+
+    // Every count and length comes from the peer and is checked against what is left
+    public static List<Entry> fromHistory(ByteBuffer history) throws IOException {
+        if (history.remaining() < 2) {
+            throw new IOException("Malformed chat history: no entry count");
+        }
+        int count = history.getShort() & 0xFFFF;
+        if (count > history.remaining() / 13) {
+            throw new IOException("Malformed chat history: " + count + " entries in " + history.remaining() + " bytes");
+        }
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (history.remaining() < 13) {
+                throw new IOException("Malformed chat history: entry " + i + " is cut off");
+            }
+            long time = history.getLong();
+            byte kind = history.get();
+            int length = history.getInt();
+            if (length < 0 || length > history.remaining()) {
+                throw new IOException("Malformed chat history: entry " + i + " has " + length + " bytes of text, "
+                    + history.remaining() + " are left");
+            }
+            byte[] text = new byte[length];
+            history.get(text);
+            entries.add(new Entry(0, time, kind, null, new String(text, StandardCharsets.UTF_8)));
+        }
+        return entries;
+    }
+
+    // Writes what is queued, syncs it and releases the directory
+    @Override
+    public void close() {
+        synchronized (pending) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        pending.add(CLOSE);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        closeFiles();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // Shutting down, this is the hook
+        }
+    }
+
+    private void closeFiles() {
+        try {
+            lock.release();
+            lockChannel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package nsync;
+
+import javax.swing.*;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
+import java.awt.*;
+import java.awt.event.MouseEvent;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Displays a chat conversation held in a Model.
+//
+// A Model keeps at most its capacity of lines in a ring buffer, dropping the
+// oldest. post() may be called from any thread: lines wait in a queue that is
+// drained on the EDT, all at once, so a flood of messages costs one list update
+// and one scroll per EDT tick. Rows have a fixed height, so the JList only
+// lays out and paints the visible ones, and timestamps are formatted when a row
+// is first painted. The view follows new lines while scrolled to the bottom.
+public class ChatView extends JScrollPane {
+    public static final int DEFAULT_CAPACITY = Integer.getInteger("nsync.chat.lines", 10000);
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final DateTimeFormatter DATE_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    public static final class Line {
+        private final long time;
+        private final String text;
+        private final boolean dated;
+        // EDT only, formatted on first paint
+        private String rendered;
+
+        // Dated lines show the day as well, for history
+        public Line(long time, String text, boolean dated) {
+            this.time = time;
+            this.text = text;
+            this.dated = dated;
+        }
+
+        // Also what Ctrl+C copies
+        @Override
+        public String toString() {
+            if (rendered == null) {
+                Instant instant = Instant.ofEpochMilli(time);
+                rendered = "[" + (dated ? DATE_TIME_FORMAT : TIME_FORMAT).format(instant) + "] " + text;
+            }
+            return rendered;
+        }
+    }
+
+    public static final class Model extends AbstractListModel<Line> {
+        private final ConcurrentLinkedQueue<Line> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pendingCount = new AtomicInteger();
+        private final AtomicBoolean drainScheduled = new AtomicBoolean();
+        // EDT only
+        private final Line[] lines;
+        private int head;
+        private int size;
+
+        public Model() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        public Model(int capacity) {
+            lines = new Line[capacity];
+        }
+
+        // Thread safe. Text with several lines becomes several rows.
+        public void post(String text) {
+            long time = System.currentTimeMillis();
+            if (text.indexOf('\n') < 0) {
+                post(new Line(time, text, false));
+            } else {
+                for (String part : text.split("\n")) {
+                    post(new Line(time, part, false));
+                }
+            }
+        }
+
+        // Thread safe
+        public void post(Line line) {
+            pending.add(line);
+            // Lines the view would drop anyway are not kept waiting either
+            if (pendingCount.incrementAndGet() > 2 * lines.length && pending.poll() != null) {
+                pendingCount.decrementAndGet();
+            }
+            if (drainScheduled.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::drain);
+            }
+        }
+
+        // Takes what was queued when it started, lines posted meanwhile schedule another drain
+        private void drain() {
+            drainScheduled.set(false);
+            int oldSize = size;
+            int capacity = lines.length;
+            int removed = 0;
+            int count = pendingCount.get();
+            for (int i = 0; i < count; i++) {
+                Line line = pending.poll();
+                if (line == null) {
+                    break;
+                }
+                pendingCount.decrementAndGet();
+                if (count - i > capacity) {
+                    continue;
+                }
+                if (size == capacity) {
+                    lines[head] = null;
+                    head = (head + 1) % capacity;
+                    size--;
+                    removed++;
+                }
+                lines[(head + size) % capacity] = line;
+                size++;
+            }
+            int removedOld = Math.min(removed, oldSize);
+            int added = size - (oldSize - removedOld);
+            if (removedOld > 0) {
+                fireIntervalRemoved(this, 0, removedOld - 1);
+            }
+            if (added > 0) {
+                fireIntervalAdded(this, size - added, size - 1);
+            }
+        }
+
+        // EDT only: puts older lines above the current ones while there is room
+        public void prepend(List<Line> older) {
+            int count = Math.min(older.size(), lines.length - size);
+            if (count == 0) {
+                return;
+            }
+            head = (head - count + lines.length) % lines.length;
+            List<Line> kept = older.subList(older.size() - count, older.size());
+            for (int i = 0; i < count; i++) {
+                lines[(head + i) % lines.length] = kept.get(i);
+            }
+            size += count;
+            fireIntervalAdded(this, 0, count - 1);
+        }
+
+        // EDT only
+        public void clear() {
+            int oldSize = size;
+            Arrays.fill(lines, null);
+            head = 0;
+            size = 0;
+            if (oldSize > 0) {
+                fireIntervalRemoved(this, 0, oldSize - 1);
+            }
+        }
+
+        public boolean isFull() {
+            return size == lines.length;
+        }
+
+        @Override
+        public int getSize() {
+            return size;
+        }
+
+        @Override
+        public Line getElementAt(int index) {
+            return lines[(head + index) % lines.length];
+        }
+    }
+
+    private final JList<Line> list;
+    private final ListDataListener follower = new ListDataListener() {
+        @Override
+        public void intervalAdded(ListDataEvent e) {
+            if (e.getIndex1() == model.getSize() - 1 && atBottom) {
+                scrollToBottom();
+            }
+        }
+
+        @Override
+        public void intervalRemoved(ListDataEvent e) {
+            // Keep what is on screen in place when old lines fall out of the buffer
+            if (e.getIndex0() == 0 && !atBottom) {
+                Point position = getViewport().getViewPosition();
+                int shift = (e.getIndex1() + 1) * list.getFixedCellHeight();
+                getViewport().setViewPosition(new Point(position.x, Math.max(0, position.y - shift)));
+            }
+        }
+
+        @Override
+        public void contentsChanged(ListDataEvent e) {
+        }
+    };
+    private Model model;
+    private boolean atBottom = true;
+    private boolean scrollScheduled;
+
+    public ChatView(Model model, int rows, int columns) {
+        list = new JList<Line>() {
+            // Full text of rows that do not fit
+            @Override
+            public String getToolTipText(MouseEvent event) {
+                int index = locationToIndex(event.getPoint());
+                if (index < 0) {
+                    return null;
+                }
+                String text = getModel().getElementAt(index).toString();
+                return getFontMetrics(getFont()).stringWidth(text) > getVisibleRect().width ? text : null;
+            }
+        };
+        list.setFont(new Font("Consolas", Font.PLAIN, 12));
+        list.setFixedCellHeight(list.getFontMetrics(list.getFont()).getHeight() + 2);
+        // A fixed width keeps JList from measuring every row, rows are as wide as the view
+        list.setFixedCellWidth(1);
+        FontMetrics metrics = list.getFontMetrics(list.getFont());
+        list.setVisibleRowCount(rows);
+        setViewportView(list);
+        getViewport().setPreferredSize(new Dimension(columns * metrics.charWidth('m'), rows * list.getFixedCellHeight()));
+        setHorizontalScrollBarPolicy(HORIZONTAL_SCROLLBAR_NEVER);
+        getVerticalScrollBar().setUnitIncrement(list.getFixedCellHeight());
+        getVerticalScrollBar().getModel().addChangeListener(e -> {
+            BoundedRangeModel bar = getVerticalScrollBar().getModel();
+            if (!bar.getValueIsAdjusting()) {
+                atBottom = bar.getValue() + bar.getExtent() >= bar.getMaximum() - list.getFixedCellHeight();
+            }
+        });
+        setModel(model);
+    }
+
+    // Shows another conversation, scrolled to its end
+    public void setModel(Model model) {
+        if (this.model != null) {
+            this.model.removeListDataListener(follower);
+        }
+        this.model = model;
+        list.setModel(model);
+        model.addListDataListener(follower);
+        atBottom = true;
+        scrollToBottom();
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    public JList<Line> getList() {
+        return list;
+    }
+
+    public void scrollToTop() {
+        list.ensureIndexIsVisible(0);
+        atBottom = model.getSize() == 0;
+    }
+
+    // Once per batch, after the list has been laid out again
+    private void scrollToBottom() {
+        if (scrollScheduled) {
+            return;
+        }
+        scrollScheduled = true;
+        SwingUtilities.invokeLater(() -> {
+            scrollScheduled = false;
+            int last = model.getSize() - 1;
+            if (last >= 0) {
+                list.ensureIndexIsVisible(last);
+            }
+        });
+    }
+}
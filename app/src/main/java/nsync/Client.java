@@ -0,0 +1,549 @@
+package nsync;
+
+import javax.swing.*;
+import javax.swing.border.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Swing front end of a ClientEngine
+public class Client implements ClientEngine.Listener {
+    private static final int HISTORY_PAGE = 50;
+
+    private final ClientEngine engine = new ClientEngine();
+    // Sequence number of the oldest logged message shown, EDT only
+    private long historyCursor;
+    private JFrame relayFrame;
+    private final ScreenView relayView = new ScreenView();
+    private volatile boolean relayActive = false;
+    private boolean relayShown = false;
+    private boolean relayDismissed = false;
+    private JFrame frame;
+    private final ChatView.Model chatModel = new ChatView.Model();
+    private ChatView chatView;
+    private JTextField messageField;
+    private JButton sendButton, startScreenShareBtn, fileTransferBtn, systemInfoBtn, stopControlBtn;
+    private JSlider volumeSlider;
+    private JProgressBar cpuUsageBar;
+    private JLabel streamLabel;
+    private JLabel statusLabel;
+
+    public Client() {
+        initializeGUI();
+        engine.addListener(this);
+        try {
+            engine.openChatLog(ChatLog.defaultDirectory("client"));
+            historyCursor = engine.getChatLog().getNextSeq();
+        } catch (IOException e) {
+            appendToChat("⚠️ Chat history is off: " + e.getMessage(), "error");
+        }
+    }
+
+    private void initializeGUI() {
+        frame = new JFrame("🎮 Client - Advanced Chat & Screen Share");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setLayout(new BorderLayout());
+        frame.getContentPane().setBackground(new Color(245, 240, 240));
+
+        // Custom title panel
+        JPanel titlePanel = new JPanel(new BorderLayout());
+        titlePanel.setBackground(new Color(178, 34, 34));
+        titlePanel.setBorder(BorderFactory.createEmptyBorder(10, 15, 10, 15));
+        
+        JLabel titleLabel = new JLabel("🚀 Client Terminal");
+        titleLabel.setForeground(Color.WHITE);
+        titleLabel.setFont(new Font("Arial", Font.BOLD, 18));
+        titlePanel.add(titleLabel, BorderLayout.WEST);
+        
+        statusLabel = new JLabel("🔴 Disconnected");
+        statusLabel.setForeground(Color.YELLOW);
+        statusLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        titlePanel.add(statusLabel, BorderLayout.EAST);
+        
+        frame.add(titlePanel, BorderLayout.NORTH);
+
+        // Main content panel
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        mainPanel.setBackground(new Color(245, 240, 240));
+
+        // Chat area
+        chatView = new ChatView(chatModel, 20, 40);
+        JList<ChatView.Line> chatList = chatView.getList();
+        chatList.setBackground(new Color(255, 250, 250));
+        chatList.setForeground(new Color(50, 50, 50));
+        chatList.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(210, 200, 200), 2),
+            BorderFactory.createEmptyBorder(10, 10, 10, 10)
+        ));
+        
+        chatView.setBorder(BorderFactory.createTitledBorder(
+            BorderFactory.createLineBorder(new Color(160, 150, 150)), 
+            "💬 Chat Messages",
+            TitledBorder.LEFT,
+            TitledBorder.TOP,
+            new Font("Arial", Font.BOLD, 12),
+            new Color(178, 34, 34)
+        ));
+        mainPanel.add(chatView, BorderLayout.CENTER);
+
+        // Control panel
+        JPanel controlPanel = createControlPanel();
+        mainPanel.add(controlPanel, BorderLayout.SOUTH);
+
+        frame.add(mainPanel, BorderLayout.CENTER);
+        frame.pack();
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+    }
+
+    private JPanel createControlPanel() {
+        JPanel controlPanel = new JPanel(new BorderLayout(10, 10));
+        controlPanel.setBackground(new Color(245, 240, 240));
+
+        // Input panel
+        JPanel inputPanel = new JPanel(new BorderLayout(5, 5));
+        inputPanel.setBackground(new Color(245, 240, 240));
+        
+        messageField = new JTextField();
+        messageField.setFont(new Font("Arial", Font.PLAIN, 14));
+        messageField.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(160, 150, 150)),
+            BorderFactory.createEmptyBorder(8, 10, 8, 10)
+        ));
+        
+        sendButton = createStyledButton("📤 Send", new Color(34, 139, 34));
+        inputPanel.add(messageField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+
+        // Button panel
+        JPanel buttonPanel = new JPanel(new GridLayout(2, 3, 8, 8));
+        buttonPanel.setBackground(new Color(245, 240, 240));
+        
+        startScreenShareBtn = createStyledButton("📺 Start Screen Share", new Color(178, 34, 34));
+        fileTransferBtn = createStyledButton("📁 Send File", new Color(186, 85, 211));
+        systemInfoBtn = createStyledButton("💻 System Info", new Color(65, 105, 225));
+        JButton clearChatBtn = createStyledButton("🗑️ Clear Chat", new Color(220, 20, 60));
+        JButton historyBtn = createStyledButton("📜 Earlier Messages", new Color(112, 128, 144));
+        // Takes the screen back from the server at any time
+        stopControlBtn = createStyledButton("🛑 Stop Remote Control", new Color(220, 20, 60));
+        stopControlBtn.setEnabled(false);
+        
+        buttonPanel.add(startScreenShareBtn);
+        buttonPanel.add(fileTransferBtn);
+        buttonPanel.add(systemInfoBtn);
+        buttonPanel.add(clearChatBtn);
+        buttonPanel.add(historyBtn);
+        buttonPanel.add(stopControlBtn);
+
+        // System monitor panel
+        JPanel systemPanel = new JPanel(new GridLayout(3, 1, 5, 5));
+        systemPanel.setBackground(new Color(245, 240, 240));
+        systemPanel.setBorder(BorderFactory.createTitledBorder("📊 System Monitor"));
+        
+        // Volume control
+        JPanel volumePanel = new JPanel(new BorderLayout(5, 5));
+        volumePanel.setBackground(new Color(245, 240, 240));
+        
+        volumeSlider = new JSlider(0, 100, 50);
+        volumeSlider.setMajorTickSpacing(25);
+        volumeSlider.setMinorTickSpacing(5);
+        volumeSlider.setPaintTicks(true);
+        volumeSlider.setPaintLabels(true);
+        volumeSlider.setBackground(new Color(245, 240, 240));
+        volumePanel.add(new JLabel("🔊 Volume:"), BorderLayout.WEST);
+        volumePanel.add(volumeSlider, BorderLayout.CENTER);
+
+        // CPU usage of this client, from its telemetry samples
+        JPanel cpuPanel = new JPanel(new BorderLayout(5, 5));
+        cpuPanel.setBackground(new Color(245, 240, 240));
+        
+        cpuUsageBar = new JProgressBar(0, 100);
+        cpuUsageBar.setString("n/a");
+        cpuUsageBar.setStringPainted(true);
+        cpuUsageBar.setForeground(new Color(65, 105, 225));
+        cpuPanel.add(new JLabel("💾 CPU:"), BorderLayout.WEST);
+        cpuPanel.add(cpuUsageBar, BorderLayout.CENTER);
+
+        streamLabel = new JLabel("📶 Stream: idle");
+        streamLabel.setFont(new Font("Arial", Font.PLAIN, 11));
+
+        systemPanel.add(volumePanel);
+        systemPanel.add(cpuPanel);
+        systemPanel.add(streamLabel);
+
+        // Event listeners
+        sendButton.addActionListener(e -> sendMessage());
+        messageField.addActionListener(e -> sendMessage());
+        startScreenShareBtn.addActionListener(e -> toggleScreenSharing());
+        fileTransferBtn.addActionListener(e -> sendFile());
+        systemInfoBtn.addActionListener(e -> showSystemInfo());
+        clearChatBtn.addActionListener(e -> clearChat());
+        historyBtn.addActionListener(e -> showEarlierMessages());
+        stopControlBtn.addActionListener(e -> engine.stopRemoteControl());
+        volumeSlider.addChangeListener(e -> sendVolume());
+
+        // Layout
+        JPanel topPanel = new JPanel(new BorderLayout(10, 10));
+        topPanel.setBackground(new Color(245, 240, 240));
+        topPanel.add(inputPanel, BorderLayout.CENTER);
+        topPanel.add(systemPanel, BorderLayout.EAST);
+
+        controlPanel.add(topPanel, BorderLayout.NORTH);
+        controlPanel.add(buttonPanel, BorderLayout.CENTER);
+
+        return controlPanel;
+    }
+
+    private JButton createStyledButton(String text, Color color) {
+        JButton button = new JButton(text);
+        button.setBackground(color);
+        button.setForeground(Color.WHITE);
+        button.setFont(new Font("Arial", Font.BOLD, 12));
+        button.setFocusPainted(false);
+        button.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(color.darker(), 2),
+            BorderFactory.createEmptyBorder(8, 15, 8, 15)
+        ));
+        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        
+        button.addMouseListener(new MouseAdapter() {
+            public void mouseEntered(MouseEvent e) {
+                button.setBackground(color.brighter());
+            }
+            public void mouseExited(MouseEvent e) {
+                button.setBackground(color);
+            }
+        });
+        
+        return button;
+    }
+
+    // Connecting blocks, so it runs on the engine's executor rather than the EDT
+    public void connectToServer(String host, int port) {
+        engine.getExecutor().execute(() -> {
+            try {
+                engine.connect(host, port);
+            } catch (IOException e) {
+                SwingUtilities.invokeLater(() -> appendToChat("❌ Connection error: " + e.getMessage(), "error"));
+            }
+        });
+    }
+
+    private void sendMessage() {
+        String message = messageField.getText().trim();
+        if (!message.isEmpty()) {
+            engine.sendChat(message);
+            appendToChat("You: " + message, "self");
+            messageField.setText("");
+        }
+    }
+
+    // ClientEngine callbacks, these run on the engine's threads
+
+    @Override
+    public void connected(String server, boolean compressed) {
+        updateStatus("🟢 Connected to Server", new Color(50, 205, 50));
+        appendToChat("✅ Connected to server: " + server + (compressed ? " 🗜️ compressed" : ""), "system");
+    }
+
+    @Override
+    public void disconnected(IOException cause) {
+        updateStatus("🔴 Disconnected", Color.RED);
+    }
+
+    @Override
+    public void reconnecting(IOException cause) {
+        updateStatus("🟠 Reconnecting...", Color.ORANGE);
+    }
+
+    @Override
+    public void chatReceived(String text) {
+        appendToChat("Server: " + text, "server");
+    }
+
+    @Override
+    public void historyReplayed(List<ChatLog.Entry> entries) {
+        showReplayedHistory(entries);
+    }
+
+    @Override
+    public void event(String message, boolean error) {
+        appendToChat(message, error ? "error" : "system");
+    }
+
+    @Override
+    public void screenSharingChanged(boolean sharing) {
+        SwingUtilities.invokeLater(() -> {
+            startScreenShareBtn.setText(sharing ? "🛑 Stop Screen Share" : "📺 Start Screen Share");
+            startScreenShareBtn.setBackground(sharing ? new Color(220, 20, 60) : new Color(178, 34, 34));
+        });
+    }
+
+    @Override
+    public void streamStatsUpdated(String stats) {
+        SwingUtilities.invokeLater(() -> streamLabel.setText(stats));
+    }
+
+    @Override
+    public void relayStarted(String source) {
+        showRelayWindow(source);
+    }
+
+    @Override
+    public void relayFrame(TileDecoder screen) {
+        displayRelayedScreen(screen);
+    }
+
+    @Override
+    public void relayStopped() {
+        hideRelayWindow();
+    }
+
+    // The server's input is only replayed once the user allows it
+    @Override
+    public void remoteControlRequested() {
+        SwingUtilities.invokeLater(() -> {
+            int answer = JOptionPane.showConfirmDialog(frame,
+                "The server wants to control your mouse and keyboard.\n"
+                    + "You can take control back with 🛑 Stop Remote Control.\nAllow it?",
+                "🖱️ Remote Control", JOptionPane.YES_NO_OPTION, JOptionPane.WARNING_MESSAGE);
+            engine.allowRemoteControl(answer == JOptionPane.YES_OPTION);
+        });
+    }
+
+    @Override
+    public void remoteControlChanged(boolean controlled) {
+        SwingUtilities.invokeLater(() -> stopControlBtn.setEnabled(controlled));
+    }
+
+    // Nothing is written before the user says so
+    @Override
+    public void offerReceived(TransferOffer offer) {
+        SwingUtilities.invokeLater(() -> {
+            int answer = JOptionPane.showConfirmDialog(frame,
+                "The server wants to send the " + offer.describe() + ".\nAccept it?",
+                "📨 Incoming " + (offer.isFolder() ? "Folder" : "File"), JOptionPane.YES_NO_OPTION);
+            if (answer == JOptionPane.YES_OPTION) {
+                engine.acceptOffer(offer);
+            } else {
+                engine.rejectOffer(offer);
+            }
+        });
+    }
+
+    // The same sample the server graphs
+    @Override
+    public void telemetrySampled(long[] sample) {
+        long permille = sample[Telemetry.PROCESS_CPU];
+        String description = Telemetry.describe(null, sample);
+        SwingUtilities.invokeLater(() -> {
+            cpuUsageBar.setValue(permille < 0 ? 0 : (int) (permille / 10));
+            cpuUsageBar.setString(permille < 0 ? "n/a" : Math.round(permille / 10.0) + "%");
+            cpuUsageBar.setToolTipText(description);
+        });
+    }
+
+    private void toggleScreenSharing() {
+        engine.setScreenSharing(!engine.isScreenSharing());
+    }
+
+    private void showRelayWindow(String source) {
+        relayActive = true;
+        relayShown = false;
+        SwingUtilities.invokeLater(() -> {
+            if (relayFrame == null) {
+                relayFrame = new JFrame();
+                relayFrame.setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
+                relayFrame.addWindowListener(new WindowAdapter() {
+                    @Override
+                    public void windowClosing(WindowEvent e) {
+                        relayDismissed = true;
+                    }
+                });
+                relayFrame.add(new JScrollPane(relayView));
+                relayFrame.setSize(1024, 768);
+                relayFrame.setLocation(120, 120);
+            }
+            relayFrame.setTitle("📡 Shared Screen - " + source);
+            relayDismissed = false;
+        });
+    }
+
+    private void hideRelayWindow() {
+        relayActive = false;
+        relayView.clear();
+        SwingUtilities.invokeLater(() -> {
+            if (relayFrame != null) {
+                relayFrame.setVisible(false);
+            }
+        });
+    }
+
+    // Runs on the listener thread, the view coalesces repaints itself
+    private void displayRelayedScreen(TileDecoder screen) {
+        relayView.showFrame(screen);
+        if (relayShown) {
+            return;
+        }
+        relayShown = true;
+        SwingUtilities.invokeLater(() -> {
+            if (relayActive && !relayDismissed && relayFrame != null) {
+                relayFrame.setVisible(true);
+            }
+        });
+    }
+
+    private void sendFile() {
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("📁 Select File or Folder to Send");
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        if (fileChooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
+            engine.sendFile(fileChooser.getSelectedFile());
+        }
+    }
+
+    private void showSystemInfo() {
+        String systemInfo = String.format(
+            "💻 System Information:\n" +
+            "OS: %s %s\n" +
+            "Java: %s\n" +
+            "Cores: %d\n" +
+            "Memory: %dMB",
+            System.getProperty("os.name"),
+            System.getProperty("os.version"),
+            System.getProperty("java.version"),
+            Runtime.getRuntime().availableProcessors(),
+            Runtime.getRuntime().maxMemory() / (1024 * 1024)
+        );
+        appendToChat(systemInfo, "system");
+    }
+
+    private void sendVolume() {
+        if (engine.isConnected()) {
+            engine.sendVolume(volumeSlider.getValue());
+        }
+    }
+
+    private void clearChat() {
+        chatModel.clear();
+        ChatLog chatLog = engine.getChatLog();
+        if (chatLog != null) {
+            historyCursor = chatLog.getNextSeq();
+        }
+        appendToChat("🗑️ Chat cleared, the history is kept", "system");
+    }
+
+    // The server's side of our last conversation, sent when we connect
+    private void showReplayedHistory(List<ChatLog.Entry> entries) {
+        for (ChatView.Line line : historyLines(entries, ChatLog.RECEIVED)) {
+            chatModel.post(line);
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (entries.isEmpty()) {
+                return;
+            }
+            // Paging back continues from our own log where the replay starts
+            ChatLog chatLog = engine.getChatLog();
+            if (chatLog != null) {
+                historyCursor = Math.min(historyCursor, chatLog.seqAt(entries.get(0).getTime()));
+            }
+        });
+    }
+
+    private void showEarlierMessages() {
+        ChatLog chatLog = engine.getChatLog();
+        if (chatLog == null) {
+            appendToChat("⚠️ Chat history is off", "error");
+            return;
+        }
+        List<ChatLog.Entry> entries = chatLog.before(historyCursor, HISTORY_PAGE, null);
+        if (entries.isEmpty()) {
+            appendToChat("📜 No earlier messages", "system");
+            return;
+        }
+        if (chatModel.isFull()) {
+            appendToChat("📜 The view is full, clear the chat to see earlier messages", "system");
+            return;
+        }
+        historyCursor = entries.get(0).getSeq();
+        chatModel.prepend(historyLines(entries, ChatLog.SENT));
+        chatView.scrollToTop();
+    }
+
+    // Entries of kind ours are the ones we sent
+    private List<ChatView.Line> historyLines(List<ChatLog.Entry> entries, byte ours) {
+        List<ChatView.Line> lines = new ArrayList<>(entries.size());
+        for (ChatLog.Entry entry : entries) {
+            String who = entry.getKind() == ours ? "You" : "Server";
+            if (entry.getPeer() != null && !entry.getPeer().equals(engine.getServerPeer())) {
+                who += " (" + entry.getPeer() + ")";
+            }
+            lines.add(new ChatView.Line(entry.getTime(), "📜 " + who + ": " + entry.getText(), true));
+        }
+        return lines;
+    }
+
+    private void appendToChat(String message, String type) {
+        switch (type) {
+            case "self":
+                chatModel.post("💬 " + message);
+                break;
+            case "server":
+                chatModel.post("👑 " + message);
+                break;
+            case "system":
+                chatModel.post("⚡ " + message);
+                break;
+            case "error":
+                chatModel.post("❌ " + message);
+                break;
+            default:
+                chatModel.post(message);
+        }
+    }
+
+    private void updateStatus(String status, Color color) {
+        SwingUtilities.invokeLater(() -> {
+            statusLabel.setText(status);
+            statusLabel.setForeground(color);
+        });
+    }
+
+    // client [--headless] [host [port]]
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessClient.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 12345;
+        if (args.length > 0) {
+            SwingUtilities.invokeLater(() -> new Client().connectToServer(args[0], port));
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            Client client = new Client();
+            
+            // Fixed the JOptionPane call - removed the frame reference and properly handle the return type
+            String serverHost = (String) JOptionPane.showInputDialog(
+                null, // Use null instead of frame for static context
+                "Enter server host:", 
+                "Server Connection", 
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                null,
+                "localhost"
+            );
+            
+            if (serverHost != null && !serverHost.trim().isEmpty()) {
+                client.connectToServer(serverHost, 12345);
+            } else {
+                // Use default if user cancels or enters nothing
+                client.connectToServer("localhost", 12345);
+            }
+        });
+    }
+}
\ No newline at end of file
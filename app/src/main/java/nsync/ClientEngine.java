@@ -0,0 +1,1022 @@
+package nsync;
+
+import java.awt.AWTException;
+import java.awt.HeadlessException;
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.awt.Toolkit;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Everything the client does, without any UI: the server connection, chat and
+// its history, screen sharing, the relayed screen, file transfers and folder
+// syncs. What happens is reported to Listeners, the Swing Client and
+// HeadlessClient are both just listeners. Listener methods are called on the
+// connection's listener thread unless noted, so they must not block.
+//
+// With -Dnsync.udp=true the shared screen goes over UDP when the server takes
+// it, see ScreenDatagrams, and stays on or falls back to the connection when
+// datagrams do not get through.
+public class ClientEngine {
+    public interface Listener {
+        default void connected(String server, boolean compressed) {
+        }
+
+        // The connection dropped for good, after reconnecting failed
+        default void disconnected(IOException cause) {
+        }
+
+        // The connection dropped, connected() follows once the engine reconnected
+        default void reconnecting(IOException cause) {
+        }
+
+        default void chatReceived(String text) {
+        }
+
+        // The server's side of our last conversation, sent when we connect
+        default void historyReplayed(List<ChatLog.Entry> entries) {
+        }
+
+        default void event(String message, boolean error) {
+        }
+
+        default void screenSharingChanged(boolean sharing) {
+        }
+
+        // Called on the screen pipeline's threads
+        default void streamStatsUpdated(String stats) {
+        }
+
+        default void relayStarted(String source) {
+        }
+
+        // After every decoded frame of the relayed screen
+        default void relayFrame(TileDecoder screen) {
+        }
+
+        default void relayStopped() {
+        }
+
+        // Every host sample sent to the server, called on the telemetry thread
+        default void telemetrySampled(long[] sample) {
+        }
+
+        // The server asks to control this screen. Nothing is replayed until
+        // allowRemoteControl(true) is called.
+        default void remoteControlRequested() {
+        }
+
+        // Control was granted, or ended by either side
+        default void remoteControlChanged(boolean controlled) {
+        }
+
+        // The server wants to send a file or sync a folder. Nothing is written
+        // until acceptOffer() is called, rejectOffer() declines it.
+        default void offerReceived(TransferOffer offer) {
+        }
+    }
+
+    // Hellos to the server's UDP port before falling back to TCP
+    private static final int HELLO_ATTEMPTS = 10;
+    private static final long HELLO_INTERVAL_MILLIS = 100;
+    // Between attempts to reconnect
+    private static final long RETRY_MIN_MILLIS = 250;
+    private static final long RETRY_MAX_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Listener, hellos and transfer streams, a virtual thread each on Java 21
+    private final ExecutorService executor = Threads.newPerTaskExecutor("nsync-client");
+    // Replaced when the engine reconnects
+    private volatile Connection connection;
+    private InetSocketAddress serverAddress;
+    // Chat and control messages until the server has them, kept across reconnects
+    private final ResendBuffer resend = new ResendBuffer();
+    // Null when the history directory could not be opened
+    private ChatLog chatLog;
+    // Logged messages are keyed by server address
+    private String serverPeer;
+    // Created when screen sharing first starts, so a headless client never needs a display
+    private Robot robot;
+    private ScreenCapturer capturer;
+    private ScreenPipeline screenPipeline;
+    // Held while a pipeline starts or stops, taken before the engine's lock
+    private final Object pipelineLock = new Object();
+    private final TileEncoder tileEncoder = new TileEncoder();
+    private volatile byte[] codecSelection = { FrameCodec.RLE, FrameCodec.DEFAULT_QUALITY };
+    private int appliedQuality = -1;
+    private final RateController rateController = new RateController(60, 2, 150);
+    private final TileDecoder relayDecoder = new TileDecoder();
+    private volatile boolean relayActive = false;
+    // Offered files waiting for FILE_ACCEPT, by transfer id
+    private final Map<Long, FileTransfer> offeredFiles = new ConcurrentHashMap<>();
+    // Offers from the server the user has not decided on yet, by id
+    private final Map<Long, TransferOffer> pendingOffers = new ConcurrentHashMap<>();
+    // Directory syncs in progress in either direction, by sync id
+    private final Map<Long, DirectorySync> syncs = new ConcurrentHashMap<>();
+    private volatile boolean screenSharing = false;
+    // Set while the server controls this screen, input is only replayed then.
+    // Both change under the engine's lock.
+    private volatile boolean remoteControlled = false;
+    // The server asked for control and the user has not answered yet
+    private boolean remoteControlRequested;
+    private final boolean datagramsWanted = Protocol.datagramsEnabled(false);
+    // Saying hello to the server's UDP port, until UDP_READY
+    private ScreenDatagrams.Sender pendingDatagrams;
+    // Carrying the screen frames
+    private volatile ScreenDatagrams.Sender datagrams;
+    // Samples the host and sends TELEMETRY every Telemetry.interval() ms while connected
+    private ScheduledExecutorService telemetry;
+    private final Telemetry.Encoder telemetryEncoder = new Telemetry.Encoder();
+    // Bytes of the connections before this one, telemetry counts the whole session
+    private long earlierBytesSent;
+    private long earlierBytesReceived;
+    private volatile boolean closed = false;
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void openChatLog(File directory) throws IOException {
+        chatLog = ChatLog.open(directory, error -> event("⚠️ Chat history: " + error.getMessage(), true));
+    }
+
+    public ChatLog getChatLog() {
+        return chatLog;
+    }
+
+    public String getServerPeer() {
+        return serverPeer;
+    }
+
+    public boolean isScreenSharing() {
+        return screenSharing;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    // Connects and starts listening on the executor
+    public void connect(String host, int port) throws IOException {
+        serverAddress = new InetSocketAddress(host, port);
+        connection = open(serverAddress);
+        serverPeer = host + ":" + port;
+        for (Listener listener : listeners) {
+            listener.connected(serverPeer, connection.isCompressed());
+        }
+        executor.execute(this::listenForMessages);
+        startTelemetry();
+    }
+
+    public boolean isConnected() {
+        return connection != null && connection.isOpen();
+    }
+
+    // Disconnects without reporting it to the listeners
+    public void close() {
+        closed = true;
+        stopTelemetry();
+        stopScreenPipeline();
+        try {
+            if (connection != null) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        executor.shutdownNow();
+        if (chatLog != null) {
+            chatLog.close();
+        }
+    }
+
+    private void listenForMessages() {
+        while (true) {
+            IOException cause;
+            try {
+                receiveMessages();
+                return;
+            } catch (IOException e) {
+                cause = e;
+            } catch (RuntimeException e) {
+                // A malformed payload, dropped with its connection as SessionServer.handle does
+                cause = new IOException("Malformed message: " + e, e);
+                try {
+                    connection.close();
+                } catch (IOException ignored) {
+                }
+            }
+            if (closed) {
+                return;
+            }
+            connectionLost();
+            if (!reconnect(cause)) {
+                event("🔌 Connection lost: " + cause.getMessage(), true);
+                for (Listener listener : listeners) {
+                    listener.disconnected(cause);
+                }
+                return;
+            }
+        }
+    }
+
+    // What ends with a connection, whether the session resumes or not
+    private void connectionLost() {
+        resend.detach();
+        stopTelemetry();
+        earlierBytesSent += connection.getBytesSent();
+        earlierBytesReceived += connection.getBytesReceived();
+        stopScreenPipeline();
+        rateController.framesLost();
+        for (DirectorySync sync : syncs.values()) {
+            sync.finish(new IOException("Connection lost"));
+        }
+        // The server ended those syncs too
+        pendingOffers.values().removeIf(TransferOffer::isFolder);
+        if (relayActive) {
+            // The server starts it again when the session resumes
+            relayActive = false;
+            for (Listener listener : listeners) {
+                listener.relayStopped();
+            }
+        }
+    }
+
+    // Connects again for up to Protocol.resumeMillis(), backing off between
+    // attempts, and resumes the session when the server still has it. Replayed
+    // messages the server missed go out again and a shared screen restarts with
+    // a key frame.
+    private boolean reconnect(IOException cause) {
+        event("🔌 Connection lost: " + cause.getMessage() + ", reconnecting...", true);
+        for (Listener listener : listeners) {
+            listener.reconnecting(cause);
+        }
+        long deadline = System.nanoTime() + Protocol.resumeMillis() * 1_000_000L;
+        long delay = RETRY_MIN_MILLIS;
+        while (!closed) {
+            try {
+                connection = open(serverAddress);
+                break;
+            } catch (IOException e) {
+                if (System.nanoTime() + delay * 1_000_000L > deadline) {
+                    return false;
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    return false;
+                }
+                delay = Math.min(delay * 2, RETRY_MAX_MILLIS);
+            }
+        }
+        if (closed) {
+            return false;
+        }
+        if (connection.isResumed()) {
+            event("🔁 Reconnected, session resumed", false);
+        } else {
+            event("🔁 Reconnected, the server had ended the session and started a new one", true);
+            endRemoteControl();
+        }
+        for (Listener listener : listeners) {
+            listener.connected(serverPeer, connection.isCompressed());
+        }
+        startTelemetry();
+        if (screenSharing) {
+            tileEncoder.reset();
+            try {
+                if (!connection.isResumed()) {
+                    connection.send(Protocol.SCREEN_SHARE_START, codecSelection);
+                }
+                if (!startScreenPipeline()) {
+                    connection.send(Protocol.SCREEN_SHARE_STOP);
+                    endScreenSharing();
+                }
+            } catch (IOException e) {
+                // The listener thread reports the lost connection
+            }
+        }
+        return true;
+    }
+
+    // Connects and shakes hands, giving up after CONNECT_TIMEOUT_MILLIS each so a
+    // server that accepts but never answers does not hang the reconnect
+    private Connection open(InetSocketAddress server) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(server, CONNECT_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        AtomicBoolean settled = new AtomicBoolean();
+        Thread watchdog = Threads.start("nsync-handshake", () -> {
+            try {
+                Thread.sleep(CONNECT_TIMEOUT_MILLIS);
+                if (settled.compareAndSet(false, true)) {
+                    channel.close();
+                }
+            } catch (InterruptedException | IOException e) {
+                // Answered in time
+            }
+        });
+        try {
+            Connection opened = new Connection(channel, resend);
+            if (!settled.compareAndSet(false, true)) {
+                opened.close();
+                throw new IOException("No answer from " + server);
+            }
+            return opened;
+        } finally {
+            watchdog.interrupt();
+        }
+    }
+
+    // Returns once the engine is closed, a lost connection throws and a malformed
+    // payload throws a RuntimeException
+    private void receiveMessages() throws IOException {
+        while (!closed) {
+            Connection.Message message = connection.receive();
+            switch (message.getType()) {
+                case Protocol.CHAT:
+                    String text = message.getText();
+                    logChat(ChatLog.RECEIVED, text);
+                    for (Listener listener : listeners) {
+                        listener.chatReceived(text);
+                    }
+                    break;
+                case Protocol.CHAT_HISTORY:
+                    List<ChatLog.Entry> entries = ChatLog.fromHistory(message.getPayload());
+                    for (Listener listener : listeners) {
+                        listener.historyReplayed(entries);
+                    }
+                    break;
+                case Protocol.SCREEN_SHARE_START:
+                    if (message.getPayload().remaining() >= 2) {
+                        applyCodecSelection(message.getPayload());
+                    }
+                    if (!screenSharing) {
+                        event("📺 Server requested screen sharing - Starting...", false);
+                        beginScreenSharing();
+                    }
+                    break;
+                case Protocol.SCREEN_SHARE_STOP:
+                    endScreenSharing();
+                    event("🛑 Server stopped screen sharing", false);
+                    break;
+                case Protocol.SCREEN_CODEC:
+                    applyCodecSelection(message.getPayload());
+                    event("🎞️ Server switched screen codec to " + FrameCodec.name(codecSelection[0]), false);
+                    break;
+                case Protocol.FRAME_ACK:
+                    rateController.frameAcked(message.getInt());
+                    ScreenDatagrams.Sender acked = datagrams;
+                    if (acked != null) {
+                        acked.acked();
+                    }
+                    break;
+                case Protocol.UDP_OFFER:
+                    openDatagrams(message.getPayload());
+                    break;
+                case Protocol.UDP_READY:
+                    datagramsReady();
+                    break;
+                case Protocol.SCREEN_REFRESH:
+                    refreshScreen(message.getPayload());
+                    break;
+                case Protocol.KEY_FRAME_REQUEST:
+                    tileEncoder.reset();
+                    break;
+                case Protocol.REMOTE_CONTROL:
+                    if (message.getPayload().get() != 0) {
+                        requestRemoteControl();
+                    } else if (endRemoteControl()) {
+                        event("🖱️ Server released remote control", false);
+                    }
+                    break;
+                case Protocol.INPUT_EVENTS:
+                    replayInput(message.getPayload());
+                    break;
+                case Protocol.RELAY_START:
+                    String source = message.getText();
+                    relayActive = true;
+                    event("📡 Server is relaying the screen of client " + source, false);
+                    for (Listener listener : listeners) {
+                        listener.relayStarted(source);
+                    }
+                    break;
+                case Protocol.RELAY_STOP:
+                    relayActive = false;
+                    event("📡 Screen relay ended", false);
+                    for (Listener listener : listeners) {
+                        listener.relayStopped();
+                    }
+                    break;
+                case Protocol.SCREEN_TILES:
+                    if (relayActive) {
+                        relayDecoder.decode(message.getPayload());
+                        for (Listener listener : listeners) {
+                            listener.relayFrame(relayDecoder);
+                        }
+                    }
+                    break;
+                case Protocol.FILE_OFFER:
+                    offerReceived(FileTransfer.offerOf(message.getPayload()));
+                    break;
+                case Protocol.FILE_ACCEPT:
+                    FileTransfer accepted = offeredFiles.remove(message.getPayload().getLong());
+                    if (accepted != null) {
+                        startTransfer(accepted);
+                    }
+                    break;
+                case Protocol.FILE_CANCEL:
+                    long cancelled = message.getPayload().getLong();
+                    offeredFiles.remove(cancelled);
+                    pendingOffers.remove(cancelled);
+                    event("❌ File transfer cancelled: " + message.getText(), true);
+                    break;
+                case Protocol.SYNC_OFFER:
+                    offerReceived(DirectorySync.offerOf(message.getPayload()));
+                    break;
+                case Protocol.SYNC_SIGNATURES:
+                case Protocol.SYNC_DELTA:
+                case Protocol.SYNC_ACK:
+                case Protocol.SYNC_DONE:
+                    long syncId = message.getPayload().getLong(message.getPayload().position());
+                    DirectorySync sync = syncs.get(syncId);
+                    if (sync != null) {
+                        sync.messageReceived(message.getType(), message.getPayload());
+                    } else if (message.getType() == Protocol.SYNC_DONE && pendingOffers.remove(syncId) != null) {
+                        event("❌ Server withdrew its folder sync", true);
+                    }
+                    break;
+                case Protocol.VOLUME:
+                    break;
+                default:
+                    event("❓ Ignoring unknown message " + Protocol.typeName(message.getType()), true);
+            }
+        }
+    }
+
+    // Commands, these may be called from any thread. Messages only queue on the
+    // connection, so they never block the EDT on the socket.
+
+    public void sendChat(String text) {
+        try {
+            connection.send(Protocol.CHAT, text);
+            logChat(ChatLog.SENT, text);
+        } catch (IOException e) {
+            event("❌ Error sending message: " + e.getMessage(), true);
+        }
+    }
+
+    public void setScreenSharing(boolean sharing) {
+        if (sharing == screenSharing) {
+            return;
+        }
+        try {
+            if (sharing) {
+                connection.send(Protocol.SCREEN_SHARE_START, codecSelection);
+                event("📺 Started screen sharing with server", false);
+                beginScreenSharing();
+            } else {
+                connection.send(Protocol.SCREEN_SHARE_STOP);
+                endScreenSharing();
+                event("🛑 Stopped screen sharing", false);
+            }
+        } catch (IOException e) {
+            event("❌ Error toggling screen share: " + e.getMessage(), true);
+        }
+    }
+
+    public void sendVolume(int volume) {
+        try {
+            connection.send(Protocol.VOLUME, volume);
+        } catch (IOException e) {
+            event("❌ Error sending volume: " + e.getMessage(), true);
+        }
+    }
+
+    // Offers a file, or syncs a folder
+    public void sendFile(File file) {
+        if (file.isDirectory()) {
+            startSync(file);
+            return;
+        }
+        try {
+            FileTransfer transfer = FileTransfer.outgoing(file, transferListener());
+            offeredFiles.put(transfer.getId(), transfer);
+            connection.send(Protocol.FILE_OFFER, transfer.toOffer());
+            event("📤 Sending file: " + file.getName() + " (" + RateController.formatBytes(file.length()) + ")", false);
+        } catch (IOException e) {
+            event("❌ Error sending file: " + e.getMessage(), true);
+        }
+    }
+
+    // SCREEN_SHARE_START and SCREEN_CODEC payload: [byte codec][byte quality]
+    private void applyCodecSelection(ByteBuffer payload) {
+        byte codec = payload.get();
+        byte quality = payload.get();
+        try {
+            tileEncoder.setCodec(FrameCodec.create(codec, quality));
+            codecSelection = new byte[] { codec, quality };
+            appliedQuality = -1;
+        } catch (IllegalArgumentException e) {
+            event("❌ " + e.getMessage(), true);
+        }
+    }
+
+    private void beginScreenSharing() throws IOException {
+        screenSharing = true;
+        for (Listener listener : listeners) {
+            listener.screenSharingChanged(true);
+        }
+        if (!startScreenPipeline()) {
+            connection.send(Protocol.SCREEN_SHARE_STOP);
+            endScreenSharing();
+        }
+    }
+
+    private void endScreenSharing() {
+        screenSharing = false;
+        endRemoteControl();
+        stopScreenPipeline();
+        for (Listener listener : listeners) {
+            listener.screenSharingChanged(false);
+        }
+    }
+
+    // Capture, encode and send run on their own threads, see ScreenPipeline. A
+    // pipeline starts only once the previous one stopped using the encoder.
+    private boolean startScreenPipeline() {
+        synchronized (pipelineLock) {
+            synchronized (this) {
+                return startScreenPipelineLocked();
+            }
+        }
+    }
+
+    private boolean startScreenPipelineLocked() {
+        if (capturer == null) {
+            try {
+                if (robot == null) {
+                    robot = new Robot();
+                }
+                capturer = new ScreenCapturer(robot, new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()), 2);
+            } catch (AWTException | HeadlessException e) {
+                event("❌ Cannot capture the screen: " + e.getMessage(), true);
+                return false;
+            }
+        }
+        screenPipeline = new ScreenPipeline(capturer, tileEncoder, rateController, connection, this::applyRateSettings,
+            new ScreenPipeline.Listener() {
+                @Override
+                public void statsUpdated(String description) {
+                    streamStatsUpdated("📶 " + description);
+                }
+
+                @Override
+                public void pipelineFailed(Exception e) {
+                    event("❌ Screen sharing error: " + e.getMessage(), true);
+                    streamStatsUpdated("📶 Stream: idle");
+                }
+
+                @Override
+                public void datagramsStalled(ScreenDatagrams.Sender stalled) {
+                    closeDatagrams();
+                    event("⚠️ Screen frames over UDP stopped getting through, back on TCP", true);
+                }
+            });
+        screenPipeline.start();
+        event("🔄 Screen sharing started...", false);
+        if (datagramsWanted) {
+            try {
+                connection.send(Protocol.UDP_OFFER);
+            } catch (IOException e) {
+                // The listener thread reports the lost connection
+            }
+        }
+        return true;
+    }
+
+    // Waits for the pipeline's threads, which call back into this engine, without
+    // holding its lock
+    private void stopScreenPipeline() {
+        synchronized (pipelineLock) {
+            ScreenPipeline stopped;
+            synchronized (this) {
+                closeDatagrams();
+                stopped = screenPipeline;
+                screenPipeline = null;
+            }
+            if (stopped != null) {
+                stopped.stop();
+                streamStatsUpdated("📶 Stream: idle");
+                event("📺 Screen sharing stopped", false);
+            }
+        }
+    }
+
+    // The server's answer to UDP_OFFER: [int port][int token], or nothing when it takes no datagrams
+    private void openDatagrams(ByteBuffer offer) {
+        if (offer.remaining() < 8) {
+            event("📡 Server takes no UDP, screen frames stay on TCP", false);
+            return;
+        }
+        int port = offer.getInt();
+        int token = offer.getInt();
+        ScreenDatagrams.Sender sender;
+        try {
+            InetSocketAddress server = (InetSocketAddress) connection.getRemoteAddress();
+            sender = new ScreenDatagrams.Sender(new InetSocketAddress(server.getAddress(), port), token,
+                ScreenDatagrams.simulatedLoss());
+        } catch (IOException e) {
+            event("⚠️ Cannot open UDP, screen frames stay on TCP: " + e.getMessage(), true);
+            return;
+        }
+        synchronized (this) {
+            closeDatagrams();
+            pendingDatagrams = sender;
+        }
+        executor.execute(() -> sayHello(sender));
+    }
+
+    // Repeats the hello until UDP_READY, falls back to TCP when none gets through
+    private void sayHello(ScreenDatagrams.Sender sender) {
+        try {
+            for (int i = 0; i < HELLO_ATTEMPTS && isPending(sender); i++) {
+                sender.sendHello();
+                Thread.sleep(HELLO_INTERVAL_MILLIS);
+            }
+        } catch (InterruptedException e) {
+            // Closing
+        }
+        synchronized (this) {
+            if (pendingDatagrams != sender) {
+                return;
+            }
+            pendingDatagrams = null;
+        }
+        sender.close();
+        event("⚠️ UDP seems blocked, screen frames stay on TCP", true);
+    }
+
+    private synchronized boolean isPending(ScreenDatagrams.Sender sender) {
+        return pendingDatagrams == sender;
+    }
+
+    private synchronized void datagramsReady() {
+        ScreenDatagrams.Sender sender = pendingDatagrams;
+        if (sender == null) {
+            return;
+        }
+        pendingDatagrams = null;
+        if (screenPipeline == null) {
+            sender.close();
+            return;
+        }
+        datagrams = sender;
+        screenPipeline.setDatagrams(sender);
+        event("📡 Screen frames now go over UDP" + (sender.getLoss() > 0
+            ? String.format(" with %.0f%% simulated loss", sender.getLoss() * 100) : ""), false);
+    }
+
+    private synchronized void closeDatagrams() {
+        if (pendingDatagrams != null) {
+            pendingDatagrams.close();
+            pendingDatagrams = null;
+        }
+        if (datagrams != null) {
+            if (screenPipeline != null) {
+                screenPipeline.setDatagrams(null);
+            }
+            datagrams.close();
+            datagrams = null;
+        }
+    }
+
+    // SCREEN_REFRESH, the server lost these slices: their tiles go out again with the next frame
+    private void refreshScreen(ByteBuffer refresh) {
+        ScreenDatagrams.Sender sender = datagrams;
+        ScreenPipeline pipeline = screenPipeline;
+        if (sender == null || pipeline == null) {
+            return;
+        }
+        int count = refresh.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            List<Rectangle> regions = sender.regionsOf(refresh.getInt(), refresh.getShort() & 0xFFFF);
+            if (regions == null) {
+                tileEncoder.reset();
+                break;
+            }
+            for (Rectangle region : regions) {
+                tileEncoder.refresh(region);
+            }
+        }
+        pipeline.requestCapture();
+    }
+
+    private synchronized void startTelemetry() {
+        long interval = Telemetry.interval();
+        if (interval <= 0 || telemetry != null) {
+            return;
+        }
+        telemetryEncoder.reset();
+        telemetry = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "nsync-telemetry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        telemetry.scheduleAtFixedRate(this::sendTelemetry, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    // REMOTE_CONTROL from the server only asks, the user decides with allowRemoteControl()
+    private void requestRemoteControl() {
+        synchronized (this) {
+            if (remoteControlled || remoteControlRequested || !screenSharing) {
+                return;
+            }
+            remoteControlRequested = true;
+        }
+        event("🖱️ Server asks to control this screen", false);
+        for (Listener listener : listeners) {
+            listener.remoteControlRequested();
+        }
+    }
+
+    // Answers the server's request with REMOTE_CONTROL [1] or [0]. The server's
+    // input is replayed from now on when allowed, until stopRemoteControl().
+    public void allowRemoteControl(boolean allowed) {
+        synchronized (this) {
+            if (!remoteControlRequested) {
+                return;
+            }
+            remoteControlRequested = false;
+            remoteControlled = allowed && screenSharing;
+            allowed = remoteControlled;
+        }
+        try {
+            connection.send(Protocol.REMOTE_CONTROL, new byte[] { (byte) (allowed ? 1 : 0) });
+        } catch (IOException e) {
+            // The listener thread reports the lost connection
+        }
+        event(allowed ? "🖱️ Server is controlling this screen, stop it any time" : "🖱️ Declined remote control", false);
+        if (allowed) {
+            for (Listener listener : listeners) {
+                listener.remoteControlChanged(true);
+            }
+        }
+    }
+
+    // Takes the screen back, the server is told with REMOTE_CONTROL [0]
+    public void stopRemoteControl() {
+        if (!endRemoteControl()) {
+            return;
+        }
+        try {
+            connection.send(Protocol.REMOTE_CONTROL, new byte[] { 0 });
+        } catch (IOException e) {
+            // The listener thread reports the lost connection
+        }
+        event("🖱️ Took back control of this screen", false);
+    }
+
+    public boolean isRemoteControlled() {
+        return remoteControlled;
+    }
+
+    // Returns true when the server was controlling this screen
+    private boolean endRemoteControl() {
+        boolean wasControlled;
+        synchronized (this) {
+            wasControlled = remoteControlled;
+            remoteControlled = false;
+            remoteControlRequested = false;
+        }
+        if (wasControlled) {
+            for (Listener listener : listeners) {
+                listener.remoteControlChanged(false);
+            }
+        }
+        return wasControlled;
+    }
+
+    // Replayed on the listener thread so nothing queues in between, then the
+    // next capture is taken right away so the result is seen as soon as possible
+    private synchronized void replayInput(ByteBuffer events) {
+        if (!remoteControlled || screenPipeline == null) {
+            return;
+        }
+        InputBatch.replay(events, robot, capturer.getBounds());
+        screenPipeline.requestCapture();
+    }
+
+    private synchronized void stopTelemetry() {
+        if (telemetry != null) {
+            telemetry.shutdown();
+            telemetry = null;
+        }
+    }
+
+    private void sendTelemetry() {
+        Connection current = connection;
+        long[] sample = Telemetry.sample(earlierBytesSent + current.getBytesSent(),
+            earlierBytesReceived + current.getBytesReceived());
+        try {
+            connection.send(Protocol.TELEMETRY, telemetryEncoder.encode(sample));
+        } catch (IOException e) {
+            // The listener thread reports the lost connection
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.telemetrySampled(sample);
+        }
+    }
+
+    // Applies the resolution and JPEG quality chosen by the rate controller
+    private void applyRateSettings() {
+        capturer.setScaleDivisor(rateController.getScaleDivisor());
+        byte[] selection = codecSelection;
+        boolean lossy = selection[0] == FrameCodec.JPEG;
+        rateController.setLossyCodec(lossy);
+        if (lossy) {
+            int quality = Math.min(selection[1], rateController.getQuality());
+            if (quality != appliedQuality) {
+                // Keeps the JPEG writer, the rate controller changes the quality all the time
+                FrameCodec codec = tileEncoder.getCodec();
+                if (codec instanceof JpegCodec) {
+                    ((JpegCodec) codec).setQuality(quality);
+                } else {
+                    tileEncoder.setCodec(new JpegCodec(quality));
+                }
+                appliedQuality = quality;
+            }
+        }
+    }
+
+    // Accepts the offer into the downloads directory, or syncs the folder there
+    public void acceptOffer(TransferOffer offer) {
+        if (!pendingOffers.remove(offer.getId(), offer)) {
+            return;
+        }
+        try {
+            if (offer.isFolder()) {
+                receiveSync(offer.getPayload());
+            } else {
+                receiveFile(offer.getPayload());
+            }
+        } catch (IOException e) {
+            event("❌ Error accepting " + offer.describe() + ": " + e.getMessage(), true);
+        }
+    }
+
+    public void rejectOffer(TransferOffer offer) {
+        if (!pendingOffers.remove(offer.getId(), offer)) {
+            return;
+        }
+        try {
+            if (offer.isFolder()) {
+                connection.send(Protocol.SYNC_DONE, DirectorySync.toDone(offer.getId(), "Declined by the receiver"));
+            } else {
+                connection.send(Protocol.FILE_CANCEL, FileTransfer.toCancel(offer.getId(), "Declined by the receiver"));
+            }
+            event("🚫 Declined " + offer.describe(), false);
+        } catch (IOException e) {
+            event("❌ Error declining " + offer.describe() + ": " + e.getMessage(), true);
+        }
+    }
+
+    // Waits for the user, the protocol has no authentication
+    private void offerReceived(TransferOffer offer) {
+        pendingOffers.put(offer.getId(), offer);
+        event("📨 Server offers " + offer.describe(), false);
+        for (Listener listener : listeners) {
+            listener.offerReceived(offer);
+        }
+    }
+
+    private void receiveFile(ByteBuffer offer) throws IOException {
+        long id = offer.getLong(offer.position());
+        try {
+            FileTransfer transfer = FileTransfer.fromOffer(offer, FileTransfer.defaultDirectory(), transferListener());
+            event("📥 Receiving file: " + transfer.getName() + " (" + RateController.formatBytes(transfer.getSize()) + ")", false);
+            if (transfer.getResumedBytes() > 0) {
+                event("▶️ Resuming at " + RateController.formatBytes(transfer.getResumedBytes()), false);
+            }
+            startTransfer(transfer);
+        } catch (IOException e) {
+            connection.send(Protocol.FILE_CANCEL, FileTransfer.toCancel(id, e.getMessage()));
+            event("❌ Cannot receive file: " + e.getMessage(), true);
+        }
+    }
+
+    // Each transfer runs on its own connections and threads, next to chat and screen sharing
+    private void startTransfer(FileTransfer transfer) {
+        try {
+            transfer.start(executor, connection.getRemoteAddress());
+        } catch (IOException e) {
+            transfer.finish(e);
+        }
+    }
+
+    // Folders are synced rather than copied, only what changed since the last sync moves
+    private void startSync(File directory) {
+        try {
+            DirectorySync sync = DirectorySync.outgoing(directory, connection, syncListener());
+            syncs.put(sync.getId(), sync);
+            event("🔄 Syncing folder: " + directory.getName(), false);
+            sync.start();
+        } catch (IOException e) {
+            event("❌ Error syncing folder: " + e.getMessage(), true);
+        }
+    }
+
+    private void receiveSync(ByteBuffer offer) throws IOException {
+        long id = offer.getLong(offer.position());
+        try {
+            DirectorySync sync = DirectorySync.fromOffer(offer, FileTransfer.defaultDirectory(), connection, syncListener());
+            syncs.put(id, sync);
+            event("🔄 Server is syncing folder: " + sync.getName(), false);
+            sync.start();
+        } catch (IOException e) {
+            connection.send(Protocol.SYNC_DONE, DirectorySync.toDone(id, e.getMessage()));
+            event("❌ Cannot sync folder: " + e.getMessage(), true);
+        }
+    }
+
+    private DirectorySync.Listener syncListener() {
+        return new DirectorySync.Listener() {
+            @Override
+            public void progress(DirectorySync sync) {
+                event("🔄 " + sync.describe(), false);
+            }
+
+            @Override
+            public void finished(DirectorySync sync, IOException error) {
+                syncs.remove(sync.getId());
+                if (error != null) {
+                    event("❌ Sync of " + sync.getName() + " failed: " + error.getMessage(), true);
+                } else if (sync.isOutgoing()) {
+                    event("✅ Synced " + sync.describeResult(), false);
+                } else {
+                    event("✅ Synced " + sync.describeResult() + " → " + sync.getDirectory(), false);
+                }
+            }
+        };
+    }
+
+    private FileTransfer.Listener transferListener() {
+        return new FileTransfer.Listener() {
+            @Override
+            public void progress(FileTransfer transfer) {
+                event((transfer.isOutgoing() ? "📤 " : "📥 ") + transfer.describe(), false);
+            }
+
+            @Override
+            public void finished(FileTransfer transfer, IOException error) {
+                if (error != null) {
+                    event("❌ Transfer of " + transfer.getName() + " failed: " + error.getMessage(), true);
+                } else if (transfer.isOutgoing()) {
+                    event("✅ Sent " + transfer.describeResult(), false);
+                } else {
+                    event("✅ Received " + transfer.describeResult() + " → " + transfer.getFile(), false);
+                }
+            }
+        };
+    }
+
+    private void logChat(byte kind, String text) {
+        if (chatLog != null) {
+            chatLog.append(kind, serverPeer, text);
+        }
+    }
+
+    private void event(String message, boolean error) {
+        for (Listener listener : listeners) {
+            listener.event(message, error);
+        }
+    }
+
+    private void streamStatsUpdated(String stats) {
+        for (Listener listener : listeners) {
+            listener.streamStatsUpdated(stats);
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package nsync;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A blocking, length-prefixed message connection over a SocketChannel.
+// Writes may come from any thread; reads are expected from a single listener thread.
+//
+// Every write happens on the connection's own writer thread (see Threads). Control,
+// input and chat messages are queued per channel like on a Session, so sending one
+// never blocks, not even on the EDT. A bulk message is written one fragment at a
+// time with the queues drained in between, and its sender waits until it is out,
+// which keeps the screen pipeline and syncs paced by the network.
+//
+// A connection with a ResendBuffer keeps its replayed messages until the server
+// acknowledges them, acknowledges the server's in turn, and can resume the
+// session of an earlier connection.
+public class Connection implements Closeable, MessageSender {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long CLOSE_TIMEOUT_MILLIS = 1000;
+
+    private final SocketChannel channel;
+    private final Thread writer;
+    // Framed messages of the control, input and chat channels, by priority
+    private final List<Queue<ByteBuffer>> channelQueues = new ArrayList<>();
+    // Held by a bulk sender until its message is written, so two never interleave
+    private final ReentrantLock bulkLock = new ReentrantLock();
+    // The bulk message being written, and its type
+    private volatile ByteBuffer bulk;
+    private volatile byte bulkType;
+    // A permit per queued message, wakes the writer
+    private final Semaphore pending = new Semaphore(0);
+    // Released once the bulk message is out, or the writer stopped
+    private final Semaphore bulkDone = new Semaphore(0);
+    private volatile boolean closed;
+    private volatile IOException writeFailure;
+
+    // Writer side buffers, reused for every fragment
+    private final ByteBuffer writeHeader = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+
+    // Read side buffers, the payload buffer only grows when a larger message arrives
+    private final ByteBuffer readHeader = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE);
+    private ByteBuffer readBody = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final FragmentAssembler assembler = new FragmentAssembler();
+    private final Message message = new Message();
+
+    // Framed bytes on the wire, after compression
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    // Both null unless the server accepted FEATURE_COMPRESSION
+    private final MessageCompressor compressor;
+    private final MessageDecompressor decompressor;
+
+    // Null when nothing is replayed
+    private final ResendBuffer resend;
+    // Queues on this connection, the way resend passes messages on
+    private final MessageSender link = this::enqueue;
+    private final boolean resumed;
+
+    public Connection(SocketChannel channel) throws IOException {
+        this(channel, null);
+    }
+
+    // Resumes the session resend holds the token of, or starts a new one. Either
+    // way resend sends what the server has not received over this connection.
+    public Connection(SocketChannel channel, ResendBuffer resend) throws IOException {
+        this.channel = channel;
+        this.resend = resend;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setSendBufferSize(Protocol.SOCKET_SEND_BUFFER);
+        boolean resume = resend != null && resend.canResume();
+        ByteBuffer preamble = null;
+        if (resume) {
+            preamble = ByteBuffer.allocate(Protocol.RESUME_PREAMBLE_SIZE);
+            preamble.putLong(resend.getToken()).put(resend.toAck()).flip();
+        }
+        byte features;
+        try {
+            features = handshake(channel, resume ? Protocol.ROLE_RESUME : Protocol.ROLE_SESSION,
+                Protocol.localFeatures(), preamble);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        boolean compression = (features & Protocol.FEATURE_COMPRESSION) != 0;
+        compressor = compression ? new MessageCompressor() : null;
+        decompressor = compression ? new MessageDecompressor() : null;
+        for (int i = 0; i < Protocol.CHANNEL_BULK; i++) {
+            channelQueues.add(new ConcurrentLinkedQueue<>());
+        }
+        writer = Threads.start("nsync-writer", this::writeLoop);
+        if (resend == null) {
+            resumed = false;
+            return;
+        }
+        try {
+            Message first = receive();
+            if (first.getType() != Protocol.SESSION_TOKEN) {
+                throw new IOException("Expected SESSION_TOKEN, got " + Protocol.typeName(first.getType()));
+            }
+            long token = first.getPayload().getLong();
+            if (token == 0) {
+                // The server has no such session any more, the next connection starts a new one
+                resend.setToken(0);
+                throw new IOException("The server no longer has the session");
+            }
+            resumed = resume && token == resend.getToken();
+            resend.setToken(token);
+            resend.attach(link, resumed, first.getPayload());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    // Client side handshake, also used to open transfer connections. Returns the
+    // features the server accepted.
+    public static byte handshake(SocketChannel channel, byte role, byte features) throws IOException {
+        return handshake(channel, role, features, null);
+    }
+
+    // preamble, when not null, goes out right behind the hello
+    public static byte handshake(SocketChannel channel, byte role, byte features, ByteBuffer preamble) throws IOException {
+        ByteBuffer hello = ByteBuffer.allocate(8);
+        hello.putInt(Protocol.MAGIC).putShort(Protocol.VERSION).put(role).put(features).flip();
+        writeFully(channel, hello);
+        if (preamble != null) {
+            writeFully(channel, preamble);
+        }
+
+        hello.clear().limit(7);
+        readFully(channel, hello);
+        hello.flip();
+        int magic = hello.getInt();
+        short version = hello.getShort();
+        if (magic != Protocol.MAGIC) {
+            throw new IOException("Peer is not speaking the Nsync protocol");
+        }
+        if (version != Protocol.VERSION) {
+            throw new IOException("Protocol version mismatch: local " + Protocol.VERSION + ", peer " + version);
+        }
+        return (byte) (hello.get() & features);
+    }
+
+    public boolean isCompressed() {
+        return compressor != null;
+    }
+
+    // Null when the connection is not compressed
+    public MessageCompressor getCompressor() {
+        return compressor;
+    }
+
+    // True when the server kept the session of an earlier connection
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    @Override
+    public void send(byte type, ByteBuffer payload) throws IOException {
+        if (resend != null && Protocol.isReplayed(type)) {
+            resend.send(link, type, payload);
+        } else {
+            enqueue(type, payload);
+        }
+    }
+
+    private void enqueue(byte type, ByteBuffer payload) throws IOException {
+        if (Protocol.channelOf(type) == Protocol.CHANNEL_BULK) {
+            sendBulk(type, payload);
+            return;
+        }
+        checkOpen();
+        Queue<ByteBuffer> queue = channelQueues.get(Protocol.channelOf(type));
+        // Compressed in the order the channel's queue is written
+        synchronized (queue) {
+            ByteBuffer compressed = compressor != null ? compressor.compress(type, payload) : null;
+            if (compressed != null) {
+                payload.position(payload.limit());
+                type |= Protocol.COMPRESSED;
+                payload = compressed;
+            }
+            int length = 1 + payload.remaining();
+            if (length > Protocol.MAX_MESSAGE_SIZE) {
+                throw new IOException("Message too large: " + length + " bytes");
+            }
+            ByteBuffer message = ByteBuffer.allocate(4 + length);
+            message.putInt(length).put(type).put(payload).flip();
+            queue.add(message);
+        }
+        pending.release();
+    }
+
+    // Hands payload to the writer without copying it, then waits until its last
+    // fragment is on the wire, so whoever sends bulk data feels the network
+    private void sendBulk(byte type, ByteBuffer payload) throws IOException {
+        bulkLock.lock();
+        try {
+            checkOpen();
+            ByteBuffer compressed = compressor != null ? compressor.compress(type, payload) : null;
+            if (compressed != null) {
+                payload.position(payload.limit());
+                type |= Protocol.COMPRESSED;
+                payload = compressed;
+            }
+            if (1 + payload.remaining() > Protocol.MAX_MESSAGE_SIZE) {
+                throw new IOException("Message too large: " + (1 + payload.remaining()) + " bytes");
+            }
+            bulkType = type;
+            bulk = payload;
+            if (closed) {
+                // The writer may have stopped before it could see payload
+                bulk = null;
+                throw closedException();
+            }
+            pending.release();
+            try {
+                bulkDone.acquire();
+            } catch (InterruptedException e) {
+                // The writer keeps going with payload, so wait for it anyway
+                bulkDone.acquireUninterruptibly();
+                Thread.currentThread().interrupt();
+            }
+            if (bulk != null) {
+                bulk = null;
+                throw closedException();
+            }
+        } finally {
+            bulkLock.unlock();
+        }
+    }
+
+    // The writer thread: queued messages in channel priority order, and one
+    // fragment of the bulk message whenever those are drained
+    private void writeLoop() {
+        try {
+            while (true) {
+                ByteBuffer message = nextQueued();
+                if (message != null) {
+                    writeFully(channel, message);
+                    bytesSent.add(message.limit());
+                    continue;
+                }
+                ByteBuffer payload = bulk;
+                if (payload != null) {
+                    writeFragment(payload);
+                    if (!payload.hasRemaining()) {
+                        bulk = null;
+                        bulkDone.release();
+                    }
+                    continue;
+                }
+                if (closed) {
+                    break;
+                }
+                pending.acquire();
+            }
+        } catch (IOException | InterruptedException e) {
+            writeFailure = e instanceof IOException ? (IOException) e : new IOException("Writer interrupted");
+            try {
+                // The listener thread sees it and reports the lost connection
+                channel.close();
+            } catch (IOException ignored) {
+                // Closed anyway
+            }
+        } finally {
+            closed = true;
+            if (bulk != null) {
+                bulkDone.release();
+            }
+        }
+    }
+
+    private ByteBuffer nextQueued() {
+        for (Queue<ByteBuffer> queue : channelQueues) {
+            ByteBuffer message = queue.poll();
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
+    private void writeFragment(ByteBuffer payload) throws IOException {
+        int limit = payload.limit();
+        boolean last = payload.remaining() <= Protocol.CHUNK_SIZE;
+        try {
+            payload.limit(last ? limit : payload.position() + Protocol.CHUNK_SIZE);
+            writeHeader.clear();
+            writeHeader.putInt(1 + payload.remaining()).put(last ? bulkType : (byte) (bulkType | Protocol.MORE_FRAGMENTS)).flip();
+            int length = writeHeader.remaining() + payload.remaining();
+            gather[0] = writeHeader;
+            gather[1] = payload;
+            while (payload.hasRemaining() || writeHeader.hasRemaining()) {
+                channel.write(gather);
+            }
+            gather[1] = null;
+            bytesSent.add(length);
+        } finally {
+            payload.limit(limit);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw closedException();
+        }
+    }
+
+    private IOException closedException() {
+        IOException failure = writeFailure;
+        return failure != null ? new IOException("Connection lost: " + failure.getMessage(), failure)
+            : new IOException("Connection closed");
+    }
+
+    // Blocks until the next message arrives. The returned message and its
+    // payload are only valid until the next call to receive().
+    public Message receive() throws IOException {
+        while (true) {
+            readHeader.clear();
+            readFully(readHeader);
+            readHeader.flip();
+            int length = readHeader.getInt();
+            byte rawType = readHeader.get();
+            if (length < 1 || length > Protocol.MAX_MESSAGE_SIZE) {
+                throw new IOException("Invalid message length: " + length);
+            }
+
+            int payloadLength = length - 1;
+            if (payloadLength > readBody.capacity()) {
+                readBody = ByteBuffer.allocateDirect(Integer.highestOneBit(payloadLength - 1) << 1);
+            }
+            readBody.clear().limit(payloadLength);
+            readFully(readBody);
+            readBody.flip();
+            bytesReceived.add(4 + length);
+
+            ByteBuffer payload = assembler.add(rawType, readBody);
+            if (payload != null) {
+                byte type = FragmentAssembler.typeOf(rawType);
+                if ((type & Protocol.COMPRESSED) != 0) {
+                    if (decompressor == null) {
+                        throw new IOException("Compressed message on an uncompressed connection");
+                    }
+                    type &= ~Protocol.COMPRESSED;
+                    payload = decompressor.decompress(type, payload);
+                }
+                if (resend != null) {
+                    if (type == Protocol.ACK) {
+                        resend.acked(payload);
+                        continue;
+                    }
+                    if (resend.received(type)) {
+                        enqueue(Protocol.ACK, ByteBuffer.wrap(resend.toAck()));
+                    }
+                }
+                message.type = type;
+                message.payload = payload;
+                return message;
+            }
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        readFully(channel, buffer);
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+    }
+
+    static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen() && channel.isConnected();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public SocketAddress getRemoteAddress() throws IOException {
+        return channel.getRemoteAddress();
+    }
+
+    // Decodes the remaining bytes of payload as UTF-8
+    public static String readText(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Gives the writer up to CLOSE_TIMEOUT_MILLIS to send what is queued
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        pending.release();
+        if (Thread.currentThread() != writer) {
+            try {
+                writer.join(CLOSE_TIMEOUT_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (compressor != null) {
+            compressor.close();
+            decompressor.close();
+        }
+        channel.close();
+    }
+
+    public static class Message {
+        private byte type;
+        private ByteBuffer payload;
+
+        public byte getType() {
+            return type;
+        }
+
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+
+        public int getInt() {
+            return payload.getInt(payload.position());
+        }
+
+        public String getText() {
+            return readText(payload);
+        }
+    }
+}
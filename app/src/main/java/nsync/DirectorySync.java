@@ -0,0 +1,727 @@
+package nsync;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Brings a directory on the peer up to date with a local one, rsync style, over
+// the session connection:
+//
+//   SYNC_OFFER       sender -> receiver  every file with its size, mtime and MD5
+//   SYNC_SIGNATURES  receiver -> sender  per changed file, the rolling and strong
+//                                        checksum of each block the receiver has
+//   SYNC_DELTA       sender -> receiver  the new file as block copies and literals
+//   SYNC_ACK         receiver -> sender  one per applied delta message
+//   SYNC_DONE        either way          the sync is over, with an error or ""
+//
+// Every payload starts with [long sync id]. Both sides keep a SyncManifest, so
+// files that did not change since the last sync are neither hashed nor sent.
+// The receiver checks every rebuilt file against the offered MD5 and asks for a
+// file again without blocks if it does not match. Files are never deleted.
+//
+// All file work runs on the sync's own thread; messageReceived() only copies the
+// payload and may be called from the selector or a receive thread.
+public class DirectorySync {
+    public interface Listener {
+        // Called at most every PROGRESS_INTERVAL_NANOS while files change
+        void progress(DirectorySync sync);
+
+        // error is null when the peer has every file
+        void finished(DirectorySync sync, IOException error);
+    }
+
+    private static final int MIN_BLOCK_SIZE = 2048;
+    private static final int MAX_BLOCK_SIZE = 128 * 1024;
+    // Longest literal op, and the largest delta message
+    private static final int LITERAL_LIMIT = 256 * 1024;
+    private static final int DELTA_MESSAGE_SIZE = 1024 * 1024;
+    // [long id][int file][byte last]
+    private static final int DELTA_HEADER_SIZE = 13;
+    // [int weak][long strong]
+    private static final int SIGNATURE_SIZE = 12;
+    // Delta messages sent ahead of the receiver's acks
+    private static final int DELTA_WINDOW = 4;
+    private static final int ACK_TIMEOUT_SECONDS = 60;
+    private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+    private static final byte OP_COPY = 0;
+    private static final byte OP_LITERAL = 1;
+    private static final String TEMP_SUFFIX = ".nsync-tmp";
+
+    private static final class OfferedFile {
+        final String path;
+        final long size;
+        final long lastModified;
+        final byte[] hash;
+
+        OfferedFile(String path, long size, long lastModified, byte[] hash) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    // A file the receiver is rebuilding
+    private static final class PendingFile {
+        final File target;
+        final File temp;
+        final int blockSize;
+        // Requested without blocks after a checksum mismatch
+        final boolean full;
+        RandomAccessFile basis;
+        OutputStream out;
+        MessageDigest md5;
+
+        PendingFile(File target, int blockSize, boolean full) {
+            this.target = target;
+            this.temp = new File(target.getParentFile(), "." + target.getName() + TEMP_SUFFIX);
+            this.blockSize = blockSize;
+            this.full = full;
+        }
+
+        void close() {
+            try {
+                if (basis != null) {
+                    basis.close();
+                }
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException ignored) {
+            }
+            basis = null;
+            out = null;
+        }
+    }
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private final long id;
+    private final String name;
+    private final File root;
+    private final boolean outgoing;
+    private final MessageSender peer;
+    private final Listener listener;
+    private final ExecutorService worker;
+    private final List<OfferedFile> files = new ArrayList<>();
+    private SyncManifest manifest;
+
+    // Sender side
+    private final Semaphore window = new Semaphore(DELTA_WINDOW);
+    private final BitSet changed = new BitSet();
+    private final ByteBuffer delta = ByteBuffer.allocate(DELTA_MESSAGE_SIZE);
+    private int deltaFile;
+
+    // Receiver side
+    private final Map<Integer, PendingFile> pending = new HashMap<>();
+    private byte[] blockBuffer;
+
+    private volatile int changedFiles;
+    private volatile int failedFiles;
+    private volatile long literalBytes;
+    private volatile long matchedBytes;
+    private long startNanos;
+    private long lastProgressNanos;
+    private volatile boolean finished;
+
+    private DirectorySync(long id, String name, File root, boolean outgoing, MessageSender peer, Listener listener) {
+        this.id = id;
+        this.name = name;
+        this.root = root;
+        this.outgoing = outgoing;
+        this.peer = peer;
+        this.listener = listener;
+        // Mostly waits on the disk and for SYNC_ACKs, a virtual thread where there are some
+        this.worker = Executors.newSingleThreadExecutor(Threads.factory("nsync-sync-" + name));
+    }
+
+    public static DirectorySync outgoing(File directory, MessageSender peer, Listener listener) throws IOException {
+        if (!directory.isDirectory()) {
+            throw new IOException("Not a directory: " + directory);
+        }
+        return new DirectorySync(ThreadLocalRandom.current().nextLong(), directory.getName(), directory, true, peer, listener);
+    }
+
+    // SYNC_OFFER payload: [long id][string name][int count], then per file
+    // [string path][long size][long lastModified][16 byte MD5], where a string is
+    // [short length][UTF-8]. The directory is synced into directory/name.
+    public static DirectorySync fromOffer(ByteBuffer offer, File directory, MessageSender peer,
+                                          Listener listener) throws IOException {
+        long id = offer.getLong();
+        String name = new File(getString(offer)).getName();
+        if (name.isEmpty() || name.equals("..")) {
+            name = "folder";
+        }
+        DirectorySync sync = new DirectorySync(id, name, new File(directory, name), false, peer, listener);
+        int count = offer.getInt();
+        for (int i = 0; i < count; i++) {
+            String path = getString(offer);
+            long size = offer.getLong();
+            long lastModified = offer.getLong();
+            byte[] hash = new byte[SyncManifest.HASH_SIZE];
+            offer.get(hash);
+            sync.resolve(path);
+            sync.files.add(new OfferedFile(path, size, lastModified, hash));
+        }
+        return sync;
+    }
+
+    // Reads a SYNC_OFFER for the user to decide on, without touching the disk
+    public static TransferOffer offerOf(ByteBuffer offer) {
+        ByteBuffer copy = TransferOffer.copyOf(offer);
+        ByteBuffer fields = copy.duplicate();
+        long id = fields.getLong();
+        String name = new File(getString(fields)).getName();
+        int count = fields.getInt();
+        long size = 0;
+        for (int i = 0; i < count; i++) {
+            getString(fields);
+            size += fields.getLong();
+            fields.position(fields.position() + 8 + SyncManifest.HASH_SIZE);
+        }
+        return new TransferOffer(id, true, name, size, count, copy);
+    }
+
+    public static byte[] toDone(long id, String error) {
+        byte[] errorBytes = error.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer done = ByteBuffer.allocate(8 + errorBytes.length);
+        done.putLong(id).put(errorBytes);
+        return done.array();
+    }
+
+    // Sender: hashes what changed and offers the tree. Receiver: asks for what differs.
+    public void start() {
+        startNanos = System.nanoTime();
+        lastProgressNanos = startNanos;
+        submit(outgoing ? this::offer : this::compare);
+    }
+
+    // Any SYNC_* message but SYNC_OFFER; the payload is copied
+    public void messageReceived(byte type, ByteBuffer payload) {
+        if (type == Protocol.SYNC_ACK) {
+            window.release();
+            return;
+        }
+        ByteBuffer message = ByteBuffer.allocate(payload.remaining());
+        message.put(payload).flip();
+        message.getLong();
+        switch (type) {
+            case Protocol.SYNC_SIGNATURES:
+                submit(() -> sendDelta(message));
+                break;
+            case Protocol.SYNC_DELTA:
+                submit(() -> applyDelta(message));
+                break;
+            case Protocol.SYNC_DONE:
+                String error = Connection.readText(message);
+                finish(error.isEmpty() ? null : new IOException(error));
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void submit(Step step) {
+        try {
+            worker.execute(() -> {
+                if (finished) {
+                    return;
+                }
+                try {
+                    step.run();
+                } catch (IOException | RuntimeException e) {
+                    abort(e instanceof IOException ? (IOException) e : new IOException("Sync failed: " + e, e));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Already finished
+        }
+    }
+
+    private void abort(IOException error) {
+        try {
+            peer.send(Protocol.SYNC_DONE, toDone(id, error.getMessage() != null ? error.getMessage() : error.toString()));
+        } catch (IOException ignored) {
+        }
+        finish(error);
+    }
+
+    // Sender side
+
+    private void offer() throws IOException {
+        manifest = SyncManifest.load(root);
+        List<String> paths = listFiles();
+        ByteBuffer offer = ByteBuffer.allocate(1024);
+        offer.putLong(id);
+        offer = putString(offer, name);
+        offer.putInt(paths.size());
+        for (String path : paths) {
+            File file = new File(root, path);
+            byte[] hash = manifest.hash(path, file);
+            files.add(new OfferedFile(path, file.length(), file.lastModified(), hash));
+            offer = putString(offer, path);
+            offer = ensureCapacity(offer, 16 + SyncManifest.HASH_SIZE);
+            offer.putLong(file.length()).putLong(file.lastModified()).put(hash);
+        }
+        manifest.retain(paths);
+        manifest.save();
+        offer.flip();
+        peer.send(Protocol.SYNC_OFFER, offer);
+    }
+
+    // Relative paths of the files under root, with '/' separators
+    private List<String> listFiles() throws IOException {
+        Path base = root.toPath();
+        try (Stream<Path> walk = Files.walk(base)) {
+            return walk.filter(Files::isRegularFile)
+                .map(path -> base.relativize(path).toString().replace(File.separatorChar, '/'))
+                .filter(DirectorySync::isSyncedPath)
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static boolean isSyncedPath(String path) {
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        return !fileName.startsWith(SyncManifest.FILE_NAME) && !fileName.endsWith(TEMP_SUFFIX);
+    }
+
+    // SYNC_SIGNATURES payload: [long id][int file][int block size][int count], then
+    // [int weak][long strong] for each whole block of the receiver's copy
+    private void sendDelta(ByteBuffer signatures) throws IOException {
+        int index = signatures.getInt();
+        int blockSize = signatures.getInt();
+        int count = signatures.getInt();
+        if (index < 0 || index >= files.size() || blockSize < 1 || blockSize > MAX_BLOCK_SIZE
+            || count < 0 || count > signatures.remaining() / SIGNATURE_SIZE) {
+            throw new IOException("Invalid signatures for file " + index);
+        }
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        long[] strong = new long[count];
+        for (int block = 0; block < count; block++) {
+            blocksByWeak.computeIfAbsent(signatures.getInt(), weak -> new ArrayList<>(1)).add(block);
+            strong[block] = signatures.getLong();
+        }
+        if (!changed.get(index)) {
+            changed.set(index);
+            changedFiles++;
+        }
+
+        deltaFile = index;
+        delta.clear().position(DELTA_HEADER_SIZE);
+        try (InputStream in = new FileInputStream(new File(root, files.get(index).path))) {
+            if (count == 0) {
+                sendLiterals(in);
+            } else {
+                sendMatches(in, blockSize, blocksByWeak, strong);
+            }
+        }
+        sendDeltaMessage(true);
+    }
+
+    // Nothing to match against, the whole file goes out as literals
+    private void sendLiterals(InputStream in) throws IOException {
+        byte[] buffer = new byte[LITERAL_LIMIT];
+        int n;
+        while ((n = readFully(in, buffer, 0, buffer.length)) > 0) {
+            literal(buffer, 0, n);
+        }
+    }
+
+    // Slides a block sized window over the file one byte at a time. Where the
+    // window matches one of the receiver's blocks a copy is sent, the bytes the
+    // window skipped over go out as a literal.
+    private void sendMatches(InputStream in, int blockSize, Map<Integer, List<Integer>> blocksByWeak,
+                             long[] strong) throws IOException {
+        byte[] buffer = new byte[LITERAL_LIMIT + 2 * blockSize];
+        RollingChecksum checksum = new RollingChecksum(blockSize);
+        MessageDigest md5 = SyncManifest.md5();
+        int filled = 0;
+        int start = 0;
+        int literalStart = 0;
+        boolean rolling = false;
+        boolean eof = false;
+        while (true) {
+            // Keep the window and the byte after it in the buffer
+            if (filled - start <= blockSize && !eof) {
+                System.arraycopy(buffer, literalStart, buffer, 0, filled - literalStart);
+                filled -= literalStart;
+                start -= literalStart;
+                literalStart = 0;
+                int n = readFully(in, buffer, filled, buffer.length - filled);
+                filled += n;
+                eof = filled < buffer.length;
+            }
+            if (filled - start < blockSize) {
+                break;
+            }
+            if (!rolling) {
+                checksum.reset(buffer, start);
+                rolling = true;
+            }
+
+            List<Integer> candidates = blocksByWeak.get(checksum.value());
+            if (candidates != null) {
+                md5.update(buffer, start, blockSize);
+                long hash = ByteBuffer.wrap(md5.digest()).getLong();
+                int match = -1;
+                for (int block : candidates) {
+                    if (strong[block] == hash) {
+                        match = block;
+                        break;
+                    }
+                }
+                if (match >= 0) {
+                    literal(buffer, literalStart, start - literalStart);
+                    copy(match, blockSize);
+                    start += blockSize;
+                    literalStart = start;
+                    rolling = false;
+                    continue;
+                }
+            }
+
+            if (filled - start == blockSize) {
+                // The last window of the file did not match
+                break;
+            }
+            checksum.roll(buffer[start], buffer[start + blockSize]);
+            start++;
+            if (start - literalStart >= LITERAL_LIMIT) {
+                literal(buffer, literalStart, start - literalStart);
+                literalStart = start;
+            }
+        }
+        literal(buffer, literalStart, filled - literalStart);
+    }
+
+    private void literal(byte[] data, int offset, int length) throws IOException {
+        if (length == 0) {
+            return;
+        }
+        if (delta.remaining() < 5 + length) {
+            sendDeltaMessage(false);
+        }
+        delta.put(OP_LITERAL).putInt(length).put(data, offset, length);
+        literalBytes += length;
+    }
+
+    private void copy(int block, int blockSize) throws IOException {
+        if (delta.remaining() < 5) {
+            sendDeltaMessage(false);
+        }
+        delta.put(OP_COPY).putInt(block);
+        matchedBytes += blockSize;
+    }
+
+    // SYNC_DELTA payload: [long id][int file][byte last], then ops: [byte OP_COPY][int block]
+    // or [byte OP_LITERAL][int length][bytes]
+    private void sendDeltaMessage(boolean last) throws IOException {
+        awaitWindow();
+        delta.flip();
+        delta.putLong(0, id).putInt(8, deltaFile).put(12, (byte) (last ? 1 : 0));
+        peer.send(Protocol.SYNC_DELTA, delta);
+        delta.clear().position(DELTA_HEADER_SIZE);
+        reportProgress();
+    }
+
+    // Keeps at most DELTA_WINDOW unapplied delta messages queued for the receiver
+    private void awaitWindow() throws IOException {
+        try {
+            for (int waited = 0; !window.tryAcquire(1, TimeUnit.SECONDS); waited++) {
+                if (finished) {
+                    throw new IOException("Sync stopped");
+                }
+                if (waited >= ACK_TIMEOUT_SECONDS) {
+                    throw new IOException("Peer stopped applying changes");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Sync interrupted");
+        }
+    }
+
+    // Receiver side
+
+    // Requests every offered file that is missing here or has another MD5
+    private void compare() throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Cannot create " + root);
+        }
+        manifest = SyncManifest.load(root);
+        for (int index = 0; index < files.size(); index++) {
+            OfferedFile offered = files.get(index);
+            File target = resolve(offered.path);
+            if (target.isFile() && target.length() == offered.size
+                && Arrays.equals(manifest.hash(offered.path, target), offered.hash)) {
+                continue;
+            }
+            changedFiles++;
+            request(index, target, false);
+        }
+        if (pending.isEmpty()) {
+            complete();
+        }
+    }
+
+    // Sends the signatures of target's blocks, or none when full
+    private void request(int index, File target, boolean full) throws IOException {
+        OfferedFile offered = files.get(index);
+        int blockSize = blockSizeFor(Math.max(offered.size, target.length()));
+        int count = full || !target.isFile() ? 0 : (int) Math.min(target.length() / blockSize,
+            (Protocol.MAX_MESSAGE_SIZE - 64) / SIGNATURE_SIZE);
+        ByteBuffer signatures = ByteBuffer.allocate(20 + count * SIGNATURE_SIZE);
+        signatures.putLong(id).putInt(index).putInt(blockSize).putInt(count);
+        if (count > 0) {
+            byte[] block = new byte[blockSize];
+            RollingChecksum checksum = new RollingChecksum(blockSize);
+            MessageDigest md5 = SyncManifest.md5();
+            try (InputStream in = new FileInputStream(target)) {
+                for (int i = 0; i < count; i++) {
+                    if (readFully(in, block, 0, blockSize) < blockSize) {
+                        throw new IOException(target + " changed while reading it");
+                    }
+                    checksum.reset(block, 0);
+                    md5.update(block);
+                    signatures.putInt(checksum.value()).putLong(ByteBuffer.wrap(md5.digest()).getLong());
+                }
+            }
+        }
+        pending.put(index, new PendingFile(target, blockSize, full));
+        signatures.flip();
+        peer.send(Protocol.SYNC_SIGNATURES, signatures);
+    }
+
+    // Rebuilds the file in a temporary file next to it from our blocks and the literals
+    private void applyDelta(ByteBuffer message) throws IOException {
+        int index = message.getInt();
+        boolean last = message.get() != 0;
+        PendingFile file = pending.get(index);
+        if (file == null) {
+            throw new IOException("Unexpected changes for file " + index);
+        }
+        if (file.out == null) {
+            File parent = file.temp.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            if (!file.full && file.target.isFile()) {
+                file.basis = new RandomAccessFile(file.target, "r");
+            }
+            file.out = new FileOutputStream(file.temp);
+            file.md5 = SyncManifest.md5();
+        }
+
+        while (message.hasRemaining()) {
+            byte op = message.get();
+            if (op == OP_COPY) {
+                int block = message.getInt();
+                long offset = (long) block * file.blockSize;
+                if (file.basis == null || block < 0 || offset + file.blockSize > file.basis.length()) {
+                    throw new IOException("Invalid block " + block + " for " + files.get(index).path);
+                }
+                if (blockBuffer == null || blockBuffer.length < file.blockSize) {
+                    blockBuffer = new byte[file.blockSize];
+                }
+                file.basis.seek(offset);
+                file.basis.readFully(blockBuffer, 0, file.blockSize);
+                file.out.write(blockBuffer, 0, file.blockSize);
+                file.md5.update(blockBuffer, 0, file.blockSize);
+                matchedBytes += file.blockSize;
+            } else if (op == OP_LITERAL) {
+                int length = message.getInt();
+                if (length < 0 || length > message.remaining()) {
+                    throw new IOException("Invalid literal of " + length + " bytes");
+                }
+                int position = message.arrayOffset() + message.position();
+                file.out.write(message.array(), position, length);
+                file.md5.update(message.array(), position, length);
+                message.position(message.position() + length);
+                literalBytes += length;
+            } else {
+                throw new IOException("Unknown delta op " + op);
+            }
+        }
+        peer.send(Protocol.SYNC_ACK, ByteBuffer.allocate(8).putLong(0, id));
+        if (last) {
+            fileRebuilt(index, file);
+        }
+        reportProgress();
+    }
+
+    // Moves a verified file into place, or asks for all of it again
+    private void fileRebuilt(int index, PendingFile file) throws IOException {
+        file.close();
+        pending.remove(index);
+        OfferedFile offered = files.get(index);
+        byte[] hash = file.md5.digest();
+        if (!Arrays.equals(hash, offered.hash)) {
+            file.temp.delete();
+            if (!file.full) {
+                request(index, file.target, true);
+                return;
+            }
+            // The sender's file changed after it was offered
+            failedFiles++;
+        } else {
+            SyncManifest.replace(file.temp, file.target);
+            file.target.setLastModified(offered.lastModified);
+            manifest.put(offered.path, file.target.length(), file.target.lastModified(), hash);
+        }
+        if (pending.isEmpty()) {
+            complete();
+        }
+    }
+
+    private void complete() throws IOException {
+        manifest.save();
+        IOException error = failedFiles > 0
+            ? new IOException(failedFiles + " files changed on the sender during the sync") : null;
+        peer.send(Protocol.SYNC_DONE, toDone(id, error != null ? error.getMessage() : ""));
+        finish(error);
+    }
+
+    // The offered path under root, refusing anything that would escape it
+    private File resolve(String path) throws IOException {
+        Path base = root.toPath().toAbsolutePath().normalize();
+        Path target = base.resolve(path).normalize();
+        if (path.isEmpty() || Paths.get(path).isAbsolute() || !target.startsWith(base) || target.equals(base)
+            || !isSyncedPath(path)) {
+            throw new IOException("Invalid path in sync offer: " + path);
+        }
+        return target.toFile();
+    }
+
+    // About the square root of the file size, as rsync does
+    static int blockSizeFor(long size) {
+        int blockSize = (int) Math.min(MAX_BLOCK_SIZE, (long) Math.sqrt(size)) & ~7;
+        return Math.max(MIN_BLOCK_SIZE, blockSize);
+    }
+
+    // Stops the sync and reports the outcome once
+    public void finish(IOException error) {
+        synchronized (this) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+        }
+        try {
+            worker.execute(() -> {
+                for (PendingFile file : pending.values()) {
+                    file.close();
+                    file.temp.delete();
+                }
+                pending.clear();
+            });
+        } catch (RejectedExecutionException ignored) {
+        }
+        worker.shutdown();
+        listener.finished(this, error);
+    }
+
+    private void reportProgress() {
+        long now = System.nanoTime();
+        if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS) {
+            lastProgressNanos = now;
+            listener.progress(this);
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, offset + total, length - total);
+            if (n < 0) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int needed) {
+        if (buffer.remaining() >= needed) {
+            return buffer;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + needed));
+        buffer.flip();
+        return larger.put(buffer);
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Name too long: " + text);
+        }
+        ByteBuffer target = ensureCapacity(buffer, 2 + bytes.length);
+        target.putShort((short) bytes.length).put(bytes);
+        return target;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public File getDirectory() {
+        return root;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public MessageSender getPeer() {
+        return peer;
+    }
+
+    // e.g. "project · 3 of 1204 files changed · 12.0 KB sent, 40.0 MB matched"
+    public String describe() {
+        return String.format("%s · %d of %d files changed · %s %s, %s matched", name, changedFiles, files.size(),
+            RateController.formatBytes(literalBytes), outgoing ? "sent" : "received",
+            RateController.formatBytes(matchedBytes));
+    }
+
+    public String describeResult() {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return String.format("%s in %.1f s", describe(), seconds);
+    }
+}
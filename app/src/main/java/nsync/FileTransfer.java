@@ -0,0 +1,440 @@
+package nsync;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32C;
+
+// One file moving over STREAMS parallel transfer connections (see Protocol and
+// TransferStream), so it never competes with chat or screen frames on the session
+// connection and a single stream's window does not limit a high latency link.
+//
+// The file is split into CHUNK_SIZE chunks. The receiver requests the chunks it
+// still needs and the sender answers each request with the chunk and its CRC32C.
+// Chunk data goes from the file to the socket with transferTo. The receiver keeps
+// the partial file next to a state file holding a bitmap of verified chunks, so an
+// interrupted transfer of the same file (name, size and modification time) picks
+// up where it stopped. Memory use does not depend on the file size.
+public class FileTransfer {
+    public interface Listener {
+        // Called at most every PROGRESS_INTERVAL_NANOS while bytes move
+        void progress(FileTransfer transfer);
+
+        // error is null when the whole file arrived
+        void finished(FileTransfer transfer, IOException error);
+    }
+
+    public static final int CHUNK_SIZE = 4 * 1024 * 1024;
+    public static final int STREAMS = 4;
+
+    private static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L;
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".part.nsync";
+    // State file: [long size][long lastModified][int chunkSize][bitmap]
+    private static final int STATE_HEADER_SIZE = 20;
+
+    // Partial files in use by a running download
+    private static final Set<File> activeParts = new HashSet<>();
+
+    private final long id;
+    private final String name;
+    private final long size;
+    private final long lastModified;
+    private final int chunkCount;
+    private final boolean outgoing;
+    private final Listener listener;
+    // The source, or where a download ends up once complete
+    private File file;
+
+    // Sender side
+    private FileChannel source;
+
+    // Receiver side
+    private File directory;
+    private File partFile;
+    private File stateFile;
+    private FileChannel part;
+    private FileChannel state;
+    private final BitSet received = new BitSet();
+    private final ArrayDeque<Integer> unrequested = new ArrayDeque<>();
+    private long resumedBytes;
+
+    private int expectedStreams = -1;
+    private int openedStreams;
+    private int closedStreams;
+    private IOException streamError;
+
+    private volatile long position;
+    private long startNanos;
+    private long lastProgressNanos;
+    private volatile boolean finished;
+
+    private FileTransfer(long id, String name, long size, long lastModified, boolean outgoing, Listener listener) {
+        this.id = id;
+        this.name = name;
+        this.size = size;
+        this.lastModified = lastModified;
+        this.chunkCount = (int) ((size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        this.outgoing = outgoing;
+        this.listener = listener;
+    }
+
+    public static FileTransfer outgoing(File file, Listener listener) throws IOException {
+        if (!file.isFile()) {
+            throw new IOException("Not a file: " + file);
+        }
+        FileTransfer transfer = new FileTransfer(ThreadLocalRandom.current().nextLong(), file.getName(),
+            file.length(), file.lastModified(), true, listener);
+        transfer.file = file;
+        return transfer;
+    }
+
+    // Receives into directory, resuming a partial download of the same file
+    public static FileTransfer incoming(long id, String name, long size, long lastModified, File directory,
+                                        Listener listener) throws IOException {
+        if (size < 0 || size / CHUNK_SIZE >= Integer.MAX_VALUE) {
+            throw new IOException("Invalid file size: " + size);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        // Never let the sender pick a path outside the directory
+        String safeName = new File(name).getName();
+        if (safeName.isEmpty() || safeName.equals("..")) {
+            safeName = "file";
+        }
+        FileTransfer transfer = new FileTransfer(id, safeName, size, lastModified, false, listener);
+        transfer.directory = directory;
+        transfer.openPartial();
+        return transfer;
+    }
+
+    // Where received files are saved
+    public static File defaultDirectory() {
+        return new File(System.getProperty("user.home"), "Nsync Downloads");
+    }
+
+    // FILE_OFFER payload: [long id][long size][long lastModified][UTF-8 name]
+    public byte[] toOffer() {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer offer = ByteBuffer.allocate(24 + nameBytes.length);
+        offer.putLong(id).putLong(size).putLong(lastModified).put(nameBytes);
+        return offer.array();
+    }
+
+    public static FileTransfer fromOffer(ByteBuffer offer, File directory, Listener listener) throws IOException {
+        long id = offer.getLong();
+        long size = offer.getLong();
+        long lastModified = offer.getLong();
+        return incoming(id, Connection.readText(offer), size, lastModified, directory, listener);
+    }
+
+    // Reads a FILE_OFFER for the user to decide on, without touching the disk
+    public static TransferOffer offerOf(ByteBuffer offer) {
+        ByteBuffer copy = TransferOffer.copyOf(offer);
+        ByteBuffer fields = copy.duplicate();
+        long id = fields.getLong();
+        long size = fields.getLong();
+        fields.getLong();
+        return new TransferOffer(id, false, Connection.readText(fields), size, 1, copy);
+    }
+
+    // FILE_CANCEL payload: [long id][UTF-8 reason]
+    public static byte[] toCancel(long id, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer cancel = ByteBuffer.allocate(8 + reasonBytes.length);
+        cancel.putLong(id).put(reasonBytes);
+        return cancel.array();
+    }
+
+    // Client side: opens the transfer connections to the server on executor threads
+    public void start(Executor executor, SocketAddress server) {
+        for (int i = 0; i < STREAMS; i++) {
+            executor.execute(() -> {
+                try {
+                    new TransferStream(this).run(server, STREAMS);
+                } catch (IOException e) {
+                    // Reported through the listener once every stream has ended
+                }
+            });
+        }
+    }
+
+    // Picks the partial file to resume, or starts a new one
+    private void openPartial() throws IOException {
+        synchronized (activeParts) {
+            for (int copy = 0; ; copy++) {
+                String prefix = copy == 0 ? "" : "(" + copy + ") ";
+                partFile = new File(directory, prefix + name + PART_SUFFIX);
+                stateFile = new File(directory, prefix + name + STATE_SUFFIX);
+                if (activeParts.add(partFile)) {
+                    break;
+                }
+            }
+        }
+
+        part = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        state = FileChannel.open(stateFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(STATE_HEADER_SIZE);
+        state.read(header, 0);
+        header.flip();
+        boolean resume = header.remaining() == STATE_HEADER_SIZE
+            && header.getLong() == size && header.getLong() == lastModified && header.getInt() == CHUNK_SIZE;
+        if (resume) {
+            ByteBuffer bitmap = ByteBuffer.allocate((chunkCount + 7) / 8);
+            state.read(bitmap, STATE_HEADER_SIZE);
+            received.or(BitSet.valueOf(bitmap.array()));
+            received.clear(chunkCount, Integer.MAX_VALUE);
+        } else {
+            part.truncate(0);
+            state.truncate(0);
+            header.clear();
+            header.putLong(size).putLong(lastModified).putInt(CHUNK_SIZE).flip();
+            state.write(header, 0);
+            state.write(ByteBuffer.allocate((chunkCount + 7) / 8), STATE_HEADER_SIZE);
+        }
+        for (int chunk = received.nextClearBit(0); chunk < chunkCount; chunk = received.nextClearBit(chunk + 1)) {
+            unrequested.add(chunk);
+        }
+        for (int chunk = received.nextSetBit(0); chunk >= 0; chunk = received.nextSetBit(chunk + 1)) {
+            resumedBytes += chunkLength(chunk);
+        }
+        position = resumedBytes;
+    }
+
+    // Bytes of the file already present before this transfer started
+    public long getResumedBytes() {
+        return resumedBytes;
+    }
+
+    // A stream connected; streams is the total the client opens. Returns false when
+    // the stream does not belong to this transfer.
+    synchronized boolean streamOpened(int streams) throws IOException {
+        if (finished || (expectedStreams >= 0 && streams != expectedStreams) || openedStreams >= streams) {
+            return false;
+        }
+        if (openedStreams == 0) {
+            expectedStreams = streams;
+            startNanos = System.nanoTime();
+            lastProgressNanos = startNanos;
+            if (outgoing) {
+                source = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            }
+        }
+        openedStreams++;
+        return true;
+    }
+
+    public synchronized boolean allStreamsOpened() {
+        return openedStreams == expectedStreams;
+    }
+
+    // A stream ended, cleanly when error is null. The transfer finishes with the
+    // last stream, or as soon as every chunk is verified.
+    synchronized void streamClosed(IOException error) {
+        closedStreams++;
+        if (error != null && streamError == null) {
+            streamError = error;
+        }
+        if (!outgoing && isComplete()) {
+            finish(null);
+        } else if (closedStreams >= expectedStreams) {
+            finish(streamError);
+        }
+    }
+
+    public long chunkOffset(int chunk) {
+        return (long) chunk * CHUNK_SIZE;
+    }
+
+    public int chunkLength(int chunk) {
+        return (int) Math.min(CHUNK_SIZE, size - chunkOffset(chunk));
+    }
+
+    boolean isValidChunk(int chunk) {
+        return chunk >= 0 && chunk < chunkCount;
+    }
+
+    // Sender side
+
+    // CRC32C of a chunk, read through a mapping of the file rather than the heap
+    int checksum(int chunk) throws IOException {
+        MappedByteBuffer mapped = source.map(FileChannel.MapMode.READ_ONLY, chunkOffset(chunk), chunkLength(chunk));
+        CRC32C crc = new CRC32C();
+        crc.update(mapped);
+        return (int) crc.getValue();
+    }
+
+    long transferTo(long offset, long count, SocketChannel channel) throws IOException {
+        long moved = source.transferTo(offset, count, channel);
+        synchronized (this) {
+            advance(moved);
+        }
+        return moved;
+    }
+
+    // Receiver side
+
+    // Next chunk to request, or -1 when every missing chunk is requested
+    synchronized int nextChunk() {
+        Integer chunk = unrequested.poll();
+        return chunk != null ? chunk : -1;
+    }
+
+    // Requested again on whichever stream asks next
+    synchronized void chunkFailed(int chunk, long bytesWritten) {
+        unrequested.addFirst(chunk);
+        advance(-bytesWritten);
+    }
+
+    synchronized boolean hasUnrequestedChunks() {
+        return !unrequested.isEmpty();
+    }
+
+    void write(ByteBuffer bytes, long offset) throws IOException {
+        int count = bytes.remaining();
+        while (bytes.hasRemaining()) {
+            offset += part.write(bytes, offset);
+        }
+        synchronized (this) {
+            advance(count);
+        }
+    }
+
+    // Marks a verified chunk in the state file. Not forced to disk, so a crash of
+    // the whole machine may cost a few chunks that are then fetched again.
+    synchronized void chunkReceived(int chunk) throws IOException {
+        received.set(chunk);
+        int first = chunk & ~7;
+        byte bits = 0;
+        for (int i = first; i < first + 8; i++) {
+            if (received.get(i)) {
+                bits |= 1 << (i - first);
+            }
+        }
+        ByteBuffer update = ByteBuffer.allocate(1);
+        update.put(bits).flip();
+        state.write(update, STATE_HEADER_SIZE + chunk / 8);
+    }
+
+    public synchronized boolean isComplete() {
+        return received.cardinality() == chunkCount;
+    }
+
+    private void advance(long moved) {
+        position += moved;
+        long now = System.nanoTime();
+        if (now - lastProgressNanos >= PROGRESS_INTERVAL_NANOS && !finished) {
+            lastProgressNanos = now;
+            listener.progress(this);
+        }
+    }
+
+    // Closes the files and reports the outcome once. A complete download is moved
+    // into place; an incomplete one stays behind to be resumed.
+    public synchronized void finish(IOException error) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            // No force(), it would stall the last stream for the whole file
+            if (source != null) {
+                source.close();
+            }
+            if (part != null) {
+                part.close();
+                state.close();
+                if (error == null && isComplete()) {
+                    file = uniqueTarget();
+                    if (!partFile.renameTo(file)) {
+                        throw new IOException("Cannot rename " + partFile + " to " + file);
+                    }
+                    stateFile.delete();
+                } else if (error == null) {
+                    error = new EOFException("Transfer ended after " + position + " of " + size + " bytes");
+                }
+            }
+        } catch (IOException e) {
+            if (error == null) {
+                error = e;
+            }
+        } finally {
+            if (partFile != null) {
+                synchronized (activeParts) {
+                    activeParts.remove(partFile);
+                }
+            }
+        }
+        listener.finished(this, error);
+    }
+
+    private File uniqueTarget() {
+        File target = new File(directory, name);
+        for (int copy = 1; target.exists(); copy++) {
+            target = new File(directory, "(" + copy + ") " + name);
+        }
+        return target;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    // The source file, or the downloaded file once finished
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isOutgoing() {
+        return outgoing;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    public long getBytesPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return startNanos != 0 && elapsed > 0 ? (position - resumedBytes) * 1_000_000_000L / elapsed : 0;
+    }
+
+    // e.g. "report.pdf (28.5 MB) in 0.3 s, 95.0 MB/s"
+    public String describeResult() {
+        double seconds = startNanos != 0 ? (System.nanoTime() - startNanos) / 1e9 : 0;
+        return String.format("%s (%s) in %.1f s, %s/s", name, RateController.formatBytes(size), seconds,
+            RateController.formatBytes(getBytesPerSecond()));
+    }
+
+    // e.g. "report.pdf 42% · 12.0 MB of 28.5 MB · 98.3 MB/s"
+    public String describe() {
+        int percent = size > 0 ? (int) (position * 100 / size) : 100;
+        return String.format("%s %d%% · %s of %s · %s/s", name, percent, RateController.formatBytes(position),
+            RateController.formatBytes(size), RateController.formatBytes(getBytesPerSecond()));
+    }
+}
@@ -0,0 +1,65 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Reassembles bulk messages that arrive as fragments (see Protocol). Complete
+// messages pass straight through without a copy.
+public class FragmentAssembler {
+    private static final int INITIAL_SIZE = 256 * 1024;
+
+    private ByteBuffer buffer;
+    private byte type;
+    private boolean assembling;
+
+    // Takes the payload of one received frame. Returns the complete payload, or
+    // null while more fragments are expected. The returned buffer is only valid
+    // until the next call.
+    public ByteBuffer add(byte rawType, ByteBuffer payload) throws IOException {
+        boolean more = (rawType & Protocol.MORE_FRAGMENTS) != 0;
+        byte messageType = (byte) (rawType & ~Protocol.MORE_FRAGMENTS);
+        if (!assembling || messageType != type) {
+            if (!more) {
+                // Unfragmented, possibly interleaved with a fragmented message
+                return payload;
+            }
+            if (assembling) {
+                throw new IOException("Fragment of " + Protocol.typeName(messageType)
+                    + " inside " + Protocol.typeName(type));
+            }
+            assembling = true;
+            type = messageType;
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(INITIAL_SIZE);
+            }
+            buffer.clear();
+        }
+
+        append(payload);
+        if (more) {
+            return null;
+        }
+        assembling = false;
+        buffer.flip();
+        return buffer;
+    }
+
+    // Type of the message a complete payload from add() belongs to
+    public static byte typeOf(byte rawType) {
+        return (byte) (rawType & ~Protocol.MORE_FRAGMENTS);
+    }
+
+    private void append(ByteBuffer payload) throws IOException {
+        int needed = buffer.position() + payload.remaining();
+        if (needed > Protocol.MAX_MESSAGE_SIZE) {
+            throw new IOException("Message too large: " + needed + " bytes");
+        }
+        if (needed > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(needed - 1) << 1);
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+        buffer.put(payload);
+    }
+}
@@ -0,0 +1,104 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Relays one source session's screen to any number of viewer sessions.
+//
+// Each SCREEN_TILES frame is copied once into a read-only buffer and every
+// viewer gets a duplicate() of it, so the cost per frame does not grow with
+// the number of viewers. Viewers that fall behind drop their queued frames
+// (see Session.offerFrame) and wait for the next key frame, which is requested
+// from the source with KEY_FRAME_REQUEST instead of re-encoding per viewer.
+public class FrameBroadcaster {
+    private volatile Session source;
+    private final Set<Session> viewers = ConcurrentHashMap.newKeySet();
+    private volatile boolean keyFrameRequested;
+
+    public boolean isActive() {
+        return source != null;
+    }
+
+    public Session getSource() {
+        return source;
+    }
+
+    public Set<Session> getViewers() {
+        return viewers;
+    }
+
+    public void start(Session source) throws IOException {
+        stop();
+        this.source = source;
+        keyFrameRequested = false;
+        requestKeyFrame();
+    }
+
+    public void stop() {
+        source = null;
+        for (Session viewer : viewers) {
+            removeViewer(viewer);
+        }
+    }
+
+    public void addViewer(Session viewer) throws IOException {
+        Session current = source;
+        if (current == null || viewer == current || !viewers.add(viewer)) {
+            return;
+        }
+        viewer.resetFrames();
+        viewer.send(Protocol.RELAY_START, current.toString());
+        requestKeyFrame();
+    }
+
+    public void removeViewer(Session viewer) {
+        if (viewers.remove(viewer) && viewer.isOpen()) {
+            try {
+                viewer.send(Protocol.RELAY_STOP);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    // Drops a closed session, stopping the relay if it was the source
+    public void removeSession(Session session) {
+        if (session == source) {
+            stop();
+        } else {
+            viewers.remove(session);
+        }
+    }
+
+    // Called with every SCREEN_TILES payload from the source, without consuming it
+    public void publish(Session from, ByteBuffer payload) throws IOException {
+        if (from != source || viewers.isEmpty()) {
+            return;
+        }
+        boolean keyFrame = TileEncoder.isKeyFrame(payload);
+        if (keyFrame) {
+            keyFrameRequested = false;
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(1 + payload.remaining());
+        message.put(Protocol.SCREEN_TILES).put(payload.duplicate()).flip();
+        ByteBuffer shared = message.asReadOnlyBuffer();
+
+        boolean needKeyFrame = false;
+        for (Session viewer : viewers) {
+            needKeyFrame |= !viewer.offerFrame(shared.duplicate(), keyFrame);
+        }
+        if (needKeyFrame) {
+            requestKeyFrame();
+        }
+    }
+
+    private void requestKeyFrame() throws IOException {
+        Session current = source;
+        if (current != null && !keyFrameRequested) {
+            keyFrameRequested = true;
+            current.send(Protocol.KEY_FRAME_REQUEST);
+        }
+    }
+}
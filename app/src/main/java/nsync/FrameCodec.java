@@ -0,0 +1,51 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Compresses rectangular regions of TYPE_INT_RGB pixels for SCREEN_TILES messages.
+// A region is addressed by an offset into the pixel array and its scanline stride.
+// Instances keep reusable state and are not thread safe.
+public interface FrameCodec {
+    byte RAW = 0;
+    byte RLE = 1;
+    byte PNG = 2;
+    byte JPEG = 3;
+
+    int DEFAULT_QUALITY = 75;
+
+    byte getId();
+
+    // Upper bound of the bytes encode() may write for a width x height region
+    int maxEncodedSize(int width, int height);
+
+    void encode(int[] pixels, int offset, int stride, int width, int height, ByteBuffer out) throws IOException;
+
+    // Reads exactly the remaining bytes of in
+    void decode(ByteBuffer in, int[] pixels, int offset, int stride, int width, int height) throws IOException;
+
+    // Releases native codec state, the codec is not used afterwards
+    default void dispose() {
+    }
+
+    // quality is 1-100 and only used by lossy codecs
+    static FrameCodec create(byte id, int quality) {
+        switch (id) {
+            case RAW: return new RawCodec();
+            case RLE: return new RleCodec();
+            case PNG: return new PngCodec();
+            case JPEG: return new JpegCodec(quality);
+            default: throw new IllegalArgumentException("Unknown frame codec: " + id);
+        }
+    }
+
+    static String name(byte id) {
+        switch (id) {
+            case RAW: return "Raw";
+            case RLE: return "RLE";
+            case PNG: return "PNG";
+            case JPEG: return "JPEG";
+            default: return "Unknown(" + id + ")";
+        }
+    }
+}
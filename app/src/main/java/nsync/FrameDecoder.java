@@ -0,0 +1,162 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Decodes the screen frames of one session on a thread of its own, so the
+// selector thread only copies them in and no other session's chat or control
+// messages wait behind a JPEG decode or tile blits.
+//
+// Frames are deltas against the canvas and are decoded in order, so unlike a
+// LatestValueQueue nothing is replaced. The queue stays short anyway: the client
+// keeps at most RateController.MAX_IN_FLIGHT frames unacknowledged and FRAME_ACK
+// goes out once a frame is decoded. Should frames still pile up past MAX_QUEUED
+// (the client stops waiting for acks after a while), the queued ones are dropped
+// and decoding picks up again at the next key frame.
+public class FrameDecoder {
+    public interface Handler {
+        // Once the frame is on the canvas
+        void frameDecoded(int sequence, int frameBytes, FrameStats.Timing clientTiming, long receivedMicros)
+            throws IOException;
+
+        // Frames up to sequence were not decoded, they still need acking
+        void framesSkipped(int sequence) throws IOException;
+
+        // The canvas missed frames, cause is null when the queue was full
+        void keyFrameNeeded(Exception cause) throws IOException;
+    }
+
+    private static final int MAX_QUEUED = 2 * RateController.MAX_IN_FLIGHT;
+
+    private static class Frame {
+        final ByteBuffer payload;
+        final FrameStats.Timing clientTiming;
+        final long receivedMicros;
+
+        Frame(ByteBuffer payload, FrameStats.Timing clientTiming, long receivedMicros) {
+            this.payload = payload;
+            this.clientTiming = clientTiming;
+            this.receivedMicros = receivedMicros;
+        }
+    }
+
+    private final TileDecoder decoder;
+    private final Handler handler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = lock.newCondition();
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private boolean awaitingKeyFrame;
+    private boolean closed;
+    private boolean started;
+
+    public FrameDecoder(TileDecoder decoder, Handler handler) {
+        this.decoder = decoder;
+        this.handler = handler;
+    }
+
+    // Copies a SCREEN_TILES payload without consuming it and queues it for decoding
+    public void offer(ByteBuffer payload, FrameStats.Timing clientTiming, long receivedMicros) throws IOException {
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            if (!started) {
+                started = true;
+                Threads.start("nsync-decode", this::decodeLoop);
+            }
+            if (queue.size() < MAX_QUEUED) {
+                queue.add(new Frame(copy, clientTiming, receivedMicros));
+                queued.signalAll();
+                return;
+            }
+            queue.clear();
+            awaitingKeyFrame = true;
+        } finally {
+            lock.unlock();
+        }
+        handler.framesSkipped(copy.getInt(0));
+        handler.keyFrameNeeded(null);
+    }
+
+    // Frames still queued are dropped, the thread ends
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queue.clear();
+            queued.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decodeLoop() {
+        while (true) {
+            Frame frame;
+            boolean skip = false;
+            lock.lock();
+            try {
+                try {
+                    while (queue.isEmpty() && !closed) {
+                        queued.await();
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (closed) {
+                    return;
+                }
+                frame = queue.poll();
+                if (awaitingKeyFrame) {
+                    skip = !isKeyFrame(frame.payload);
+                    awaitingKeyFrame = skip;
+                }
+            } finally {
+                lock.unlock();
+            }
+            int sequence = frame.payload.remaining() >= 4 ? frame.payload.getInt(0) : -1;
+            int frameBytes = frame.payload.remaining();
+            Exception error = null;
+            if (!skip) {
+                try {
+                    decoder.decode(frame.payload);
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                }
+            }
+            try {
+                if (skip) {
+                    handler.framesSkipped(sequence);
+                } else if (error == null) {
+                    handler.frameDecoded(sequence, frameBytes, frame.clientTiming, frame.receivedMicros);
+                } else {
+                    // A malformed frame, start over from a key frame
+                    lock.lock();
+                    try {
+                        awaitingKeyFrame = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    handler.framesSkipped(sequence);
+                    handler.keyFrameNeeded(error);
+                }
+            } catch (IOException e) {
+                // The session is gone, close() follows
+            }
+        }
+    }
+
+    private static boolean isKeyFrame(ByteBuffer payload) {
+        try {
+            return TileEncoder.isKeyFrame(payload);
+        } catch (IndexOutOfBoundsException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package nsync;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+// Where the time of a shared screen frame goes, from capture on the client to
+// paint on the server, for one session. Every frame is stamped along the way:
+//
+//   capture   Robot capture and downscale, on the client
+//   encode    tile diff and codec, on the client
+//   queue     waiting between the client's stages, until the send starts
+//   network   send start to fully received, includes writing the frame
+//   decode    on the server's decode thread for the session, see FrameDecoder
+//   paint     decoded until the viewer painted it on the EDT
+//   total     capture start to paint
+//
+// The client's stamps travel in a FRAME_TIMING message sent just before each
+// SCREEN_TILES, see Timing. Network latency compares the client's clock with the
+// server's: it is exact on one machine and only as good as the clock sync
+// otherwise. Each stage feeds a lock-free Histogram, so recording never blocks a
+// frame; snapshots give both the whole session and the last interval.
+public class FrameStats {
+    public static final int CAPTURE = 0;
+    public static final int ENCODE = 1;
+    public static final int QUEUE = 2;
+    public static final int NETWORK = 3;
+    public static final int DECODE = 4;
+    public static final int PAINT = 5;
+    public static final int TOTAL = 6;
+    public static final String[] STAGE_NAMES = { "capture", "encode", "queue", "network", "decode", "paint", "total" };
+
+    // Lets nowMicros() use the monotonic clock yet stay comparable across machines
+    private static final long EPOCH_OFFSET_MICROS = System.currentTimeMillis() * 1000 - System.nanoTime() / 1000;
+
+    private final Histogram[] stages = new Histogram[STAGE_NAMES.length];
+    private final Histogram bytes = new Histogram();
+    private final LongAdder framesReceived = new LongAdder();
+    private final LongAdder framesPainted = new LongAdder();
+    // Decoded but replaced by a newer frame before the viewer got to paint it
+    private final LongAdder framesSkipped = new LongAdder();
+    private final long startNanos = System.nanoTime();
+
+    public FrameStats() {
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Histogram();
+        }
+    }
+
+    // Wall clock time in microseconds
+    public static long nowMicros() {
+        return System.nanoTime() / 1000 + EPOCH_OFFSET_MICROS;
+    }
+
+    // The stamps of one frame. The client fills in its part and sends it as
+    // FRAME_TIMING:
+    //
+    //   [int sequence][long capture start][int capture micros][int encode micros][long send start]
+    //
+    // with times in microseconds since the epoch. The server adds its own.
+    public static final class Timing {
+        private final int sequence;
+        private final long captureStart;
+        private final int captureMicros;
+        private final int encodeMicros;
+        private final long sendStart;
+        private FrameStats stats;
+        private long decoded;
+
+        public Timing(int sequence, long captureStart, int captureMicros, int encodeMicros, long sendStart) {
+            this.sequence = sequence;
+            this.captureStart = captureStart;
+            this.captureMicros = captureMicros;
+            this.encodeMicros = encodeMicros;
+            this.sendStart = sendStart;
+        }
+
+        public static Timing fromPayload(ByteBuffer payload) {
+            return new Timing(payload.getInt(), payload.getLong(), payload.getInt(), payload.getInt(), payload.getLong());
+        }
+
+        public byte[] toPayload() {
+            return ByteBuffer.allocate(28).putInt(sequence).putLong(captureStart).putInt(captureMicros)
+                .putInt(encodeMicros).putLong(sendStart).array();
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        // Called by the viewer once the frame is on screen
+        public void painted() {
+            if (stats != null) {
+                stats.framePainted(this, nowMicros());
+            }
+        }
+
+        // Called by the viewer when a newer frame replaced this one before it was painted
+        public void skipped() {
+            if (stats != null) {
+                stats.framesSkipped.increment();
+            }
+        }
+    }
+
+    // Records a frame decoded on the server. clientTiming is the FRAME_TIMING the
+    // client sent for it, or null from a client that sent none. Returns the timing
+    // to hand to the viewer.
+    public Timing frameDecoded(Timing clientTiming, int sequence, int frameBytes, long receivedMicros) {
+        long now = nowMicros();
+        Timing timing = clientTiming != null ? clientTiming : new Timing(sequence, 0, -1, -1, 0);
+        timing.stats = this;
+        timing.decoded = now;
+        framesReceived.increment();
+        bytes.record(frameBytes);
+        stages[DECODE].record(now - receivedMicros);
+        if (timing.captureStart > 0) {
+            stages[CAPTURE].record(timing.captureMicros);
+            stages[ENCODE].record(timing.encodeMicros);
+            stages[QUEUE].record(timing.sendStart - timing.captureStart - timing.captureMicros - timing.encodeMicros);
+            stages[NETWORK].record(receivedMicros - timing.sendStart);
+        }
+        return timing;
+    }
+
+    private void framePainted(Timing timing, long now) {
+        framesPainted.increment();
+        stages[PAINT].record(now - timing.decoded);
+        if (timing.captureStart > 0) {
+            stages[TOTAL].record(now - timing.captureStart);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    // Every counter of a FrameStats at one point in time
+    public static final class Snapshot {
+        private final long nanos;
+        private final long startNanos;
+        private final Histogram.Snapshot[] stages = new Histogram.Snapshot[STAGE_NAMES.length];
+        private final Histogram.Snapshot bytes;
+        private final long received;
+        private final long painted;
+        private final long skipped;
+
+        private Snapshot(FrameStats stats) {
+            nanos = System.nanoTime();
+            startNanos = stats.startNanos;
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = stats.stages[i].snapshot();
+            }
+            bytes = stats.bytes.snapshot();
+            received = stats.framesReceived.sum();
+            painted = stats.framesPainted.sum();
+            skipped = stats.framesSkipped.sum();
+        }
+
+        private Snapshot(Snapshot later, Snapshot earlier) {
+            nanos = later.nanos;
+            startNanos = earlier.nanos;
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = later.stages[i].since(earlier.stages[i]);
+            }
+            bytes = later.bytes.since(earlier.bytes);
+            received = later.received - earlier.received;
+            painted = later.painted - earlier.painted;
+            skipped = later.skipped - earlier.skipped;
+        }
+
+        // What happened after earlier, a snapshot of the same FrameStats
+        public Snapshot since(Snapshot earlier) {
+            return earlier == null ? this : new Snapshot(this, earlier);
+        }
+
+        public Histogram.Snapshot getStage(int stage) {
+            return stages[stage];
+        }
+
+        public double getSeconds() {
+            return Math.max(1e-9, (nanos - startNanos) / 1e9);
+        }
+
+        // Text lines for the viewer's overlay
+        public List<String> describe() {
+            List<String> lines = new ArrayList<>();
+            double seconds = getSeconds();
+            lines.add(String.format(Locale.ROOT, "%.1f fps received · %.1f painted · %d skipped · %s/frame (max %s)",
+                received / seconds, painted / seconds, skipped,
+                RateController.formatBytes((long) bytes.getMean()), RateController.formatBytes(bytes.getMax())));
+            int slowest = -1;
+            for (int i = 0; i < stages.length; i++) {
+                Histogram.Snapshot stage = stages[i];
+                if (stage.getCount() == 0) {
+                    lines.add(String.format(Locale.ROOT, "%-8s    -", STAGE_NAMES[i]));
+                    continue;
+                }
+                lines.add(String.format(Locale.ROOT, "%-8s p50 %7.1f  p99 %7.1f  max %7.1f ms", STAGE_NAMES[i],
+                    stage.getPercentile(50) / 1000.0, stage.getPercentile(99) / 1000.0, stage.getMax() / 1000.0));
+                if (i != TOTAL && (slowest < 0 || stage.getPercentile(50) > stages[slowest].getPercentile(50))) {
+                    slowest = i;
+                }
+            }
+            if (slowest >= 0) {
+                lines.add("Slowest stage: " + STAGE_NAMES[slowest]);
+            }
+            return lines;
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder();
+            double seconds = getSeconds();
+            json.append(String.format(Locale.ROOT, "{\"seconds\": %.3f, \"framesReceived\": %d, \"framesPainted\": %d, "
+                    + "\"framesSkipped\": %d, \"fpsReceived\": %.2f, \"fpsPainted\": %.2f,%n",
+                seconds, received, painted, skipped, received / seconds, painted / seconds));
+            json.append(String.format(Locale.ROOT, "  \"bytesPerFrame\": {\"mean\": %.0f, \"p50\": %d, \"p99\": %d, \"max\": %d},%n",
+                bytes.getMean(), bytes.getPercentile(50), bytes.getPercentile(99), bytes.getMax()));
+            json.append("  \"stagesMicros\": {");
+            for (int i = 0; i < stages.length; i++) {
+                Histogram.Snapshot stage = stages[i];
+                json.append(String.format(Locale.ROOT, "%s%n    \"%s\": {\"count\": %d, \"mean\": %.0f, \"p50\": %d, \"p99\": %d, \"max\": %d}",
+                    i > 0 ? "," : "", STAGE_NAMES[i], stage.getCount(), stage.getMean(),
+                    stage.getPercentile(50), stage.getPercentile(99), stage.getMax()));
+            }
+            return json.append(String.format("%n  }%n}")).toString();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package nsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+// A ClientEngine on the console, for bots and load tests. Events go to stdout,
+// one per line. Commands are read from stdin:
+//
+//   text           chat to the server
+//   /send <path>   send a file, or sync a folder
+//   /share         toggle screen sharing, which needs a display
+//   /control on|off  allow the server's request to control the screen, or
+//                    decline it and take control back
+//   /volume <n>
+//   /accept        accept the files and folders the server offered
+//   /reject        decline them
+//   /sleep <ms>    wait, for scripts
+//   /quit
+//
+// The client exits when the connection is lost, and stays connected when stdin ends.
+// Offered files are declined then, unless --accept-files is given.
+public class HeadlessClient implements ClientEngine.Listener {
+    private final ClientEngine engine = new ClientEngine();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    // UTF-8 whatever the locale, events are full of emoji
+    private final PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+    // The engine's threads may all be daemon threads, main waits on this once stdin ends
+    private final CountDownLatch disconnected = new CountDownLatch(1);
+    // Offers waiting for /accept or /reject
+    private final List<TransferOffer> offers = new CopyOnWriteArrayList<>();
+    private volatile boolean acceptFiles;
+    private volatile boolean interactive = true;
+
+    public HeadlessClient() {
+        engine.addListener(this);
+        try {
+            engine.openChatLog(ChatLog.defaultDirectory("client"));
+        } catch (IOException e) {
+            print("⚠️ Chat history is off: " + e.getMessage());
+        }
+    }
+
+    public ClientEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void connected(String server, boolean compressed) {
+        print("✅ Connected to server: " + server + (compressed ? " 🗜️ compressed" : ""));
+    }
+
+    @Override
+    public void disconnected(IOException cause) {
+        disconnected.countDown();
+        engine.close();
+        System.exit(1);
+    }
+
+    @Override
+    public void chatReceived(String text) {
+        print("👑 Server: " + text);
+    }
+
+    @Override
+    public void historyReplayed(List<ChatLog.Entry> entries) {
+        for (ChatLog.Entry entry : entries) {
+            print("📜 " + (entry.getKind() == ChatLog.RECEIVED ? "You" : "Server") + ": " + entry.getText());
+        }
+    }
+
+    @Override
+    public void event(String message, boolean error) {
+        print(message);
+    }
+
+    @Override
+    public void offerReceived(TransferOffer offer) {
+        if (acceptFiles) {
+            engine.acceptOffer(offer);
+        } else if (interactive) {
+            offers.add(offer);
+            print("📨 /accept or /reject it");
+        } else {
+            engine.rejectOffer(offer);
+        }
+    }
+
+    @Override
+    public void remoteControlRequested() {
+        print("🖱️ /control on to allow it, /control off to decline");
+    }
+
+    @Override
+    public void relayStarted(String source) {
+        print("📡 Receiving the relayed screen of " + source);
+    }
+
+    private void readCommands() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!line.startsWith("/")) {
+                engine.sendChat(line);
+                continue;
+            }
+            String[] words = line.split("\\s+", 2);
+            try {
+                switch (words[0]) {
+                    case "/send":
+                        engine.sendFile(new File(words[1]));
+                        break;
+                    case "/share":
+                        engine.setScreenSharing(!engine.isScreenSharing());
+                        break;
+                    case "/control":
+                        if (words[1].equals("on")) {
+                            engine.allowRemoteControl(true);
+                        } else {
+                            engine.allowRemoteControl(false);
+                            engine.stopRemoteControl();
+                        }
+                        break;
+                    case "/accept":
+                    case "/reject":
+                        if (offers.isEmpty()) {
+                            print("📨 No offers waiting");
+                        }
+                        answerOffers(words[0].equals("/accept"));
+                        break;
+                    case "/volume":
+                        engine.sendVolume(Integer.parseInt(words[1]));
+                        break;
+                    case "/sleep":
+                        Thread.sleep(Long.parseLong(words[1]));
+                        break;
+                    case "/quit":
+                        engine.close();
+                        System.exit(0);
+                        break;
+                    default:
+                        print("❓ Unknown command " + words[0]);
+                }
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                print("❓ " + (e.getMessage() != null ? e.getMessage() : "Missing argument") + " in " + line);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void answerOffers(boolean accept) {
+        for (TransferOffer offer : offers) {
+            offers.remove(offer);
+            if (accept) {
+                engine.acceptOffer(offer);
+            } else {
+                engine.rejectOffer(offer);
+            }
+        }
+    }
+
+    private synchronized void print(String message) {
+        out.println(timeFormat.format(new Date()) + " " + message);
+    }
+
+    // HeadlessClient [--accept-files] [host [port]]
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        HeadlessClient client = new HeadlessClient();
+        if (args.length > 0 && args[0].equals("--accept-files")) {
+            client.acceptFiles = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        try {
+            client.engine.connect(args.length > 0 ? args[0] : "localhost", args.length > 1 ? Integer.parseInt(args[1]) : 12345);
+            client.readCommands();
+            // Nobody is left to answer offers
+            client.interactive = false;
+            client.answerOffers(false);
+            client.disconnected.await();
+        } catch (IOException e) {
+            client.print("❌ Connection error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            client.engine.close();
+        }
+    }
+}
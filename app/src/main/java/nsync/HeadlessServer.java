@@ -0,0 +1,213 @@
+package nsync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// A ServerEngine on the console, for servers without a display, bots and load tests.
+// Events go to stdout, one per line. Commands are read from stdin:
+//
+//   text                 chat to every client
+//   /to <id> <text>      chat to one client
+//   /sessions            list the clients
+//   /telemetry [id]      host metrics of one or every client
+//   /stats <id>          frame latency statistics of a client, as JSON, and its UDP losses
+//   /share <id>          ask a client for its screen
+//   /relay <id>|off      relay a client's screen to the others
+//   /send <id> <path>    send a file, or sync a folder
+//   /accept, /reject     answer the files and folders clients offered
+//   /quit
+//
+// The server keeps running when stdin ends, so it can be started with </dev/null.
+// Offered files are declined then, unless --accept-files is given.
+public class HeadlessServer implements ServerEngine.Listener {
+    private final ServerEngine engine = new ServerEngine();
+    private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+    // UTF-8 whatever the locale, events are full of emoji
+    private final PrintStream out = new PrintStream(new FileOutputStream(FileDescriptor.out), true, StandardCharsets.UTF_8);
+    // Offers waiting for /accept or /reject
+    private final List<TransferOffer> offers = new CopyOnWriteArrayList<>();
+    private volatile boolean acceptFiles;
+    private volatile boolean interactive = true;
+
+    public HeadlessServer() {
+        engine.addListener(this);
+        try {
+            engine.openChatLog(ChatLog.defaultDirectory("server"));
+        } catch (IOException e) {
+            print("⚠️ Chat history is off: " + e.getMessage());
+        }
+    }
+
+    public ServerEngine getEngine() {
+        return engine;
+    }
+
+    @Override
+    public void sessionOpened(Session session, List<ChatLog.Entry> history) {
+        if (!history.isEmpty()) {
+            print("📜 Replaying " + history.size() + " messages to " + session);
+        }
+    }
+
+    @Override
+    public void chatReceived(Session session, String text) {
+        print("👤 " + session + ": " + text);
+    }
+
+    @Override
+    public void event(Session session, String message, boolean error) {
+        // Session events repeat in the server log, except these
+        if (session == null || !message.startsWith("🎉") && !message.startsWith("🔌")
+                && !message.startsWith("⏸️") && !message.startsWith("🔁")) {
+            print((session != null ? "[" + session.getId() + "] " : "") + message);
+        }
+    }
+
+    @Override
+    public void offerReceived(Session session, TransferOffer offer) {
+        if (acceptFiles) {
+            engine.acceptOffer(offer);
+        } else if (interactive) {
+            offers.add(offer);
+            print("[" + session.getId() + "] 📨 /accept or /reject it");
+        } else {
+            engine.rejectOffer(offer);
+        }
+    }
+
+    @Override
+    public void sessionChanged(Session session) {
+        if (session.getStreamStats() != null) {
+            print("[" + session.getId() + "] " + session.getStreamStats());
+        }
+    }
+
+    private void readCommands() throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (!line.startsWith("/")) {
+                engine.sendChat(null, line);
+                continue;
+            }
+            String[] words = line.split("\\s+", 3);
+            try {
+                switch (words[0]) {
+                    case "/to":
+                        engine.sendChat(session(words[1]), words[2]);
+                        break;
+                    case "/sessions":
+                        for (Session session : engine.getSessions()) {
+                            print("[" + session.getId() + "] " + session + (session.isScreenSharing() ? " 📺" : ""));
+                        }
+                        break;
+                    case "/telemetry":
+                        for (Session session : engine.getSessions()) {
+                            if (words.length < 2 || session == session(words[1])) {
+                                String telemetry = session.getTelemetry().describe();
+                                print("[" + session.getId() + "] " + (telemetry != null ? telemetry : "📈 No telemetry yet"));
+                            }
+                        }
+                        break;
+                    case "/stats":
+                        Session measured = session(words[1]);
+                        print("📊 " + measured.getFrameStats().snapshot().toJson());
+                        if (measured.getDatagrams() != null) {
+                            print(measured.getDatagrams().describe());
+                        }
+                        break;
+                    case "/share":
+                        engine.requestScreen(session(words[1]));
+                        break;
+                    case "/relay":
+                        if (words[1].equals("off")) {
+                            engine.stopRelay();
+                        } else {
+                            engine.startRelay(session(words[1]));
+                        }
+                        break;
+                    case "/send":
+                        engine.sendFile(session(words[1]), new File(words[2]));
+                        break;
+                    case "/accept":
+                    case "/reject":
+                        if (offers.isEmpty()) {
+                            print("📨 No offers waiting");
+                        }
+                        answerOffers(words[0].equals("/accept"));
+                        break;
+                    case "/quit":
+                        engine.stop();
+                        System.exit(0);
+                        break;
+                    default:
+                        print("❓ Unknown command " + words[0]);
+                }
+            } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException e) {
+                print("❓ " + (e.getMessage() != null ? e.getMessage() : "Missing argument") + " in " + line);
+            }
+        }
+    }
+
+    private void answerOffers(boolean accept) {
+        for (TransferOffer offer : offers) {
+            offers.remove(offer);
+            if (accept) {
+                engine.acceptOffer(offer);
+            } else {
+                engine.rejectOffer(offer);
+            }
+        }
+    }
+
+    private Session session(String id) {
+        Session session = engine.getSession(Integer.parseInt(id));
+        if (session == null) {
+            throw new IllegalArgumentException("No client " + id);
+        }
+        return session;
+    }
+
+    private synchronized void print(String message) {
+        out.println(timeFormat.format(new Date()) + " " + message);
+    }
+
+    // HeadlessServer [--accept-files] [port]
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        HeadlessServer server = new HeadlessServer();
+        if (args.length > 0 && args[0].equals("--accept-files")) {
+            server.acceptFiles = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
+        try {
+            server.engine.start(args.length > 0 ? Integer.parseInt(args[0]) : 12345);
+            server.readCommands();
+            // Nobody is left to answer offers
+            server.interactive = false;
+            server.answerOffers(false);
+            // The selector thread is a daemon, serve until killed
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            server.print("❌ Server error: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            server.engine.stop();
+        }
+    }
+}
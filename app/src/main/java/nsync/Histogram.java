@@ -0,0 +1,132 @@
+package nsync;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free histogram of non-negative values, e.g. latencies in microseconds.
+// record() is a couple of atomic increments, so it can sit on the frame path of
+// any thread. Values are counted in log-linear buckets, SUB_BUCKETS per power of
+// two, so a reported percentile is within 1/SUB_BUCKETS of the true value.
+//
+// Snapshots are cheap copies, and the difference of two snapshots describes the
+// values recorded in between, which is how a live view shows the last second.
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Values up to 2^40, about 12 days in microseconds, anything above is clamped
+    private static final int MAX_BITS = 40;
+    private static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        value = Math.max(0, value);
+        counts.incrementAndGet(indexOf(value));
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    static int indexOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        if (value >= 1L << MAX_BITS) {
+            return BUCKETS - 1;
+        }
+        // The top SUB_BITS + 1 bits of value, the leading one picks the power of two
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS - 1;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // Smallest value counted in bucket index
+    static long lowerBound(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+    }
+
+    // Largest value counted in bucket index
+    static long upperBound(int index) {
+        return index == BUCKETS - 1 ? Long.MAX_VALUE : lowerBound(index + 1) - 1;
+    }
+
+    // Counts at one point in time, or between two points
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        // What was recorded after earlier, which must come from the same histogram.
+        // The maximum is then only known to the bucket.
+        public Snapshot since(Snapshot earlier) {
+            if (earlier == null) {
+                return this;
+            }
+            long[] difference = new long[BUCKETS];
+            int highest = -1;
+            for (int i = 0; i < BUCKETS; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+                if (difference[i] > 0) {
+                    highest = i;
+                }
+            }
+            long recentMax = highest < 0 ? 0 : Math.min(max, upperBound(highest));
+            return new Snapshot(difference, count - earlier.count, sum - earlier.sum, recentMax);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        // percentile is 0-100, returns 0 when nothing was recorded
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    // The middle of the bucket, but never above the largest value seen
+                    long lower = lowerBound(i);
+                    return Math.min(max, lower + (Math.min(upperBound(i), max) - lower) / 2);
+                }
+            }
+            return max;
+        }
+    }
+}
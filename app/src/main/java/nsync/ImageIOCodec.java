@@ -0,0 +1,93 @@
+package nsync;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+// Base for codecs backed by an ImageIO format. The writer, reader, scratch
+// image and byte buffers are created once and reused for every region.
+public abstract class ImageIOCodec implements FrameCodec {
+    private final ImageWriter writer;
+    private final ImageReader reader;
+    private final ImageWriteParam writeParam;
+    private final ReusableByteArrayOutputStream encoded = new ReusableByteArrayOutputStream();
+    private BufferedImage scratch;
+    private int[] scratchPixels;
+    private byte[] decodeBytes = new byte[16 * 1024];
+
+    protected ImageIOCodec(String format) {
+        writer = ImageIO.getImageWritersByFormatName(format).next();
+        reader = ImageIO.getImageReadersByFormatName(format).next();
+        writeParam = writer.getDefaultWriteParam();
+    }
+
+    protected ImageWriteParam getWriteParam() {
+        return writeParam;
+    }
+
+    @Override
+    public void encode(int[] pixels, int offset, int stride, int width, int height, ByteBuffer out) throws IOException {
+        if (scratch == null || scratch.getWidth() < width || scratch.getHeight() < height) {
+            int scratchWidth = Math.max(width, scratch == null ? 0 : scratch.getWidth());
+            int scratchHeight = Math.max(height, scratch == null ? 0 : scratch.getHeight());
+            scratch = new BufferedImage(scratchWidth, scratchHeight, BufferedImage.TYPE_INT_RGB);
+            scratchPixels = ((DataBufferInt) scratch.getRaster().getDataBuffer()).getData();
+        }
+        int scratchStride = scratch.getWidth();
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(pixels, offset + row * stride, scratchPixels, row * scratchStride, width);
+        }
+        BufferedImage region = width == scratch.getWidth() && height == scratch.getHeight()
+            ? scratch : scratch.getSubimage(0, 0, width, height);
+
+        encoded.reset();
+        try (MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(encoded)) {
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(region, null, null), writeParam);
+        }
+        out.put(encoded.buffer(), 0, encoded.size());
+    }
+
+    @Override
+    public void dispose() {
+        writer.dispose();
+        reader.dispose();
+    }
+
+    @Override
+    public void decode(ByteBuffer in, int[] pixels, int offset, int stride, int width, int height) throws IOException {
+        int length = in.remaining();
+        if (decodeBytes.length < length) {
+            decodeBytes = new byte[length];
+        }
+        in.get(decodeBytes, 0, length);
+        BufferedImage image;
+        try (MemoryCacheImageInputStream stream = new MemoryCacheImageInputStream(
+                new ByteArrayInputStream(decodeBytes, 0, length))) {
+            reader.setInput(stream, true, true);
+            // The encoder writes exactly the tile, and the header must not make the
+            // reader allocate more
+            if (reader.getWidth(0) != width || reader.getHeight(0) != height) {
+                throw new IOException("Encoded region does not match its tile");
+            }
+            image = reader.read(0);
+        }
+        image.getRGB(0, 0, width, height, pixels, offset, stride);
+    }
+
+    private static class ReusableByteArrayOutputStream extends ByteArrayOutputStream {
+        byte[] buffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package nsync;
+
+import java.awt.Rectangle;
+import java.awt.Robot;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Mouse and keyboard events of a remote control session, collected on the Server
+// as the operator uses the viewer and sent to the Client as one INPUT_EVENTS
+// message per tick:
+//
+//   [short event count] then per event [byte kind] and
+//     MOVE                    [short x][short y]
+//     PRESS, RELEASE          [short x][short y][int button mask]
+//     WHEEL                   [short x][short y][int rotation]
+//     KEY_PRESS, KEY_RELEASE  [int key code]
+//
+// x and y are unsigned fractions of the shared screen in 1/65536, so they hold
+// whatever the capture was downscaled by. Button masks and key codes are those of
+// java.awt.event. A move right after another move replaces it, only the latest
+// position matters; everything else is kept in order.
+public class InputBatch {
+    public static final byte MOVE = 1;
+    public static final byte PRESS = 2;
+    public static final byte RELEASE = 3;
+    public static final byte WHEEL = 4;
+    public static final byte KEY_PRESS = 5;
+    public static final byte KEY_RELEASE = 6;
+
+    private ByteBuffer events = ByteBuffer.allocate(256);
+    private int count;
+    // Position of the last event when it is a MOVE, else -1
+    private int lastMove = -1;
+
+    public synchronized void move(int x, int y) {
+        if (lastMove >= 0) {
+            events.putShort(lastMove + 1, (short) x).putShort(lastMove + 3, (short) y);
+            return;
+        }
+        lastMove = events.position();
+        ensureCapacity(5);
+        events.put(MOVE).putShort((short) x).putShort((short) y);
+        count++;
+    }
+
+    public synchronized void mouse(byte kind, int x, int y, int value) {
+        ensureCapacity(9);
+        events.put(kind).putShort((short) x).putShort((short) y).putInt(value);
+        count++;
+        lastMove = -1;
+    }
+
+    public synchronized void key(boolean pressed, int keyCode) {
+        ensureCapacity(5);
+        events.put(pressed ? KEY_PRESS : KEY_RELEASE).putInt(keyCode);
+        count++;
+        lastMove = -1;
+    }
+
+    // The INPUT_EVENTS payload of everything since the last call, or null when nothing happened
+    public synchronized byte[] drain() {
+        if (count == 0) {
+            return null;
+        }
+        byte[] payload = new byte[2 + events.position()];
+        ByteBuffer.wrap(payload).putShort((short) count).put(events.array(), 0, events.position());
+        events.clear();
+        count = 0;
+        lastMove = -1;
+        return payload;
+    }
+
+    private void ensureCapacity(int bytes) {
+        if (events.remaining() < bytes) {
+            events = ByteBuffer.wrap(Arrays.copyOf(events.array(), events.capacity() * 2)).position(events.position());
+        }
+    }
+
+    // Replays an INPUT_EVENTS payload on the client, bounds is the shared screen.
+    // Returns the number of events.
+    public static int replay(ByteBuffer payload, Robot robot, Rectangle bounds) {
+        int count = payload.getShort() & 0xFFFF;
+        for (int i = 0; i < count; i++) {
+            byte kind = payload.get();
+            if (kind < MOVE || kind > KEY_RELEASE) {
+                // From a newer server, the rest cannot be parsed
+                return i;
+            }
+            if (kind == KEY_PRESS || kind == KEY_RELEASE) {
+                int keyCode = payload.getInt();
+                try {
+                    if (kind == KEY_PRESS) {
+                        robot.keyPress(keyCode);
+                    } else {
+                        robot.keyRelease(keyCode);
+                    }
+                } catch (IllegalArgumentException e) {
+                    // A key this platform cannot type
+                }
+                continue;
+            }
+            int x = bounds.x + (int) ((long) (payload.getShort() & 0xFFFF) * bounds.width >>> 16);
+            int y = bounds.y + (int) ((long) (payload.getShort() & 0xFFFF) * bounds.height >>> 16);
+            int value = kind == MOVE ? 0 : payload.getInt();
+            robot.mouseMove(x, y);
+            try {
+                if (kind == PRESS) {
+                    robot.mousePress(value);
+                } else if (kind == RELEASE) {
+                    robot.mouseRelease(value);
+                } else if (kind == WHEEL) {
+                    robot.mouseWheel(value);
+                }
+            } catch (IllegalArgumentException e) {
+                // A button this mouse does not have
+            }
+        }
+        return count;
+    }
+}
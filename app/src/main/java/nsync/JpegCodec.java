@@ -0,0 +1,53 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import javax.imageio.ImageWriteParam;
+
+// Lossy JPEG with a configurable quality, the smallest output for photos and video.
+// The quality can change between regions, the writer stays the same.
+public class JpegCodec extends ImageIOCodec {
+    private volatile int quality;
+    // What the write param is set to, encoding thread only
+    private int appliedQuality;
+
+    public JpegCodec(int quality) {
+        super("jpeg");
+        getWriteParam().setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        this.quality = clamp(quality);
+    }
+
+    private static int clamp(int quality) {
+        return Math.max(1, Math.min(100, quality));
+    }
+
+    public int getQuality() {
+        return quality;
+    }
+
+    // May be called from any thread and takes effect with the next region encoded
+    public void setQuality(int quality) {
+        this.quality = clamp(quality);
+    }
+
+    @Override
+    public void encode(int[] pixels, int offset, int stride, int width, int height, ByteBuffer out) throws IOException {
+        int wanted = quality;
+        if (wanted != appliedQuality) {
+            getWriteParam().setCompressionQuality(wanted / 100f);
+            appliedQuality = wanted;
+        }
+        super.encode(pixels, offset, stride, width, height, out);
+    }
+
+    @Override
+    public byte getId() {
+        return JPEG;
+    }
+
+    @Override
+    public int maxEncodedSize(int width, int height) {
+        // Quantization and Huffman tables plus a generous bound for noisy content at full quality
+        return width * height * 6 + 2048;
+    }
+}
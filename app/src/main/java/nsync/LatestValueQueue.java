@@ -0,0 +1,52 @@
+package nsync;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Single-slot hand-off between pipeline stages. put() never blocks and replaces
+// a value the consumer has not taken yet, handing the stale value back so its
+// buffers can be recycled. take() blocks until a value is available.
+public class LatestValueQueue<T> {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private T value;
+    private boolean closed;
+
+    // Returns the value that was replaced, or null
+    public T put(T newValue) {
+        lock.lock();
+        try {
+            T stale = value;
+            value = newValue;
+            available.signalAll();
+            return stale;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns the newest value, or null once the queue is closed
+    public T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (value == null && !closed) {
+                available.await();
+            }
+            T taken = value;
+            value = null;
+            return taken;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package nsync;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// Compresses message payloads on a connection that negotiated FEATURE_COMPRESSION.
+//
+// Every channel has its own Deflater that is flushed with SYNC_FLUSH after each
+// message, so the peer can inflate a message as soon as it arrives while later
+// messages on the channel still find matches in the earlier ones. Small chat and
+// control messages mostly repeat what was said before and shrink the most.
+//
+// A compressed payload is [int original length][deflate data] and goes out with
+// COMPRESSED set in the type byte (see Protocol). Screen tiles from the PNG and
+// JPEG codecs are never compressed again, and a type whose messages stop
+// shrinking is sent raw for a while before it is tried again.
+//
+// Calls for one channel must be serialized in the order the messages are
+// written, which is also the order the peer inflates them in. close() may be
+// called from any thread, compress() sends everything raw after it.
+public class MessageCompressor {
+    // Smaller payloads would not pay for the flush marker
+    private static final int MIN_SIZE = 24;
+    // A message that did not get smaller than this is a miss
+    private static final double MAX_RATIO = 0.9;
+    // Messages of a type that are sent raw after a miss
+    private static final int SKIPPED_AFTER_MISS = 16;
+
+    private final Deflater[] deflaters = new Deflater[Protocol.CHANNEL_COUNT];
+    private final ByteBuffer[] buffers = new ByteBuffer[Protocol.CHANNEL_COUNT];
+    // By type, a type always belongs to the same channel
+    private final int[] skipped = new int[256];
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private volatile boolean closed;
+
+    public MessageCompressor() {
+        for (int channel = 0; channel < Protocol.CHANNEL_COUNT; channel++) {
+            // Bulk payloads are large, favor speed there
+            int level = channel == Protocol.CHANNEL_BULK ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION;
+            deflaters[channel] = new Deflater(level, true);
+        }
+    }
+
+    // Returns the compressed payload, valid until the next call for the same
+    // channel, or null when the payload should be sent as it is. Never consumes payload.
+    public ByteBuffer compress(byte type, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (length < MIN_SIZE || isCompressed(type, payload)) {
+            return null;
+        }
+        int index = type & 0xFF;
+        if (skipped[index] > 0) {
+            skipped[index]--;
+            return null;
+        }
+
+        int channel = Protocol.channelOf(type);
+        Deflater deflater = deflaters[channel];
+        // Ended by close() otherwise
+        synchronized (deflater) {
+            if (closed) {
+                return null;
+            }
+            ByteBuffer out = buffers[channel];
+            if (out == null || out.capacity() < length + 64) {
+                out = ByteBuffer.allocate(Math.max(4096, length + length / 8 + 64));
+            }
+            out.clear();
+            out.putInt(length);
+            deflater.setInput(payload.duplicate());
+            while (true) {
+                deflater.deflate(out, Deflater.SYNC_FLUSH);
+                // Output space left over means everything was flushed
+                if (out.hasRemaining()) {
+                    break;
+                }
+                ByteBuffer larger = ByteBuffer.allocate(out.capacity() * 2);
+                out.flip();
+                out = larger.put(out);
+            }
+            buffers[channel] = out;
+            out.flip();
+
+            // Already in the deflater's history, so it has to go out compressed either way
+            if (out.remaining() > length * MAX_RATIO) {
+                skipped[index] = SKIPPED_AFTER_MISS;
+            }
+            rawBytes.add(length);
+            compressedBytes.add(out.remaining());
+            return out;
+        }
+    }
+
+    // Ends every deflater, messages compressed so far stay valid
+    public void close() {
+        closed = true;
+        for (Deflater deflater : deflaters) {
+            synchronized (deflater) {
+                deflater.end();
+            }
+        }
+    }
+
+    private static boolean isCompressed(byte type, ByteBuffer payload) {
+        if (type != Protocol.SCREEN_TILES || payload.remaining() < TileEncoder.FRAME_HEADER_SIZE) {
+            return false;
+        }
+        byte codec = TileEncoder.codecOf(payload);
+        return codec == FrameCodec.PNG || codec == FrameCodec.JPEG;
+    }
+
+    // Payload bytes that went through the deflaters, and what came out
+    public long getRawBytes() {
+        return rawBytes.sum();
+    }
+
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+}
@@ -0,0 +1,67 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Inflates payloads from the peer's MessageCompressor, with one Inflater per
+// channel. Used by the single thread that reads the connection, close() may
+// be called from any thread.
+public class MessageDecompressor {
+    private final Inflater[] inflaters = new Inflater[Protocol.CHANNEL_COUNT];
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+    private volatile boolean closed;
+
+    public MessageDecompressor() {
+        for (int channel = 0; channel < Protocol.CHANNEL_COUNT; channel++) {
+            inflaters[channel] = new Inflater(true);
+        }
+    }
+
+    // Takes the payload of a message received with COMPRESSED set and the type
+    // without it. Returns the original payload, valid until the next call.
+    public ByteBuffer decompress(byte type, ByteBuffer payload) throws IOException {
+        int length = payload.getInt();
+        if (length < 0 || length > Protocol.MAX_MESSAGE_SIZE) {
+            throw new IOException("Invalid compressed " + Protocol.typeName(type) + " of " + length + " bytes");
+        }
+        // One spare byte, so the inflater can also consume the flush marker
+        if (buffer.capacity() < length + 1) {
+            buffer = ByteBuffer.allocateDirect(Integer.highestOneBit(length) << 1);
+        }
+        buffer.clear().limit(length + 1);
+
+        Inflater inflater = inflaters[Protocol.channelOf(type)];
+        synchronized (inflater) {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            inflater.setInput(payload);
+            try {
+                while (!inflater.needsInput()) {
+                    if (inflater.inflate(buffer) == 0 && !inflater.needsInput()) {
+                        throw new IOException("Corrupt compressed " + Protocol.typeName(type));
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed " + Protocol.typeName(type) + ": " + e.getMessage(), e);
+            }
+        }
+        buffer.flip();
+        if (buffer.remaining() != length) {
+            throw new IOException("Compressed " + Protocol.typeName(type) + " inflated to " + buffer.remaining()
+                + " instead of " + length + " bytes");
+        }
+        return buffer;
+    }
+
+    public void close() {
+        closed = true;
+        for (Inflater inflater : inflaters) {
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+    }
+}
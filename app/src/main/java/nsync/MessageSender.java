@@ -0,0 +1,29 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Anything that can send protocol messages, a blocking Connection or a selector driven Session
+public interface MessageSender {
+    // Sends the remaining bytes of payload as one message of the given type
+    void send(byte type, ByteBuffer payload) throws IOException;
+
+    default void send(byte type) throws IOException {
+        send(type, ByteBuffer.allocate(0));
+    }
+
+    default void send(byte type, int value) throws IOException {
+        ByteBuffer payload = ByteBuffer.allocate(4);
+        payload.putInt(value).flip();
+        send(type, payload);
+    }
+
+    default void send(byte type, byte[] payload) throws IOException {
+        send(type, ByteBuffer.wrap(payload));
+    }
+
+    default void send(byte type, String text) throws IOException {
+        send(type, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
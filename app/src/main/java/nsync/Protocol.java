@@ -0,0 +1,208 @@
+package nsync;
+
+import java.security.SecureRandom;
+
+// Wire protocol shared by Server and Client.
+//
+// After connecting, the client sends MAGIC, VERSION, a role byte and the FEATURE_*
+// bits it wants. The server answers with MAGIC, VERSION and the features both
+// sides support, and each side checks the peer's MAGIC and VERSION. ROLE_SESSION
+// is the message connection; ROLE_TRANSFER is one stream of a file transfer,
+// which continues with [long transfer id][byte stream count] and then only chunk
+// requests and chunks (see TransferStream). Every message on a session
+// connection is framed as:
+//
+//   [int length][byte type][payload: length - 1 bytes]
+//
+// Every type belongs to a logical channel (see channelOf). Messages on the bulk
+// channel that are larger than CHUNK_SIZE are sent as several fragments, each
+// framed as above with MORE_FRAGMENTS set in the type byte except the last one.
+// Senders interleave messages from the other channels between fragments, so a
+// chat line never waits for a whole screen frame. Only one bulk message is in
+// fragments at a time.
+//
+// With FEATURE_COMPRESSION, a payload may be compressed per channel (see
+// MessageCompressor), which is marked by COMPRESSED in the type byte. A
+// fragmented message is compressed as a whole before it is split.
+//
+// The first message on a session connection is SESSION_TOKEN. A client whose
+// connection dropped reconnects with ROLE_RESUME, followed by [long token] and
+// the counts of replayed messages it received, see ResendBuffer. The server
+// answers with SESSION_TOKEN again: the same token when it kept the session,
+// and both sides then send again what the other has not received. A token of 0
+// means there is no such session, the server closes that connection and the
+// client starts a new session with the next one.
+//
+// REMOTE_CONTROL [byte on] from the server only asks to control the client's
+// screen. The client answers REMOTE_CONTROL [1] once its user allowed it, and
+// [0] when the user declined or took control back; INPUT_EVENTS flow only in
+// between.
+//
+// A client may stream its screen as datagrams instead, see ScreenDatagrams. It
+// asks with UDP_OFFER, the server answers with the port and a token, and the
+// client switches once UDP_READY confirms that its hello got through.
+//
+// All integers are big-endian and strings are UTF-8.
+public final class Protocol {
+    public static final int MAGIC = 0x4E53594E; // "NSYN"
+    public static final short VERSION = 17;
+
+    public static final byte ROLE_SESSION = 0;
+    public static final byte ROLE_TRANSFER = 1;
+    public static final byte ROLE_RESUME = 2;
+    // What follows ROLE_RESUME: [long token][int control received][int chat received]
+    public static final int RESUME_PREAMBLE_SIZE = 16;
+
+    public static final byte FEATURE_COMPRESSION = 1;
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_MESSAGE_SIZE = 64 * 1024 * 1024;
+    public static final int CHUNK_SIZE = 16 * 1024;
+    public static final byte MORE_FRAGMENTS = (byte) 0x80;
+    public static final byte COMPRESSED = 0x40;
+    // Caps the bytes queued in the kernel behind which a chat message could wait
+    public static final int SOCKET_SEND_BUFFER = 256 * 1024;
+
+    // Channels in priority order, lower values are written first
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_INPUT = 1;
+    public static final int CHANNEL_CHAT = 2;
+    public static final int CHANNEL_BULK = 3;
+    public static final int CHANNEL_COUNT = 4;
+
+    // Message types
+    public static final byte CHAT = 1;
+    public static final byte SCREEN_SHARE_START = 2;
+    public static final byte SCREEN_SHARE_STOP = 3;
+    public static final byte VOLUME = 4;
+    public static final byte SCREEN_TILES = 5;
+    public static final byte SCREEN_CODEC = 6;
+    public static final byte FRAME_ACK = 7;
+    public static final byte SCREEN_STATS = 8;
+    public static final byte RELAY_START = 9;
+    public static final byte RELAY_STOP = 10;
+    public static final byte KEY_FRAME_REQUEST = 11;
+    public static final byte FILE_OFFER = 12;
+    public static final byte FILE_ACCEPT = 13;
+    public static final byte FILE_CANCEL = 14;
+    public static final byte SYNC_OFFER = 15;
+    public static final byte SYNC_SIGNATURES = 16;
+    public static final byte SYNC_DELTA = 17;
+    public static final byte SYNC_ACK = 18;
+    public static final byte SYNC_DONE = 19;
+    public static final byte CHAT_HISTORY = 20;
+    public static final byte TELEMETRY = 21;
+    public static final byte FRAME_TIMING = 22;
+    public static final byte REMOTE_CONTROL = 23;
+    public static final byte INPUT_EVENTS = 24;
+    public static final byte UDP_OFFER = 25;
+    public static final byte UDP_READY = 26;
+    public static final byte SCREEN_REFRESH = 27;
+    public static final byte SESSION_TOKEN = 28;
+    public static final byte ACK = 29;
+
+    // A session token is all it takes to resume a session, and a datagram token to
+    // stream a screen into one, so they must not be predictable
+    private static final SecureRandom TOKENS = new SecureRandom();
+
+    private Protocol() {
+    }
+
+    // A new session or datagram token, never 0
+    public static long newToken() {
+        long token;
+        do {
+            token = TOKENS.nextLong();
+        } while (token == 0);
+        return token;
+    }
+
+    // Features this side offers or accepts, compression unless -Dnsync.compression=false
+    public static byte localFeatures() {
+        return Boolean.parseBoolean(System.getProperty("nsync.compression", "true")) ? FEATURE_COMPRESSION : 0;
+    }
+
+    // Screen frames over UDP: clients only try with -Dnsync.udp=true, servers
+    // accept them unless -Dnsync.udp=false
+    public static boolean datagramsEnabled(boolean byDefault) {
+        return Boolean.parseBoolean(System.getProperty("nsync.udp", String.valueOf(byDefault)));
+    }
+
+    // How long a session whose connection dropped can be resumed, 30 s unless
+    // -Dnsync.resume=<ms>, 0 ends sessions right away
+    public static long resumeMillis() {
+        return Long.getLong("nsync.resume", 30_000);
+    }
+
+    public static int channelOf(byte type) {
+        switch (type) {
+            case INPUT_EVENTS:
+                return CHANNEL_INPUT;
+            case CHAT:
+            case CHAT_HISTORY:
+                return CHANNEL_CHAT;
+            case SCREEN_TILES:
+            case SYNC_OFFER:
+            case SYNC_SIGNATURES:
+            case SYNC_DELTA:
+                return CHANNEL_BULK;
+            default: return CHANNEL_CONTROL;
+        }
+    }
+
+    // Messages a resumed session sends again when the peer never got them. The
+    // rest belong to one connection: frames, acks and statistics are stale by
+    // then, and relays, syncs and datagrams are set up again.
+    public static boolean isReplayed(byte type) {
+        switch (type) {
+            case CHAT:
+            case CHAT_HISTORY:
+            case SCREEN_SHARE_START:
+            case SCREEN_SHARE_STOP:
+            case SCREEN_CODEC:
+            case VOLUME:
+            case REMOTE_CONTROL:
+            case FILE_OFFER:
+            case FILE_ACCEPT:
+            case FILE_CANCEL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static String typeName(byte type) {
+        switch (type) {
+            case CHAT: return "CHAT";
+            case SCREEN_SHARE_START: return "SCREEN_SHARE_START";
+            case SCREEN_SHARE_STOP: return "SCREEN_SHARE_STOP";
+            case VOLUME: return "VOLUME";
+            case SCREEN_TILES: return "SCREEN_TILES";
+            case SCREEN_CODEC: return "SCREEN_CODEC";
+            case FRAME_ACK: return "FRAME_ACK";
+            case SCREEN_STATS: return "SCREEN_STATS";
+            case RELAY_START: return "RELAY_START";
+            case RELAY_STOP: return "RELAY_STOP";
+            case KEY_FRAME_REQUEST: return "KEY_FRAME_REQUEST";
+            case FILE_OFFER: return "FILE_OFFER";
+            case FILE_ACCEPT: return "FILE_ACCEPT";
+            case FILE_CANCEL: return "FILE_CANCEL";
+            case SYNC_OFFER: return "SYNC_OFFER";
+            case SYNC_SIGNATURES: return "SYNC_SIGNATURES";
+            case SYNC_DELTA: return "SYNC_DELTA";
+            case SYNC_ACK: return "SYNC_ACK";
+            case SYNC_DONE: return "SYNC_DONE";
+            case CHAT_HISTORY: return "CHAT_HISTORY";
+            case TELEMETRY: return "TELEMETRY";
+            case FRAME_TIMING: return "FRAME_TIMING";
+            case REMOTE_CONTROL: return "REMOTE_CONTROL";
+            case INPUT_EVENTS: return "INPUT_EVENTS";
+            case UDP_OFFER: return "UDP_OFFER";
+            case UDP_READY: return "UDP_READY";
+            case SCREEN_REFRESH: return "SCREEN_REFRESH";
+            case SESSION_TOKEN: return "SESSION_TOKEN";
+            case ACK: return "ACK";
+            default: return "UNKNOWN(" + type + ")";
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package nsync;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Adapts the screen stream to the link from measured send times, frames in
+// flight and FRAME_ACK round trips from the viewer.
+//
+// Congestion (round trips above the latency target, frames queuing up or sends
+// blocking longer than a frame interval) backs off multiplicatively: frame rate
+// first down to COMFORT_FPS, then JPEG quality, then resolution, then frame rate
+// down to 1. A healthy link recovers one step at a time in the reverse order and
+// finally raises the frame rate up to the configured maximum.
+public class RateController {
+    public static final int MIN_FPS = 1;
+    public static final int COMFORT_FPS = 5;
+    public static final int MIN_QUALITY = 30;
+    public static final int MAX_QUALITY = 100;
+    public static final int MAX_IN_FLIGHT = 3;
+
+    private static final int QUALITY_STEP = 10;
+    private static final int MAX_SCALE_DIVISOR = 4;
+    private static final long ADJUST_INTERVAL_NANOS = 500_000_000L;
+    private static final long ACK_TIMEOUT_NANOS = 3_000_000_000L;
+    private static final double EWMA = 0.2;
+    private static final int HISTORY = 64;
+
+    private final int maxFps;
+    private final int baseScaleDivisor;
+    private final long targetLatencyMillis;
+
+    private double fps = COMFORT_FPS;
+    private int quality = MAX_QUALITY;
+    private int scaleDivisor;
+    private boolean lossyCodec;
+
+    private final long[] sentAt = new long[HISTORY];
+    private int lastSent = -1;
+    private int lastAcked = -1;
+    private long lastAdjust;
+
+    private double rttMillis;
+    private double sendMillis;
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private int windowFrames;
+    private double bytesPerSecond;
+    private double measuredFps;
+
+    public RateController(int maxFps, int baseScaleDivisor, long targetLatencyMillis) {
+        this.maxFps = maxFps;
+        this.baseScaleDivisor = baseScaleDivisor;
+        this.scaleDivisor = baseScaleDivisor;
+        this.targetLatencyMillis = targetLatencyMillis;
+    }
+
+    // Quality only helps with a lossy codec, otherwise that step is skipped
+    public synchronized void setLossyCodec(boolean lossyCodec) {
+        this.lossyCodec = lossyCodec;
+    }
+
+    // True while fewer than MAX_IN_FLIGHT frames are waiting for an ack
+    public synchronized boolean canSend() {
+        if (lastSent - lastAcked < MAX_IN_FLIGHT) {
+            return true;
+        }
+        // The viewer stopped acking (e.g. it closed its window), don't stall forever
+        if (System.nanoTime() - sentAt[lastSent % HISTORY] > ACK_TIMEOUT_NANOS) {
+            lastAcked = lastSent;
+            return true;
+        }
+        return false;
+    }
+
+    // The frames in flight went down with the connection, their acks never come
+    public synchronized void framesLost() {
+        lastAcked = lastSent;
+    }
+
+    public synchronized void frameSent(int sequence, int bytes, long sendNanos) {
+        long now = System.nanoTime();
+        sentAt[sequence % HISTORY] = now;
+        lastSent = sequence;
+        sendMillis += EWMA * (sendNanos / 1e6 - sendMillis);
+        windowBytes += bytes;
+        windowFrames++;
+        updateWindow(now);
+        if (sendNanos / 1_000_000L > frameIntervalMillis()) {
+            congested(now);
+        }
+    }
+
+    public synchronized void frameAcked(int sequence) {
+        if (sequence <= lastAcked || sequence > lastSent || lastSent - sequence >= HISTORY) {
+            return;
+        }
+        long now = System.nanoTime();
+        lastAcked = sequence;
+        rttMillis += EWMA * ((now - sentAt[sequence % HISTORY]) / 1e6 - rttMillis);
+
+        if (rttMillis > targetLatencyMillis || lastSent - lastAcked >= MAX_IN_FLIGHT - 1) {
+            congested(now);
+        } else if (rttMillis < targetLatencyMillis / 2.0) {
+            healthy(now);
+        }
+    }
+
+    private void updateWindow(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed >= 1_000_000_000L) {
+            bytesPerSecond = windowBytes * 1e9 / elapsed;
+            measuredFps = windowFrames * 1e9 / elapsed;
+            windowBytes = 0;
+            windowFrames = 0;
+            windowStart = now;
+        }
+    }
+
+    private void congested(long now) {
+        if (now - lastAdjust < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        lastAdjust = now;
+        if (fps > COMFORT_FPS) {
+            fps = Math.max(COMFORT_FPS, fps * 0.7);
+        } else if (lossyCodec && quality > MIN_QUALITY) {
+            quality = Math.max(MIN_QUALITY, quality - 2 * QUALITY_STEP);
+        } else if (scaleDivisor < MAX_SCALE_DIVISOR) {
+            scaleDivisor++;
+        } else {
+            fps = Math.max(MIN_FPS, fps * 0.7);
+        }
+    }
+
+    private void healthy(long now) {
+        if (now - lastAdjust < ADJUST_INTERVAL_NANOS) {
+            return;
+        }
+        lastAdjust = now;
+        if (fps < COMFORT_FPS) {
+            fps = Math.min(COMFORT_FPS, fps + 1);
+        } else if (scaleDivisor > baseScaleDivisor) {
+            scaleDivisor--;
+        } else if (lossyCodec && quality < MAX_QUALITY) {
+            quality = Math.min(MAX_QUALITY, quality + QUALITY_STEP);
+        } else if (fps < maxFps) {
+            fps = Math.min(maxFps, fps + 2);
+        }
+    }
+
+    public synchronized long frameIntervalMillis() {
+        return Math.round(1000 / fps);
+    }
+
+    public synchronized int getTargetFps() {
+        return (int) Math.round(fps);
+    }
+
+    public int getMaxFps() {
+        return maxFps;
+    }
+
+    public long getTargetLatencyMillis() {
+        return targetLatencyMillis;
+    }
+
+    public synchronized double getMeasuredFps() {
+        updateWindow(System.nanoTime());
+        return measuredFps;
+    }
+
+    public synchronized int getQuality() {
+        return quality;
+    }
+
+    public synchronized int getScaleDivisor() {
+        return scaleDivisor;
+    }
+
+    public synchronized long getRttMillis() {
+        return Math.round(rttMillis);
+    }
+
+    public synchronized long getSendMillis() {
+        return Math.round(sendMillis);
+    }
+
+    public synchronized long getBytesPerSecond() {
+        return Math.round(bytesPerSecond);
+    }
+
+    public synchronized int getFramesInFlight() {
+        return lastSent - lastAcked;
+    }
+
+    // SCREEN_STATS payload: [short fps x10][short target fps][short max fps][byte quality]
+    // [byte scale divisor][int rtt ms][int latency target ms][int bytes per second]
+    // followed by [int average micros][byte name length][name] for each pipeline stage
+    public synchronized byte[] toStatsPayload(StageTimer... stages) {
+        int size = 20;
+        for (StageTimer stage : stages) {
+            size += 5 + stage.getName().length();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putShort((short) Math.round(getMeasuredFps() * 10))
+            .putShort((short) getTargetFps())
+            .putShort((short) maxFps)
+            .put((byte) quality)
+            .put((byte) scaleDivisor)
+            .putInt((int) getRttMillis())
+            .putInt((int) targetLatencyMillis)
+            .putInt((int) getBytesPerSecond());
+        for (StageTimer stage : stages) {
+            byte[] name = stage.getName().getBytes(StandardCharsets.US_ASCII);
+            buffer.putInt((int) stage.getAverageMicros()).put((byte) name.length).put(name);
+        }
+        return buffer.array();
+    }
+
+    public String describe(StageTimer... stages) {
+        return describeStats(ByteBuffer.wrap(toStatsPayload(stages)));
+    }
+
+    public static String describeStats(ByteBuffer stats) {
+        double fps = stats.getShort() / 10.0;
+        int targetFps = stats.getShort();
+        int maxFps = stats.getShort();
+        int quality = stats.get() & 0xFF;
+        int scaleDivisor = stats.get() & 0xFF;
+        int rtt = stats.getInt();
+        int latencyTarget = stats.getInt();
+        long bytesPerSecond = stats.getInt() & 0xFFFFFFFFL;
+        StringBuilder description = new StringBuilder(String.format(
+            "%.1f/%d FPS (max %d) · q%d · 1/%d res · RTT %d ms (target %d) · %s/s",
+            fps, targetFps, maxFps, quality, scaleDivisor, rtt, latencyTarget, formatBytes(bytesPerSecond)));
+
+        // Stage timings, the slowest stage limits throughput
+        String slowest = null;
+        int slowestMicros = -1;
+        while (stats.remaining() >= 5) {
+            int micros = stats.getInt();
+            byte[] name = new byte[stats.get() & 0xFF];
+            stats.get(name);
+            String stage = new String(name, StandardCharsets.US_ASCII);
+            description.append(String.format(" · %s %.1f ms", stage, micros / 1000.0));
+            if (micros > slowestMicros) {
+                slowestMicros = micros;
+                slowest = stage;
+            }
+        }
+        if (slowest != null) {
+            description.append(" · bottleneck: ").append(slowest);
+        }
+        return description.toString();
+    }
+
+    public static String formatBytes(long bytes) {
+        if (bytes >= 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
+        }
+        if (bytes >= 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        }
+        return bytes + " B";
+    }
+}
@@ -0,0 +1,37 @@
+package nsync;
+
+import java.nio.ByteBuffer;
+
+// Uncompressed packed RGB triplets, the cheapest codec for fast links
+public class RawCodec implements FrameCodec {
+    @Override
+    public byte getId() {
+        return RAW;
+    }
+
+    @Override
+    public int maxEncodedSize(int width, int height) {
+        return width * height * 3;
+    }
+
+    @Override
+    public void encode(int[] pixels, int offset, int stride, int width, int height, ByteBuffer out) {
+        for (int row = 0; row < height; row++) {
+            int start = offset + row * stride;
+            for (int i = start; i < start + width; i++) {
+                int pixel = pixels[i];
+                out.put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+            }
+        }
+    }
+
+    @Override
+    public void decode(ByteBuffer in, int[] pixels, int offset, int stride, int width, int height) {
+        for (int row = 0; row < height; row++) {
+            int start = offset + row * stride;
+            for (int i = start; i < start + width; i++) {
+                pixels[i] = (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+
+// The replayed messages (see Protocol.isReplayed) a session sent and the peer has
+// not acknowledged yet, so they survive a dropped connection. Both ends of a
+// session keep one, the client across its reconnects and the server in the
+// Session.
+//
+// Sequence numbers are implicit: each side counts the replayed messages of the
+// control and the chat channel in the order they are queued, which is the order
+// they arrive since a channel is never reordered. ACK and SESSION_TOKEN carry
+// the counts received as [int control][int chat], and everything up to them is
+// dropped here.
+//
+// Messages go out through send(), which keeps a copy and passes them on to the
+// attached connection. While there is none they are only kept, and attach()
+// sends every message the peer has not received to the next connection, in order.
+public class ResendBuffer {
+    // Beyond this many unacknowledged messages a channel stops keeping them, and
+    // the session can no longer be resumed
+    private static final int MAX_UNACKED = 4096;
+
+    // Per channel, 0 control and 1 chat: [byte type][payload] of each unacknowledged message
+    private final List<ArrayDeque<ByteBuffer>> unacked = List.of(new ArrayDeque<>(), new ArrayDeque<>());
+    // Messages the peer acknowledged, the sequence number of the first unacknowledged one
+    private final long[] acked = new long[2];
+    private final long[] received = new long[2];
+    private final long[] receivedAcked = new long[2];
+    private MessageSender attached;
+    private boolean overflowed;
+    private boolean closed;
+    private volatile long token;
+
+    private static int indexOf(byte type) {
+        return Protocol.channelOf(type) == Protocol.CHANNEL_CHAT ? 1 : 0;
+    }
+
+    // The session's SESSION_TOKEN, 0 before the server gave one
+    public long getToken() {
+        return token;
+    }
+
+    public void setToken(long token) {
+        this.token = token;
+    }
+
+    // False once too much went unacknowledged, the next connection starts a new session
+    public synchronized boolean canResume() {
+        return token != 0 && !overflowed && !closed;
+    }
+
+    // Keeps a copy of a replayed message and sends it over link when that is the
+    // attached connection. link is a connection's own queueing, not a sender
+    // that comes back here.
+    public synchronized void send(MessageSender link, byte type, ByteBuffer payload) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (!overflowed) {
+            ArrayDeque<ByteBuffer> queue = unacked.get(indexOf(type));
+            ByteBuffer copy = ByteBuffer.allocate(1 + payload.remaining());
+            copy.put(type).put(payload.duplicate()).flip();
+            queue.add(copy);
+            if (queue.size() > MAX_UNACKED) {
+                overflowed = true;
+                unacked.get(0).clear();
+                unacked.get(1).clear();
+            }
+        }
+        if (link == attached) {
+            try {
+                link.send(type, payload);
+            } catch (IOException e) {
+                // The connection just dropped, the copy goes out with the next one
+                if (overflowed) {
+                    throw e;
+                }
+            }
+        } else if (overflowed) {
+            throw new IOException("Connection lost");
+        }
+    }
+
+    // Counts a message that arrived, returns true when it is a replayed one
+    public synchronized boolean received(byte type) {
+        if (!Protocol.isReplayed(type)) {
+            return false;
+        }
+        received[indexOf(type)]++;
+        return true;
+    }
+
+    // True when messages arrived since the last toAck()
+    public synchronized boolean ackDue() {
+        return received[0] != receivedAcked[0] || received[1] != receivedAcked[1];
+    }
+
+    // The ACK payload, the counts of replayed messages received
+    public synchronized byte[] toAck() {
+        receivedAcked[0] = received[0];
+        receivedAcked[1] = received[1];
+        return ByteBuffer.allocate(8).putInt((int) received[0]).putInt((int) received[1]).array();
+    }
+
+    // An ACK from the peer, counts at or below the last one change nothing
+    public synchronized void acked(ByteBuffer counts) throws IOException {
+        drop(0, counts.getInt() & 0xFFFFFFFFL);
+        drop(1, counts.getInt() & 0xFFFFFFFFL);
+    }
+
+    // Sends everything kept over link, which is attached from now on. When the
+    // session was resumed, counts is what the peer received so far and only the
+    // rest goes out; a new session starts counting from zero.
+    public synchronized void attach(MessageSender link, boolean resumed, ByteBuffer counts) throws IOException {
+        if (closed) {
+            throw new IOException("Connection closed");
+        }
+        if (resumed) {
+            acked(counts);
+        } else {
+            for (int i = 0; i < 2; i++) {
+                acked[i] = 0;
+                received[i] = 0;
+                receivedAcked[i] = 0;
+            }
+            overflowed = false;
+        }
+        attached = link;
+        for (ArrayDeque<ByteBuffer> queue : unacked) {
+            for (ByteBuffer message : queue) {
+                ByteBuffer copy = message.duplicate();
+                link.send(copy.get(), copy);
+            }
+        }
+    }
+
+    // The connection is gone, messages are kept until the next attach()
+    public synchronized void detach() {
+        attached = null;
+    }
+
+    // The session is over for good
+    public synchronized void close() {
+        closed = true;
+        attached = null;
+        unacked.get(0).clear();
+        unacked.get(1).clear();
+    }
+
+    private void drop(int index, long count) throws IOException {
+        ArrayDeque<ByteBuffer> queue = unacked.get(index);
+        if (count > acked[index] + queue.size() && !overflowed) {
+            throw new IOException("Peer acknowledged " + count + " messages, " + (acked[index] + queue.size()) + " were sent");
+        }
+        while (acked[index] < count) {
+            queue.poll();
+            acked[index]++;
+        }
+    }
+}
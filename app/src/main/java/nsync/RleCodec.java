@@ -0,0 +1,65 @@
+package nsync;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Run-length encoding of identical pixels in row-major order, each run stored as
+// [byte length - 1][r][g][b]. Very cheap and effective on text and flat UI areas.
+public class RleCodec implements FrameCodec {
+    private static final int MAX_RUN = 256;
+
+    @Override
+    public byte getId() {
+        return RLE;
+    }
+
+    @Override
+    public int maxEncodedSize(int width, int height) {
+        return width * height * 4;
+    }
+
+    @Override
+    public void encode(int[] pixels, int offset, int stride, int width, int height, ByteBuffer out) {
+        int run = 0;
+        int current = 0;
+        for (int row = 0; row < height; row++) {
+            int start = offset + row * stride;
+            for (int i = start; i < start + width; i++) {
+                int pixel = pixels[i] & 0xFFFFFF;
+                if (run > 0 && (pixel != current || run == MAX_RUN)) {
+                    writeRun(out, run, current);
+                    run = 0;
+                }
+                current = pixel;
+                run++;
+            }
+        }
+        if (run > 0) {
+            writeRun(out, run, current);
+        }
+    }
+
+    private static void writeRun(ByteBuffer out, int run, int pixel) {
+        out.put((byte) (run - 1)).put((byte) (pixel >> 16)).put((byte) (pixel >> 8)).put((byte) pixel);
+    }
+
+    @Override
+    public void decode(ByteBuffer in, int[] pixels, int offset, int stride, int width, int height) throws IOException {
+        int run = 0;
+        int pixel = 0;
+        for (int row = 0; row < height; row++) {
+            int start = offset + row * stride;
+            for (int i = start; i < start + width; i++) {
+                if (run == 0) {
+                    if (in.remaining() < 4) {
+                        throw new IOException("Truncated RLE tile");
+                    }
+                    run = (in.get() & 0xFF) + 1;
+                    pixel = (in.get() & 0xFF) << 16 | (in.get() & 0xFF) << 8 | (in.get() & 0xFF);
+                }
+                pixels[i] = pixel;
+                run--;
+            }
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package nsync;
+
+// rsync's weak checksum over a fixed size window: two 16 bit sums that are
+// updated in constant time when the window slides forward by one byte.
+public class RollingChecksum {
+    private final int window;
+    private int a;
+    private int b;
+
+    public RollingChecksum(int window) {
+        this.window = window;
+    }
+
+    // Starts over with the window at data[offset, offset + window)
+    public void reset(byte[] data, int offset) {
+        a = 0;
+        b = 0;
+        for (int i = 0; i < window; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (window - i) * x;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    // Slides the window: out leaves at the front, in enters at the back
+    public void roll(byte out, byte in) {
+        int o = out & 0xFF;
+        a = (a - o + (in & 0xFF)) & 0xFFFF;
+        b = (b - window * o + a) & 0xFFFF;
+    }
+
+    public int value() {
+        return (b << 16) | a;
+    }
+}
@@ -0,0 +1,135 @@
+package nsync;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Robot;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
+
+// Captures the screen and downscales it into a caller supplied TYPE_INT_RGB image,
+// so a pipeline can recycle a small pool of frames.
+//
+// Packed RGB captures (what Robot returns on every platform we ship to) are
+// reduced with an integer box filter straight from the raster; anything else
+// falls back to a bilinear Graphics2D draw into the target image.
+// Robot.createScreenCapture still allocates its own result, there is no public
+// API to capture into an existing raster, but nothing else is allocated per frame
+// once the targets have the right size.
+public class ScreenCapturer {
+    private final Robot robot;
+    private final Rectangle bounds;
+    private volatile int scaleDivisor;
+
+    public ScreenCapturer(Robot robot, Rectangle bounds, int scaleDivisor) {
+        this.robot = robot;
+        this.bounds = new Rectangle(bounds);
+        setScaleDivisor(scaleDivisor);
+    }
+
+    public Rectangle getBounds() {
+        return new Rectangle(bounds);
+    }
+
+    public int getScaleDivisor() {
+        return scaleDivisor;
+    }
+
+    // May be called from any thread, takes effect on the next capture
+    public void setScaleDivisor(int scaleDivisor) {
+        this.scaleDivisor = Math.max(1, scaleDivisor);
+    }
+
+    // Returns target, or a new image when target is null or has the wrong size
+    public BufferedImage capture(BufferedImage target) {
+        return downscale(robot.createScreenCapture(bounds), target);
+    }
+
+    public BufferedImage downscale(BufferedImage source, BufferedImage target) {
+        int divisor = scaleDivisor;
+        int width = Math.max(1, source.getWidth() / divisor);
+        int height = Math.max(1, source.getHeight() / divisor);
+        boolean packed = isPackedRgb(source);
+        if (divisor == 1 && packed && source.getType() == BufferedImage.TYPE_INT_RGB) {
+            return source;
+        }
+
+        if (target == null || target.getWidth() != width || target.getHeight() != height
+                || target.getType() != BufferedImage.TYPE_INT_RGB) {
+            target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        }
+
+        if (packed) {
+            Raster raster = source.getRaster();
+            int[] pixels = ((DataBufferInt) raster.getDataBuffer()).getData();
+            int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+            int[] scaledPixels = ((DataBufferInt) target.getRaster().getDataBuffer()).getData();
+            if (divisor == 2) {
+                halve(pixels, stride, scaledPixels, width, height);
+            } else {
+                boxFilter(pixels, stride, divisor, scaledPixels, width, height);
+            }
+        } else {
+            Graphics2D g2d = target.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.drawImage(source, 0, 0, width, height, null);
+            g2d.dispose();
+        }
+        return target;
+    }
+
+    private static boolean isPackedRgb(BufferedImage image) {
+        int type = image.getType();
+        Raster raster = image.getRaster();
+        return (type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+            && raster.getDataBuffer() instanceof DataBufferInt
+            && raster.getDataBuffer().getOffset() == 0
+            && raster.getSampleModel() instanceof SinglePixelPackedSampleModel
+            && raster.getSampleModelTranslateX() == 0
+            && raster.getSampleModelTranslateY() == 0;
+    }
+
+    // 2x2 average with red and blue summed in one lane and green in another
+    private static void halve(int[] pixels, int stride, int[] scaledPixels, int width, int height) {
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int top = 2 * y * stride;
+            int bottom = top + stride;
+            for (int x = 0; x < width; x++) {
+                int a = pixels[top++];
+                int b = pixels[top++];
+                int c = pixels[bottom++];
+                int d = pixels[bottom++];
+                int rb = (a & 0xFF00FF) + (b & 0xFF00FF) + (c & 0xFF00FF) + (d & 0xFF00FF);
+                int g = (a & 0x00FF00) + (b & 0x00FF00) + (c & 0x00FF00) + (d & 0x00FF00);
+                scaledPixels[out++] = (rb >> 2 & 0xFF00FF) | (g >> 2 & 0x00FF00);
+            }
+        }
+    }
+
+    private static void boxFilter(int[] pixels, int stride, int divisor, int[] scaledPixels, int width, int height) {
+        int area = divisor * divisor;
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * divisor * stride;
+            for (int x = 0; x < width; x++) {
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                int blockStart = rowStart + x * divisor;
+                for (int dy = 0; dy < divisor; dy++) {
+                    int i = blockStart + dy * stride;
+                    for (int dx = 0; dx < divisor; dx++) {
+                        int pixel = pixels[i + dx];
+                        r += pixel >> 16 & 0xFF;
+                        g += pixel >> 8 & 0xFF;
+                        b += pixel & 0xFF;
+                    }
+                }
+                scaledPixels[out++] = (r / area) << 16 | (g / area) << 8 | (b / area);
+            }
+        }
+    }
+}
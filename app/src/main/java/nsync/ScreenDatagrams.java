@@ -0,0 +1,499 @@
+package nsync;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Screen frames over UDP, for lossy links where TCP retransmits freeze the
+// screen and then jump. Chat and control stay on the session connection.
+//
+// A SCREEN_TILES payload (see TileEncoder) is cut at tile boundaries into slices
+// of up to SLICE_PACKETS datagrams. A slice is the frame's FRAME_TIMING followed
+// by a SCREEN_TILES payload of its own, with the frame's header and some of its
+// tiles, so it can be shown without the rest of the frame. A tile too large for
+// a slice gets one to itself. Every datagram is
+//
+//   [int token][int frame sequence][short slice][short slice count]
+//   [byte packet][byte packets][int slice length][up to PACKET_DATA bytes of the slice]
+//
+// where token is the one the server handed out in UDP_OFFER. With parity on, a
+// slice is followed by packet number `packets`, the XOR of its data packets, so
+// the receiver rebuilds any one lost packet of a slice. A slice that still
+// misses packets is lost: the receiver names it in SCREEN_REFRESH and the sender
+// encodes the tiles it carried again with the next frame. Tiles are whole
+// replacements, so nothing else needs to be resent.
+//
+// A datagram with a slice count of 0 is a hello. The client repeats it until the
+// server confirms with UDP_READY on the session connection, and stays on TCP when
+// none gets through.
+public final class ScreenDatagrams {
+    public static final int HEADER_SIZE = 18;
+    // Fits the 1280 bytes every IPv6 link carries, with the IP and UDP headers
+    public static final int PACKET_DATA = 1200;
+    public static final int SLICE_PACKETS = 8;
+    // In a SCREEN_REFRESH, every slice of the frame
+    public static final int ALL_SLICES = 0xFFFF;
+
+    private static final int TIMING_SIZE = 28;
+    private static final int MAX_SLICES = 4096;
+    // Frames whose tiles the sender remembers for SCREEN_REFRESH
+    private static final int HISTORY = 64;
+    // More lost slices than this are refreshed with a key frame
+    private static final int MAX_REFRESH = 256;
+
+    private ScreenDatagrams() {
+    }
+
+    // Reads the token of a datagram without consuming it
+    public static int tokenOf(ByteBuffer datagram) {
+        return datagram.getInt(datagram.position());
+    }
+
+    // Fraction of datagrams a Sender drops on purpose, -Dnsync.udp.loss=0.05 tests 5% loss on loopback
+    public static double simulatedLoss() {
+        return Double.parseDouble(System.getProperty("nsync.udp.loss", "0"));
+    }
+
+    // Client side, one per screen share
+    public static final class Sender {
+        // No FRAME_ACK for this long means datagrams stopped getting through
+        private static final long STALL_NANOS = 2_000_000_000L;
+
+        private final DatagramChannel channel;
+        private final int token;
+        private final double loss;
+        // XOR parity per slice unless -Dnsync.udp.parity=false
+        private final boolean parity = Boolean.parseBoolean(System.getProperty("nsync.udp.parity", "true"));
+        private final ByteBuffer packet = ByteBuffer.allocateDirect(HEADER_SIZE + PACKET_DATA);
+        private final byte[] parityData = new byte[PACKET_DATA];
+        private byte[] slice = new byte[SLICE_PACKETS * PACKET_DATA];
+        // Tile regions of every slice of the last HISTORY frames, by sequence
+        private final SentFrame[] history = new SentFrame[HISTORY];
+        private long datagrams;
+        private long dropped;
+        private long bytesSent;
+        // When the oldest frame without an ack was sent, 0 when all are acked
+        private long firstUnacked;
+        // Set when the network refused a datagram, e.g. the port is unreachable
+        private volatile boolean blocked;
+
+        public Sender(InetSocketAddress server, int token, double loss) throws IOException {
+            channel = DatagramChannel.open();
+            channel.connect(server);
+            this.token = token;
+            this.loss = loss;
+        }
+
+        public double getLoss() {
+            return loss;
+        }
+
+        public synchronized void sendHello() {
+            packet.clear();
+            packet.putInt(token).put(new byte[HEADER_SIZE - 4]).flip();
+            write();
+        }
+
+        // Sends a SCREEN_TILES payload, without consuming it, and the FRAME_TIMING of
+        // the frame. Returns the bytes sent.
+        public synchronized int send(ByteBuffer payload, byte[] timing) throws IOException {
+            int start = payload.position();
+            int sequence = payload.getInt(start);
+            int tileCount = payload.getInt(start + 13);
+            // Every slice as [first byte, end byte, tile count]
+            List<int[]> ranges = new ArrayList<>();
+            List<List<Rectangle>> regions = new ArrayList<>();
+            List<Rectangle> sliceRegions = new ArrayList<>();
+            int budget = SLICE_PACKETS * PACKET_DATA - TIMING_SIZE - TileEncoder.FRAME_HEADER_SIZE;
+            int sliceStart = start + TileEncoder.FRAME_HEADER_SIZE;
+            int position = sliceStart;
+            for (int t = 0; t < tileCount; t++) {
+                int length = TileEncoder.TILE_HEADER_SIZE + payload.getInt(position + 8);
+                if (!sliceRegions.isEmpty() && position + length - sliceStart > budget) {
+                    ranges.add(new int[] { sliceStart, position, sliceRegions.size() });
+                    regions.add(sliceRegions);
+                    sliceRegions = new ArrayList<>();
+                    sliceStart = position;
+                }
+                sliceRegions.add(new Rectangle(payload.getShort(position) & 0xFFFF, payload.getShort(position + 2) & 0xFFFF,
+                    payload.getShort(position + 4) & 0xFFFF, payload.getShort(position + 6) & 0xFFFF));
+                position += length;
+            }
+            ranges.add(new int[] { sliceStart, position, sliceRegions.size() });
+            regions.add(sliceRegions);
+            history[Math.floorMod(sequence, HISTORY)] = new SentFrame(sequence, regions);
+
+            int bytes = 0;
+            for (int s = 0; s < ranges.size(); s++) {
+                int[] range = ranges.get(s);
+                int length = TIMING_SIZE + TileEncoder.FRAME_HEADER_SIZE + range[1] - range[0];
+                if ((length + PACKET_DATA - 1) / PACKET_DATA > 255) {
+                    throw new IOException("Screen tile too large for datagrams: " + length + " bytes");
+                }
+                if (slice.length < length) {
+                    slice = new byte[length];
+                }
+                ByteBuffer.wrap(slice).put(timing, 0, TIMING_SIZE)
+                    .put(payload.duplicate().position(start).limit(start + 13)).putInt(range[2])
+                    .put(payload.duplicate().position(range[0]).limit(range[1]));
+                bytes += sendSlice(sequence, s, ranges.size(), length);
+            }
+            if (firstUnacked == 0) {
+                firstUnacked = System.nanoTime();
+            }
+            return bytes;
+        }
+
+        private int sendSlice(int sequence, int index, int count, int length) {
+            int packets = (length + PACKET_DATA - 1) / PACKET_DATA;
+            Arrays.fill(parityData, (byte) 0);
+            int bytes = 0;
+            for (int p = 0; p < packets; p++) {
+                int offset = p * PACKET_DATA;
+                int size = Math.min(PACKET_DATA, length - offset);
+                if (parity) {
+                    for (int i = 0; i < size; i++) {
+                        parityData[i] ^= slice[offset + i];
+                    }
+                }
+                bytes += writePacket(sequence, index, count, p, packets, length, slice, offset, size);
+            }
+            if (parity) {
+                bytes += writePacket(sequence, index, count, packets, packets, length, parityData, 0,
+                    Math.min(PACKET_DATA, length));
+            }
+            return bytes;
+        }
+
+        private int writePacket(int sequence, int index, int count, int number, int packets, int length,
+                byte[] data, int offset, int size) {
+            packet.clear();
+            packet.putInt(token).putInt(sequence).putShort((short) index).putShort((short) count)
+                .put((byte) number).put((byte) packets).putInt(length).put(data, offset, size).flip();
+            return write();
+        }
+
+        private int write() {
+            datagrams++;
+            if (loss > 0 && ThreadLocalRandom.current().nextDouble() < loss) {
+                dropped++;
+                return 0;
+            }
+            try {
+                int written = channel.write(packet);
+                bytesSent += written;
+                return written;
+            } catch (IOException e) {
+                // Datagrams may get lost anyway, but this one never left
+                blocked = true;
+                return 0;
+            }
+        }
+
+        // Called with every FRAME_ACK, which proves datagrams get through
+        public synchronized void acked() {
+            firstUnacked = 0;
+        }
+
+        // True when frames went out but none was acked for a while
+        public synchronized boolean isStalled() {
+            return blocked || firstUnacked != 0 && System.nanoTime() - firstUnacked > STALL_NANOS;
+        }
+
+        // The tiles of a slice of a recent frame, for SCREEN_REFRESH, or null when
+        // that frame is forgotten and only a key frame helps
+        public synchronized List<Rectangle> regionsOf(int sequence, int slice) {
+            SentFrame frame = history[Math.floorMod(sequence, HISTORY)];
+            if (frame == null || frame.sequence != sequence) {
+                return null;
+            }
+            if (slice != ALL_SLICES) {
+                return slice < frame.slices.size() ? frame.slices.get(slice) : null;
+            }
+            List<Rectangle> all = new ArrayList<>();
+            for (List<Rectangle> regions : frame.slices) {
+                all.addAll(regions);
+            }
+            return all;
+        }
+
+        public synchronized long getBytesSent() {
+            return bytesSent;
+        }
+
+        public synchronized String describe() {
+            return "UDP " + datagrams + " datagrams" + (loss > 0 ? ", " + dropped + " dropped on purpose" : "");
+        }
+
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static final class SentFrame {
+        final int sequence;
+        final List<List<Rectangle>> slices;
+
+        SentFrame(int sequence, List<List<Rectangle>> slices) {
+            this.sequence = sequence;
+            this.slices = slices;
+        }
+    }
+
+    // Server side, one per screen share. Slices are reassembled into frames that
+    // are handed on in sequence order. A frame is handed on once all its slices
+    // arrived, or with whatever arrived once a newer frame completes, a datagram
+    // REORDER_FRAMES newer arrives or none of it arrived for LOSS_TIMEOUT_MILLIS
+    // (see expire()). Datagrams of a frame that was already handed on are dropped
+    // and their slices refreshed, they could overwrite newer tiles.
+    public static final class Receiver {
+        public interface Handler {
+            // A frame to decode and acknowledge: its SCREEN_TILES payload, or the
+            // tiles of it that arrived
+            void frameReceived(ByteBuffer payload, FrameStats.Timing timing, long receivedMicros) throws IOException;
+
+            // A SCREEN_REFRESH payload naming lost slices:
+            //   [short count] count x [int frame sequence][short slice or ALL_SLICES]
+            void slicesLost(ByteBuffer refresh) throws IOException;
+        }
+
+        public static final long LOSS_TIMEOUT_MILLIS = 50;
+        private static final int REORDER_FRAMES = 1;
+
+        private final Handler handler;
+        private final TreeMap<Integer, FrameAssembly> frames = new TreeMap<>();
+        // Lost slices as [sequence, slice], sent after each datagram or expiry
+        private final List<int[]> lost = new ArrayList<>();
+        private boolean started;
+        private int lastHandedOn;
+        private long packets;
+        private long recovered;
+        private long late;
+        private long framesComplete;
+        private long framesPartial;
+        private long slicesLost;
+
+        public Receiver(Handler handler) {
+            this.handler = handler;
+        }
+
+        // datagram is only read during the call
+        public synchronized void receive(ByteBuffer datagram) throws IOException {
+            if (datagram.remaining() < HEADER_SIZE) {
+                return;
+            }
+            datagram.getInt();
+            int sequence = datagram.getInt();
+            int index = datagram.getShort() & 0xFFFF;
+            int count = datagram.getShort() & 0xFFFF;
+            int number = datagram.get() & 0xFF;
+            int packetCount = datagram.get() & 0xFF;
+            int length = datagram.getInt();
+            if (count == 0) {
+                // A hello
+                return;
+            }
+            if (index >= count || count > MAX_SLICES || packetCount == 0 || number > packetCount
+                    || length <= 0 || length > packetCount * PACKET_DATA || datagram.remaining() > PACKET_DATA) {
+                // Malformed, dropped like a lost one
+                return;
+            }
+            packets++;
+            if (!started) {
+                started = true;
+                lastHandedOn = sequence - 1;
+            }
+            if (sequence <= lastHandedOn) {
+                late++;
+                return;
+            }
+            FrameAssembly frame = frames.computeIfAbsent(sequence, key -> new FrameAssembly(key, count));
+            if (frame.slices.length != count) {
+                return;
+            }
+            frame.lastMicros = FrameStats.nowMicros();
+            SliceAssembly slice = frame.slices[index];
+            if (slice == null) {
+                slice = frame.slices[index] = new SliceAssembly(packetCount, length);
+            }
+            if (slice.packetCount == packetCount && slice.length == length && slice.add(number, datagram)) {
+                recovered += slice.recovered ? 1 : 0;
+                frame.completed++;
+            }
+            handOn(frame.completed == count ? sequence : sequence - REORDER_FRAMES);
+            flushLost();
+        }
+
+        // Hands on frames that stopped receiving datagrams, call every LOSS_TIMEOUT_MILLIS or so
+        public synchronized void expire() throws IOException {
+            long deadline = FrameStats.nowMicros() - LOSS_TIMEOUT_MILLIS * 1000;
+            Integer newest = null;
+            for (FrameAssembly frame : frames.values()) {
+                if (frame.lastMicros < deadline) {
+                    newest = frame.sequence;
+                }
+            }
+            if (newest != null) {
+                handOn(newest);
+                flushLost();
+            }
+        }
+
+        // Hands on every frame up to sequence, and notes frames of which nothing arrived
+        private void handOn(int sequence) throws IOException {
+            while (!frames.isEmpty() && frames.firstKey() <= sequence) {
+                FrameAssembly frame = frames.pollFirstEntry().getValue();
+                for (int missing = lastHandedOn + 1; missing < frame.sequence && lost.size() <= MAX_REFRESH; missing++) {
+                    lost.add(new int[] { missing, ALL_SLICES });
+                }
+                lastHandedOn = frame.sequence;
+                handOn(frame);
+            }
+        }
+
+        private void handOn(FrameAssembly frame) throws IOException {
+            byte[] first = null;
+            int tiles = 0;
+            int bytes = TileEncoder.FRAME_HEADER_SIZE;
+            for (int i = 0; i < frame.slices.length; i++) {
+                SliceAssembly slice = frame.slices[i];
+                if (slice == null || slice.data == null || slice.data.length < TIMING_SIZE + TileEncoder.FRAME_HEADER_SIZE) {
+                    lost.add(new int[] { frame.sequence, i });
+                    slicesLost++;
+                    continue;
+                }
+                first = first != null ? first : slice.data;
+                tiles += ByteBuffer.wrap(slice.data).getInt(TIMING_SIZE + 13);
+                bytes += slice.data.length - TIMING_SIZE - TileEncoder.FRAME_HEADER_SIZE;
+            }
+            if (first == null) {
+                return;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(bytes);
+            payload.put(first, TIMING_SIZE, 13).putInt(tiles);
+            for (SliceAssembly slice : frame.slices) {
+                if (slice != null && slice.data != null && slice.data.length >= TIMING_SIZE + TileEncoder.FRAME_HEADER_SIZE) {
+                    int skip = TIMING_SIZE + TileEncoder.FRAME_HEADER_SIZE;
+                    payload.put(slice.data, skip, slice.data.length - skip);
+                }
+            }
+            payload.flip();
+            if (frame.completed == frame.slices.length) {
+                framesComplete++;
+            } else {
+                framesPartial++;
+            }
+            handler.frameReceived(payload, FrameStats.Timing.fromPayload(ByteBuffer.wrap(first, 0, TIMING_SIZE)),
+                frame.lastMicros);
+        }
+
+        private void flushLost() throws IOException {
+            if (lost.isEmpty()) {
+                return;
+            }
+            ByteBuffer refresh;
+            if (lost.size() > MAX_REFRESH) {
+                // No frame has this sequence, so the sender answers with a key frame
+                refresh = ByteBuffer.allocate(8).putShort((short) 1).putInt(-1).putShort((short) ALL_SLICES);
+            } else {
+                refresh = ByteBuffer.allocate(2 + lost.size() * 6).putShort((short) lost.size());
+                for (int[] slice : lost) {
+                    refresh.putInt(slice[0]).putShort((short) slice[1]);
+                }
+            }
+            lost.clear();
+            handler.slicesLost(refresh.flip());
+        }
+
+        public synchronized String describe() {
+            return String.format(Locale.ROOT, "📡 UDP · %d datagrams · %d slices rebuilt from parity · %d slices lost"
+                    + " · %d frames whole, %d partial · %d late datagrams",
+                packets, recovered, slicesLost, framesComplete, framesPartial, late);
+        }
+    }
+
+    private static final class FrameAssembly {
+        final int sequence;
+        final SliceAssembly[] slices;
+        int completed;
+        long lastMicros;
+
+        FrameAssembly(int sequence, int sliceCount) {
+            this.sequence = sequence;
+            this.slices = new SliceAssembly[sliceCount];
+        }
+    }
+
+    private static final class SliceAssembly {
+        final int packetCount;
+        final int length;
+        // Data packets then parity, each padded to PACKET_DATA, until the slice is complete
+        byte[][] packets;
+        int dataReceived;
+        boolean parityReceived;
+        boolean recovered;
+        // The slice once complete
+        byte[] data;
+
+        SliceAssembly(int packetCount, int length) {
+            this.packetCount = packetCount;
+            this.length = length;
+            packets = new byte[packetCount + 1][];
+        }
+
+        // Returns true when this packet completed the slice
+        boolean add(int number, ByteBuffer datagram) {
+            if (data != null || packets[number] != null) {
+                return false;
+            }
+            byte[] bytes = new byte[PACKET_DATA];
+            datagram.get(bytes, 0, datagram.remaining());
+            packets[number] = bytes;
+            if (number < packetCount) {
+                dataReceived++;
+            } else {
+                parityReceived = true;
+            }
+            if (dataReceived == packetCount - 1 && parityReceived) {
+                rebuildMissing();
+                recovered = true;
+            } else if (dataReceived < packetCount) {
+                return false;
+            }
+            data = new byte[length];
+            for (int p = 0; p < packetCount; p++) {
+                System.arraycopy(packets[p], 0, data, p * PACKET_DATA, Math.min(PACKET_DATA, length - p * PACKET_DATA));
+            }
+            packets = null;
+            return true;
+        }
+
+        private void rebuildMissing() {
+            byte[] rebuilt = packets[packetCount].clone();
+            int missing = -1;
+            for (int p = 0; p < packetCount; p++) {
+                if (packets[p] == null) {
+                    missing = p;
+                    continue;
+                }
+                for (int i = 0; i < PACKET_DATA; i++) {
+                    rebuilt[i] ^= packets[p][i];
+                }
+            }
+            packets[missing] = rebuilt;
+            dataReceived++;
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package nsync;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Runs screen sharing as three concurrent stages so that capturing frame N+1
+// overlaps encoding frame N and sending frame N-1:
+//
+//   capture --LatestValueQueue--> encode --bounded queue--> send
+//
+// Raw captures are independent, so a capture the encoder has not picked up yet is
+// simply replaced by a newer one. Encoded frames are deltas and must all be sent,
+// so the encoder blocks when the sender is a frame behind. Images and output
+// buffers are recycled through small pools, one per stage plus one in hand-off.
+// Every frame carries its capture and encode times to the send stage, which
+// sends them as FRAME_TIMING just before the frame (see FrameStats).
+//
+// Frames go out as datagrams instead while setDatagrams() gave a sender, see
+// ScreenDatagrams. When those stop being acked the pipeline falls back to the
+// connection with a key frame.
+public class ScreenPipeline {
+    public interface Listener {
+        // Called about once a second from the capture thread
+        void statsUpdated(String description);
+
+        void pipelineFailed(Exception e);
+
+        // Called from the send thread after frames over UDP stopped being acked,
+        // the pipeline is back on the connection already
+        void datagramsStalled(ScreenDatagrams.Sender datagrams);
+    }
+
+    private static final int POOL_SIZE = 3;
+    private static final long STATS_INTERVAL_MILLIS = 1000;
+    private static final long STOP_TIMEOUT_MILLIS = 2000;
+
+    private final ScreenCapturer capturer;
+    private final TileEncoder encoder;
+    private final RateController rateController;
+    private final MessageSender sender;
+    private final Runnable tuner;
+    private final Listener listener;
+
+    private final LatestValueQueue<CapturedFrame> captured = new LatestValueQueue<>();
+    private final BlockingQueue<CapturedFrame> freeImages = new ArrayBlockingQueue<>(POOL_SIZE);
+    private final BlockingQueue<EncodedFrame> encoded = new ArrayBlockingQueue<>(1);
+    private final BlockingQueue<EncodedFrame> freeFrames = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    private final StageTimer captureTimer = new StageTimer("capture");
+    private final StageTimer encodeTimer = new StageTimer("encode");
+    private final StageTimer sendTimer = new StageTimer("send");
+    private volatile long droppedCaptures;
+    // Released to capture before the frame interval is over
+    private final Semaphore wakeup = new Semaphore(0);
+    private volatile ScreenDatagrams.Sender datagrams;
+
+    private volatile boolean running;
+    private Thread captureThread;
+    private Thread encodeThread;
+    private Thread sendThread;
+
+    // tuner runs on the capture thread before every capture, e.g. to apply rate settings
+    public ScreenPipeline(ScreenCapturer capturer, TileEncoder encoder, RateController rateController,
+                          MessageSender sender, Runnable tuner, Listener listener) {
+        this.capturer = capturer;
+        this.encoder = encoder;
+        this.rateController = rateController;
+        this.sender = sender;
+        this.tuner = tuner;
+        this.listener = listener;
+        for (int i = 0; i < POOL_SIZE; i++) {
+            freeImages.add(new CapturedFrame());
+            freeFrames.add(new EncodedFrame());
+        }
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        encoder.reset();
+        captureThread = startStage("nsync-capture", this::captureLoop);
+        encodeThread = startStage("nsync-encode", this::encodeLoop);
+        sendThread = startStage("nsync-send", this::sendLoop);
+    }
+
+    // Returns once the stage threads ended, so the encoder and capturer can be
+    // used again, or after STOP_TIMEOUT_MILLIS when one is stuck
+    public void stop() {
+        Thread[] stages;
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            captured.close();
+            stages = new Thread[] { captureThread, encodeThread, sendThread };
+        }
+        for (Thread stage : stages) {
+            stage.interrupt();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+        try {
+            for (Thread stage : stages) {
+                long left = deadline - System.nanoTime();
+                // A stage that failed stops the pipeline itself
+                if (stage != Thread.currentThread() && left > 0) {
+                    TimeUnit.NANOSECONDS.timedJoin(stage, left);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public StageTimer[] getStageTimers() {
+        return new StageTimer[] { captureTimer, encodeTimer, sendTimer };
+    }
+
+    // Captures as soon as the rate controller allows, e.g. after replaying remote input
+    public void requestCapture() {
+        wakeup.release();
+    }
+
+    // Sends frames over UDP from now on, or over the connection again when null
+    public void setDatagrams(ScreenDatagrams.Sender datagrams) {
+        this.datagrams = datagrams;
+    }
+
+    public long getDroppedCaptures() {
+        return droppedCaptures;
+    }
+
+    private Thread startStage(String name, Runnable loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private void captureLoop() {
+        long nextStats = 0;
+        try {
+            while (running) {
+                long frameStart = System.currentTimeMillis();
+                if (rateController.canSend()) {
+                    tuner.run();
+                    CapturedFrame frame = freeImages.take();
+                    frame.startMicros = FrameStats.nowMicros();
+                    long start = System.nanoTime();
+                    frame.image = capturer.capture(frame.image);
+                    long captureNanos = System.nanoTime() - start;
+                    captureTimer.record(captureNanos);
+                    frame.captureMicros = (int) (captureNanos / 1000);
+                    CapturedFrame stale = captured.put(frame);
+                    if (stale != null) {
+                        droppedCaptures++;
+                        freeImages.offer(stale);
+                    }
+                }
+
+                if (frameStart >= nextStats) {
+                    StageTimer[] stages = getStageTimers();
+                    sender.send(Protocol.SCREEN_STATS, rateController.toStatsPayload(stages));
+                    ScreenDatagrams.Sender udp = datagrams;
+                    listener.statsUpdated(rateController.describe(stages) + " · " + droppedCaptures + " captures skipped"
+                        + (udp != null ? " · " + udp.describe() : ""));
+                    nextStats = frameStart + STATS_INTERVAL_MILLIS;
+                }
+                long elapsed = System.currentTimeMillis() - frameStart;
+                if (wakeup.tryAcquire(Math.max(1, rateController.frameIntervalMillis() - elapsed), TimeUnit.MILLISECONDS)) {
+                    wakeup.drainPermits();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void encodeLoop() {
+        try {
+            while (running) {
+                CapturedFrame image = captured.take();
+                if (image == null) {
+                    return;
+                }
+                EncodedFrame frame = freeFrames.take();
+                long start = System.nanoTime();
+                ByteBuffer payload = encoder.encode(image.image, frame.buffer);
+                long encodeNanos = System.nanoTime() - start;
+                encodeTimer.record(encodeNanos);
+                frame.startMicros = image.startMicros;
+                frame.captureMicros = image.captureMicros;
+                frame.encodeMicros = (int) (encodeNanos / 1000);
+                freeImages.offer(image);
+
+                if (payload == null) {
+                    freeFrames.offer(frame);
+                } else {
+                    frame.buffer = payload;
+                    frame.sequence = encoder.getSequence();
+                    frame.bytes = payload.remaining();
+                    encoded.put(frame);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void sendLoop() {
+        try {
+            while (running) {
+                EncodedFrame frame = encoded.take();
+                long start = System.nanoTime();
+                byte[] timing = new FrameStats.Timing(frame.sequence, frame.startMicros, frame.captureMicros,
+                    frame.encodeMicros, FrameStats.nowMicros()).toPayload();
+                ScreenDatagrams.Sender udp = datagrams;
+                if (udp != null && udp.isStalled()) {
+                    datagrams = null;
+                    // The viewer may have lost anything since the last ack
+                    encoder.reset();
+                    listener.datagramsStalled(udp);
+                    udp = null;
+                }
+                if (udp != null) {
+                    udp.send(frame.buffer, timing);
+                } else {
+                    sender.send(Protocol.FRAME_TIMING, timing);
+                    sender.send(Protocol.SCREEN_TILES, frame.buffer);
+                }
+                long sendNanos = System.nanoTime() - start;
+                sendTimer.record(sendNanos);
+                rateController.frameSent(frame.sequence, frame.bytes, sendNanos);
+                freeFrames.offer(frame);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void fail(Exception e) {
+        if (running) {
+            stop();
+            listener.pipelineFailed(e);
+        }
+    }
+
+    private static class CapturedFrame {
+        BufferedImage image = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        long startMicros;
+        int captureMicros;
+    }
+
+    private static class EncodedFrame {
+        ByteBuffer buffer;
+        int sequence;
+        int bytes;
+        long startMicros;
+        int captureMicros;
+        int encodeMicros;
+    }
+}
@@ -0,0 +1,344 @@
+package nsync;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.VolatileImage;
+import java.util.List;
+
+// Displays a remote screen decoded by a TileDecoder.
+//
+// showFrame() may be called from the decoding thread after every frame: it copies
+// only the damaged area into the view's own backing image and schedules at most
+// one repaint, so a burst of frames costs one EDT paint. On paint, the damaged
+// area is uploaded into a VolatileImage, which is then drawn (and scaled when
+// fitting the window) for the repainted clip only. Put it in a JScrollPane to get
+// scroll bars at 1:1.
+//
+// A frame shown with a FrameStats.Timing is marked painted once it is drawn, or
+// skipped when a newer frame replaces it first. An optional overlay draws a few
+// lines of text, such as those statistics, over the top left corner.
+public class ScreenView extends JComponent implements Scrollable {
+    private static final Font OVERLAY_FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
+    private static final Color OVERLAY_BACKGROUND = new Color(0, 0, 0, 170);
+    private static final int OVERLAY_MARGIN = 6;
+
+    private final Object lock = new Object();
+    // Guarded by lock
+    private TileDecoder source;
+    private BufferedImage backing;
+    private int[] backingPixels;
+    private final Rectangle pending = new Rectangle();
+    private boolean repaintScheduled;
+    private FrameStats.Timing pendingTiming;
+
+    // EDT only
+    private VolatileImage volatileImage;
+    private boolean fitToWindow = true;
+    private List<String> overlay;
+    private final Rectangle overlayBounds = new Rectangle();
+
+    public ScreenView() {
+        setOpaque(true);
+        setBackground(Color.BLACK);
+    }
+
+    // Copies what changed in the decoder since the last call. Switching to another
+    // decoder, or a new frame size, copies the whole canvas.
+    public void showFrame(TileDecoder decoder) {
+        showFrame(decoder, null);
+    }
+
+    public void showFrame(TileDecoder decoder, FrameStats.Timing timing) {
+        synchronized (lock) {
+            if (pendingTiming != null) {
+                pendingTiming.skipped();
+            }
+            pendingTiming = timing;
+            synchronized (decoder) {
+                BufferedImage canvas = decoder.getCanvas();
+                if (canvas == null) {
+                    return;
+                }
+                Rectangle damage = decoder.takeDamage();
+                int width = canvas.getWidth();
+                int height = canvas.getHeight();
+                boolean resized = backing == null || backing.getWidth() != width || backing.getHeight() != height;
+                if (resized) {
+                    backing = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                    backingPixels = ((DataBufferInt) backing.getRaster().getDataBuffer()).getData();
+                }
+                if (resized || decoder != source) {
+                    source = decoder;
+                    damage.setBounds(0, 0, width, height);
+                }
+                if (damage.isEmpty()) {
+                    return;
+                }
+                int[] pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+                for (int y = damage.y; y < damage.y + damage.height; y++) {
+                    int offset = y * width + damage.x;
+                    System.arraycopy(pixels, offset, backingPixels, offset, damage.width);
+                }
+                if (pending.isEmpty()) {
+                    pending.setBounds(damage);
+                } else {
+                    pending.add(damage);
+                }
+                if (resized) {
+                    SwingUtilities.invokeLater(this::revalidate);
+                }
+            }
+            if (repaintScheduled) {
+                return;
+            }
+            repaintScheduled = true;
+        }
+        SwingUtilities.invokeLater(this::repaintPending);
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            source = null;
+            backing = null;
+            pendingTiming = null;
+            backingPixels = null;
+            pending.setBounds(0, 0, 0, 0);
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (volatileImage != null) {
+                volatileImage.flush();
+                volatileImage = null;
+            }
+            revalidate();
+            repaint();
+        });
+    }
+
+    // EDT only, null hides the overlay
+    public void setOverlay(List<String> lines) {
+        overlay = lines;
+        Rectangle old = new Rectangle(overlayBounds);
+        overlayBounds.setBounds(0, 0, 0, 0);
+        if (lines != null) {
+            FontMetrics metrics = getFontMetrics(OVERLAY_FONT);
+            int width = 0;
+            for (String line : lines) {
+                width = Math.max(width, metrics.stringWidth(line));
+            }
+            overlayBounds.setBounds(OVERLAY_MARGIN, OVERLAY_MARGIN, width + 2 * OVERLAY_MARGIN,
+                lines.size() * metrics.getHeight() + 2 * OVERLAY_MARGIN);
+        }
+        repaint(old.union(overlayBounds));
+    }
+
+    public boolean isFitToWindow() {
+        return fitToWindow;
+    }
+
+    public void setFitToWindow(boolean fitToWindow) {
+        this.fitToWindow = fitToWindow;
+        revalidate();
+        repaint();
+    }
+
+    // Runs on the EDT once per burst of frames
+    private void repaintPending() {
+        Rectangle dirty;
+        Dimension size;
+        synchronized (lock) {
+            repaintScheduled = false;
+            if (backing == null || pending.isEmpty()) {
+                return;
+            }
+            dirty = new Rectangle(pending);
+            size = new Dimension(backing.getWidth(), backing.getHeight());
+        }
+        repaint(toView(dirty, size));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        g.setColor(getBackground());
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+
+        Rectangle target;
+        synchronized (lock) {
+            if (backing == null) {
+                g.fillRect(clip.x, clip.y, clip.width, clip.height);
+                return;
+            }
+            Dimension size = new Dimension(backing.getWidth(), backing.getHeight());
+            target = toView(new Rectangle(size), size);
+            uploadPending(size);
+        }
+
+        // Bars around the picture, empty rectangles draw nothing
+        g.fillRect(0, 0, getWidth(), target.y);
+        g.fillRect(0, target.y + target.height, getWidth(), getHeight() - target.y - target.height);
+        g.fillRect(0, target.y, target.x, target.height);
+        g.fillRect(target.x + target.width, target.y, getWidth() - target.x - target.width, target.height);
+
+        Graphics2D g2d = (Graphics2D) g;
+        if (fitToWindow) {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        if (volatileImage == null || volatileImage.contentsLost()) {
+            // Drawn straight from the backing image this time, uploaded again next paint
+            synchronized (lock) {
+                if (backing != null) {
+                    g2d.drawImage(backing, target.x, target.y, target.width, target.height, null);
+                    pending.setBounds(0, 0, backing.getWidth(), backing.getHeight());
+                }
+            }
+        } else {
+            g2d.drawImage(volatileImage, target.x, target.y, target.width, target.height, null);
+        }
+        FrameStats.Timing timing;
+        synchronized (lock) {
+            timing = pendingTiming;
+            pendingTiming = null;
+        }
+        if (timing != null) {
+            timing.painted();
+        }
+        paintOverlay(g2d);
+    }
+
+    private void paintOverlay(Graphics2D g) {
+        List<String> lines = overlay;
+        if (lines == null || !g.hitClip(overlayBounds.x, overlayBounds.y, overlayBounds.width, overlayBounds.height)) {
+            return;
+        }
+        g.setColor(OVERLAY_BACKGROUND);
+        g.fillRect(overlayBounds.x, overlayBounds.y, overlayBounds.width, overlayBounds.height);
+        g.setColor(Color.WHITE);
+        g.setFont(OVERLAY_FONT);
+        FontMetrics metrics = g.getFontMetrics();
+        int y = overlayBounds.y + OVERLAY_MARGIN + metrics.getAscent();
+        for (String line : lines) {
+            g.drawString(line, overlayBounds.x + OVERLAY_MARGIN, y);
+            y += metrics.getHeight();
+        }
+    }
+
+    // Copies the pending area of the backing image into video memory. Called with lock held.
+    private void uploadPending(Dimension size) {
+        int status;
+        if (volatileImage == null || volatileImage.getWidth() != size.width || volatileImage.getHeight() != size.height) {
+            if (volatileImage != null) {
+                volatileImage.flush();
+            }
+            volatileImage = createVolatileImage(size.width, size.height);
+            status = VolatileImage.IMAGE_RESTORED;
+        } else {
+            status = volatileImage.validate(getGraphicsConfiguration());
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                volatileImage.flush();
+                volatileImage = createVolatileImage(size.width, size.height);
+                status = VolatileImage.IMAGE_RESTORED;
+            }
+        }
+        if (volatileImage == null) {
+            // Not displayable yet
+            return;
+        }
+        if (status == VolatileImage.IMAGE_RESTORED) {
+            pending.setBounds(0, 0, size.width, size.height);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        Graphics2D g = volatileImage.createGraphics();
+        int x2 = pending.x + pending.width;
+        int y2 = pending.y + pending.height;
+        g.drawImage(backing, pending.x, pending.y, x2, y2, pending.x, pending.y, x2, y2, null);
+        g.dispose();
+        pending.setBounds(0, 0, 0, 0);
+    }
+
+    // Maps a component point to the remote screen as fractions in 1/65536, see
+    // InputBatch. Points beside the picture map to its edge, so a drag that ends
+    // outside still releases the button. Returns null before the first frame.
+    public Point toRemote(Point point) {
+        Dimension size;
+        synchronized (lock) {
+            if (backing == null) {
+                return null;
+            }
+            size = new Dimension(backing.getWidth(), backing.getHeight());
+        }
+        Rectangle picture = toView(new Rectangle(size), size);
+        if (picture.isEmpty()) {
+            return null;
+        }
+        int x = Math.max(0, Math.min(picture.width - 1, point.x - picture.x));
+        int y = Math.max(0, Math.min(picture.height - 1, point.y - picture.y));
+        return new Point((int) ((long) x * 65536 / picture.width), (int) ((long) y * 65536 / picture.height));
+    }
+
+    // Maps a rectangle of the remote screen to component coordinates
+    private Rectangle toView(Rectangle r, Dimension size) {
+        if (!fitToWindow) {
+            return new Rectangle(r);
+        }
+        double scale = Math.min((double) getWidth() / size.width, (double) getHeight() / size.height);
+        if (scale <= 0) {
+            return new Rectangle();
+        }
+        int offsetX = (getWidth() - (int) Math.round(size.width * scale)) / 2;
+        int offsetY = (getHeight() - (int) Math.round(size.height * scale)) / 2;
+        // Widen by a pixel so bilinear edges are repainted too
+        int x = (int) Math.floor(r.x * scale) - 1;
+        int y = (int) Math.floor(r.y * scale) - 1;
+        int x2 = (int) Math.ceil((r.x + r.width) * scale) + 1;
+        int y2 = (int) Math.ceil((r.y + r.height) * scale) + 1;
+        if (r.x == 0 && r.y == 0 && r.width == size.width && r.height == size.height) {
+            x = 0;
+            y = 0;
+            x2 = (int) Math.round(size.width * scale);
+            y2 = (int) Math.round(size.height * scale);
+        }
+        return new Rectangle(offsetX + x, offsetY + y, x2 - x, y2 - y);
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        synchronized (lock) {
+            if (backing != null && !fitToWindow) {
+                return new Dimension(backing.getWidth(), backing.getHeight());
+            }
+        }
+        return new Dimension(640, 480);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return fitToWindow;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return fitToWindow;
+    }
+}
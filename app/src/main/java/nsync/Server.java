@@ -0,0 +1,813 @@
+package nsync;
+
+import javax.swing.*;
+import javax.swing.border.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Swing front end of a ServerEngine
+public class Server implements ServerEngine.Listener {
+    private static final String SERVER_LOG = "🏠 Server Log (all clients)";
+    private static final int HISTORY_PAGE = 50;
+
+    private final ServerEngine engine = new ServerEngine();
+    // null while the server log is shown, chat and volume then go to every client
+    private volatile Session selectedSession;
+    private JComboBox<Object> sessionBox;
+    // Written from the selector thread, read wherever a line is posted
+    private final Map<Session, ChatView.Model> chatModels = new ConcurrentHashMap<>();
+    private final ChatView.Model serverLog = new ChatView.Model();
+    // Sequence number of the oldest logged message shown in each conversation, EDT only
+    private final Map<ChatView.Model, Long> historyCursors = new HashMap<>();
+    private boolean updatingControls;
+    private JFrame frame;
+    private ChatView chatView;
+    private JTextField messageField;
+    private JButton sendButton, startScreenShareBtn, fileTransferBtn, remoteControlBtn;
+    private JSlider volumeSlider;
+    private JFrame screenFrame;
+    private ScreenView screenView;
+    private volatile Session displayedSession;
+    private JComboBox<String> codecBox;
+    private JSlider qualitySlider;
+    private JLabel streamStatsLabel;
+    private JToggleButton relayToggle;
+    private JCheckBox statsOverlayBox;
+    // Refreshes the stats overlay, its last snapshot gives the per-second view
+    private javax.swing.Timer statsTimer;
+    private FrameStats.Snapshot lastStats;
+    private Session lastStatsSession;
+    private JLabel statusLabel;
+    private TelemetryView telemetryView;
+    private int port;
+
+    public Server() {
+        initializeGUI();
+        engine.addListener(this);
+        try {
+            engine.openChatLog(ChatLog.defaultDirectory("server"));
+        } catch (IOException e) {
+            appendToChat("⚠️ Chat history is off: " + e.getMessage(), "error");
+        }
+        historyCursors.put(serverLog, nextHistorySeq());
+    }
+
+    private void initializeGUI() {
+        frame = new JFrame("🎮 Server - Advanced Chat & Screen Share");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setLayout(new BorderLayout());
+        frame.getContentPane().setBackground(new Color(240, 240, 245));
+
+        // Create custom title panel
+        JPanel titlePanel = new JPanel(new BorderLayout());
+        titlePanel.setBackground(new Color(70, 130, 180));
+        titlePanel.setBorder(BorderFactory.createEmptyBorder(10, 15, 10, 15));
+        
+        JLabel titleLabel = new JLabel("🚀 Server Control Center");
+        titleLabel.setForeground(Color.WHITE);
+        titleLabel.setFont(new Font("Arial", Font.BOLD, 18));
+        titlePanel.add(titleLabel, BorderLayout.WEST);
+
+        // Session picker
+        JPanel sessionPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 8, 0));
+        sessionPanel.setOpaque(false);
+        JLabel sessionLabel = new JLabel("👥 Client:");
+        sessionLabel.setForeground(Color.WHITE);
+        sessionLabel.setFont(new Font("Arial", Font.BOLD, 12));
+        sessionBox = new JComboBox<>();
+        sessionBox.addItem(SERVER_LOG);
+        sessionBox.addActionListener(e -> selectSession());
+        sessionPanel.add(sessionLabel);
+        sessionPanel.add(sessionBox);
+        titlePanel.add(sessionPanel, BorderLayout.CENTER);
+        
+        statusLabel = new JLabel("🔴 Offline");
+        statusLabel.setForeground(Color.YELLOW);
+        statusLabel.setFont(new Font("Arial", Font.BOLD, 14));
+        titlePanel.add(statusLabel, BorderLayout.EAST);
+        
+        frame.add(titlePanel, BorderLayout.NORTH);
+
+        // Main content panel
+        JPanel mainPanel = new JPanel(new BorderLayout(10, 10));
+        mainPanel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+        mainPanel.setBackground(new Color(240, 240, 245));
+
+        // Chat area with styled border
+        chatView = new ChatView(serverLog, 20, 40);
+        JList<ChatView.Line> chatList = chatView.getList();
+        chatList.setBackground(new Color(250, 250, 255));
+        chatList.setForeground(new Color(50, 50, 50));
+        chatList.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(200, 200, 210), 2),
+            BorderFactory.createEmptyBorder(10, 10, 10, 10)
+        ));
+        
+        chatView.setBorder(BorderFactory.createTitledBorder(
+            BorderFactory.createLineBorder(new Color(150, 150, 160)), 
+            "💬 Chat Messages",
+            TitledBorder.LEFT,
+            TitledBorder.TOP,
+            new Font("Arial", Font.BOLD, 12),
+            new Color(70, 130, 180)
+        ));
+        mainPanel.add(chatView, BorderLayout.CENTER);
+
+        // Host telemetry of the selected client, or of every client with the server log
+        telemetryView = new TelemetryView();
+        JScrollPane telemetryPane = new JScrollPane(telemetryView);
+        telemetryPane.setPreferredSize(new Dimension(500, 0));
+        telemetryPane.setBorder(BorderFactory.createTitledBorder(
+            BorderFactory.createLineBorder(new Color(150, 150, 160)),
+            "📈 Host Telemetry",
+            TitledBorder.LEFT,
+            TitledBorder.TOP,
+            new Font("Arial", Font.BOLD, 12),
+            new Color(70, 130, 180)
+        ));
+        mainPanel.add(telemetryPane, BorderLayout.EAST);
+
+        // Control panel
+        JPanel controlPanel = createControlPanel();
+        mainPanel.add(controlPanel, BorderLayout.SOUTH);
+
+        frame.add(mainPanel, BorderLayout.CENTER);
+        frame.pack();
+        frame.setLocationRelativeTo(null);
+        frame.setVisible(true);
+        
+        initializeScreenWindow();
+    }
+
+    private JPanel createControlPanel() {
+        JPanel controlPanel = new JPanel(new BorderLayout(10, 10));
+        controlPanel.setBackground(new Color(240, 240, 245));
+
+        // Input panel
+        JPanel inputPanel = new JPanel(new BorderLayout(5, 5));
+        inputPanel.setBackground(new Color(240, 240, 245));
+        
+        messageField = new JTextField();
+        messageField.setFont(new Font("Arial", Font.PLAIN, 14));
+        messageField.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(new Color(150, 150, 160)),
+            BorderFactory.createEmptyBorder(8, 10, 8, 10)
+        ));
+        
+        sendButton = createStyledButton("📤 Send", new Color(34, 139, 34));
+        inputPanel.add(messageField, BorderLayout.CENTER);
+        inputPanel.add(sendButton, BorderLayout.EAST);
+
+        // Button panel
+        JPanel buttonPanel = new JPanel(new GridLayout(2, 3, 8, 8));
+        buttonPanel.setBackground(new Color(240, 240, 245));
+        
+        startScreenShareBtn = createStyledButton("📺 Start Screen Share", new Color(70, 130, 180));
+        fileTransferBtn = createStyledButton("📁 File Transfer", new Color(186, 85, 211));
+        remoteControlBtn = createStyledButton("🖱️ Remote Control", new Color(210, 105, 30));
+        JButton clearChatBtn = createStyledButton("🗑️ Clear Chat", new Color(220, 20, 60));
+        JButton historyBtn = createStyledButton("📜 Earlier Messages", new Color(112, 128, 144));
+        
+        buttonPanel.add(startScreenShareBtn);
+        buttonPanel.add(fileTransferBtn);
+        buttonPanel.add(remoteControlBtn);
+        buttonPanel.add(clearChatBtn);
+        buttonPanel.add(historyBtn);
+
+        // Volume control
+        JPanel volumePanel = new JPanel(new BorderLayout(5, 5));
+        volumePanel.setBackground(new Color(240, 240, 245));
+        volumePanel.setBorder(BorderFactory.createTitledBorder("🔊 Volume Control"));
+        
+        volumeSlider = new JSlider(0, 100, 50);
+        volumeSlider.setMajorTickSpacing(25);
+        volumeSlider.setMinorTickSpacing(5);
+        volumeSlider.setPaintTicks(true);
+        volumeSlider.setPaintLabels(true);
+        volumeSlider.setBackground(new Color(240, 240, 245));
+        volumePanel.add(volumeSlider, BorderLayout.CENTER);
+
+        // Event listeners
+        sendButton.addActionListener(e -> sendMessage());
+        messageField.addActionListener(e -> sendMessage());
+        startScreenShareBtn.addActionListener(e -> toggleScreenSharing());
+        fileTransferBtn.addActionListener(e -> initiateFileTransfer());
+        remoteControlBtn.addActionListener(e -> toggleRemoteControl());
+        clearChatBtn.addActionListener(e -> clearChat());
+        historyBtn.addActionListener(e -> showEarlierMessages());
+        volumeSlider.addChangeListener(e -> adjustVolume());
+
+        // Layout
+        JPanel topPanel = new JPanel(new BorderLayout(10, 10));
+        topPanel.setBackground(new Color(240, 240, 245));
+        topPanel.add(inputPanel, BorderLayout.CENTER);
+        topPanel.add(volumePanel, BorderLayout.EAST);
+
+        controlPanel.add(topPanel, BorderLayout.NORTH);
+        controlPanel.add(buttonPanel, BorderLayout.CENTER);
+
+        return controlPanel;
+    }
+
+    private JButton createStyledButton(String text, Color color) {
+        JButton button = new JButton(text);
+        button.setBackground(color);
+        button.setForeground(Color.WHITE);
+        button.setFont(new Font("Arial", Font.BOLD, 12));
+        button.setFocusPainted(false);
+        button.setBorder(BorderFactory.createCompoundBorder(
+            BorderFactory.createLineBorder(color.darker(), 2),
+            BorderFactory.createEmptyBorder(8, 15, 8, 15)
+        ));
+        button.setCursor(new Cursor(Cursor.HAND_CURSOR));
+        
+        // Hover effect
+        button.addMouseListener(new MouseAdapter() {
+            public void mouseEntered(MouseEvent e) {
+                button.setBackground(color.brighter());
+            }
+            public void mouseExited(MouseEvent e) {
+                button.setBackground(color);
+            }
+        });
+        
+        return button;
+    }
+
+    private void initializeScreenWindow() {
+        screenFrame = new JFrame("🖥️ Client Screen View");
+        screenFrame.setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
+        screenFrame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                engine.stopScreenSharing(selectedSession);
+            }
+        });
+        
+        screenView = new ScreenView();
+        installRemoteInput();
+
+        JScrollPane scrollPane = new JScrollPane(screenView);
+        screenFrame.add(createCodecPanel(), BorderLayout.NORTH);
+        screenFrame.add(scrollPane, BorderLayout.CENTER);
+        screenFrame.setSize(1024, 768);
+        screenFrame.setLocation(100, 100);
+    }
+
+    private JPanel createCodecPanel() {
+        JPanel codecPanel = new JPanel(new FlowLayout(FlowLayout.LEFT, 8, 4));
+        codecPanel.setBackground(new Color(240, 240, 245));
+
+        codecBox = new JComboBox<>();
+        for (byte id = FrameCodec.RAW; id <= FrameCodec.JPEG; id++) {
+            codecBox.addItem(FrameCodec.name(id));
+        }
+        codecBox.setSelectedIndex(FrameCodec.RLE);
+
+        qualitySlider = new JSlider(10, 100, FrameCodec.DEFAULT_QUALITY);
+        qualitySlider.setMajorTickSpacing(30);
+        qualitySlider.setPaintTicks(true);
+        qualitySlider.setBackground(new Color(240, 240, 245));
+
+        codecPanel.add(new JLabel("🎞️ Codec:"));
+        codecPanel.add(codecBox);
+        codecPanel.add(new JLabel("JPEG Quality:"));
+        codecPanel.add(qualitySlider);
+
+        streamStatsLabel = new JLabel("📶 Waiting for stream statistics...");
+        streamStatsLabel.setFont(new Font("Arial", Font.PLAIN, 11));
+        codecPanel.add(streamStatsLabel);
+
+        relayToggle = new JToggleButton("📡 Relay to All Clients");
+        relayToggle.setToolTipText("Broadcast this client's screen to every other connected client");
+        codecPanel.add(relayToggle);
+
+        statsOverlayBox = new JCheckBox("📊 Stats Overlay");
+        statsOverlayBox.setBackground(new Color(240, 240, 245));
+        statsOverlayBox.setToolTipText("Frame latency per stage, from capture on the client to paint here");
+        statsOverlayBox.addActionListener(e -> toggleStatsOverlay());
+        codecPanel.add(statsOverlayBox);
+
+        JButton dumpStatsBtn = new JButton("💾 Dump Stats");
+        dumpStatsBtn.setToolTipText("Write this client's frame statistics as JSON");
+        dumpStatsBtn.addActionListener(e -> dumpFrameStats());
+        codecPanel.add(dumpStatsBtn);
+
+        JCheckBox fitToWindowBox = new JCheckBox("🔍 Fit to Window", true);
+        fitToWindowBox.setBackground(new Color(240, 240, 245));
+        fitToWindowBox.addActionListener(e -> screenView.setFitToWindow(fitToWindowBox.isSelected()));
+        codecPanel.add(fitToWindowBox);
+
+        codecBox.addActionListener(e -> sendCodecSelection());
+        relayToggle.addActionListener(e -> toggleRelay());
+        qualitySlider.addChangeListener(e -> {
+            if (!qualitySlider.getValueIsAdjusting()) {
+                sendCodecSelection();
+            }
+        });
+        return codecPanel;
+    }
+
+    private void sendCodecSelection() {
+        engine.setCodec(selectedSession, (byte) codecBox.getSelectedIndex(), (byte) qualitySlider.getValue());
+    }
+
+    private void toggleStatsOverlay() {
+        if (statsTimer == null) {
+            statsTimer = new javax.swing.Timer(1000, e -> refreshStatsOverlay());
+        }
+        if (statsOverlayBox.isSelected()) {
+            lastStats = null;
+            refreshStatsOverlay();
+            statsTimer.start();
+        } else {
+            statsTimer.stop();
+            screenView.setOverlay(null);
+        }
+    }
+
+    // Shows the last second of the displayed session, or everything so far on the first refresh
+    private void refreshStatsOverlay() {
+        Session session = displayedSession;
+        if (session == null) {
+            screenView.setOverlay(null);
+            return;
+        }
+        if (session != lastStatsSession) {
+            lastStats = null;
+            lastStatsSession = session;
+        }
+        FrameStats.Snapshot stats = session.getFrameStats().snapshot();
+        List<String> lines = new ArrayList<>();
+        lines.add("📊 " + session + (lastStats == null ? " · since start" : " · last second"));
+        lines.addAll(stats.since(lastStats).describe());
+        ScreenDatagrams.Receiver datagrams = session.getDatagrams();
+        if (datagrams != null) {
+            lines.add(datagrams.describe());
+        }
+        lastStats = stats;
+        screenView.setOverlay(lines);
+    }
+
+    private void dumpFrameStats() {
+        Session session = selectedSession;
+        if (session == null) {
+            return;
+        }
+        try {
+            appendToChat(session, "💾 Frame statistics written to " + engine.dumpFrameStats(session), "system");
+        } catch (IOException e) {
+            appendToChat(session, "❌ Cannot write frame statistics: " + e.getMessage(), "error");
+        }
+    }
+
+    private void toggleRelay() {
+        if (relayToggle.isSelected()) {
+            engine.startRelay(selectedSession);
+        } else {
+            engine.stopRelay();
+        }
+    }
+
+    public void startServer(int port) {
+        try {
+            this.port = port;
+            engine.start(port);
+            updateConnectionStatus();
+        } catch (IOException e) {
+            appendToChat("❌ Server error: " + e.getMessage(), "error");
+        }
+    }
+
+    // ServerEngine callbacks, these run on the selector thread
+
+    @Override
+    public void sessionOpened(Session session, List<ChatLog.Entry> history) {
+        long cursor = history.isEmpty() ? nextHistorySeq() : history.get(0).getSeq();
+        ChatView.Model model = new ChatView.Model();
+        for (ChatView.Line line : historyLines(history, false)) {
+            model.post(line);
+        }
+        chatModels.put(session, model);
+        SwingUtilities.invokeLater(() -> {
+            historyCursors.put(model, cursor);
+            sessionBox.addItem(session);
+            if (selectedSession == null && sessionBox.getSelectedItem() == SERVER_LOG) {
+                sessionBox.setSelectedItem(session);
+            }
+            refreshTelemetryView();
+        });
+        updateConnectionStatus();
+    }
+
+    @Override
+    public void chatReceived(Session session, String text) {
+        appendToChat(session, "Client: " + text, "client");
+        appendToChat("Client " + session + ": " + text, "client");
+    }
+
+    @Override
+    public void event(Session session, String message, boolean error) {
+        appendToChat(session, message, error ? "error" : "system");
+    }
+
+    @Override
+    public void sessionChanged(Session session) {
+        refreshSelectedSession(session);
+    }
+
+    @Override
+    public void frameDecoded(Session session, FrameStats.Timing timing) {
+        displayScreen(session, timing);
+    }
+
+    @Override
+    public void relayChanged(Session source) {
+        SwingUtilities.invokeLater(() -> relayToggle.setSelected(source != null && source == selectedSession));
+    }
+
+    @Override
+    public void telemetryReceived(Session session) {
+        telemetryView.repaint();
+    }
+
+    // Nothing is written before the user says so, any client can offer anything
+    @Override
+    public void offerReceived(Session session, TransferOffer offer) {
+        SwingUtilities.invokeLater(() -> {
+            int answer = JOptionPane.showConfirmDialog(frame,
+                "Client " + session + " wants to send the " + offer.describe() + ".\nAccept it?",
+                "📨 Incoming " + (offer.isFolder() ? "Folder" : "File"), JOptionPane.YES_NO_OPTION);
+            if (answer == JOptionPane.YES_OPTION) {
+                engine.acceptOffer(offer);
+            } else {
+                engine.rejectOffer(offer);
+            }
+        });
+    }
+
+    @Override
+    public void sessionClosed(Session session, String reason) {
+        SwingUtilities.invokeLater(() -> {
+            if (selectedSession == session) {
+                sessionBox.setSelectedItem(SERVER_LOG);
+            }
+            sessionBox.removeItem(session);
+            historyCursors.remove(chatModels.remove(session));
+            refreshTelemetryView();
+        });
+        updateConnectionStatus();
+    }
+
+    @Override
+    public void sessionSuspended(Session session, String reason) {
+        updateConnectionStatus();
+    }
+
+    @Override
+    public void sessionResumed(Session session) {
+        // Its address changed with the new connection
+        SwingUtilities.invokeLater(() -> sessionBox.repaint());
+        refreshSelectedSession(session);
+        updateConnectionStatus();
+    }
+
+    private void updateConnectionStatus() {
+        int clients = engine.getSessions().size();
+        if (clients == 0) {
+            updateStatus("🟢 Online - Port " + port, new Color(50, 205, 50));
+        } else {
+            updateStatus("🟢 Online - " + clients + (clients == 1 ? " client" : " clients"), new Color(50, 205, 50));
+        }
+    }
+
+    private void selectSession() {
+        Object item = sessionBox.getSelectedItem();
+        Session session = item instanceof Session ? (Session) item : null;
+        selectedSession = session;
+        ChatView.Model model = session == null ? serverLog : chatModels.get(session);
+        if (model != null) {
+            chatView.setModel(model);
+        }
+        refreshControls();
+        refreshTelemetryView();
+    }
+
+    private void refreshTelemetryView() {
+        Session session = selectedSession;
+        telemetryView.setSessions(session != null ? Collections.singletonList(session) : engine.getSessions());
+    }
+
+    private void refreshSelectedSession(Session session) {
+        SwingUtilities.invokeLater(() -> {
+            if (session == selectedSession) {
+                refreshControls();
+            }
+        });
+    }
+
+    // Shows the selected session's state in the shared controls
+    private void refreshControls() {
+        Session session = selectedSession;
+        boolean sharing = session != null && session.isScreenSharing();
+        startScreenShareBtn.setText(sharing ? "🛑 Stop Screen Share" : "📺 Start Screen Share");
+        startScreenShareBtn.setBackground(sharing ? new Color(220, 20, 60) : new Color(70, 130, 180));
+
+        updatingControls = true;
+        volumeSlider.setValue(session != null ? session.getVolume() : 50);
+        updatingControls = false;
+
+        String stats = session != null ? session.getStreamStats() : null;
+        FrameBroadcaster broadcaster = engine.getBroadcaster();
+        if (stats != null && session == broadcaster.getSource()) {
+            long dropped = 0;
+            for (Session viewer : broadcaster.getViewers()) {
+                dropped += viewer.getDroppedFrames();
+            }
+            stats += " · 📡 " + broadcaster.getViewers().size() + " viewers, " + dropped + " frames dropped";
+        }
+        streamStatsLabel.setText(stats != null ? stats : "📶 Waiting for stream statistics...");
+        relayToggle.setSelected(session != null && session == broadcaster.getSource());
+        boolean controlling = session != null && session.getRemoteInput() != null;
+        remoteControlBtn.setText(controlling ? "🛑 Disable Remote Control" : "🖱️ Remote Control");
+        remoteControlBtn.setBackground(controlling ? new Color(220, 20, 60) : new Color(210, 105, 30));
+        screenFrame.setTitle("🖥️ Client Screen View" + (session != null ? " - " + session : ""));
+        if (sharing) {
+            showCanvas(session);
+        } else {
+            displayedSession = null;
+            screenFrame.setVisible(false);
+        }
+    }
+
+    private void sendMessage() {
+        String message = messageField.getText().trim();
+        if (!message.isEmpty()) {
+            Session session = selectedSession;
+            engine.sendChat(session, message);
+            if (session != null) {
+                appendToChat(session, "You: " + message, "self");
+            } else {
+                for (Session client : engine.getSessions()) {
+                    appendToChat(client, "You: " + message, "self");
+                }
+                appendToChat("You (to all): " + message, "self");
+            }
+            messageField.setText("");
+        }
+    }
+
+    private void toggleScreenSharing() {
+        Session session = selectedSession;
+        if (session == null) {
+            appendToChat("⚠️ Select a client to view its screen", "error");
+        } else if (!session.isScreenSharing()) {
+            engine.requestScreen(session);
+        } else {
+            engine.stopScreenSharing(session);
+        }
+    }
+
+    private void initiateFileTransfer() {
+        Session session = selectedSession;
+        if (session == null) {
+            appendToChat("❌ Select a client to send a file to", "error");
+            return;
+        }
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setDialogTitle("📁 Select File or Folder to Transfer");
+        fileChooser.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+        if (fileChooser.showOpenDialog(frame) == JFileChooser.APPROVE_OPTION) {
+            engine.sendFile(session, fileChooser.getSelectedFile());
+        }
+    }
+
+    private void toggleRemoteControl() {
+        Session session = selectedSession;
+        if (session != null && session.getRemoteInput() != null) {
+            engine.stopRemoteControl(session);
+        } else if (engine.startRemoteControl(session) != null) {
+            screenView.requestFocusInWindow();
+        }
+    }
+
+    // Mouse and keys on the viewer go to the displayed client while it is remotely controlled
+    private void installRemoteInput() {
+        screenView.setFocusable(true);
+        screenView.setFocusTraversalKeysEnabled(false);
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mouseMoved(MouseEvent e) {
+                InputBatch input = remoteInput();
+                Point point = screenView.toRemote(e.getPoint());
+                if (input != null && point != null) {
+                    input.move(point.x, point.y);
+                }
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e) {
+                mouseMoved(e);
+            }
+
+            @Override
+            public void mousePressed(MouseEvent e) {
+                screenView.requestFocusInWindow();
+                sendButton(e, InputBatch.PRESS);
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e) {
+                sendButton(e, InputBatch.RELEASE);
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                InputBatch input = remoteInput();
+                Point point = screenView.toRemote(e.getPoint());
+                if (input != null && point != null) {
+                    input.mouse(InputBatch.WHEEL, point.x, point.y, e.getWheelRotation());
+                } else {
+                    // Scrolls the viewer as if nobody listened
+                    Container parent = screenView.getParent();
+                    parent.dispatchEvent(SwingUtilities.convertMouseEvent(screenView, e, parent));
+                }
+            }
+
+            private void sendButton(MouseEvent e, byte kind) {
+                InputBatch input = remoteInput();
+                Point point = screenView.toRemote(e.getPoint());
+                if (input != null && point != null && e.getButton() != MouseEvent.NOBUTTON) {
+                    input.mouse(kind, point.x, point.y, InputEvent.getMaskForButton(e.getButton()));
+                }
+            }
+        };
+        screenView.addMouseListener(mouse);
+        screenView.addMouseMotionListener(mouse);
+        screenView.addMouseWheelListener(mouse);
+        screenView.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                InputBatch input = remoteInput();
+                if (input != null) {
+                    input.key(true, e.getKeyCode());
+                    e.consume();
+                }
+            }
+
+            @Override
+            public void keyReleased(KeyEvent e) {
+                InputBatch input = remoteInput();
+                if (input != null) {
+                    input.key(false, e.getKeyCode());
+                    e.consume();
+                }
+            }
+        });
+    }
+
+    private InputBatch remoteInput() {
+        Session session = displayedSession;
+        return session != null ? session.getRemoteInput() : null;
+    }
+
+    private void adjustVolume() {
+        if (!updatingControls) {
+            engine.setVolume(selectedSession, volumeSlider.getValue());
+        }
+    }
+
+    private void clearChat() {
+        chatView.getModel().clear();
+        historyCursors.put(chatView.getModel(), nextHistorySeq());
+        appendToChat(selectedSession, "🗑️ Chat cleared, the history is kept", "system");
+    }
+
+    private long nextHistorySeq() {
+        ChatLog chatLog = engine.getChatLog();
+        return chatLog != null ? chatLog.getNextSeq() : 0;
+    }
+
+    // Loads a page of older messages of the selected client, or of all clients
+    private void showEarlierMessages() {
+        ChatView.Model model = chatView.getModel();
+        Long cursor = historyCursors.get(model);
+        Session session = selectedSession;
+        ChatLog chatLog = engine.getChatLog();
+        if (chatLog == null || cursor == null) {
+            appendToChat(session, "⚠️ Chat history is off", "error");
+            return;
+        }
+        List<ChatLog.Entry> entries = chatLog.before(cursor, HISTORY_PAGE, session != null ? ServerEngine.peerOf(session) : null);
+        if (entries.isEmpty()) {
+            appendToChat(session, "📜 No earlier messages", "system");
+            return;
+        }
+        if (model.isFull()) {
+            appendToChat(session, "📜 The view is full, clear the chat to see earlier messages", "system");
+            return;
+        }
+        historyCursors.put(model, entries.get(0).getSeq());
+        model.prepend(historyLines(entries, session == null));
+        chatView.scrollToTop();
+    }
+
+    private static List<ChatView.Line> historyLines(List<ChatLog.Entry> entries, boolean showPeer) {
+        List<ChatView.Line> lines = new ArrayList<>(entries.size());
+        for (ChatLog.Entry entry : entries) {
+            String who;
+            if (entry.getKind() == ChatLog.SENT) {
+                who = showPeer ? "You → " + entry.getPeer() : "You";
+            } else {
+                who = showPeer ? "Client " + entry.getPeer() : "Client";
+            }
+            lines.add(new ChatView.Line(entry.getTime(), "📜 " + who + ": " + entry.getText(), true));
+        }
+        return lines;
+    }
+
+    // Called on the selector thread after every decoded frame
+    private void displayScreen(Session session, FrameStats.Timing timing) {
+        if (session == displayedSession) {
+            screenView.showFrame(session.getScreen(), timing);
+        } else if (displayedSession == null) {
+            // First frame of the selected session opens the window
+            SwingUtilities.invokeLater(() -> {
+                if (session == selectedSession && session.isScreenSharing()) {
+                    showCanvas(session);
+                }
+            });
+        }
+    }
+
+    private void showCanvas(Session session) {
+        if (session.getScreen().getCanvas() == null) {
+            return;
+        }
+        try {
+            displayedSession = session;
+            screenView.showFrame(session.getScreen());
+            if (!screenFrame.isVisible()) {
+                screenFrame.setVisible(true);
+            }
+        } catch (Exception e) {
+            appendToChat(session, "❌ Error displaying screen: " + e.getMessage(), "error");
+        }
+    }
+
+    // Appends to the server log
+    private void appendToChat(String message, String type) {
+        appendToChat(null, message, type);
+    }
+
+    // Appends to a client's conversation, or to the server log when session is null
+    private void appendToChat(Session session, String message, String type) {
+        ChatView.Model model = session == null ? serverLog : chatModels.get(session);
+        if (model == null) {
+            return;
+        }
+        switch (type) {
+            case "self":
+                model.post("💬 " + message);
+                break;
+            case "client":
+                model.post("👤 " + message);
+                break;
+            case "system":
+                model.post("⚡ " + message);
+                break;
+            case "error":
+                model.post("❌ " + message);
+                break;
+            default:
+                model.post(message);
+        }
+    }
+
+    private void updateStatus(String status, Color color) {
+        SwingUtilities.invokeLater(() -> {
+            statusLabel.setText(status);
+            statusLabel.setForeground(color);
+        });
+    }
+
+    // server [--headless] [port]
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            Server server = new Server();
+            server.startServer(args.length > 0 ? Integer.parseInt(args[0]) : 12345);
+        });
+    }
+}
\ No newline at end of file
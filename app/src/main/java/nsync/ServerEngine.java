@@ -0,0 +1,820 @@
+package nsync;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Everything the server does, without any UI: sessions, chat and its history,
+// screen sharing and relaying, file transfers and folder syncs. What happens is
+// reported to Listeners, the Swing Server and HeadlessServer are both just
+// listeners. Listener methods are called on the selector thread unless noted,
+// so they must not block. Screen frames are decoded on a thread per session, see
+// FrameDecoder, and transfer progress is reported on the transfer's stream threads.
+public class ServerEngine implements SessionServer.Listener {
+    public interface Listener {
+        default void sessionOpened(Session session, List<ChatLog.Entry> history) {
+        }
+
+        default void sessionClosed(Session session, String reason) {
+        }
+
+        // The client lost its connection and may resume the session, see SessionServer
+        default void sessionSuspended(Session session, String reason) {
+        }
+
+        default void sessionResumed(Session session) {
+        }
+
+        default void chatReceived(Session session, String text) {
+        }
+
+        // A status line about session, or about the server when session is null
+        default void event(Session session, String message, boolean error) {
+        }
+
+        // Screen sharing, volume or stream statistics of session changed
+        default void sessionChanged(Session session) {
+        }
+
+        // After every decoded frame of session, on its FrameDecoder thread. A
+        // viewer that shows the frame calls timing.painted() once it is on screen.
+        default void frameDecoded(Session session, FrameStats.Timing timing) {
+        }
+
+        // source is null when the relay stopped
+        default void relayChanged(Session source) {
+        }
+
+        // After every host sample of session, see Session.getTelemetry()
+        default void telemetryReceived(Session session) {
+        }
+
+        // session wants to send a file or sync a folder. Nothing is written
+        // until acceptOffer() is called, rejectOffer() declines it.
+        default void offerReceived(Session session, TransferOffer offer) {
+        }
+    }
+
+    // Replayed to a client when it connects
+    private static final int REPLAY_MESSAGES = 50;
+    private static final long REPLAY_AGE = 24 * 60 * 60 * 1000L;
+    // Remote control input is sent this often, a move every tick is plenty
+    private static final long INPUT_TICK_MILLIS = 8;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final FrameBroadcaster broadcaster = new FrameBroadcaster();
+    // Directory syncs in progress in either direction, by sync id
+    private final Map<Long, DirectorySync> syncs = new ConcurrentHashMap<>();
+    // Offers the user has not decided on yet, with the session that made them
+    private final Map<TransferOffer, Session> pendingOffers = new ConcurrentHashMap<>();
+    private SessionServer sessionServer;
+    // Null when the history directory could not be opened
+    private ChatLog chatLog;
+    private volatile byte[] codecSelection = { FrameCodec.RLE, FrameCodec.DEFAULT_QUALITY };
+    // Flushes the InputBatch of every remotely controlled session, started with the first one
+    private ScheduledExecutorService inputTicker;
+    // Sessions streaming their screen as datagrams, by the token of their UDP_OFFER
+    private final Map<Integer, Session> datagramSessions = new ConcurrentHashMap<>();
+    // Hands on frames whose datagrams stopped arriving, started with the first UDP_OFFER
+    private ScheduledExecutorService datagramTicker;
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public void openChatLog(File directory) throws IOException {
+        chatLog = ChatLog.open(directory, error -> event(null, "⚠️ Chat history: " + error.getMessage(), true));
+    }
+
+    public ChatLog getChatLog() {
+        return chatLog;
+    }
+
+    public void start(int port) throws IOException {
+        sessionServer = new SessionServer(port, this);
+        sessionServer.start();
+        event(null, "✅ Server started successfully on port " + sessionServer.getPort(), false);
+        event(null, "⏳ Waiting for client connections...", false);
+    }
+
+    public void stop() {
+        synchronized (this) {
+            if (inputTicker != null) {
+                inputTicker.shutdown();
+            }
+            if (datagramTicker != null) {
+                datagramTicker.shutdown();
+            }
+        }
+        if (sessionServer != null) {
+            sessionServer.stop();
+        }
+        if (chatLog != null) {
+            chatLog.close();
+        }
+    }
+
+    public int getPort() {
+        return sessionServer.getPort();
+    }
+
+    public List<Session> getSessions() {
+        return sessionServer != null ? sessionServer.getSessions() : Collections.emptyList();
+    }
+
+    public Session getSession(int id) {
+        for (Session session : getSessions()) {
+            if (session.getId() == id) {
+                return session;
+            }
+        }
+        return null;
+    }
+
+    public FrameBroadcaster getBroadcaster() {
+        return broadcaster;
+    }
+
+    // Clients are told apart by host, their port changes with every connection
+    public static String peerOf(Session session) {
+        return session.getRemoteAddress() instanceof InetSocketAddress
+            ? ((InetSocketAddress) session.getRemoteAddress()).getHostString()
+            : String.valueOf(session.getRemoteAddress());
+    }
+
+    // SessionServer callbacks
+
+    @Override
+    public void sessionOpened(Session session) {
+        List<ChatLog.Entry> history = chatLog != null
+            ? chatLog.recent(peerOf(session), REPLAY_MESSAGES, System.currentTimeMillis() - REPLAY_AGE)
+            : Collections.emptyList();
+        for (Listener listener : listeners) {
+            listener.sessionOpened(session, history);
+        }
+        if (!history.isEmpty()) {
+            try {
+                session.send(Protocol.CHAT_HISTORY, ChatLog.toHistory(history));
+            } catch (IOException e) {
+                event(session, "❌ Error replaying chat history: " + e.getMessage(), true);
+            }
+        }
+        event(null, "🎉 Client connected: " + session, false);
+        event(session, "🎉 Client connected: " + session.getRemoteAddress(), false);
+        joinRelay(session);
+    }
+
+    private void joinRelay(Session session) {
+        if (broadcaster.isActive()) {
+            try {
+                broadcaster.addViewer(session);
+            } catch (IOException e) {
+                event(session, "❌ Error joining relay: " + e.getMessage(), true);
+            }
+        }
+    }
+
+    @Override
+    public void messageReceived(Session session, byte type, ByteBuffer payload) throws IOException {
+        switch (type) {
+            case Protocol.CHAT:
+                String text = Connection.readText(payload);
+                logChat(ChatLog.RECEIVED, session, text);
+                for (Listener listener : listeners) {
+                    listener.chatReceived(session, text);
+                }
+                break;
+            case Protocol.SCREEN_SHARE_START:
+                session.setScreenSharing(true);
+                event(session, "📺 Client started screen sharing", false);
+                session.send(Protocol.SCREEN_CODEC, codecSelection);
+                sessionChanged(session);
+                break;
+            case Protocol.SCREEN_SHARE_STOP:
+                stopScreenSharing(session);
+                break;
+            case Protocol.VOLUME:
+                int volume = payload.getInt();
+                session.setVolume(volume);
+                event(session, "🔊 Client set volume to: " + volume + "%", false);
+                sessionChanged(session);
+                break;
+            case Protocol.FRAME_TIMING:
+                session.setPendingTiming(FrameStats.Timing.fromPayload(payload));
+                break;
+            case Protocol.SCREEN_TILES:
+                long received = FrameStats.nowMicros();
+                frameReceived(session, payload, session.takePendingTiming(payload.getInt(payload.position())), received);
+                break;
+            case Protocol.UDP_OFFER:
+                offerDatagrams(session);
+                break;
+            case Protocol.REMOTE_CONTROL:
+                remoteControlAnswered(session, payload.get() != 0);
+                break;
+            case Protocol.SCREEN_STATS:
+                session.setStreamStats("📶 " + RateController.describeStats(payload));
+                sessionChanged(session);
+                break;
+            case Protocol.TELEMETRY:
+                if (session.getTelemetry().add(payload)) {
+                    for (Listener listener : listeners) {
+                        listener.telemetryReceived(session);
+                    }
+                }
+                break;
+            case Protocol.FILE_OFFER:
+                offerReceived(session, FileTransfer.offerOf(payload));
+                break;
+            case Protocol.FILE_CANCEL:
+                long cancelled = payload.getLong();
+                sessionServer.unregisterTransfer(cancelled);
+                withdrawOffer(session, cancelled);
+                event(session, "❌ File transfer cancelled: " + Connection.readText(payload), true);
+                break;
+            case Protocol.SYNC_OFFER:
+                offerReceived(session, DirectorySync.offerOf(payload));
+                break;
+            case Protocol.SYNC_SIGNATURES:
+            case Protocol.SYNC_DELTA:
+            case Protocol.SYNC_ACK:
+            case Protocol.SYNC_DONE:
+                long syncId = payload.getLong(payload.position());
+                DirectorySync sync = syncs.get(syncId);
+                if (sync != null && sync.getPeer() == session) {
+                    sync.messageReceived(type, payload);
+                } else if (type == Protocol.SYNC_DONE && withdrawOffer(session, syncId)) {
+                    event(session, "❌ Client withdrew its folder sync", true);
+                }
+                break;
+            default:
+                event(session, "❓ Ignoring unknown message " + Protocol.typeName(type), true);
+        }
+    }
+
+    @Override
+    public void datagramReceived(SocketAddress from, ByteBuffer datagram) throws IOException {
+        Session session = datagramSessions.get(ScreenDatagrams.tokenOf(datagram));
+        ScreenDatagrams.Receiver receiver = session != null ? session.getDatagrams() : null;
+        if (receiver == null) {
+            return;
+        }
+        if (session.getDatagramPeer() == null) {
+            // The first hello, datagrams from the client get through
+            session.setDatagramPeer(from);
+            session.send(Protocol.UDP_READY);
+            event(session, "📡 Screen frames arrive over UDP from " + from, false);
+        } else if (!from.equals(session.getDatagramPeer())) {
+            return;
+        }
+        receiver.receive(datagram);
+    }
+
+    @Override
+    public void sessionSuspended(Session session, IOException cause) {
+        connectionLost(session);
+        String reason = cause.getMessage();
+        event(null, "⏸️ Client " + session + " lost its connection, waiting for it to reconnect: " + reason, true);
+        event(session, "⏸️ Connection lost, waiting for the client to reconnect: " + reason, true);
+        for (Listener listener : listeners) {
+            listener.sessionSuspended(session, reason);
+        }
+    }
+
+    // Chat and control messages the client missed are sent again by the Session,
+    // a screen being shared restarts with a key frame from the client
+    @Override
+    public void sessionResumed(Session session) {
+        InputBatch input = session.getRemoteInput();
+        if (input != null) {
+            // Recorded while the client was away, stale by now
+            input.drain();
+        }
+        event(null, "🔁 Client " + session + " reconnected", false);
+        event(session, "🔁 Client reconnected, session resumed", false);
+        joinRelay(session);
+        for (Listener listener : listeners) {
+            listener.sessionResumed(session);
+        }
+    }
+
+    // What ends with the connection of session, whether it is resumed later or not
+    private void connectionLost(Session session) {
+        closeDatagrams(session);
+        session.closeFrameDecoder();
+        if (session == broadcaster.getSource()) {
+            stopRelay();
+        } else {
+            broadcaster.removeSession(session);
+        }
+        for (DirectorySync sync : syncs.values()) {
+            if (sync.getPeer() == session) {
+                sync.finish(new IOException("Connection lost"));
+            }
+        }
+        // The client ended those syncs too, file offers wait for a resume
+        pendingOffers.entrySet().removeIf(entry -> entry.getValue() == session && entry.getKey().isFolder());
+    }
+
+    @Override
+    public void sessionClosed(Session session, IOException cause) {
+        connectionLost(session);
+        pendingOffers.values().removeIf(offerer -> offerer == session);
+        String reason = cause != null ? cause.getMessage() : "closed";
+        event(null, "🔌 Client " + session + " disconnected: " + reason, true);
+        event(session, "🔌 Connection lost: " + reason, true);
+        for (Listener listener : listeners) {
+            listener.sessionClosed(session, reason);
+        }
+    }
+
+    // Commands, these may be called from any thread
+
+    // Sends to session, or to every client when it is null
+    public void sendChat(Session session, String text) {
+        if (session != null) {
+            try {
+                session.send(Protocol.CHAT, text);
+                logChat(ChatLog.SENT, session, text);
+            } catch (IOException e) {
+                event(session, "❌ Error sending message: " + e.getMessage(), true);
+            }
+            return;
+        }
+        for (Session client : getSessions()) {
+            try {
+                client.send(Protocol.CHAT, text);
+                logChat(ChatLog.SENT, client, text);
+            } catch (IOException e) {
+                event(null, "❌ Error sending message to " + client + ": " + e.getMessage(), true);
+            }
+        }
+    }
+
+    public void requestScreen(Session session) {
+        try {
+            session.send(Protocol.SCREEN_SHARE_START, codecSelection);
+            session.setScreenSharing(true);
+            event(session, "📺 Requested screen sharing from client", false);
+            sessionChanged(session);
+        } catch (IOException e) {
+            event(session, "❌ Error toggling screen share: " + e.getMessage(), true);
+        }
+    }
+
+    public void stopScreenSharing(Session session) {
+        closeDatagrams(session);
+        try {
+            if (session != null && session.isScreenSharing()) {
+                if (session == broadcaster.getSource()) {
+                    stopRelay();
+                }
+                stopRemoteControl(session);
+                session.setScreenSharing(false);
+                session.closeFrameDecoder();
+                session.send(Protocol.SCREEN_SHARE_STOP);
+                event(session, "🛑 Stopped screen sharing", false);
+                sessionChanged(session);
+            }
+        } catch (IOException e) {
+            event(session, "❌ Error stopping screen share: " + e.getMessage(), true);
+        }
+    }
+
+    // Writes the frame statistics of session as JSON into the stats directory
+    public File dumpFrameStats(Session session) throws IOException {
+        File directory = new File(System.getProperty("nsync.stats",
+            System.getProperty("user.home") + File.separator + ".nsync" + File.separator + "stats"));
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File file = new File(directory, "frames-" + session.getId() + "-"
+            + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".json");
+        Files.write(file.toPath(), session.getFrameStats().snapshot().toJson().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    // Starts controlling the screen session shares. Events recorded into the
+    // returned batch reach the client within INPUT_TICK_MILLIS. Returns null when
+    // session is not sharing its screen.
+    public InputBatch startRemoteControl(Session session) {
+        if (session == null || !session.isScreenSharing()) {
+            event(session, "⚠️ Select a client that is sharing its screen to control it", true);
+            return null;
+        }
+        InputBatch input = session.getRemoteInput();
+        if (input != null) {
+            return input;
+        }
+        try {
+            session.send(Protocol.REMOTE_CONTROL, new byte[] { 1 });
+        } catch (IOException e) {
+            event(session, "❌ Error starting remote control: " + e.getMessage(), true);
+            return null;
+        }
+        input = new InputBatch();
+        session.setRemoteInput(input);
+        synchronized (this) {
+            if (inputTicker == null) {
+                inputTicker = startTicker("nsync-input", this::flushInput, INPUT_TICK_MILLIS);
+            }
+        }
+        event(session, "🖱️ Asked the client for remote control", false);
+        sessionChanged(session);
+        return input;
+    }
+
+    // The client's REMOTE_CONTROL: its user allowed control, or declined or took it back
+    private void remoteControlAnswered(Session session, boolean allowed) {
+        InputBatch input = session.getRemoteInput();
+        if (input == null) {
+            return;
+        }
+        if (allowed) {
+            // What was recorded while waiting is stale
+            input.drain();
+            session.setRemoteControlAllowed(true);
+            event(session, "🖱️ Remote control enabled", false);
+        } else {
+            session.setRemoteInput(null);
+            event(session, "🖱️ Client declined or ended remote control", true);
+        }
+        sessionChanged(session);
+    }
+
+    public void stopRemoteControl(Session session) {
+        if (session == null || session.getRemoteInput() == null) {
+            return;
+        }
+        session.setRemoteInput(null);
+        try {
+            session.send(Protocol.REMOTE_CONTROL, new byte[] { 0 });
+        } catch (IOException e) {
+            // The session is gone, and the control with it
+        }
+        event(session, "🖱️ Remote control disabled", false);
+        sessionChanged(session);
+    }
+
+    private void flushInput() {
+        for (Session session : getSessions()) {
+            InputBatch input = session.getRemoteInput();
+            byte[] events = input != null ? input.drain() : null;
+            // Dropped until the client allowed control
+            if (events != null && session.isRemoteControlAllowed()) {
+                try {
+                    session.send(Protocol.INPUT_EVENTS, events);
+                } catch (IOException e) {
+                    session.setRemoteInput(null);
+                }
+            }
+        }
+    }
+
+    private static ScheduledExecutorService startTicker(String name, Runnable task, long millis) {
+        ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(task, millis, millis, TimeUnit.MILLISECONDS);
+        return ticker;
+    }
+
+    // A frame of session's screen, from the connection or reassembled from datagrams
+    private void frameReceived(Session session, ByteBuffer payload, FrameStats.Timing clientTiming, long received)
+            throws IOException {
+        broadcaster.publish(session, payload);
+        session.getFrameDecoder(this::frameDecoder).offer(payload, clientTiming, received);
+    }
+
+    private FrameDecoder frameDecoder(Session session) {
+        return new FrameDecoder(session.getScreen(), new FrameDecoder.Handler() {
+            @Override
+            public void frameDecoded(int sequence, int frameBytes, FrameStats.Timing clientTiming, long receivedMicros)
+                    throws IOException {
+                session.send(Protocol.FRAME_ACK, sequence);
+                FrameStats.Timing timing = session.getFrameStats().frameDecoded(clientTiming, sequence, frameBytes, receivedMicros);
+                for (Listener listener : listeners) {
+                    listener.frameDecoded(session, timing);
+                }
+            }
+
+            @Override
+            public void framesSkipped(int sequence) throws IOException {
+                session.send(Protocol.FRAME_ACK, sequence);
+            }
+
+            @Override
+            public void keyFrameNeeded(Exception cause) throws IOException {
+                if (cause != null) {
+                    event(session, "❌ Error decoding a screen frame: " + cause.getMessage(), true);
+                }
+                session.send(Protocol.KEY_FRAME_REQUEST);
+            }
+        });
+    }
+
+    // Answers UDP_OFFER with [int port][int token], or with nothing when this
+    // server takes no datagrams. The client then sends hellos with the token.
+    private void offerDatagrams(Session session) throws IOException {
+        int port = sessionServer.getDatagramPort();
+        if (port < 0) {
+            session.send(Protocol.UDP_OFFER);
+            return;
+        }
+        closeDatagrams(session);
+        int token = (int) Protocol.newToken();
+        while (datagramSessions.putIfAbsent(token, session) != null) {
+            token = (int) Protocol.newToken();
+        }
+        session.setDatagrams(new ScreenDatagrams.Receiver(new ScreenDatagrams.Receiver.Handler() {
+            @Override
+            public void frameReceived(ByteBuffer payload, FrameStats.Timing timing, long receivedMicros) throws IOException {
+                ServerEngine.this.frameReceived(session, payload, timing, receivedMicros);
+            }
+
+            @Override
+            public void slicesLost(ByteBuffer refresh) throws IOException {
+                session.send(Protocol.SCREEN_REFRESH, refresh);
+            }
+        }), null);
+        synchronized (this) {
+            if (datagramTicker == null) {
+                datagramTicker = startTicker("nsync-datagrams", this::expireDatagrams,
+                    ScreenDatagrams.Receiver.LOSS_TIMEOUT_MILLIS / 2);
+            }
+        }
+        session.send(Protocol.UDP_OFFER, ByteBuffer.allocate(8).putInt(port).putInt(token).flip());
+    }
+
+    private void closeDatagrams(Session session) {
+        if (session.getDatagrams() != null) {
+            session.setDatagrams(null, null);
+            datagramSessions.values().removeIf(datagramSession -> datagramSession == session);
+        }
+    }
+
+    private void expireDatagrams() {
+        for (Session session : datagramSessions.values()) {
+            ScreenDatagrams.Receiver receiver = session.getDatagrams();
+            try {
+                if (receiver != null) {
+                    receiver.expire();
+                }
+            } catch (IOException | RuntimeException e) {
+                event(session, "❌ Error showing a frame from UDP: " + e.getMessage(), true);
+            }
+        }
+    }
+
+    public byte[] getCodecSelection() {
+        return codecSelection;
+    }
+
+    // SCREEN_SHARE_START and SCREEN_CODEC payload: [byte codec][byte quality].
+    // Applies to clients that start sharing later, and to session when it is sharing.
+    public void setCodec(Session session, byte codec, byte quality) {
+        codecSelection = new byte[] { codec, quality };
+        if (session == null || !session.isScreenSharing()) {
+            return;
+        }
+        try {
+            session.send(Protocol.SCREEN_CODEC, codecSelection);
+            event(session, "🎞️ Screen codec set to " + FrameCodec.name(codec), false);
+        } catch (IOException e) {
+            event(session, "❌ Error changing screen codec: " + e.getMessage(), true);
+        }
+    }
+
+    // Relays the screen of source to every other client
+    public void startRelay(Session source) {
+        if (source == null || !source.isScreenSharing()) {
+            event(null, "⚠️ Select a client that is sharing its screen to relay it", true);
+            relayChanged(null);
+            return;
+        }
+        try {
+            broadcaster.start(source);
+            for (Session viewer : getSessions()) {
+                broadcaster.addViewer(viewer);
+            }
+            event(source, "📡 Relaying screen to " + broadcaster.getViewers().size() + " other clients", false);
+            relayChanged(source);
+        } catch (IOException e) {
+            event(source, "❌ Error starting relay: " + e.getMessage(), true);
+        }
+    }
+
+    public void stopRelay() {
+        Session source = broadcaster.getSource();
+        if (source != null) {
+            broadcaster.stop();
+            event(source, "📡 Relay stopped", false);
+        }
+        relayChanged(null);
+    }
+
+    // Sets the volume of session, or of every client when it is null
+    public void setVolume(Session selected, int volume) {
+        for (Session session : getSessions()) {
+            if (selected != null && session != selected) {
+                continue;
+            }
+            try {
+                session.setVolume(volume);
+                session.send(Protocol.VOLUME, volume);
+            } catch (IOException e) {
+                event(session, "❌ Error sending volume control: " + e.getMessage(), true);
+            }
+        }
+    }
+
+    // Offers a file, or syncs a folder
+    public void sendFile(Session session, File file) {
+        if (file.isDirectory()) {
+            startSync(session, file);
+            return;
+        }
+        try {
+            FileTransfer transfer = FileTransfer.outgoing(file, transferListener(session));
+            sessionServer.registerTransfer(transfer);
+            session.send(Protocol.FILE_OFFER, transfer.toOffer());
+            event(session, "📤 Sending file: " + file.getName() + " (" + RateController.formatBytes(file.length()) + ")", false);
+        } catch (IOException e) {
+            event(session, "❌ Error sending file: " + e.getMessage(), true);
+        }
+    }
+
+    // Accepts the offer into the downloads directory, or syncs the folder there
+    public void acceptOffer(TransferOffer offer) {
+        Session session = pendingOffers.remove(offer);
+        if (session == null) {
+            return;
+        }
+        try {
+            if (offer.isFolder()) {
+                receiveSync(session, offer.getPayload());
+            } else {
+                receiveFile(session, offer.getPayload());
+            }
+        } catch (IOException e) {
+            event(session, "❌ Error accepting " + offer.describe() + ": " + e.getMessage(), true);
+        }
+    }
+
+    public void rejectOffer(TransferOffer offer) {
+        Session session = pendingOffers.remove(offer);
+        if (session == null) {
+            return;
+        }
+        try {
+            if (offer.isFolder()) {
+                session.send(Protocol.SYNC_DONE, DirectorySync.toDone(offer.getId(), "Declined by the receiver"));
+            } else {
+                session.send(Protocol.FILE_CANCEL, FileTransfer.toCancel(offer.getId(), "Declined by the receiver"));
+            }
+            event(session, "🚫 Declined " + offer.describe(), false);
+        } catch (IOException e) {
+            event(session, "❌ Error declining " + offer.describe() + ": " + e.getMessage(), true);
+        }
+    }
+
+    // Waits for the user, the protocol has no authentication
+    private void offerReceived(Session session, TransferOffer offer) {
+        pendingOffers.put(offer, session);
+        event(session, "📨 Client offers " + offer.describe(), false);
+        for (Listener listener : listeners) {
+            listener.offerReceived(session, offer);
+        }
+    }
+
+    private boolean withdrawOffer(Session session, long id) {
+        return pendingOffers.entrySet().removeIf(entry -> entry.getValue() == session && entry.getKey().getId() == id);
+    }
+
+    // Accepts a FILE_OFFER, the client then opens the transfer connection
+    private void receiveFile(Session session, ByteBuffer offer) throws IOException {
+        long id = offer.getLong(offer.position());
+        try {
+            FileTransfer transfer = FileTransfer.fromOffer(offer, FileTransfer.defaultDirectory(), transferListener(session));
+            sessionServer.registerTransfer(transfer);
+            session.send(Protocol.FILE_ACCEPT, ByteBuffer.allocate(8).putLong(0, id));
+            event(session, "📥 Receiving file: " + transfer.getName() + " (" + RateController.formatBytes(transfer.getSize()) + ")", false);
+            if (transfer.getResumedBytes() > 0) {
+                event(session, "▶️ Resuming at " + RateController.formatBytes(transfer.getResumedBytes()), false);
+            }
+        } catch (IOException e) {
+            session.send(Protocol.FILE_CANCEL, FileTransfer.toCancel(id, e.getMessage()));
+            event(session, "❌ Cannot receive file: " + e.getMessage(), true);
+        }
+    }
+
+    // Folders are synced rather than copied, only what changed since the last sync moves
+    private void startSync(Session session, File directory) {
+        try {
+            DirectorySync sync = DirectorySync.outgoing(directory, session, syncListener(session));
+            syncs.put(sync.getId(), sync);
+            event(session, "🔄 Syncing folder: " + directory.getName(), false);
+            sync.start();
+        } catch (IOException e) {
+            event(session, "❌ Error syncing folder: " + e.getMessage(), true);
+        }
+    }
+
+    private void receiveSync(Session session, ByteBuffer offer) throws IOException {
+        long id = offer.getLong(offer.position());
+        try {
+            DirectorySync sync = DirectorySync.fromOffer(offer, FileTransfer.defaultDirectory(), session, syncListener(session));
+            syncs.put(id, sync);
+            event(session, "🔄 Client is syncing folder: " + sync.getName(), false);
+            sync.start();
+        } catch (IOException e) {
+            session.send(Protocol.SYNC_DONE, DirectorySync.toDone(id, e.getMessage()));
+            event(session, "❌ Cannot sync folder: " + e.getMessage(), true);
+        }
+    }
+
+    private DirectorySync.Listener syncListener(Session session) {
+        return new DirectorySync.Listener() {
+            @Override
+            public void progress(DirectorySync sync) {
+                event(session, "🔄 " + sync.describe(), false);
+            }
+
+            @Override
+            public void finished(DirectorySync sync, IOException error) {
+                syncs.remove(sync.getId());
+                if (error != null) {
+                    event(session, "❌ Sync of " + sync.getName() + " failed: " + error.getMessage(), true);
+                } else if (sync.isOutgoing()) {
+                    event(session, "✅ Synced " + sync.describeResult(), false);
+                } else {
+                    event(session, "✅ Synced " + sync.describeResult() + " → " + sync.getDirectory(), false);
+                }
+            }
+        };
+    }
+
+    private FileTransfer.Listener transferListener(Session session) {
+        return new FileTransfer.Listener() {
+            @Override
+            public void progress(FileTransfer transfer) {
+                event(session, (transfer.isOutgoing() ? "📤 " : "📥 ") + transfer.describe(), false);
+            }
+
+            @Override
+            public void finished(FileTransfer transfer, IOException error) {
+                if (error != null) {
+                    event(session, "❌ Transfer of " + transfer.getName() + " failed: " + error.getMessage(), true);
+                } else if (transfer.isOutgoing()) {
+                    event(session, "✅ Sent " + transfer.describeResult(), false);
+                } else {
+                    event(session, "✅ Received " + transfer.describeResult() + " → " + transfer.getFile(), false);
+                }
+            }
+        };
+    }
+
+    private void logChat(byte kind, Session session, String text) {
+        if (chatLog != null) {
+            chatLog.append(kind, peerOf(session), text);
+        }
+    }
+
+    private void event(Session session, String message, boolean error) {
+        for (Listener listener : listeners) {
+            listener.event(session, message, error);
+        }
+    }
+
+    private void sessionChanged(Session session) {
+        for (Listener listener : listeners) {
+            listener.sessionChanged(session);
+        }
+    }
+
+    private void relayChanged(Session source) {
+        for (Listener listener : listeners) {
+            listener.relayChanged(source);
+        }
+    }
+}
@@ -0,0 +1,626 @@
+package nsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+
+// One connected Client on the selector driven SessionServer, together with the
+// state the Server keeps for it. I/O methods run on the selector thread only;
+// send() may be called from any thread and just queues the message.
+//
+// Outgoing messages are queued per channel (see Protocol) and written in channel
+// priority order. Bulk messages are written one fragment at a time, so anything
+// queued on another channel overtakes the rest of a large frame.
+//
+// Replayed messages go through a ResendBuffer. When the connection drops, the
+// SessionServer keeps the session for a while, and a ROLE_RESUME connection with
+// its token takes over: the Session stays the same object, only its channel and
+// the state of the connection are new.
+public class Session implements MessageSender {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HANDSHAKE_SIZE = 7;
+    private static final int CLIENT_HANDSHAKE_SIZE = 8;
+    private static final int MAX_QUEUED_FRAMES = 2;
+
+    private final int id;
+    private final SessionServer server;
+    private SocketChannel channel;
+    private volatile SocketAddress remoteAddress;
+    private SelectionKey key;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FragmentAssembler assembler = new FragmentAssembler();
+    // Framed messages of the control, input and chat channels, by priority
+    private final List<Queue<ByteBuffer>> channelQueues = new ArrayList<>();
+    // Bulk messages as [byte type][payload], framed when written
+    private final Queue<ByteBuffer> bulkQueue = new ConcurrentLinkedQueue<>();
+    // Relayed screen frames, bounded and written after other bulk messages
+    private final ArrayDeque<ByteBuffer> frameQueue = new ArrayDeque<>();
+    private boolean awaitingKeyFrame = true;
+    private long droppedFrames;
+    // The message or fragment being written, and the rest of the bulk message
+    private ByteBuffer[] writing;
+    private final ByteBuffer[] single = new ByteBuffer[1];
+    private final ByteBuffer[] pair = new ByteBuffer[2];
+    private final ByteBuffer fragmentHeader = ByteBuffer.allocateDirect(Protocol.HEADER_SIZE);
+    private ByteBuffer bulk;
+    private byte bulkType;
+    private boolean handshakeDone;
+    private boolean helloQueued;
+    private volatile boolean open = true;
+    // Set when this is a transfer connection rather than a client session
+    private TransferStream stream;
+    // Both null unless the client asked for FEATURE_COMPRESSION
+    private volatile MessageCompressor compressor;
+    private MessageDecompressor decompressor;
+    // Replayed messages until the client acknowledges them, and the resume token
+    private final ResendBuffer resend = new ResendBuffer();
+    // Queues on this session, the way resend passes messages on
+    private final MessageSender link = this::enqueue;
+
+    // Per-session state
+    private final TileDecoder screen = new TileDecoder();
+    // Decodes into screen while the client shares it, else null
+    private FrameDecoder frameDecoder;
+    private volatile boolean screenSharing;
+    private volatile int volume = 50;
+    private volatile String streamStats;
+    private final Telemetry.History telemetry = new Telemetry.History();
+    private final FrameStats frameStats = new FrameStats();
+    // FRAME_TIMING of the frame that follows it, selector thread only
+    private FrameStats.Timing pendingTiming;
+    // Events for the client while the server controls its screen, else null
+    private volatile InputBatch remoteInput;
+    // Set once the client's user allowed the control remoteInput asked for
+    private volatile boolean remoteControlAllowed;
+    // Screen frames over UDP once the client asked with UDP_OFFER, else null
+    private volatile ScreenDatagrams.Receiver datagrams;
+    // Where they come from, the sender of the first hello
+    private volatile SocketAddress datagramPeer;
+
+    Session(int id, SessionServer server, SocketChannel channel) throws IOException {
+        this.id = id;
+        this.server = server;
+        this.channel = channel;
+        this.remoteAddress = channel.getRemoteAddress();
+
+        for (int i = 0; i < Protocol.CHANNEL_BULK; i++) {
+            channelQueues.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    // Replayed messages are kept while the session waits to be resumed, anything
+    // else fails then
+    @Override
+    public void send(byte type, ByteBuffer payload) throws IOException {
+        if (Protocol.isReplayed(type)) {
+            resend.send(link, type, payload);
+        } else {
+            enqueue(type, payload);
+        }
+    }
+
+    private void enqueue(byte type, ByteBuffer payload) throws IOException {
+        if (!open) {
+            throw new IOException("Session #" + id + " is closed");
+        }
+        int messageChannel = Protocol.channelOf(type);
+        Queue<ByteBuffer> queue = messageChannel == Protocol.CHANNEL_BULK ? bulkQueue : channelQueues.get(messageChannel);
+        // Compressed in the order the channel's queue is written, by the
+        // compressor of the connection it is written to
+        synchronized (queue) {
+            MessageCompressor compressor = this.compressor;
+            ByteBuffer compressed = compressor != null ? compressor.compress(type, payload) : null;
+            if (compressed != null) {
+                payload.position(payload.limit());
+                type |= Protocol.COMPRESSED;
+                payload = compressed;
+            }
+            int length = 1 + payload.remaining();
+            if (length > Protocol.MAX_MESSAGE_SIZE) {
+                throw new IOException("Message too large: " + length + " bytes");
+            }
+            if (messageChannel == Protocol.CHANNEL_BULK) {
+                ByteBuffer message = ByteBuffer.allocate(length);
+                message.put(type).put(payload).flip();
+                queue.add(message);
+            } else {
+                ByteBuffer message = ByteBuffer.allocate(4 + length);
+                message.putInt(length).put(type).put(payload).flip();
+                queue.add(message);
+            }
+        }
+        server.requestWrite(this);
+    }
+
+    // Queues a relay message laid out as [byte type][payload], it may be shared
+    // with other sessions and is not modified. When the viewer falls behind, the
+    // stale frames are dropped and nothing is queued until the next key frame.
+    // Returns false while this viewer needs a key frame.
+    boolean offerFrame(ByteBuffer message, boolean keyFrame) {
+        synchronized (frameQueue) {
+            if (keyFrame) {
+                droppedFrames += frameQueue.size();
+                frameQueue.clear();
+                awaitingKeyFrame = false;
+            } else if (awaitingKeyFrame) {
+                return false;
+            } else if (frameQueue.size() >= MAX_QUEUED_FRAMES) {
+                droppedFrames += frameQueue.size() + 1;
+                frameQueue.clear();
+                awaitingKeyFrame = true;
+                return false;
+            }
+            frameQueue.add(message);
+        }
+        server.requestWrite(this);
+        return true;
+    }
+
+    // Forgets queued frames so the next relayed frame must be a key frame
+    void resetFrames() {
+        synchronized (frameQueue) {
+            frameQueue.clear();
+            awaitingKeyFrame = true;
+        }
+    }
+
+    public long getDroppedFrames() {
+        synchronized (frameQueue) {
+            return droppedFrames;
+        }
+    }
+
+    // Reads what is available and hands every complete message to the listener
+    void onReadable(SessionServer.Listener listener) throws IOException {
+        if (channel.read(readBuffer) < 0) {
+            throw new EOFException("Connection closed by peer");
+        }
+        readBuffer.flip();
+        if (!handshakeDone) {
+            if (readBuffer.remaining() < CLIENT_HANDSHAKE_SIZE) {
+                readBuffer.compact();
+                return;
+            }
+            int start = readBuffer.position();
+            int magic = readBuffer.getInt(start);
+            short version = readBuffer.getShort(start + 4);
+            byte role = readBuffer.get(start + 6);
+            byte features = readBuffer.get(start + 7);
+            if (magic != Protocol.MAGIC || version != Protocol.VERSION) {
+                // Still tell the client who we are, so it can report the mismatch
+                channel.write(hello((byte) 0));
+                if (magic != Protocol.MAGIC) {
+                    throw new IOException("Peer is not speaking the Nsync protocol");
+                }
+                throw new IOException("Protocol version mismatch: local " + Protocol.VERSION + ", peer " + version);
+            }
+            if (role == Protocol.ROLE_TRANSFER) {
+                // The client waits for our hello before it sends the preamble
+                if (!helloQueued) {
+                    helloQueued = true;
+                    channelQueues.get(Protocol.CHANNEL_CONTROL).add(hello((byte) 0));
+                    server.requestWrite(this);
+                }
+                if (readBuffer.remaining() < CLIENT_HANDSHAKE_SIZE + TransferStream.PREAMBLE_SIZE) {
+                    readBuffer.compact();
+                    return;
+                }
+                readBuffer.position(start + CLIENT_HANDSHAKE_SIZE);
+                long transferId = readBuffer.getLong();
+                startTransfer(transferId, readBuffer.get());
+                return;
+            }
+            byte accepted = (byte) (features & Protocol.localFeatures());
+            if (role == Protocol.ROLE_RESUME) {
+                if (readBuffer.remaining() < CLIENT_HANDSHAKE_SIZE + Protocol.RESUME_PREAMBLE_SIZE) {
+                    readBuffer.compact();
+                    return;
+                }
+                readBuffer.position(start + CLIENT_HANDSHAKE_SIZE);
+                long token = readBuffer.getLong();
+                ByteBuffer counts = ByteBuffer.allocate(8);
+                counts.putLong(readBuffer.getLong()).flip();
+                Session resumed = server.resumeConnected(this, token);
+                if (resumed == null) {
+                    // Gone or never there: token 0 tells the client to start a new session
+                    // on its next connection, and closing makes every guess cost one
+                    channel.write(new ByteBuffer[] { hello(accepted), sessionToken(0, new byte[8]) });
+                    throw new IOException("No session to resume");
+                }
+                resumed.resume(this, accepted, counts);
+                listener.sessionResumed(resumed);
+                return;
+            } else if (role == Protocol.ROLE_SESSION) {
+                readBuffer.position(start + CLIENT_HANDSHAKE_SIZE);
+            } else {
+                throw new IOException("Unknown connection role: " + role);
+            }
+            if ((accepted & Protocol.FEATURE_COMPRESSION) != 0) {
+                decompressor = new MessageDecompressor();
+                compressor = new MessageCompressor();
+            }
+            resend.setToken(Protocol.newToken());
+            resend.attach(link, false, null);
+            channelQueues.get(Protocol.CHANNEL_CONTROL).add(hello(accepted));
+            channelQueues.get(Protocol.CHANNEL_CONTROL).add(sessionToken());
+            server.requestWrite(this);
+            handshakeDone = true;
+            listener.sessionOpened(this);
+        }
+
+        while (readBuffer.remaining() >= Protocol.HEADER_SIZE) {
+            int start = readBuffer.position();
+            int length = readBuffer.getInt(start);
+            if (length < 1 || length > Protocol.MAX_MESSAGE_SIZE) {
+                throw new IOException("Invalid message length: " + length);
+            }
+            int end = start + 4 + length;
+            if (end > readBuffer.limit()) {
+                break;
+            }
+            byte rawType = readBuffer.get(start + 4);
+            int limit = readBuffer.limit();
+            readBuffer.position(start + Protocol.HEADER_SIZE).limit(end);
+            ByteBuffer payload = assembler.add(rawType, readBuffer);
+            if (payload != null) {
+                byte type = FragmentAssembler.typeOf(rawType);
+                if ((type & Protocol.COMPRESSED) != 0) {
+                    if (decompressor == null) {
+                        throw new IOException("Compressed message on an uncompressed connection");
+                    }
+                    type &= ~Protocol.COMPRESSED;
+                    payload = decompressor.decompress(type, payload);
+                }
+                if (type == Protocol.ACK) {
+                    resend.acked(payload);
+                } else {
+                    resend.received(type);
+                    listener.messageReceived(this, type, payload);
+                }
+            }
+            readBuffer.limit(limit).position(end);
+        }
+        // One ACK for everything this read brought
+        if (resend.ackDue() && open) {
+            enqueue(Protocol.ACK, ByteBuffer.wrap(resend.toAck()));
+        }
+
+        // Make room for a message larger than the buffer
+        if (readBuffer.remaining() >= 4) {
+            int needed = 4 + readBuffer.getInt(readBuffer.position());
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocateDirect(Integer.highestOneBit(needed - 1) << 1);
+                larger.put(readBuffer);
+                readBuffer = larger;
+                return;
+            }
+        }
+        readBuffer.compact();
+    }
+
+    // [int magic][short version][byte accepted features]
+    private static ByteBuffer hello(byte features) {
+        ByteBuffer hello = ByteBuffer.allocate(HANDSHAKE_SIZE);
+        hello.putInt(Protocol.MAGIC).putShort(Protocol.VERSION).put(features).flip();
+        return hello;
+    }
+
+    // SESSION_TOKEN: [long token][int control received][int chat received],
+    // framed and never compressed
+    private ByteBuffer sessionToken() {
+        return sessionToken(resend.getToken(), resend.toAck());
+    }
+
+    private static ByteBuffer sessionToken(long token, byte[] counts) {
+        ByteBuffer message = ByteBuffer.allocate(Protocol.HEADER_SIZE + 8 + counts.length);
+        message.putInt(1 + 8 + counts.length).put(Protocol.SESSION_TOKEN).putLong(token).put(counts).flip();
+        return message;
+    }
+
+    // Takes over the channel of connection, a ROLE_RESUME connection naming this
+    // session, right after its handshake. counts is what the client received.
+    private void resume(Session connection, byte accepted, ByteBuffer counts) throws IOException {
+        channel = connection.channel;
+        remoteAddress = connection.remoteAddress;
+        key = connection.key;
+        key.attach(this);
+        readBuffer = connection.readBuffer;
+        readBuffer.compact();
+        assembler = new FragmentAssembler();
+        writing = null;
+        bulk = null;
+        pendingTiming = null;
+        boolean compression = (accepted & Protocol.FEATURE_COMPRESSION) != 0;
+        closeCompression();
+        decompressor = compression ? new MessageDecompressor() : null;
+        compressor = compression ? new MessageCompressor() : null;
+        // Whatever a sender still compressed for the old connection goes too
+        for (Queue<ByteBuffer> queue : channelQueues) {
+            synchronized (queue) {
+                queue.clear();
+            }
+        }
+        synchronized (bulkQueue) {
+            bulkQueue.clear();
+        }
+        resetFrames();
+        channelQueues.get(Protocol.CHANNEL_CONTROL).add(hello(accepted));
+        channelQueues.get(Protocol.CHANNEL_CONTROL).add(sessionToken());
+        open = true;
+        resend.attach(link, true, counts);
+        server.requestWrite(this);
+    }
+
+    // Becomes one stream of the transfer the preamble names, bytes already read belong
+    // to it. The connection leaves the selector and the stream runs on a thread of its
+    // own, so chunk file I/O and checksums never hold up the other sessions.
+    private void startTransfer(long transferId, int streams) throws IOException {
+        FileTransfer transfer = server.transferConnected(this, transferId, streams);
+        if (transfer == null) {
+            throw new IOException("Unknown file transfer " + transferId);
+        }
+        handshakeDone = true;
+        key.cancel();
+        // The hello may not be out yet when the preamble came right behind it
+        ByteBuffer unsent = writing != null ? writing[0] : channelQueues.get(Protocol.CHANNEL_CONTROL).poll();
+        writing = null;
+        ByteBuffer received = readBuffer;
+        readBuffer = null;
+        SocketChannel streamChannel = channel;
+        TransferStream started = new TransferStream(transfer);
+        stream = started;
+        Threads.start("nsync-transfer", () -> {
+            try {
+                started.serve(streamChannel, unsent, received);
+            } catch (IOException e) {
+                // Reported through the transfer's listener once every stream has ended
+            } finally {
+                server.transferEnded(this);
+            }
+        });
+    }
+
+    // Writes queued messages until the socket would block, returns true once drained.
+    // A partially written message or fragment is always finished before the next one starts.
+    boolean onWritable() throws IOException {
+        while (true) {
+            if (writing == null && !nextWrite()) {
+                return true;
+            }
+            channel.write(writing);
+            if (writing[writing.length - 1].hasRemaining()) {
+                return false;
+            }
+            Arrays.fill(writing, null);
+            writing = null;
+        }
+    }
+
+    // Picks the highest priority message, or the next fragment of the bulk message
+    private boolean nextWrite() {
+        for (Queue<ByteBuffer> queue : channelQueues) {
+            ByteBuffer message = queue.poll();
+            if (message != null) {
+                single[0] = message;
+                writing = single;
+                return true;
+            }
+        }
+
+        if (bulk == null) {
+            bulk = bulkQueue.poll();
+            if (bulk == null) {
+                synchronized (frameQueue) {
+                    bulk = frameQueue.poll();
+                }
+            }
+            if (bulk == null) {
+                return false;
+            }
+            bulkType = bulk.get();
+        }
+        boolean last = bulk.remaining() <= Protocol.CHUNK_SIZE;
+        ByteBuffer fragment = bulk.duplicate();
+        if (!last) {
+            fragment.limit(fragment.position() + Protocol.CHUNK_SIZE);
+        }
+        bulk.position(fragment.limit());
+        fragmentHeader.clear();
+        fragmentHeader.putInt(1 + fragment.remaining()).put(last ? bulkType : (byte) (bulkType | Protocol.MORE_FRAGMENTS)).flip();
+        pair[0] = fragmentHeader;
+        pair[1] = fragment;
+        writing = pair;
+        if (last) {
+            bulk = null;
+        }
+        return true;
+    }
+
+    boolean hasPendingWrites() {
+        if (writing != null || bulk != null || !bulkQueue.isEmpty()) {
+            return true;
+        }
+        for (Queue<ByteBuffer> queue : channelQueues) {
+            if (!queue.isEmpty()) {
+                return true;
+            }
+        }
+        synchronized (frameQueue) {
+            return !frameQueue.isEmpty();
+        }
+    }
+
+    ResendBuffer getResend() {
+        return resend;
+    }
+
+    void closeChannel() {
+        open = false;
+        for (Queue<ByteBuffer> queue : channelQueues) {
+            queue.clear();
+        }
+        bulkQueue.clear();
+        closeCompression();
+        synchronized (frameQueue) {
+            frameQueue.clear();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+        if (stream != null) {
+            stream.wakeup();
+        }
+    }
+
+    public void close() {
+        server.close(this, null);
+    }
+
+    private void closeCompression() {
+        if (compressor != null) {
+            compressor.close();
+        }
+        if (decompressor != null) {
+            decompressor.close();
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    // Null for a client session, the stream runs on its own thread
+    TransferStream getTransferStream() {
+        return stream;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    public TileDecoder getScreen() {
+        return screen;
+    }
+
+    // The decoder of this session's frames, made by create when there is none
+    synchronized FrameDecoder getFrameDecoder(Function<Session, FrameDecoder> create) {
+        if (frameDecoder == null) {
+            frameDecoder = create.apply(this);
+        }
+        return frameDecoder;
+    }
+
+    synchronized void closeFrameDecoder() {
+        if (frameDecoder != null) {
+            frameDecoder.close();
+            frameDecoder = null;
+        }
+    }
+
+    public boolean isScreenSharing() {
+        return screenSharing;
+    }
+
+    public void setScreenSharing(boolean screenSharing) {
+        this.screenSharing = screenSharing;
+    }
+
+    public int getVolume() {
+        return volume;
+    }
+
+    public void setVolume(int volume) {
+        this.volume = volume;
+    }
+
+    public String getStreamStats() {
+        return streamStats;
+    }
+
+    public void setStreamStats(String streamStats) {
+        this.streamStats = streamStats;
+    }
+
+    public Telemetry.History getTelemetry() {
+        return telemetry;
+    }
+
+    public FrameStats getFrameStats() {
+        return frameStats;
+    }
+
+    public InputBatch getRemoteInput() {
+        return remoteInput;
+    }
+
+    // A new batch waits for the client to allow control
+    void setRemoteInput(InputBatch remoteInput) {
+        this.remoteControlAllowed = false;
+        this.remoteInput = remoteInput;
+    }
+
+    public boolean isRemoteControlAllowed() {
+        return remoteControlAllowed;
+    }
+
+    void setRemoteControlAllowed(boolean allowed) {
+        this.remoteControlAllowed = allowed;
+    }
+
+    public ScreenDatagrams.Receiver getDatagrams() {
+        return datagrams;
+    }
+
+    SocketAddress getDatagramPeer() {
+        return datagramPeer;
+    }
+
+    void setDatagrams(ScreenDatagrams.Receiver datagrams, SocketAddress peer) {
+        this.datagrams = datagrams;
+        this.datagramPeer = peer;
+    }
+
+    void setDatagramPeer(SocketAddress peer) {
+        this.datagramPeer = peer;
+    }
+
+    void setPendingTiming(FrameStats.Timing timing) {
+        pendingTiming = timing;
+    }
+
+    // The client's timing of frame sequence, or null when it sent none
+    FrameStats.Timing takePendingTiming(int sequence) {
+        FrameStats.Timing timing = pendingTiming;
+        pendingTiming = null;
+        return timing != null && timing.getSequence() == sequence ? timing : null;
+    }
+
+    @Override
+    public String toString() {
+        return "#" + id + " " + remoteAddress;
+    }
+}
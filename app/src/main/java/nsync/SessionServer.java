@@ -0,0 +1,364 @@
+package nsync;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Non-blocking server that accepts and multiplexes any number of Client
+// sessions on a single selector thread. Listener callbacks run on that thread,
+// so they should hand anything slow or UI related off to another thread.
+//
+// File transfers use their own connections. A transfer is registered here under
+// its id first; each connection that names that id becomes one of its streams,
+// leaves the selector for a thread of its own (see TransferStream) and is never
+// reported to the Listener or listed in getSessions().
+//
+// A client session whose connection drops is suspended rather than closed, until
+// the client resumes it with a new connection or Protocol.resumeMillis() passed.
+//
+// Screen datagrams (see ScreenDatagrams) arrive on a UDP socket bound to the same
+// port number and are read on the selector thread as well.
+public class SessionServer implements Runnable {
+    public interface Listener {
+        void sessionOpened(Session session);
+
+        // payload is only valid for the duration of the call
+        void messageReceived(Session session, byte type, ByteBuffer payload) throws IOException;
+
+        // cause is null when the session was closed locally
+        void sessionClosed(Session session, IOException cause);
+
+        // The connection of session dropped, it is out of getSessions() until it
+        // is resumed or closed
+        default void sessionSuspended(Session session, IOException cause) {
+        }
+
+        // session carries on over a new connection
+        default void sessionResumed(Session session) {
+        }
+
+        // datagram is at least ScreenDatagrams.HEADER_SIZE bytes and only valid for the duration of the call
+        default void datagramReceived(SocketAddress from, ByteBuffer datagram) throws IOException {
+        }
+    }
+
+    private static final int DATAGRAM_RECEIVE_BUFFER = 4 * 1024 * 1024;
+    // How often suspended sessions are checked for expiry
+    private static final long SUSPEND_CHECK_MILLIS = 1000;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Listener listener;
+    // Null when datagrams are off or the port is taken for UDP
+    private final DatagramChannel datagramChannel;
+    private final ByteBuffer datagramBuffer = ByteBuffer.allocateDirect(64 * 1024);
+    private final Queue<Session> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<Session> pendingCloses = new ConcurrentLinkedQueue<>();
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private final Map<Long, FileTransfer> registeredTransfers = new ConcurrentHashMap<>();
+    // Removed by the stream's thread when it ends
+    private final Set<Session> transferSessions = ConcurrentHashMap.newKeySet();
+    // Suspended sessions and when they were suspended, selector thread only
+    private final Map<Session, Long> suspended = new LinkedHashMap<>();
+    // The same sessions by their token, selector thread only
+    private final Map<Long, Session> suspendedByToken = new HashMap<>();
+    private final long resumeMillis = Protocol.resumeMillis();
+    private int nextId = 1;
+    private volatile boolean running;
+    private Thread thread;
+
+    public SessionServer(int port, Listener listener) throws IOException {
+        this.listener = listener;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        datagramChannel = Protocol.datagramsEnabled(true) ? openDatagrams(getPort()) : null;
+    }
+
+    private DatagramChannel openDatagrams(int port) {
+        DatagramChannel channel = null;
+        try {
+            channel = DatagramChannel.open();
+            // Room for a burst of key frame datagrams from several clients
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, DATAGRAM_RECEIVE_BUFFER);
+            channel.bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+            return channel;
+        } catch (IOException e) {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+            return null;
+        }
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this, "nsync-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    // -1 when this server takes no datagrams
+    public int getDatagramPort() {
+        return datagramChannel != null ? datagramChannel.socket().getLocalPort() : -1;
+    }
+
+    public List<Session> getSessions() {
+        return sessions;
+    }
+
+    // Waits for the client to open the transfer connection for it
+    public void registerTransfer(FileTransfer transfer) {
+        registeredTransfers.put(transfer.getId(), transfer);
+    }
+
+    public void unregisterTransfer(long id) {
+        registeredTransfers.remove(id);
+    }
+
+    // Turns a freshly accepted connection into one of the streams of transfer id
+    FileTransfer transferConnected(Session session, long id, int streams) throws IOException {
+        FileTransfer transfer = registeredTransfers.get(id);
+        if (transfer == null || !transfer.streamOpened(streams)) {
+            return null;
+        }
+        if (transfer.allStreamsOpened()) {
+            registeredTransfers.remove(id);
+        }
+        if (sessions.remove(session)) {
+            transferSessions.add(session);
+        }
+        return transfer;
+    }
+
+    // A ROLE_RESUME connection named token: returns the suspended session, which
+    // takes over the connection, or null when there is none to resume
+    Session resumeConnected(Session connection, long token) {
+        Session session = suspendedByToken.remove(token);
+        if (session == null) {
+            return null;
+        }
+        suspended.remove(session);
+        sessions.remove(connection);
+        sessions.add(session);
+        return session;
+    }
+
+    // Called on the stream's thread once it ended, cleanly or not
+    void transferEnded(Session session) {
+        if (transferSessions.remove(session)) {
+            session.closeChannel();
+        }
+    }
+
+    void requestWrite(Session session) {
+        pendingWrites.add(session);
+        selector.wakeup();
+    }
+
+    void close(Session session, IOException cause) {
+        if (Thread.currentThread() == thread) {
+            closeNow(session, cause);
+        } else {
+            pendingCloses.add(session);
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select(suspended.isEmpty() ? 0 : SUSPEND_CHECK_MILLIS);
+                processPending();
+                expireSuspended();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable()) {
+                        try {
+                            accept();
+                        } catch (IOException e) {
+                            // A failed accept only affects that one connection
+                        }
+                    } else if (key.channel() == datagramChannel) {
+                        readDatagrams();
+                    } else {
+                        handle(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            for (Session session : sessions) {
+                closeNow(session, e);
+            }
+        } finally {
+            for (Session session : sessions) {
+                closeNow(session, null);
+            }
+            for (Session session : new ArrayList<>(transferSessions)) {
+                closeNow(session, null);
+            }
+            for (Session session : new ArrayList<>(suspended.keySet())) {
+                closeNow(session, null);
+            }
+            try {
+                selector.close();
+                serverChannel.close();
+                if (datagramChannel != null) {
+                    datagramChannel.close();
+                }
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void processPending() {
+        Session session;
+        while ((session = pendingCloses.poll()) != null) {
+            closeNow(session, null);
+        }
+        while ((session = pendingWrites.poll()) != null) {
+            SelectionKey key = session.getKey();
+            if (key != null && key.isValid() && session.hasPendingWrites()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    private void expireSuspended() {
+        if (suspended.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        List<Session> expired = new ArrayList<>();
+        for (Map.Entry<Session, Long> entry : suspended.entrySet()) {
+            if (now - entry.getValue() > resumeMillis * 1_000_000L) {
+                expired.add(entry.getKey());
+            }
+        }
+        for (Session session : expired) {
+            closeNow(session, new IOException("Did not reconnect within " + resumeMillis / 1000 + " s"));
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.socket().setSendBufferSize(Protocol.SOCKET_SEND_BUFFER);
+        Session session = new Session(nextId++, this, channel);
+        session.register(channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, session));
+        sessions.add(session);
+    }
+
+    private void readDatagrams() {
+        try {
+            SocketAddress from;
+            while ((from = datagramChannel.receive(datagramBuffer.clear())) != null) {
+                datagramBuffer.flip();
+                if (datagramBuffer.remaining() >= ScreenDatagrams.HEADER_SIZE) {
+                    try {
+                        listener.datagramReceived(from, datagramBuffer);
+                    } catch (IOException | RuntimeException e) {
+                        // A malformed datagram is dropped like a lost one
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Datagrams are best effort, the sessions carry on
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Session session = (Session) key.attachment();
+        try {
+            if (key.isReadable()) {
+                session.onReadable(listener);
+            }
+            if (key.isValid() && key.isWritable() && session.onWritable()) {
+                key.interestOps(SelectionKey.OP_READ);
+                // A send may have raced with draining the queue
+                if (session.hasPendingWrites()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException e) {
+            closeNow(session, e);
+        } catch (CancelledKeyException e) {
+            closeNow(session, null);
+        } catch (RuntimeException e) {
+            closeNow(session, new IOException("Malformed message: " + e, e));
+        }
+    }
+
+    private void closeNow(Session session, IOException cause) {
+        if (suspended.remove(session) != null) {
+            suspendedByToken.remove(session.getResend().getToken());
+            session.getResend().close();
+            listener.sessionClosed(session, cause);
+            return;
+        }
+        if (!sessions.remove(session) && !transferSessions.remove(session)) {
+            return;
+        }
+        SelectionKey key = session.getKey();
+        if (key != null) {
+            key.cancel();
+        }
+        session.closeChannel();
+        if (session.getTransferStream() != null) {
+            // Its thread sees the closed channel and ends the stream
+            return;
+        }
+        if (cause != null && running && resumeMillis > 0 && session.getResend().canResume()) {
+            session.getResend().detach();
+            suspended.put(session, System.nanoTime());
+            suspendedByToken.put(session.getResend().getToken(), session);
+            listener.sessionSuspended(session, cause);
+        } else {
+            session.getResend().close();
+            listener.sessionClosed(session, cause);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package nsync;
+
+// Busy time of one pipeline stage, averaged over the items it processed
+public class StageTimer {
+    private static final double EWMA = 0.1;
+
+    private final String name;
+    private double averageNanos;
+    private long count;
+
+    public StageTimer(String name) {
+        this.name = name;
+    }
+
+    public synchronized void record(long nanos) {
+        averageNanos = count == 0 ? nanos : averageNanos + EWMA * (nanos - averageNanos);
+        count++;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getAverageMicros() {
+        return Math.round(averageNanos / 1000);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,152 @@
+package nsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+// The size, modification time and MD5 of every file in a synced directory, kept
+// in FILE_NAME at its root. A file whose size and modification time still match
+// its entry is not hashed again, so an unchanged tree costs one directory walk.
+public class SyncManifest {
+    public static final String FILE_NAME = ".nsync-manifest";
+    public static final int HASH_SIZE = 16;
+
+    private static final int FORMAT = 0x4E534D31; // "NSM1"
+
+    private static final class Entry {
+        final long size;
+        final long lastModified;
+        final byte[] hash;
+
+        Entry(long size, long lastModified, byte[] hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private int hashedFiles;
+    private boolean dirty;
+
+    private SyncManifest(File root) {
+        this.file = new File(root, FILE_NAME);
+    }
+
+    // A missing or unreadable manifest just means every file is hashed again
+    public static SyncManifest load(File root) {
+        SyncManifest manifest = new SyncManifest(root);
+        if (!manifest.file.isFile()) {
+            return manifest;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(manifest.file)))) {
+            if (in.readInt() != FORMAT) {
+                return manifest;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                long size = in.readLong();
+                long lastModified = in.readLong();
+                byte[] hash = new byte[HASH_SIZE];
+                in.readFully(hash);
+                manifest.entries.put(path, new Entry(size, lastModified, hash));
+            }
+        } catch (IOException e) {
+            manifest.entries.clear();
+        }
+        return manifest;
+    }
+
+    // The MD5 of the file at path, from the manifest when the file looks unchanged
+    public byte[] hash(String path, File file) throws IOException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        Entry entry = entries.get(path);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.hash;
+        }
+        byte[] hash = hashFile(file);
+        hashedFiles++;
+        put(path, size, lastModified, hash);
+        return hash;
+    }
+
+    public void put(String path, long size, long lastModified, byte[] hash) {
+        entries.put(path, new Entry(size, lastModified, hash));
+        dirty = true;
+    }
+
+    // Forgets files that are gone
+    public void retain(Collection<String> paths) {
+        dirty |= entries.keySet().retainAll(paths);
+    }
+
+    // Files hash() had to read since the manifest was loaded
+    public int getHashedFiles() {
+        return hashedFiles;
+    }
+
+    public void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        File temp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(FORMAT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue().size);
+                out.writeLong(e.getValue().lastModified);
+                out.write(e.getValue().hash);
+            }
+        }
+        replace(temp, file);
+        dirty = false;
+    }
+
+    public static byte[] hashFile(File file) throws IOException {
+        MessageDigest md5 = md5();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md5.update(buffer, 0, n);
+            }
+        }
+        return md5.digest();
+    }
+
+    public static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    // Moves source over target, atomically where the file system allows it
+    static void replace(File source, File target) throws IOException {
+        try {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
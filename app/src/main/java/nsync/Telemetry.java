@@ -0,0 +1,205 @@
+package nsync;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Host metrics a Client samples from the platform MXBeans and reports to the
+// Server in TELEMETRY messages, so an operator can tell when a shared machine is
+// CPU-bound, short of heap or collecting garbage all the time.
+//
+// A sample is FIELD_COUNT longs, indexed by the constants below. The payload is
+//
+//   [byte flags][byte field count][varint per field]
+//
+// With KEY_SAMPLE in flags the varints are the values, otherwise each is the
+// zigzag-encoded difference to the previous sample of the same connection. Loads
+// move little and the counters grow slowly between samples, so most fields take
+// one byte. Every KEY_INTERVAL-th sample is a key sample. A receiver ignores
+// fields it does not know and leaves the ones it misses unchanged.
+public final class Telemetry {
+    public static final byte KEY_SAMPLE = 1;
+    public static final int KEY_INTERVAL = 30;
+
+    // Fields of a sample
+    public static final int UPTIME = 0;          // ms since the client's JVM started
+    public static final int PROCESS_CPU = 1;     // permille of all cores, -1 when unknown
+    public static final int SYSTEM_CPU = 2;      // permille of all cores, -1 when unknown
+    public static final int HEAP_USED = 3;       // KB
+    public static final int HEAP_MAX = 4;        // KB, the committed size when there is no maximum
+    public static final int GC_COUNT = 5;        // collections so far
+    public static final int GC_MILLIS = 6;       // time spent collecting so far
+    public static final int BYTES_SENT = 7;      // framed bytes on the session connection so far
+    public static final int BYTES_RECEIVED = 8;
+    public static final int FIELD_COUNT = 9;
+
+    // ms between samples, 0 turns telemetry off
+    public static final long DEFAULT_INTERVAL = 1000;
+
+    private Telemetry() {
+    }
+
+    public static long interval() {
+        return Long.getLong("nsync.telemetry.interval", DEFAULT_INTERVAL);
+    }
+
+    // Samples this JVM, with the byte counters of its session connection
+    public static long[] sample(long bytesSent, long bytesReceived) {
+        long[] sample = new long[FIELD_COUNT];
+        sample[UPTIME] = ManagementFactory.getRuntimeMXBean().getUptime();
+        sample[PROCESS_CPU] = -1;
+        sample[SYSTEM_CPU] = -1;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            com.sun.management.OperatingSystemMXBean platform = (com.sun.management.OperatingSystemMXBean) os;
+            sample[PROCESS_CPU] = permille(platform.getProcessCpuLoad());
+            sample[SYSTEM_CPU] = permille(platform.getCpuLoad());
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        sample[HEAP_USED] = heap.getUsed() >> 10;
+        sample[HEAP_MAX] = (heap.getMax() > 0 ? heap.getMax() : heap.getCommitted()) >> 10;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            sample[GC_COUNT] += Math.max(0, gc.getCollectionCount());
+            sample[GC_MILLIS] += Math.max(0, gc.getCollectionTime());
+        }
+        sample[BYTES_SENT] = bytesSent;
+        sample[BYTES_RECEIVED] = bytesReceived;
+        return sample;
+    }
+
+    // Loads are doubles in [0, 1], negative when the platform cannot tell
+    private static long permille(double load) {
+        return load < 0 || Double.isNaN(load) ? -1 : Math.round(load * 1000);
+    }
+
+    // Sender side, one per connection
+    public static final class Encoder {
+        private final long[] previous = new long[FIELD_COUNT];
+        private int count;
+
+        public synchronized byte[] encode(long[] sample) {
+            boolean key = count++ % KEY_INTERVAL == 0;
+            ByteBuffer out = ByteBuffer.allocate(2 + FIELD_COUNT * 10);
+            out.put(key ? KEY_SAMPLE : 0).put((byte) FIELD_COUNT);
+            for (int i = 0; i < FIELD_COUNT; i++) {
+                long value = key ? sample[i] : sample[i] - previous[i];
+                putVarLong(out, (value << 1) ^ (value >> 63));
+                previous[i] = sample[i];
+            }
+            return Arrays.copyOf(out.array(), out.position());
+        }
+
+        // The next sample is a key sample, for a new connection
+        public synchronized void reset() {
+            count = 0;
+        }
+    }
+
+    // Receiver side, one per connection. Delta samples before the first key
+    // sample cannot be decoded and are dropped.
+    public static final class Decoder {
+        private final long[] current = new long[FIELD_COUNT];
+        private boolean synced;
+
+        // Returns the decoded sample, or null when it was dropped
+        public long[] decode(ByteBuffer payload) {
+            boolean key = (payload.get() & KEY_SAMPLE) != 0;
+            int fields = payload.get() & 0xFF;
+            if (!key && !synced) {
+                return null;
+            }
+            synced = true;
+            for (int i = 0; i < fields; i++) {
+                long zigzag = getVarLong(payload);
+                long value = (zigzag >>> 1) ^ -(zigzag & 1);
+                if (i < FIELD_COUNT) {
+                    current[i] = key ? value : current[i] + value;
+                }
+            }
+            return current.clone();
+        }
+    }
+
+    // The last samples of one client, for the Server's graphs
+    public static final class History {
+        public static final int CAPACITY = 120;
+
+        private final Decoder decoder = new Decoder();
+        private final long[][] samples = new long[CAPACITY][];
+        private int count;
+
+        // Returns false when the sample could not be decoded yet
+        public synchronized boolean add(ByteBuffer payload) {
+            long[] sample = decoder.decode(payload);
+            if (sample == null) {
+                return false;
+            }
+            samples[count++ % CAPACITY] = sample;
+            return true;
+        }
+
+        // Oldest first
+        public synchronized List<long[]> getSamples() {
+            int size = Math.min(count, CAPACITY);
+            List<long[]> list = new ArrayList<>(size);
+            for (int i = count - size; i < count; i++) {
+                list.add(samples[i % CAPACITY]);
+            }
+            return list;
+        }
+
+        // null before the first sample
+        public synchronized String describe() {
+            if (count == 0) {
+                return null;
+            }
+            long[] previous = count > 1 ? samples[(count - 2) % CAPACITY] : null;
+            return Telemetry.describe(previous, samples[(count - 1) % CAPACITY]);
+        }
+    }
+
+    // Unsigned LEB128, 7 bits per byte with the high bit set on all but the last
+    static void putVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in telemetry");
+    }
+
+    // Human readable form of the latest sample, with rates over the previous one
+    public static String describe(long[] previous, long[] sample) {
+        StringBuilder description = new StringBuilder("📈 CPU ")
+            .append(percent(sample[PROCESS_CPU])).append(" (host ").append(percent(sample[SYSTEM_CPU])).append(")")
+            .append(" · heap ").append(sample[HEAP_USED] >> 10).append("/").append(sample[HEAP_MAX] >> 10).append(" MB");
+        if (previous != null && sample[UPTIME] > previous[UPTIME]) {
+            double seconds = (sample[UPTIME] - previous[UPTIME]) / 1000.0;
+            description.append(String.format(" · GC %.0f ms/s", (sample[GC_MILLIS] - previous[GC_MILLIS]) / seconds))
+                .append(" · ↑ ").append(RateController.formatBytes((long) ((sample[BYTES_SENT] - previous[BYTES_SENT]) / seconds)))
+                .append("/s ↓ ").append(RateController.formatBytes((long) ((sample[BYTES_RECEIVED] - previous[BYTES_RECEIVED]) / seconds)))
+                .append("/s");
+        }
+        return description.toString();
+    }
+
+    private static String percent(long permille) {
+        return permille < 0 ? "?" : String.format("%.0f%%", permille / 10.0);
+    }
+}
@@ -0,0 +1,160 @@
+package nsync;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+// Live graphs of the host telemetry of some clients, one row per client with
+// the CPU load of the client process and of its whole machine, heap, GC time and
+// network throughput over the last Telemetry.History.CAPACITY samples. A client
+// whose machine is CPU-bound shows the host line pinned near the top while its
+// own process stays low.
+//
+// setSessions() is EDT only, repaint() may be called from any thread after a new
+// sample arrived.
+public class TelemetryView extends JComponent {
+    private static final int ROW_HEIGHT = 96;
+    private static final int HEADER_HEIGHT = 18;
+    private static final int GAP = 6;
+    private static final Color PROCESS_COLOR = new Color(65, 105, 225);
+    private static final Color HOST_COLOR = new Color(220, 20, 60);
+    private static final Color GRID_COLOR = new Color(225, 225, 232);
+
+    private List<Session> sessions = new ArrayList<>();
+
+    public TelemetryView() {
+        setOpaque(true);
+        setBackground(new Color(250, 250, 255));
+        setFont(new Font("Arial", Font.PLAIN, 11));
+    }
+
+    public void setSessions(List<Session> sessions) {
+        this.sessions = new ArrayList<>(sessions);
+        revalidate();
+        repaint();
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(460, Math.max(1, sessions.size()) * ROW_HEIGHT);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setColor(getBackground());
+        g2.fillRect(0, 0, getWidth(), getHeight());
+        g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        if (sessions.isEmpty()) {
+            g2.setColor(Color.GRAY);
+            g2.drawString("📈 No clients connected", GAP, HEADER_HEIGHT);
+        }
+        Rectangle clip = g.getClipBounds();
+        for (int i = 0; i < sessions.size(); i++) {
+            int top = i * ROW_HEIGHT;
+            if (clip == null || clip.intersects(0, top, getWidth(), ROW_HEIGHT)) {
+                paintRow(g2, sessions.get(i), top);
+            }
+        }
+        g2.dispose();
+    }
+
+    private void paintRow(Graphics2D g, Session session, int top) {
+        List<long[]> samples = session.getTelemetry().getSamples();
+        String description = session.getTelemetry().describe();
+        g.setColor(Color.DARK_GRAY);
+        g.drawString(session + "  " + (description != null ? description : "📈 Waiting for telemetry..."),
+            GAP, top + HEADER_HEIGHT - 5);
+
+        int chartTop = top + HEADER_HEIGHT;
+        int chartHeight = ROW_HEIGHT - HEADER_HEIGHT - GAP;
+        int chartWidth = (getWidth() - 5 * GAP) / 4;
+        int x = GAP;
+        paintChart(g, "CPU %", samples, x, chartTop, chartWidth, chartHeight, 1000,
+            sample -> sample[Telemetry.PROCESS_CPU], sample -> sample[Telemetry.SYSTEM_CPU]);
+        x += chartWidth + GAP;
+        long heapMax = samples.isEmpty() ? 1 : samples.get(samples.size() - 1)[Telemetry.HEAP_MAX];
+        paintChart(g, "Heap", samples, x, chartTop, chartWidth, chartHeight, heapMax,
+            sample -> sample[Telemetry.HEAP_USED], null);
+        x += chartWidth + GAP;
+        List<long[]> gcRates = rates(samples, Telemetry.GC_MILLIS);
+        paintChart(g, "GC ms/s", gcRates, x, chartTop, chartWidth, chartHeight, Math.max(100, max(gcRates)),
+            sample -> sample[0], null);
+        x += chartWidth + GAP;
+        List<long[]> sent = rates(samples, Telemetry.BYTES_SENT);
+        List<long[]> received = rates(samples, Telemetry.BYTES_RECEIVED);
+        List<long[]> network = new ArrayList<>();
+        for (int i = 0; i < sent.size(); i++) {
+            network.add(new long[] { sent.get(i)[0], received.get(i)[0] });
+        }
+        paintChart(g, "Net B/s", network, x, chartTop, chartWidth, chartHeight, Math.max(1024, max(network)),
+            sample -> sample[0], sample -> sample[1]);
+    }
+
+    private interface Series {
+        long valueOf(long[] sample);
+    }
+
+    // Draws primary, and secondary when it is not null, scaled to 0..max
+    private void paintChart(Graphics2D g, String title, List<long[]> samples, int x, int y, int width, int height,
+            long max, Series primary, Series secondary) {
+        g.setColor(Color.WHITE);
+        g.fillRect(x, y, width, height);
+        g.setColor(GRID_COLOR);
+        for (int i = 1; i < 4; i++) {
+            g.drawLine(x, y + height * i / 4, x + width, y + height * i / 4);
+        }
+        g.drawRect(x, y, width, height);
+        if (secondary != null) {
+            paintLine(g, samples, x, y, width, height, max, secondary, HOST_COLOR);
+        }
+        paintLine(g, samples, x, y, width, height, max, primary, PROCESS_COLOR);
+        g.setColor(Color.GRAY);
+        g.drawString(title, x + 3, y + 12);
+    }
+
+    private void paintLine(Graphics2D g, List<long[]> samples, int x, int y, int width, int height, long max,
+            Series series, Color color) {
+        if (samples.size() < 2 || max <= 0) {
+            return;
+        }
+        int[] xs = new int[samples.size()];
+        int[] ys = new int[samples.size()];
+        int points = 0;
+        for (int i = 0; i < samples.size(); i++) {
+            long value = series.valueOf(samples.get(i));
+            if (value < 0) {
+                continue;
+            }
+            // Newest on the right edge, one step per sample
+            xs[points] = x + width - (samples.size() - 1 - i) * width / (Telemetry.History.CAPACITY - 1);
+            ys[points] = y + height - (int) (Math.min(value, max) * height / max);
+            points++;
+        }
+        g.setColor(color);
+        g.drawPolyline(xs, ys, points);
+    }
+
+    // Per-second rates of a counter field between consecutive samples, as one-field samples
+    private static List<long[]> rates(List<long[]> samples, int field) {
+        List<long[]> rates = new ArrayList<>(samples.size());
+        for (int i = 1; i < samples.size(); i++) {
+            long[] previous = samples.get(i - 1);
+            long[] sample = samples.get(i);
+            long millis = sample[Telemetry.UPTIME] - previous[Telemetry.UPTIME];
+            rates.add(new long[] { millis > 0 ? (sample[field] - previous[field]) * 1000 / millis : 0 });
+        }
+        return rates;
+    }
+
+    private static long max(List<long[]> samples) {
+        long max = 0;
+        for (long[] sample : samples) {
+            for (long value : sample) {
+                max = Math.max(max, value);
+            }
+        }
+        return max;
+    }
+}
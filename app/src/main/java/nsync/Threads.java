@@ -0,0 +1,107 @@
+package nsync;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Threads for work that mostly waits on a socket or a disk: connection writers,
+// listeners, transfer streams. On Java 21 and later these are virtual threads, one
+// per task, so a busy client never runs out of pool threads and nothing needs a
+// hand-tuned pool size. On older runtimes they are daemon platform threads.
+//
+// The build targets Java 17, so the virtual thread API is looked up at runtime.
+// -Dnsync.virtualThreads=false uses platform threads on Java 21 too.
+//
+// Code running on these threads waits with java.util.concurrent locks rather than
+// synchronized around blocking I/O, which would pin a virtual thread to its carrier.
+public final class Threads {
+    // Thread.ofVirtual().name(prefix, 0).factory(), or null
+    private static final MethodHandle VIRTUAL_FACTORY = lookupVirtualFactory();
+    // Executors.newThreadPerTaskExecutor(factory), or null
+    private static final MethodHandle PER_TASK_EXECUTOR = lookupPerTaskExecutor();
+
+    private Threads() {
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL_FACTORY != null && PER_TASK_EXECUTOR != null;
+    }
+
+    // Threads named name-0, name-1, ...
+    public static ThreadFactory factory(String name) {
+        if (VIRTUAL_FACTORY != null) {
+            try {
+                return (ThreadFactory) VIRTUAL_FACTORY.invoke(name + "-", 0L);
+            } catch (Throwable e) {
+                // Platform threads then
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    // Starts task on a thread of its own
+    public static Thread start(String name, Runnable task) {
+        Thread thread = factory(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    // A new thread for every task
+    public static ExecutorService newPerTaskExecutor(String name) {
+        ThreadFactory factory = factory(name);
+        if (PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) PER_TASK_EXECUTOR.invoke(factory);
+            } catch (Throwable e) {
+                // A cached pool then
+            }
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    public static String describe() {
+        return isVirtual() ? "virtual threads" : "platform threads";
+    }
+
+    private static MethodHandle lookupVirtualFactory() {
+        if (!Boolean.parseBoolean(System.getProperty("nsync.virtualThreads", "true"))) {
+            return null;
+        }
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Class<?> ofVirtual = Class.forName("java.lang.Thread$Builder$OfVirtual");
+            MethodHandle create = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtual));
+            MethodHandle name = lookup.findVirtual(ofVirtual, "name",
+                MethodType.methodType(ofVirtual, String.class, long.class));
+            MethodHandle factory = lookup.findVirtual(builder, "factory", MethodType.methodType(ThreadFactory.class));
+            // (String, long) -> ThreadFactory
+            MethodHandle named = MethodHandles.foldArguments(name, create);
+            return MethodHandles.filterReturnValue(named, factory.asType(MethodType.methodType(ThreadFactory.class, ofVirtual)));
+        } catch (ReflectiveOperationException e) {
+            // Before Java 21
+            return null;
+        }
+    }
+
+    private static MethodHandle lookupPerTaskExecutor() {
+        if (VIRTUAL_FACTORY == null) {
+            return null;
+        }
+        try {
+            return MethodHandles.publicLookup().findStatic(Executors.class, "newThreadPerTaskExecutor",
+                MethodType.methodType(ExecutorService.class, ThreadFactory.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package nsync;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Composites SCREEN_TILES payloads (see TileEncoder) onto a persistent canvas.
+// The canvas is replaced only when the frame size changes. Readers on other
+// threads synchronize on the decoder while they touch the canvas.
+public class TileDecoder {
+    private BufferedImage canvas;
+    private int[] pixels;
+    private final FrameCodec[] decoders = new FrameCodec[4];
+    // Union of the tiles written since the last takeDamage()
+    private final Rectangle damage = new Rectangle();
+
+    // Returns the frame's sequence number for the FRAME_ACK
+    public synchronized int decode(ByteBuffer payload) throws IOException {
+        int sequence = payload.getInt();
+        int width = payload.getInt();
+        int height = payload.getInt();
+        FrameCodec codec = decoderFor(payload.get());
+        int tileCount = payload.getInt();
+        // Checked before anything is allocated, the sizes come from the peer
+        if (width < 1 || height < 1 || width > TileEncoder.MAX_FRAME_SIDE || height > TileEncoder.MAX_FRAME_SIDE
+                || (long) width * height > TileEncoder.MAX_FRAME_PIXELS) {
+            throw new IOException("Screen frame too large: " + width + "x" + height);
+        }
+        if (tileCount < 0 || tileCount > payload.remaining() / TileEncoder.TILE_HEADER_SIZE) {
+            throw new IOException("Malformed screen frame: " + tileCount + " tiles");
+        }
+        if (canvas == null || canvas.getWidth() != width || canvas.getHeight() != height) {
+            canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            pixels = ((DataBufferInt) canvas.getRaster().getDataBuffer()).getData();
+            damage.setBounds(0, 0, width, height);
+        }
+
+        for (int t = 0; t < tileCount; t++) {
+            int x = payload.getShort() & 0xFFFF;
+            int y = payload.getShort() & 0xFFFF;
+            int w = payload.getShort() & 0xFFFF;
+            int h = payload.getShort() & 0xFFFF;
+            int length = payload.getInt();
+            int end = payload.position() + length;
+            int limit = payload.limit();
+            if (x + w > width || y + h > height || length < 0 || end > limit) {
+                throw new IOException("Malformed screen tile");
+            }
+            payload.limit(end);
+            codec.decode(payload, pixels, y * width + x, width, w, h);
+            payload.limit(limit).position(end);
+            addDamage(x, y, w, h);
+        }
+        return sequence;
+    }
+
+    // Null until the first frame arrives
+    public synchronized BufferedImage getCanvas() {
+        return canvas;
+    }
+
+    // Returns the area changed since the last call (empty if none) and forgets it
+    public synchronized Rectangle takeDamage() {
+        Rectangle taken = new Rectangle(damage);
+        damage.setBounds(0, 0, 0, 0);
+        return taken;
+    }
+
+    private void addDamage(int x, int y, int w, int h) {
+        if (damage.isEmpty()) {
+            damage.setBounds(x, y, w, h);
+        } else {
+            damage.add(x, y);
+            damage.add(x + w, y + h);
+        }
+    }
+
+    private FrameCodec decoderFor(byte id) throws IOException {
+        if (id < 0 || id >= decoders.length) {
+            throw new IOException("Unsupported screen codec: " + id);
+        }
+        if (decoders[id] == null) {
+            decoders[id] = FrameCodec.create(id, FrameCodec.DEFAULT_QUALITY);
+        }
+        return decoders[id];
+    }
+}
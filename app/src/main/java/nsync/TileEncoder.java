@@ -0,0 +1,204 @@
+package nsync;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Splits frames into fixed size tiles and emits only the tiles that changed
+// since the previous frame, as a SCREEN_TILES payload:
+//
+//   [int sequence][int width][int height][byte codec][int tileCount]
+//   tileCount x [short x][short y][short w][short h][int length][length bytes of codec data]
+//
+// Frames must be TYPE_INT_RGB images without a raster offset, and no larger than
+// MAX_FRAME_SIDE on a side and MAX_FRAME_PIXELS in all.
+public class TileEncoder {
+    public static final int TILE_SIZE = 64;
+    public static final int FRAME_HEADER_SIZE = 17;
+    public static final int TILE_HEADER_SIZE = 12;
+    public static final int MAX_FRAME_SIDE = 16384;
+    // An 8K screen
+    public static final int MAX_FRAME_PIXELS = 1 << 25;
+
+    private int width;
+    private int height;
+    private int[] previous;
+    private ByteBuffer ownBuffer;
+    private ByteBuffer buffer;
+    // Set from any thread by reset(), taken by the next encode()
+    private final AtomicBoolean keyFrameRequested = new AtomicBoolean(true);
+    private int sequence = -1;
+    private FrameCodec codec = new RleCodec();
+    private final AtomicReference<FrameCodec> pendingCodec = new AtomicReference<>();
+    // Regions the viewer lost, their tiles are sent with the next frame even if unchanged
+    private final Queue<Rectangle> refreshRegions = new ConcurrentLinkedQueue<>();
+
+    // May be called from any thread, makes the next frame carry every tile, e.g.
+    // when a new viewer attaches
+    public void reset() {
+        keyFrameRequested.set(true);
+    }
+
+    // May be called from any thread, the tiles overlapping region go out again
+    // with the next encode(), e.g. after they were lost on the way
+    public void refresh(Rectangle region) {
+        refreshRegions.add(region);
+    }
+
+    // May be called from any thread and takes effect on the next encode(),
+    // which becomes a key frame unless only the quality changed. The codec
+    // replaced is disposed, so a codec is only ever set once.
+    public void setCodec(FrameCodec codec) {
+        FrameCodec unused = pendingCodec.getAndSet(codec);
+        if (unused != null) {
+            unused.dispose();
+        }
+    }
+
+    public FrameCodec getCodec() {
+        FrameCodec pending = pendingCodec.get();
+        return pending != null ? pending : codec;
+    }
+
+    // Returns the encoded payload, or null when nothing changed since the last frame.
+    // The payload is overwritten by the next call.
+    public ByteBuffer encode(BufferedImage image) throws IOException {
+        ByteBuffer encoded = encode(image, ownBuffer);
+        if (encoded != null) {
+            ownBuffer = encoded;
+        }
+        return encoded;
+    }
+
+    // Encodes into out, or into a larger buffer when out is null or too small, and
+    // returns the buffer holding the payload. Returns null when nothing changed.
+    public ByteBuffer encode(BufferedImage image, ByteBuffer out) throws IOException {
+        boolean keyFrame = keyFrameRequested.getAndSet(false);
+        FrameCodec pending = pendingCodec.getAndSet(null);
+        if (pending != null) {
+            keyFrame |= pending.getId() != codec.getId();
+            if (pending != codec) {
+                codec.dispose();
+            }
+            codec = pending;
+        }
+
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        int w = image.getWidth();
+        int h = image.getHeight();
+        if (previous == null || w != width || h != height) {
+            width = w;
+            height = h;
+            previous = new int[w * h];
+            keyFrame = true;
+        }
+        List<Rectangle> refresh = null;
+        for (Rectangle region; (region = refreshRegions.poll()) != null; ) {
+            if (refresh == null) {
+                refresh = new ArrayList<>();
+            }
+            refresh.add(region);
+        }
+        int tiles = ((w + TILE_SIZE - 1) / TILE_SIZE) * ((h + TILE_SIZE - 1) / TILE_SIZE);
+        int expected = FRAME_HEADER_SIZE + tiles * TILE_HEADER_SIZE + w * h * 3;
+        buffer = out != null && out.capacity() >= expected ? out : ByteBuffer.allocateDirect(expected);
+
+        buffer.clear();
+        buffer.putInt(sequence + 1).putInt(w).putInt(h).put(codec.getId()).putInt(0);
+        int dirty = 0;
+        for (int y = 0; y < h; y += TILE_SIZE) {
+            int th = Math.min(TILE_SIZE, h - y);
+            for (int x = 0; x < w; x += TILE_SIZE) {
+                int tw = Math.min(TILE_SIZE, w - x);
+                if (keyFrame || refreshed(refresh, x, y, tw, th) || tileChanged(pixels, x, y, tw, th)) {
+                    writeTile(pixels, x, y, tw, th);
+                    dirty++;
+                }
+            }
+        }
+
+        ByteBuffer encoded = buffer;
+        buffer = null;
+        if (dirty == 0) {
+            return null;
+        }
+        sequence++;
+        encoded.putInt(13, dirty);
+        encoded.flip();
+        return encoded;
+    }
+
+    // A frame carrying every tile can be shown without any earlier frame.
+    // Reads the header without moving the payload's position.
+    public static byte codecOf(ByteBuffer payload) {
+        return payload.get(payload.position() + 12);
+    }
+
+    public static boolean isKeyFrame(ByteBuffer payload) {
+        int start = payload.position();
+        int w = payload.getInt(start + 4);
+        int h = payload.getInt(start + 8);
+        int tileCount = payload.getInt(start + 13);
+        return tileCount == ((w + TILE_SIZE - 1) / TILE_SIZE) * ((h + TILE_SIZE - 1) / TILE_SIZE);
+    }
+
+    // Sequence number of the last frame returned by encode()
+    public int getSequence() {
+        return sequence;
+    }
+
+    private static boolean refreshed(List<Rectangle> refresh, int x, int y, int tw, int th) {
+        if (refresh == null) {
+            return false;
+        }
+        for (Rectangle region : refresh) {
+            if (region.intersects(x, y, tw, th)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean tileChanged(int[] pixels, int x, int y, int tw, int th) {
+        for (int row = 0; row < th; row++) {
+            int start = (y + row) * width + x;
+            if (Arrays.mismatch(pixels, start, start + tw, previous, start, start + tw) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeTile(int[] pixels, int x, int y, int tw, int th) throws IOException {
+        ensureRemaining(TILE_HEADER_SIZE + codec.maxEncodedSize(tw, th));
+        buffer.putShort((short) x).putShort((short) y).putShort((short) tw).putShort((short) th);
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        int offset = y * width + x;
+        codec.encode(pixels, offset, width, tw, th, buffer);
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+
+        for (int row = 0; row < th; row++) {
+            int start = offset + row * width;
+            System.arraycopy(pixels, start, previous, start, tw);
+        }
+    }
+
+    private void ensureRemaining(int bytes) {
+        if (buffer.remaining() < bytes) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + bytes));
+            buffer.flip();
+            larger.put(buffer);
+            buffer = larger;
+        }
+    }
+}
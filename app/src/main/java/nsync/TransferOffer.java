@@ -0,0 +1,65 @@
+package nsync;
+
+import java.nio.ByteBuffer;
+
+// A FILE_OFFER or SYNC_OFFER from the peer, waiting for the user to accept it.
+// Nothing is written to disk before that: the engines keep the offer and only
+// answer it with FILE_ACCEPT or by starting the sync once acceptOffer() is called,
+// rejectOffer() declines it. The protocol has no authentication, so every peer
+// must be asked first.
+public class TransferOffer {
+    private final long id;
+    private final boolean folder;
+    private final String name;
+    private final long size;
+    private final int fileCount;
+    // A copy of the offer's payload
+    private final ByteBuffer payload;
+
+    TransferOffer(long id, boolean folder, String name, long size, int fileCount, ByteBuffer payload) {
+        this.id = id;
+        this.folder = folder;
+        this.name = name;
+        this.size = size;
+        this.fileCount = fileCount;
+        this.payload = payload;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public boolean isFolder() {
+        return folder;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Bytes of the file, or of every file in the folder
+    public long getSize() {
+        return size;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    // The offer's payload from its start, a new duplicate every call
+    ByteBuffer getPayload() {
+        return payload.duplicate();
+    }
+
+    public String describe() {
+        return folder
+            ? "folder " + name + " (" + fileCount + " files, " + RateController.formatBytes(size) + ")"
+            : "file " + name + " (" + RateController.formatBytes(size) + ")";
+    }
+
+    static ByteBuffer copyOf(ByteBuffer payload) {
+        ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+        copy.put(payload.duplicate()).flip();
+        return copy;
+    }
+}
@@ -0,0 +1,302 @@
+package nsync;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32C;
+
+// One transfer connection of a FileTransfer. After the handshake the client sends
+// the preamble [long transfer id][byte stream count]; from then on the receiver
+// writes chunk requests [int chunk] (-1 when it needs nothing more on this stream)
+// and the sender answers each with [int chunk][int length][int crc32c][data].
+//
+// Written as a non-blocking state machine on a selector of its own. Each stream
+// runs on a thread of its own on both sides: the server's selector thread hands a
+// transfer connection over once its preamble is read (see Session), so chunk
+// writes, checksums and state file updates never hold up the sessions.
+public class TransferStream {
+    public static final int PREAMBLE_SIZE = 9;
+
+    private static final int CHUNK_HEADER_SIZE = 12;
+    private static final int REQUEST_SIZE = 4;
+    private static final int NO_MORE_CHUNKS = -1;
+    // Requests outstanding per stream, so the sender never waits a round trip
+    private static final int PIPELINE_DEPTH = 2;
+
+    private final FileTransfer transfer;
+    private final ByteBuffer in = ByteBuffer.allocateDirect(64 * 1024);
+    private final ByteBuffer out = ByteBuffer.allocateDirect(CHUNK_HEADER_SIZE);
+    private boolean closed;
+    // The stream's own selector while it runs
+    private volatile Selector selector;
+
+    // Sender: requested chunks and the one being written
+    private final ArrayDeque<Integer> requests = new ArrayDeque<>();
+    private boolean receiverDone;
+    private long sendOffset;
+    private long sendRemaining;
+
+    // Receiver: requested chunks in order, the head is being received
+    private final ArrayDeque<Integer> outstanding = new ArrayDeque<>();
+    private boolean requestedAll;
+    private boolean headerRead;
+    private int expectedCrc;
+    private long receiveOffset;
+    private int receiveRemaining;
+    private int receivedBytes;
+    private final CRC32C crc = new CRC32C();
+
+    public TransferStream(FileTransfer transfer) {
+        this.transfer = transfer;
+        out.flip();
+    }
+
+    public FileTransfer getTransfer() {
+        return transfer;
+    }
+
+    // Client side: connects, sends the preamble and runs the stream to the end
+    public void run(SocketAddress server, int streams) throws IOException {
+        if (!transfer.streamOpened(streams)) {
+            throw new IOException("Transfer " + transfer.getId() + " is not accepting streams");
+        }
+        IOException error = null;
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.connect(server);
+            channel.socket().setTcpNoDelay(true);
+            Connection.handshake(channel, Protocol.ROLE_TRANSFER, (byte) 0);
+            ByteBuffer preamble = ByteBuffer.allocate(PREAMBLE_SIZE);
+            preamble.putLong(transfer.getId()).put((byte) streams).flip();
+            Connection.writeFully(channel, preamble);
+
+            channel.configureBlocking(false);
+            loop(channel, null);
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            closed(error);
+        }
+    }
+
+    // Server side: runs the stream of a non-blocking channel the selector thread
+    // handed over. unsent is what the session still had to write before it, received
+    // what the peer sent together with the preamble. The caller closes the channel.
+    void serve(SocketChannel channel, ByteBuffer unsent, ByteBuffer received) throws IOException {
+        IOException error = null;
+        try {
+            in.put(received);
+            process();
+            loop(channel, unsent);
+        } catch (IOException e) {
+            error = e;
+            throw e;
+        } finally {
+            closed(error);
+        }
+    }
+
+    // Wakes the stream's selector, so a channel closed elsewhere ends it
+    void wakeup() {
+        Selector current = selector;
+        if (current != null) {
+            current.wakeup();
+        }
+    }
+
+    private void loop(SocketChannel channel, ByteBuffer unsent) throws IOException {
+        try (Selector selector = Selector.open()) {
+            this.selector = selector;
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            while (!closed) {
+                boolean flushing = unsent != null && unsent.hasRemaining();
+                key.interestOps(SelectionKey.OP_READ | (flushing || wantsWrite() ? SelectionKey.OP_WRITE : 0));
+                selector.select();
+                if (!channel.isOpen()) {
+                    throw new AsynchronousCloseException();
+                }
+                if (key.isReadable()) {
+                    onReadable(channel);
+                }
+                if (!closed && key.isWritable()) {
+                    if (flushing) {
+                        channel.write(unsent);
+                    } else {
+                        onWritable(channel);
+                    }
+                }
+            }
+        } catch (CancelledKeyException e) {
+            throw new AsynchronousCloseException();
+        } finally {
+            this.selector = null;
+        }
+    }
+
+    void onReadable(SocketChannel channel) throws IOException {
+        if (channel.read(in) < 0) {
+            if (transfer.isOutgoing() && receiverDone) {
+                closed = true;
+                return;
+            }
+            throw new EOFException("Transfer connection closed by peer");
+        }
+        process();
+    }
+
+    private void process() throws IOException {
+        in.flip();
+        if (transfer.isOutgoing()) {
+            while (in.remaining() >= REQUEST_SIZE) {
+                int chunk = in.getInt();
+                if (chunk == NO_MORE_CHUNKS) {
+                    receiverDone = true;
+                } else if (transfer.isValidChunk(chunk) && !receiverDone) {
+                    requests.add(chunk);
+                } else {
+                    throw new IOException("Invalid chunk request: " + chunk);
+                }
+            }
+        } else {
+            receiveChunks();
+        }
+        in.compact();
+        if (transfer.isOutgoing() && receiverDone && requests.isEmpty() && sendRemaining == 0 && !out.hasRemaining()) {
+            closed = true;
+        }
+    }
+
+    private void receiveChunks() throws IOException {
+        while (in.hasRemaining()) {
+            if (!headerRead) {
+                if (in.remaining() < CHUNK_HEADER_SIZE) {
+                    return;
+                }
+                int chunk = in.getInt();
+                int length = in.getInt();
+                expectedCrc = in.getInt();
+                Integer requested = outstanding.peek();
+                if (requested == null || chunk != requested || length != transfer.chunkLength(chunk)) {
+                    throw new IOException("Unexpected chunk " + chunk + " of " + length + " bytes");
+                }
+                headerRead = true;
+                receiveOffset = transfer.chunkOffset(chunk);
+                receiveRemaining = length;
+                receivedBytes = 0;
+                crc.reset();
+            }
+
+            int count = Math.min(in.remaining(), receiveRemaining);
+            ByteBuffer data = in.duplicate();
+            data.limit(data.position() + count);
+            crc.update(data.duplicate());
+            transfer.write(data, receiveOffset + receivedBytes);
+            in.position(in.position() + count);
+            receivedBytes += count;
+            receiveRemaining -= count;
+
+            if (receiveRemaining == 0) {
+                headerRead = false;
+                int chunk = outstanding.poll();
+                if ((int) crc.getValue() == expectedCrc) {
+                    transfer.chunkReceived(chunk);
+                } else {
+                    transfer.chunkFailed(chunk, receivedBytes);
+                }
+            }
+        }
+    }
+
+    boolean wantsWrite() {
+        if (closed) {
+            return false;
+        }
+        if (transfer.isOutgoing()) {
+            return out.hasRemaining() || sendRemaining > 0 || !requests.isEmpty();
+        }
+        // Once everything is requested, only our own chunks can come back to request again
+        return out.hasRemaining() || (!requestedAll && outstanding.size() < PIPELINE_DEPTH
+            && (outstanding.isEmpty() || transfer.hasUnrequestedChunks()));
+    }
+
+    // Writes until the socket would block or nothing is left, returns true when idle
+    boolean onWritable(SocketChannel channel) throws IOException {
+        while (!closed) {
+            if (out.hasRemaining()) {
+                channel.write(out);
+                if (out.hasRemaining()) {
+                    return false;
+                }
+            }
+            if (transfer.isOutgoing()) {
+                if (sendRemaining > 0) {
+                    long moved = transfer.transferTo(sendOffset, sendRemaining, channel);
+                    sendOffset += moved;
+                    sendRemaining -= moved;
+                    if (sendRemaining > 0) {
+                        return false;
+                    }
+                }
+                Integer chunk = requests.poll();
+                if (chunk == null) {
+                    if (receiverDone) {
+                        closed = true;
+                    }
+                    return true;
+                }
+                sendOffset = transfer.chunkOffset(chunk);
+                sendRemaining = transfer.chunkLength(chunk);
+                out.clear();
+                out.putInt(chunk).putInt((int) sendRemaining).putInt(transfer.checksum(chunk)).flip();
+            } else {
+                if (requestedAll) {
+                    if (outstanding.isEmpty()) {
+                        closed = true;
+                    }
+                    return true;
+                }
+                if (outstanding.size() >= PIPELINE_DEPTH) {
+                    return true;
+                }
+                int chunk = transfer.nextChunk();
+                if (chunk == NO_MORE_CHUNKS) {
+                    // Wait for our own chunks, one may fail its checksum and be requested again
+                    if (!outstanding.isEmpty()) {
+                        return true;
+                    }
+                    requestedAll = true;
+                }
+                out.clear();
+                out.putInt(chunk).flip();
+                if (chunk != NO_MORE_CHUNKS) {
+                    outstanding.add(chunk);
+                }
+            }
+        }
+        return true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Called once when the connection is gone, chunks still owed go back to the transfer
+    void closed(IOException error) {
+        if (!transfer.isOutgoing()) {
+            boolean head = true;
+            for (int chunk : outstanding) {
+                transfer.chunkFailed(chunk, head && headerRead ? receivedBytes : 0);
+                head = false;
+            }
+            outstanding.clear();
+        }
+        transfer.streamClosed(error);
+    }
+}
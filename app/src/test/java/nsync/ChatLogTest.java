@@ -0,0 +1,162 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChatLogTest {
+    // Records of "peer" with "message NNN" are all this long
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 8 + 1 + 2 + 4 + 4 + "peer".length() + "message 000".length();
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void pagesBackwardsThroughHistory() throws IOException {
+        File directory = temp.toFile();
+        try (ChatLog log = ChatLog.open(directory)) {
+            for (int i = 0; i < 100; i++) {
+                log.append(i % 2 == 0 ? ChatLog.SENT : ChatLog.RECEIVED, i % 10 == 0 ? "other" : "peer",
+                    String.format("message %03d", i));
+            }
+        }
+
+        try (ChatLog log = ChatLog.open(directory)) {
+            assertEquals(101, log.getNextSeq());
+            List<String> texts = new ArrayList<>();
+            long before = Long.MAX_VALUE;
+            while (true) {
+                List<ChatLog.Entry> page = log.before(before, 7, null);
+                if (page.isEmpty()) {
+                    break;
+                }
+                for (int i = page.size() - 1; i >= 0; i--) {
+                    texts.add(0, page.get(i).getText());
+                }
+                before = page.get(0).getSeq();
+            }
+            assertEquals(100, texts.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(String.format("message %03d", i), texts.get(i));
+            }
+
+            List<ChatLog.Entry> other = log.before(Long.MAX_VALUE, 3, "other");
+            assertEquals(List.of("message 070", "message 080", "message 090"), textsOf(other));
+            assertEquals("other", other.get(0).getPeer());
+            assertEquals(ChatLog.SENT, other.get(0).getKind());
+
+            List<ChatLog.Entry> page = log.before(51, 2, "peer");
+            assertEquals(List.of("message 048", "message 049"), textsOf(page));
+            assertEquals(ChatLog.RECEIVED, page.get(1).getKind());
+        }
+    }
+
+    @Test
+    void recentStopsAtTheGivenTime() throws Exception {
+        File directory = temp.toFile();
+        try (ChatLog log = ChatLog.open(directory)) {
+            log.append(ChatLog.SENT, "peer", "old");
+            log.close();
+        }
+        Thread.sleep(20);
+        long since = System.currentTimeMillis();
+        try (ChatLog log = ChatLog.open(directory)) {
+            log.append(ChatLog.SENT, "peer", "new");
+            log.append(ChatLog.RECEIVED, "peer", "newer");
+            log.close();
+        }
+        try (ChatLog log = ChatLog.open(directory)) {
+            assertEquals(List.of("new", "newer"), textsOf(log.recent("peer", 10, since)));
+            assertEquals(List.of("newer"), textsOf(log.recent("peer", 1, 0)));
+            assertEquals(List.of("old", "new", "newer"), textsOf(log.recent(null, 10, 0)));
+        }
+    }
+
+    @Test
+    void tornLastRecordIsDroppedAndOverwritten() throws IOException {
+        File directory = temp.toFile();
+        try (ChatLog log = ChatLog.open(directory)) {
+            for (int i = 0; i < 10; i++) {
+                log.append(ChatLog.SENT, "peer", String.format("message %03d", i));
+            }
+        }
+        // A crash halfway through writing the last record
+        File segment = new File(directory, String.format("%020d", 1) + ".log");
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap("torn".getBytes()), 9L * RECORD_SIZE + RECORD_SIZE - 10);
+        }
+
+        try (ChatLog log = ChatLog.open(directory)) {
+            assertEquals(10, log.getNextSeq());
+            assertEquals("message 008", last(log).getText());
+            log.append(ChatLog.SENT, "peer", "message 009");
+        }
+        try (ChatLog log = ChatLog.open(directory)) {
+            assertEquals(11, log.getNextSeq());
+            assertEquals("message 009", last(log).getText());
+            assertEquals(10, last(log).getSeq());
+        }
+    }
+
+    @Test
+    void directoryIsOpenedOnlyOnce() throws IOException {
+        try (ChatLog log = ChatLog.open(temp.toFile())) {
+            assertThrows(IOException.class, () -> ChatLog.open(temp.toFile()));
+        }
+        ChatLog.open(temp.toFile()).close();
+    }
+
+    @Test
+    void historyPayloadRoundTrips() throws IOException {
+        List<ChatLog.Entry> entries = List.of(new ChatLog.Entry(1, 1000, ChatLog.SENT, "peer", "hi"),
+            new ChatLog.Entry(2, 2000, ChatLog.RECEIVED, "peer", "héllo"));
+        List<ChatLog.Entry> decoded = ChatLog.fromHistory(ByteBuffer.wrap(ChatLog.toHistory(entries)));
+        assertEquals(List.of("hi", "héllo"), textsOf(decoded));
+        assertEquals(2000, decoded.get(1).getTime());
+        assertEquals(ChatLog.RECEIVED, decoded.get(1).getKind());
+        assertTrue(ChatLog.fromHistory(ByteBuffer.wrap(new byte[2])).isEmpty());
+    }
+
+    @Test
+    void malformedHistoryIsAnError() {
+        assertThrows(IOException.class, () -> ChatLog.fromHistory(ByteBuffer.wrap(new byte[] { 0 })));
+        assertThrows(IOException.class, () -> ChatLog.fromHistory(ByteBuffer.wrap(new byte[] { 0, 1, 2 })));
+        // More entries than the bytes could hold
+        assertThrows(IOException.class, () -> ChatLog.fromHistory(ByteBuffer.allocate(100).putShort((short) -1).rewind()));
+        // Text lengths the peer made up
+        assertThrows(IOException.class, () -> ChatLog.fromHistory(entry(-1)));
+        assertThrows(IOException.class, () -> ChatLog.fromHistory(entry(Integer.MAX_VALUE)));
+    }
+
+    // One entry claiming length bytes of text, followed by 4
+    private static ByteBuffer entry(int length) {
+        ByteBuffer history = ByteBuffer.allocate(2 + 13 + 4);
+        history.putShort((short) 1).putLong(1000).put(ChatLog.SENT).putInt(length).putInt(0).flip();
+        return history;
+    }
+
+    private static ChatLog.Entry last(ChatLog log) {
+        List<ChatLog.Entry> entries = log.before(Long.MAX_VALUE, 1, null);
+        assertEquals(1, entries.size());
+        return entries.get(0);
+    }
+
+    private static List<String> textsOf(List<ChatLog.Entry> entries) {
+        List<String> texts = new ArrayList<>();
+        for (ChatLog.Entry entry : entries) {
+            texts.add(entry.getText());
+        }
+        return texts;
+    }
+}
@@ -0,0 +1,106 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DirectorySyncTest {
+    @TempDir
+    Path temp;
+
+    @Test
+    void deltaRebuildsChangedFilesFromTheReceiversBlocks() throws Exception {
+        File source = temp.resolve("project").toFile();
+        File target = temp.resolve("received").toFile();
+        byte[] data = new byte[300_000];
+        new Random(3).nextBytes(data);
+        write(new File(source, "data.bin"), data);
+        write(new File(source, "docs/readme.txt"), "read me".getBytes());
+
+        // The receiver's copy: 1000 bytes short near the start and a few bytes off further in
+        byte[] old = new byte[data.length - 1000];
+        System.arraycopy(data, 0, old, 0, 5000);
+        System.arraycopy(data, 6000, old, 5000, data.length - 6000);
+        Arrays.fill(old, 200_000, 200_010, (byte) 0);
+        write(new File(target, "project/data.bin"), old);
+
+        long deltaBytes = sync(source, target);
+        assertArrayEquals(data, Files.readAllBytes(new File(target, "project/data.bin").toPath()));
+        assertArrayEquals("read me".getBytes(), Files.readAllBytes(new File(target, "project/docs/readme.txt").toPath()));
+        // The inserted bytes and the changed block, not the whole file
+        assertTrue(deltaBytes < data.length / 10, deltaBytes + " bytes of deltas");
+
+        // Nothing changed since, so nothing is sent again
+        assertEquals(0, sync(source, target));
+    }
+
+    @Test
+    void missingFilesAreSentWhole() throws Exception {
+        File source = temp.resolve("photos").toFile();
+        File target = temp.resolve("received").toFile();
+        byte[] data = new byte[50_000];
+        new Random(5).nextBytes(data);
+        write(new File(source, "a/b/c.jpg"), data);
+
+        assertTrue(sync(source, target) >= data.length);
+        assertArrayEquals(data, Files.readAllBytes(new File(target, "photos/a/b/c.jpg").toPath()));
+    }
+
+    // Runs a sync from source into target over an in-memory link, returns the SYNC_DELTA bytes
+    private static long sync(File source, File target) throws Exception {
+        CountDownLatch done = new CountDownLatch(2);
+        AtomicReference<IOException> failure = new AtomicReference<>();
+        DirectorySync.Listener listener = new DirectorySync.Listener() {
+            @Override
+            public void progress(DirectorySync sync) {
+            }
+
+            @Override
+            public void finished(DirectorySync sync, IOException error) {
+                if (error != null) {
+                    failure.compareAndSet(null, error);
+                }
+                done.countDown();
+            }
+        };
+        AtomicReference<DirectorySync> sender = new AtomicReference<>();
+        AtomicReference<DirectorySync> receiver = new AtomicReference<>();
+        AtomicLong deltaBytes = new AtomicLong();
+        MessageSender toSender = (type, payload) -> sender.get().messageReceived(type, payload);
+        MessageSender toReceiver = (type, payload) -> {
+            if (type == Protocol.SYNC_OFFER) {
+                receiver.set(DirectorySync.fromOffer(payload, target, toSender, listener));
+                receiver.get().start();
+            } else {
+                if (type == Protocol.SYNC_DELTA) {
+                    deltaBytes.addAndGet(payload.remaining());
+                }
+                receiver.get().messageReceived(type, payload);
+            }
+        };
+        sender.set(DirectorySync.outgoing(source, toReceiver, listener));
+        sender.get().start();
+        assertTrue(done.await(30, TimeUnit.SECONDS), "sync did not finish");
+        assertNull(failure.get());
+        return deltaBytes.get();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), data);
+    }
+}
@@ -0,0 +1,87 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FileTransferTest {
+    private static final long SIZE = 2L * FileTransfer.CHUNK_SIZE + 10;
+    private static final long MODIFIED = 1_700_000_000_000L;
+
+    @TempDir
+    Path temp;
+
+    @Test
+    void interruptedDownloadResumesFromTheStateFile() throws Exception {
+        CompletableFuture<IOException> finished = new CompletableFuture<>();
+        FileTransfer first = incoming(1, MODIFIED, finished);
+        assertEquals(0, first.getResumedBytes());
+        assertEquals(10, first.chunkLength(2));
+        assertTrue(first.streamOpened(1));
+        // Only the middle chunk arrives and is verified
+        assertEquals(0, first.nextChunk());
+        assertEquals(1, first.nextChunk());
+        first.write(ByteBuffer.allocate(FileTransfer.CHUNK_SIZE), first.chunkOffset(1));
+        first.chunkReceived(1);
+        first.finish(null);
+        assertNotNull(finished.get(10, TimeUnit.SECONDS));
+        assertTrue(new File(temp.toFile(), "big.bin.part").isFile());
+        assertTrue(new File(temp.toFile(), "big.bin.part.nsync").isFile());
+
+        FileTransfer resumed = incoming(2, MODIFIED, new CompletableFuture<>());
+        assertEquals(FileTransfer.CHUNK_SIZE, resumed.getResumedBytes());
+        assertEquals(FileTransfer.CHUNK_SIZE, resumed.getPosition());
+        assertEquals(0, resumed.nextChunk());
+        assertEquals(2, resumed.nextChunk());
+        assertEquals(-1, resumed.nextChunk());
+        resumed.finish(null);
+    }
+
+    @Test
+    void changedFileStartsOver() throws Exception {
+        FileTransfer first = incoming(1, MODIFIED, new CompletableFuture<>());
+        first.streamOpened(1);
+        first.chunkReceived(0);
+        first.finish(null);
+
+        FileTransfer changed = incoming(2, MODIFIED + 1, new CompletableFuture<>());
+        assertEquals(0, changed.getResumedBytes());
+        assertEquals(0, changed.nextChunk());
+        changed.finish(null);
+    }
+
+    @Test
+    void sameNameInUseGetsItsOwnPartialFile() throws Exception {
+        FileTransfer first = incoming(1, MODIFIED, new CompletableFuture<>());
+        FileTransfer second = incoming(2, MODIFIED, new CompletableFuture<>());
+        assertTrue(new File(temp.toFile(), "(1) big.bin.part").isFile());
+        first.finish(null);
+        second.finish(null);
+    }
+
+    private FileTransfer incoming(long id, long lastModified, CompletableFuture<IOException> finished) throws IOException {
+        return FileTransfer.incoming(id, "big.bin", SIZE, lastModified, temp.toFile(), listener(finished));
+    }
+
+    static FileTransfer.Listener listener(CompletableFuture<IOException> finished) {
+        return new FileTransfer.Listener() {
+            @Override
+            public void progress(FileTransfer transfer) {
+            }
+
+            @Override
+            public void finished(FileTransfer transfer, IOException error) {
+                finished.complete(error);
+            }
+        };
+    }
+}
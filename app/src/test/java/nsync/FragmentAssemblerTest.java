@@ -0,0 +1,72 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+class FragmentAssemblerTest {
+    private static final byte MORE = Protocol.MORE_FRAGMENTS;
+
+    @Test
+    void completeMessagesPassThrough() throws IOException {
+        FragmentAssembler assembler = new FragmentAssembler();
+        ByteBuffer payload = text("hello");
+        assertSame(payload, assembler.add(Protocol.CHAT, payload));
+    }
+
+    @Test
+    void fragmentsAreJoinedAroundInterleavedMessages() throws IOException {
+        FragmentAssembler assembler = new FragmentAssembler();
+        assertNull(assembler.add((byte) (Protocol.SCREEN_TILES | MORE), text("first ")));
+        // A chat message overtakes the rest of the frame
+        assertEquals("chat", string(assembler.add(Protocol.CHAT, text("chat"))));
+        assertNull(assembler.add((byte) (Protocol.SCREEN_TILES | MORE), text("second ")));
+        ByteBuffer frame = assembler.add(Protocol.SCREEN_TILES, text("third"));
+        assertEquals("first second third", string(frame));
+        assertEquals(Protocol.SCREEN_TILES, FragmentAssembler.typeOf((byte) (Protocol.SCREEN_TILES | MORE)));
+
+        // The buffer is reused for the next message
+        assertNull(assembler.add((byte) (Protocol.SYNC_DELTA | MORE), text("again ")));
+        assertEquals("again done", string(assembler.add(Protocol.SYNC_DELTA, text("done"))));
+    }
+
+    @Test
+    void growsPastTheInitialBuffer() throws IOException {
+        FragmentAssembler assembler = new FragmentAssembler();
+        byte[] chunk = new byte[Protocol.CHUNK_SIZE];
+        int chunks = 40;
+        for (int i = 0; i < chunks - 1; i++) {
+            chunk[0] = (byte) i;
+            assertNull(assembler.add((byte) (Protocol.SCREEN_TILES | MORE), ByteBuffer.wrap(chunk)));
+        }
+        chunk[0] = (byte) (chunks - 1);
+        ByteBuffer frame = assembler.add(Protocol.SCREEN_TILES, ByteBuffer.wrap(chunk));
+        assertEquals(chunks * Protocol.CHUNK_SIZE, frame.remaining());
+        for (int i = 0; i < chunks; i++) {
+            assertEquals((byte) i, frame.get(i * Protocol.CHUNK_SIZE));
+        }
+    }
+
+    @Test
+    void fragmentOfAnotherBulkMessageIsAnError() throws IOException {
+        FragmentAssembler assembler = new FragmentAssembler();
+        assembler.add((byte) (Protocol.SCREEN_TILES | MORE), text("frame"));
+        assertThrows(IOException.class, () -> assembler.add((byte) (Protocol.SYNC_DELTA | MORE), text("delta")));
+    }
+
+    private static ByteBuffer text(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String string(ByteBuffer payload) {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
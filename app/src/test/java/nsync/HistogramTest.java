@@ -0,0 +1,60 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class HistogramTest {
+    @Test
+    void smallValuesHaveABucketEach() {
+        for (int value = 0; value < 32; value++) {
+            assertEquals(value, Histogram.indexOf(value));
+            assertEquals(value, Histogram.lowerBound(value));
+            assertEquals(value, Histogram.upperBound(value));
+        }
+    }
+
+    @Test
+    void everyValueFallsWithinItsBucketsBounds() {
+        int previous = -1;
+        for (long value = 0; value < 1L << 41; value = value < 100_000 ? value + 1 : value + value / 1000) {
+            int index = Histogram.indexOf(value);
+            assertTrue(index >= previous, "indexes grow with the value");
+            previous = index;
+            assertTrue(Histogram.lowerBound(index) <= value, value + " below bucket " + index);
+            assertTrue(Histogram.upperBound(index) >= value, value + " above bucket " + index);
+        }
+    }
+
+    @Test
+    void bucketsAreContiguousAndWithinASixteenth() {
+        int last = Histogram.indexOf(Long.MAX_VALUE);
+        for (int index = 0; index < last; index++) {
+            assertEquals(Histogram.upperBound(index) + 1, Histogram.lowerBound(index + 1));
+            assertEquals(index, Histogram.indexOf(Histogram.lowerBound(index)));
+            assertEquals(index, Histogram.indexOf(Histogram.upperBound(index)));
+            long width = Histogram.upperBound(index) - Histogram.lowerBound(index) + 1;
+            assertTrue(width * 16 <= Math.max(16, Histogram.lowerBound(index)), "bucket " + index + " too wide");
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.upperBound(last));
+    }
+
+    @Test
+    void percentilesOfASnapshot() {
+        Histogram histogram = new Histogram();
+        Histogram.Snapshot empty = histogram.snapshot();
+        for (int value = 1; value <= 1000; value++) {
+            histogram.record(value);
+        }
+        histogram.record(-5);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1001, snapshot.getCount());
+        assertEquals(1000, snapshot.getMax());
+        long median = snapshot.getPercentile(50);
+        assertTrue(Math.abs(median - 500) <= 500 / 16, "median " + median);
+        long p99 = snapshot.getPercentile(99);
+        assertTrue(Math.abs(p99 - 990) <= 990 / 16, "p99 " + p99);
+        assertEquals(1001, snapshot.since(empty).getCount());
+    }
+}
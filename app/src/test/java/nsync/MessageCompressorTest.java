@@ -0,0 +1,97 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class MessageCompressorTest {
+    private final MessageCompressor compressor = new MessageCompressor();
+    private final MessageDecompressor decompressor = new MessageDecompressor();
+
+    @Test
+    void roundTripsOnEveryChannel() throws IOException {
+        byte[] types = { Protocol.CHAT, Protocol.FILE_OFFER, Protocol.INPUT_EVENTS, Protocol.SYNC_DELTA };
+        for (int i = 0; i < 20; i++) {
+            for (byte type : types) {
+                String text = "message " + i + " of type " + type + ", mostly the same as the one before";
+                assertEquals(text, roundTrip(type, text.getBytes(StandardCharsets.UTF_8)));
+            }
+        }
+        assertTrue(compressor.getCompressedBytes() < compressor.getRawBytes() / 2);
+    }
+
+    @Test
+    void smallPayloadsAndCompressedFramesStayRaw() {
+        assertNull(compressor.compress(Protocol.CHAT, ByteBuffer.wrap("hi".getBytes(StandardCharsets.UTF_8))));
+        ByteBuffer jpegFrame = ByteBuffer.allocate(1000);
+        jpegFrame.put(12, FrameCodec.JPEG);
+        assertNull(compressor.compress(Protocol.SCREEN_TILES, jpegFrame));
+        assertEquals(1000, jpegFrame.remaining());
+    }
+
+    @Test
+    void skipsTheTypeAfterAMissAndStaysInSync() throws IOException {
+        byte[] noise = new byte[4096];
+        new Random(1).nextBytes(noise);
+        // The miss is still in the deflater's history, so it goes out compressed
+        ByteBuffer miss = compressor.compress(Protocol.SYNC_DELTA, ByteBuffer.wrap(noise));
+        assertNotNull(miss);
+        assertEquals(ByteBuffer.wrap(noise), decompressor.decompress(Protocol.SYNC_DELTA, miss));
+
+        byte[] text = "compressible ".repeat(100).getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 16; i++) {
+            assertNull(compressor.compress(Protocol.SYNC_DELTA, ByteBuffer.wrap(text)));
+        }
+        // Other types on the same channel are not skipped
+        ByteBuffer signatures = compressor.compress(Protocol.SYNC_SIGNATURES, ByteBuffer.wrap(text));
+        assertNotNull(signatures);
+        assertEquals(ByteBuffer.wrap(text), decompressor.decompress(Protocol.SYNC_SIGNATURES, signatures));
+
+        ByteBuffer delta = compressor.compress(Protocol.SYNC_DELTA, ByteBuffer.wrap(text));
+        assertNotNull(delta);
+        assertEquals(ByteBuffer.wrap(text), decompressor.decompress(Protocol.SYNC_DELTA, delta));
+    }
+
+    @Test
+    void corruptPayloadIsAnError() {
+        ByteBuffer corrupt = ByteBuffer.allocate(16);
+        corrupt.putInt(100).putInt(0xFFFFFFFF).putInt(0x12345678).putInt(0).flip();
+        assertThrows(IOException.class, () -> decompressor.decompress(Protocol.CHAT, corrupt));
+    }
+
+    @Test
+    void closedStreamsSendRawAndRefuseToInflate() throws IOException {
+        byte[] text = "compressible ".repeat(100).getBytes(StandardCharsets.UTF_8);
+        ByteBuffer compressed = compressor.compress(Protocol.CHAT, ByteBuffer.wrap(text));
+        assertNotNull(compressed);
+        compressor.close();
+        compressor.close();
+        assertNull(compressor.compress(Protocol.CHAT, ByteBuffer.wrap(text)));
+        decompressor.close();
+        assertThrows(IOException.class, () -> decompressor.decompress(Protocol.CHAT, compressed));
+    }
+
+    private String roundTrip(byte type, byte[] payload) throws IOException {
+        return new String(roundTripBytes(type, payload), StandardCharsets.UTF_8);
+    }
+
+    private byte[] roundTripBytes(byte type, byte[] payload) throws IOException {
+        ByteBuffer compressed = compressor.compress(type, ByteBuffer.wrap(payload));
+        if (compressed == null) {
+            // Sent raw
+            return payload;
+        }
+        ByteBuffer inflated = decompressor.decompress(type, compressed);
+        byte[] bytes = new byte[inflated.remaining()];
+        inflated.get(bytes);
+        return bytes;
+    }
+}
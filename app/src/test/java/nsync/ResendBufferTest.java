@@ -0,0 +1,127 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ResendBufferTest {
+    // Records what a connection was asked to send
+    private static class Link implements MessageSender {
+        final List<String> sent = new ArrayList<>();
+
+        @Override
+        public void send(byte type, ByteBuffer payload) {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            sent.add(type + ":" + new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void resumedConnectionGetsOnlyWhatThePeerMissed() throws IOException {
+        ResendBuffer buffer = new ResendBuffer();
+        buffer.setToken(42);
+        Link first = new Link();
+        buffer.attach(first, false, null);
+        send(buffer, first, Protocol.CHAT, "chat 1");
+        send(buffer, first, Protocol.VOLUME, "volume");
+        send(buffer, first, Protocol.CHAT, "chat 2");
+        assertEquals(List.of("1:chat 1", "4:volume", "1:chat 2"), first.sent);
+        buffer.acked(counts(0, 1));
+        buffer.detach();
+
+        // Kept while there is no connection
+        send(buffer, first, Protocol.CHAT, "chat 3");
+        assertEquals(3, first.sent.size());
+        assertTrue(buffer.canResume());
+
+        // The peer got the volume and the second chat before the connection dropped
+        Link second = new Link();
+        buffer.attach(second, true, counts(1, 2));
+        assertEquals(List.of("1:chat 3"), second.sent);
+    }
+
+    @Test
+    void newSessionSendsEverythingKept() throws IOException {
+        ResendBuffer buffer = new ResendBuffer();
+        Link link = new Link();
+        send(buffer, link, Protocol.FILE_OFFER, "offer");
+        send(buffer, link, Protocol.CHAT, "hello");
+        buffer.attach(link, false, null);
+        // Control before chat, each channel in order
+        assertEquals(List.of("12:offer", "1:hello"), link.sent);
+    }
+
+    @Test
+    void countsReceivedMessagesForTheAck() {
+        ResendBuffer buffer = new ResendBuffer();
+        assertFalse(buffer.ackDue());
+        assertTrue(buffer.received(Protocol.CHAT));
+        assertTrue(buffer.received(Protocol.SCREEN_SHARE_START));
+        assertTrue(buffer.received(Protocol.CHAT));
+        assertFalse(buffer.received(Protocol.SCREEN_TILES));
+        assertTrue(buffer.ackDue());
+        assertArrayEquals(counts(1, 2).array(), buffer.toAck());
+        assertFalse(buffer.ackDue());
+    }
+
+    @Test
+    void ackBeyondWhatWasSentIsAnError() throws IOException {
+        ResendBuffer buffer = new ResendBuffer();
+        Link link = new Link();
+        buffer.attach(link, false, null);
+        send(buffer, link, Protocol.CHAT, "only");
+        assertThrows(IOException.class, () -> buffer.acked(counts(0, 2)));
+    }
+
+    @Test
+    void overflowEndsResumingButNotTheConnection() throws IOException {
+        ResendBuffer buffer = new ResendBuffer();
+        buffer.setToken(42);
+        Link link = new Link();
+        buffer.attach(link, false, null);
+        for (int i = 0; i <= 4096; i++) {
+            send(buffer, link, Protocol.CHAT, "chat " + i);
+        }
+        assertFalse(buffer.canResume());
+        assertEquals(4097, link.sent.size());
+        // Acks for the dropped copies are fine now
+        buffer.acked(counts(0, 4097));
+
+        buffer.detach();
+        assertThrows(IOException.class, () -> send(buffer, link, Protocol.CHAT, "lost"));
+
+        // A new session starts afresh
+        Link next = new Link();
+        buffer.attach(next, false, null);
+        assertTrue(buffer.canResume());
+        assertTrue(next.sent.isEmpty());
+    }
+
+    @Test
+    void closedBufferRefusesMessages() {
+        ResendBuffer buffer = new ResendBuffer();
+        buffer.setToken(42);
+        buffer.close();
+        assertFalse(buffer.canResume());
+        assertThrows(IOException.class, () -> send(buffer, new Link(), Protocol.CHAT, "late"));
+    }
+
+    private static void send(ResendBuffer buffer, MessageSender link, byte type, String text) throws IOException {
+        buffer.send(link, type, ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    // [int control][int chat]
+    private static ByteBuffer counts(int control, int chat) {
+        return ByteBuffer.allocate(8).putInt(control).putInt(chat).flip();
+    }
+}
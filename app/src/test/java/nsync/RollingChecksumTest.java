@@ -0,0 +1,33 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class RollingChecksumTest {
+    @Test
+    void rollingMatchesAFreshChecksumAtEveryOffset() {
+        byte[] data = new byte[10_000];
+        new Random(7).nextBytes(data);
+        int window = 2048;
+        RollingChecksum rolling = new RollingChecksum(window);
+        RollingChecksum fresh = new RollingChecksum(window);
+        rolling.reset(data, 0);
+        for (int offset = 1; offset + window <= data.length; offset++) {
+            rolling.roll(data[offset - 1], data[offset + window - 1]);
+            fresh.reset(data, offset);
+            assertEquals(fresh.value(), rolling.value(), "offset " + offset);
+        }
+    }
+
+    @Test
+    void orderOfBytesMatters() {
+        RollingChecksum checksum = new RollingChecksum(4);
+        checksum.reset(new byte[] { 1, 2, 3, 4 }, 0);
+        int forward = checksum.value();
+        checksum.reset(new byte[] { 4, 3, 2, 1 }, 0);
+        assertNotEquals(forward, checksum.value());
+    }
+}
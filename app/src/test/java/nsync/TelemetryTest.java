@@ -0,0 +1,95 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class TelemetryTest {
+    @Test
+    void varLongRoundTrips() {
+        long[] values = { 0, 1, 127, 128, 300, 16_383, 16_384, Integer.MAX_VALUE, 1L << 56, Long.MAX_VALUE, -1, Long.MIN_VALUE };
+        ByteBuffer buffer = ByteBuffer.allocate(values.length * 10);
+        for (long value : values) {
+            Telemetry.putVarLong(buffer, value);
+        }
+        buffer.flip();
+        for (long value : values) {
+            assertEquals(value, Telemetry.getVarLong(buffer));
+        }
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    void varLongUsesSevenBitsPerByte() {
+        assertEquals(1, encodedSize(127));
+        assertEquals(2, encodedSize(128));
+        assertEquals(3, encodedSize(1L << 14));
+        assertEquals(10, encodedSize(-1));
+    }
+
+    @Test
+    void malformedVarLongIsAnError() {
+        byte[] tooLong = new byte[11];
+        Arrays.fill(tooLong, (byte) 0x80);
+        assertThrows(IllegalArgumentException.class, () -> Telemetry.getVarLong(ByteBuffer.wrap(tooLong)));
+        assertThrows(BufferUnderflowException.class, () -> Telemetry.getVarLong(ByteBuffer.wrap(new byte[] { (byte) 0x80 })));
+    }
+
+    @Test
+    void deltaSamplesZigzagBothWays() {
+        Telemetry.Encoder encoder = new Telemetry.Encoder();
+        Telemetry.Decoder decoder = new Telemetry.Decoder();
+        long[] first = sample(1000, 500, -1, 1 << 20);
+        long[] second = sample(2000, 250, -1, (1 << 20) - 3);
+        long[] third = sample(Long.MAX_VALUE / 2, 0, 1000, Long.MIN_VALUE / 2);
+
+        byte[] key = encoder.encode(first);
+        assertEquals(Telemetry.KEY_SAMPLE, key[0]);
+        assertArrayEquals(first, decoder.decode(ByteBuffer.wrap(key)));
+        byte[] delta = encoder.encode(second);
+        assertEquals(0, delta[0]);
+        // Small differences, negative ones included, take a byte or two per field
+        assertTrue(delta.length <= 2 + 2 * Telemetry.FIELD_COUNT, delta.length + " bytes");
+        assertArrayEquals(second, decoder.decode(ByteBuffer.wrap(delta)));
+        assertArrayEquals(third, decoder.decode(ByteBuffer.wrap(encoder.encode(third))));
+    }
+
+    @Test
+    void deltaBeforeTheFirstKeySampleIsDropped() {
+        Telemetry.Encoder encoder = new Telemetry.Encoder();
+        encoder.encode(sample(1, 2, 3, 4));
+        byte[] delta = encoder.encode(sample(5, 6, 7, 8));
+        Telemetry.History history = new Telemetry.History();
+        assertNull(new Telemetry.Decoder().decode(ByteBuffer.wrap(delta)));
+        assertFalse(history.add(ByteBuffer.wrap(delta)));
+        assertNull(history.describe());
+
+        encoder.reset();
+        assertTrue(history.add(ByteBuffer.wrap(encoder.encode(sample(9, 10, 11, 12)))));
+        assertEquals(1, history.getSamples().size());
+    }
+
+    private static long[] sample(long uptime, long cpu, long systemCpu, long heap) {
+        long[] sample = new long[Telemetry.FIELD_COUNT];
+        sample[Telemetry.UPTIME] = uptime;
+        sample[Telemetry.PROCESS_CPU] = cpu;
+        sample[Telemetry.SYSTEM_CPU] = systemCpu;
+        sample[Telemetry.HEAP_USED] = heap;
+        sample[Telemetry.HEAP_MAX] = heap * 2;
+        return sample;
+    }
+
+    private static int encodedSize(long value) {
+        ByteBuffer buffer = ByteBuffer.allocate(10);
+        Telemetry.putVarLong(buffer, value);
+        return buffer.position();
+    }
+}
@@ -0,0 +1,173 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class TileEncoderTest {
+    // Not a multiple of TILE_SIZE, so the edge tiles are partial
+    private static final int WIDTH = 200;
+    private static final int HEIGHT = 130;
+
+    @ParameterizedTest
+    @ValueSource(bytes = { FrameCodec.RAW, FrameCodec.RLE, FrameCodec.PNG, FrameCodec.JPEG })
+    void keyFrameThenDeltaRebuildTheImage(byte codec) throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        encoder.setCodec(FrameCodec.create(codec, FrameCodec.DEFAULT_QUALITY));
+        TileDecoder decoder = new TileDecoder();
+        BufferedImage image = gradient();
+
+        ByteBuffer key = encoder.encode(image);
+        assertTrue(TileEncoder.isKeyFrame(key));
+        assertEquals(codec, TileEncoder.codecOf(key));
+        assertEquals(0, decoder.decode(key));
+        assertEquals(new Rectangle(0, 0, WIDTH, HEIGHT), decoder.takeDamage());
+        assertSimilar(image, decoder.getCanvas(), codec);
+
+        // Changes within one tile send only that tile
+        for (int y = 8; y < 40; y++) {
+            for (int x = 72; x < 120; x++) {
+                image.setRGB(x, y, image.getRGB(x, y) + 0x202020);
+            }
+        }
+        ByteBuffer delta = encoder.encode(image);
+        assertFalse(TileEncoder.isKeyFrame(delta));
+        assertEquals(1, delta.getInt(13));
+        assertEquals(1, decoder.decode(delta));
+        assertEquals(new Rectangle(64, 0, 64, 64), decoder.takeDamage());
+        assertSimilar(image, decoder.getCanvas(), codec);
+
+        assertNull(encoder.encode(image));
+        encoder.reset();
+        assertTrue(TileEncoder.isKeyFrame(encoder.encode(image)));
+    }
+
+    @ParameterizedTest
+    @ValueSource(bytes = { FrameCodec.RAW, FrameCodec.RLE, FrameCodec.PNG })
+    void losslessCodecsArePixelExact(byte codec) throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        encoder.setCodec(FrameCodec.create(codec, FrameCodec.DEFAULT_QUALITY));
+        TileDecoder decoder = new TileDecoder();
+        BufferedImage image = gradient();
+        decoder.decode(encoder.encode(image));
+        assertArrayEquals(rgb(image), rgb(decoder.getCanvas()));
+    }
+
+    @ParameterizedTest
+    @ValueSource(bytes = { FrameCodec.RAW, FrameCodec.RLE, FrameCodec.PNG, FrameCodec.JPEG })
+    void refreshResendsUnchangedTiles(byte codec) throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        encoder.setCodec(FrameCodec.create(codec, FrameCodec.DEFAULT_QUALITY));
+        BufferedImage image = gradient();
+        assertNotNull(encoder.encode(image));
+        encoder.refresh(new Rectangle(130, 70, 10, 10));
+        ByteBuffer refreshed = encoder.encode(image);
+        assertEquals(1, refreshed.getInt(13));
+        assertEquals(128, refreshed.getShort(TileEncoder.FRAME_HEADER_SIZE));
+        assertEquals(64, refreshed.getShort(TileEncoder.FRAME_HEADER_SIZE + 2));
+    }
+
+    @Test
+    void jpegQualityChangesOnTheSameCodec() throws Exception {
+        TileEncoder encoder = new TileEncoder();
+        JpegCodec jpeg = new JpegCodec(95);
+        encoder.setCodec(jpeg);
+        BufferedImage image = gradient();
+        int fine = encoder.encode(image).remaining();
+
+        jpeg.setQuality(10);
+        encoder.reset();
+        ByteBuffer coarse = encoder.encode(image);
+        assertTrue(coarse.remaining() < fine, coarse.remaining() + " bytes at quality 10, " + fine + " at 95");
+        assertSame(jpeg, encoder.getCodec());
+    }
+
+    @Test
+    void oversizedFramesAreRejectedBeforeTheCanvasIsAllocated() {
+        TileDecoder decoder = new TileDecoder();
+        assertThrows(IOException.class, () -> decoder.decode(frame(1 << 16, 100, FrameCodec.RAW, 0).flip()));
+        assertThrows(IOException.class, () -> decoder.decode(frame(16384, 16384, FrameCodec.RAW, 0).flip()));
+        assertThrows(IOException.class, () -> decoder.decode(frame(0, 100, FrameCodec.RAW, 0).flip()));
+        assertThrows(IOException.class, () -> decoder.decode(frame(100, 100, FrameCodec.RAW, Integer.MAX_VALUE).flip()));
+        assertNull(decoder.getCanvas());
+    }
+
+    @Test
+    void tilesOutsideTheCanvasAreRejected() throws Exception {
+        TileDecoder decoder = new TileDecoder();
+        ByteBuffer outside = frame(100, 100, FrameCodec.RAW, 1);
+        outside.putShort((short) 90).putShort((short) 0).putShort((short) 20).putShort((short) 10).putInt(0).flip();
+        assertThrows(IOException.class, () -> decoder.decode(outside));
+
+        // A PNG whose header is larger than the tile it claims to be
+        FrameCodec png = new PngCodec();
+        ByteBuffer encoded = ByteBuffer.allocate(png.maxEncodedSize(WIDTH, HEIGHT));
+        png.encode(pixels(gradient()), 0, WIDTH, WIDTH, HEIGHT, encoded);
+        encoded.flip();
+        ByteBuffer mismatched = frame(100, 100, FrameCodec.PNG, 1);
+        mismatched.putShort((short) 0).putShort((short) 0).putShort((short) 10).putShort((short) 10)
+            .putInt(encoded.remaining()).put(encoded).flip();
+        assertThrows(IOException.class, () -> decoder.decode(mismatched));
+    }
+
+    // A frame header with room for a tile
+    private static ByteBuffer frame(int width, int height, byte codec, int tileCount) {
+        ByteBuffer frame = ByteBuffer.allocate(64 * 1024);
+        frame.putInt(1).putInt(width).putInt(height).put(codec).putInt(tileCount);
+        return frame;
+    }
+
+    // Smooth enough for JPEG to stay close
+    private static BufferedImage gradient() {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, (x * 255 / WIDTH) << 16 | (y * 255 / HEIGHT) << 8 | 0x40);
+            }
+        }
+        return image;
+    }
+
+    private static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    // TYPE_INT_RGB ignores the top byte, some codecs fill it in
+    private static int[] rgb(BufferedImage image) {
+        int[] pixels = pixels(image).clone();
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] &= 0xFFFFFF;
+        }
+        return pixels;
+    }
+
+    private static void assertSimilar(BufferedImage expected, BufferedImage actual, byte codec) {
+        int tolerance = codec == FrameCodec.JPEG ? 48 : 0;
+        int[] a = pixels(expected);
+        int[] b = pixels(actual);
+        assertEquals(a.length, b.length);
+        for (int i = 0; i < a.length; i++) {
+            for (int shift = 0; shift < 24; shift += 8) {
+                int difference = Math.abs((a[i] >> shift & 0xFF) - (b[i] >> shift & 0xFF));
+                if (difference > tolerance) {
+                    throw new AssertionError("Pixel " + i + " is " + Integer.toHexString(b[i])
+                        + " instead of " + Integer.toHexString(a[i]));
+                }
+            }
+        }
+    }
+}
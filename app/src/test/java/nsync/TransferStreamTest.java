@@ -0,0 +1,91 @@
+package nsync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class TransferStreamTest {
+    @TempDir
+    Path temp;
+
+    @Test
+    void chunkFailingItsChecksumIsRequestedAgain() throws Exception {
+        byte[] data = new byte[100_000];
+        new Random(11).nextBytes(data);
+        CompletableFuture<IOException> finished = new CompletableFuture<>();
+        FileTransfer transfer = FileTransfer.incoming(7, "data.bin", data.length, 1000, temp.toFile(), FileTransferTest.listener(finished));
+        assertTrue(transfer.streamOpened(1));
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress("127.0.0.1", 0));
+            try (SocketChannel sender = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel receiver = server.accept()) {
+                receiver.configureBlocking(false);
+                TransferStream stream = new TransferStream(transfer);
+                CompletableFuture<Void> served = CompletableFuture.runAsync(() -> {
+                    try {
+                        stream.serve(receiver, null, ByteBuffer.allocate(0));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+
+                // The receiver asks for the only chunk and gets it with a wrong checksum
+                assertEquals(0, readInt(sender));
+                sendChunk(sender, data, crc(data) + 1);
+                assertEquals(0, readInt(sender));
+                sendChunk(sender, data, crc(data));
+                assertEquals(-1, readInt(sender));
+                served.get(10, TimeUnit.SECONDS);
+            }
+        }
+
+        assertNull(finished.get(10, TimeUnit.SECONDS));
+        assertTrue(transfer.isComplete());
+        assertEquals(data.length, transfer.getPosition());
+        assertArrayEquals(data, Files.readAllBytes(transfer.getFile().toPath()));
+        assertFalse(new File(temp.toFile(), "data.bin.part").exists());
+        assertFalse(new File(temp.toFile(), "data.bin.part.nsync").exists());
+    }
+
+    // [int chunk][int length][int crc32c][data]
+    private static void sendChunk(SocketChannel channel, byte[] data, int crc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(12);
+        header.putInt(0).putInt(data.length).putInt(crc).flip();
+        Connection.writeFully(channel, header);
+        Connection.writeFully(channel, ByteBuffer.wrap(data));
+    }
+
+    private static int readInt(SocketChannel channel) throws IOException {
+        ByteBuffer request = ByteBuffer.allocate(4);
+        while (request.hasRemaining()) {
+            if (channel.read(request) < 0) {
+                throw new IOException("Closed");
+            }
+        }
+        return request.getInt(0);
+    }
+
+    private static int crc(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,54 @@
+package nsync;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Turning a chat message into a timestamped line, as appendToChat does for every
+// message. ChatView.Line formats lazily on first paint, the others are the ways
+// the text area used to be filled.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ChatFormatBenchmark {
+    private final String message = "Did the build on the release branch pass? 👍";
+    private final SimpleDateFormat sharedFormat = new SimpleDateFormat("HH:mm:ss");
+
+    @Benchmark
+    public String simpleDateFormatPerMessage() {
+        return "[" + new SimpleDateFormat("HH:mm:ss").format(new Date()) + "] 💬 You: " + message + "\n";
+    }
+
+    @Benchmark
+    public String sharedSimpleDateFormat() {
+        return "[" + sharedFormat.format(new Date()) + "] 💬 You: " + message + "\n";
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return String.format("[%tT] 💬 You: %s%n", System.currentTimeMillis(), message);
+    }
+
+    // Posting only creates the line, nothing is formatted until it is painted
+    @Benchmark
+    public ChatView.Line chatViewLine() {
+        return new ChatView.Line(System.currentTimeMillis(), "💬 You: " + message, false);
+    }
+
+    @Benchmark
+    public String chatViewLinePainted() {
+        return new ChatView.Line(System.currentTimeMillis(), "💬 You: " + message, false).toString();
+    }
+}
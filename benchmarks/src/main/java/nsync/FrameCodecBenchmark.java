@@ -0,0 +1,75 @@
+package nsync;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// SCREEN_TILES encoding and decoding of a half size desktop, the frame size the
+// pipeline sends by default, with every codec. Key frames carry every tile, delta
+// frames the few tiles a bit of typing changes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class FrameCodecBenchmark {
+    @Param({ "0", "1", "2", "3" })
+    public byte codec;
+
+    private final BufferedImage[] frames = new BufferedImage[2];
+    private final TileEncoder keyEncoder = new TileEncoder();
+    private final TileEncoder deltaEncoder = new TileEncoder();
+    private final TileDecoder decoder = new TileDecoder();
+    private ByteBuffer keyBuffer;
+    private ByteBuffer deltaBuffer;
+    private ByteBuffer keyFrame;
+    private int step;
+
+    @Setup
+    public void setUp() throws IOException {
+        frames[0] = SyntheticDesktop.create(960, 540);
+        frames[1] = SyntheticDesktop.create(960, 540);
+        SyntheticDesktop.change(frames[1], 1);
+        keyEncoder.setCodec(FrameCodec.create(codec, FrameCodec.DEFAULT_QUALITY));
+        deltaEncoder.setCodec(FrameCodec.create(codec, FrameCodec.DEFAULT_QUALITY));
+        deltaEncoder.encode(frames[0]);
+
+        ByteBuffer encoded = keyEncoder.encode(frames[0]);
+        keyFrame = ByteBuffer.allocate(encoded.remaining());
+        keyFrame.put(encoded).flip();
+    }
+
+    @Benchmark
+    public ByteBuffer encodeKeyFrame() throws IOException {
+        keyEncoder.reset();
+        ByteBuffer encoded = keyEncoder.encode(frames[0], keyBuffer);
+        keyBuffer = encoded;
+        return encoded;
+    }
+
+    // Alternates between two frames, so every call finds the same tiles changed
+    @Benchmark
+    public ByteBuffer encodeDeltaFrame() throws IOException {
+        ByteBuffer encoded = deltaEncoder.encode(frames[++step & 1], deltaBuffer);
+        deltaBuffer = encoded;
+        return encoded;
+    }
+
+    @Benchmark
+    public int decodeKeyFrame() throws IOException {
+        return decoder.decode(keyFrame.duplicate());
+    }
+}
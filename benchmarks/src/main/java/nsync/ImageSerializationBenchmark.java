@@ -0,0 +1,59 @@
+package nsync;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.ImageIO;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Whole frames through ImageIO, the way screens were sent before tiles, as the
+// baseline FrameCodecBenchmark is compared against.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ImageSerializationBenchmark {
+    @Param({ "png", "jpg" })
+    public String format;
+
+    private BufferedImage frame;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 20);
+    private byte[] encoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        ImageIO.setUseCache(false);
+        frame = SyntheticDesktop.create(960, 540);
+        encoded = write();
+    }
+
+    @Benchmark
+    public byte[] writeFrame() throws IOException {
+        return write();
+    }
+
+    @Benchmark
+    public BufferedImage readFrame() throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(encoded));
+    }
+
+    private byte[] write() throws IOException {
+        out.reset();
+        ImageIO.write(frame, format, out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,42 @@
+package nsync;
+
+import java.util.Arrays;
+
+// Collects latency samples in nanoseconds for LoadTest, exactly, so percentiles
+// are the real ones. A load test records at most a few hundred thousand samples
+// per interval, sorting them once per report is cheaper than any bucketing error.
+final class LatencyRecorder {
+    private long[] samples = new long[1024];
+    private int count;
+
+    synchronized void record(long nanos) {
+        if (count == samples.length) {
+            samples = Arrays.copyOf(samples, count * 2);
+        }
+        samples[count++] = nanos;
+    }
+
+    // Returns the samples since the last call, sorted, and starts over
+    synchronized long[] drain() {
+        long[] drained = Arrays.copyOf(samples, count);
+        count = 0;
+        Arrays.sort(drained);
+        return drained;
+    }
+
+    // sorted must come from drain(), returns 0 when there are no samples
+    static long percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    static long[] merge(long[] a, long[] b) {
+        long[] merged = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, merged, a.length, b.length);
+        Arrays.sort(merged);
+        return merged;
+    }
+}
@@ -0,0 +1,401 @@
+package nsync;
+
+import java.awt.image.BufferedImage;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Drives a ServerEngine on loopback with many SimulatedClients to find out how
+// many sessions and frames per second it sustains. Every client chats at a fixed
+// rate and streams synthetic screen frames; the server echoes probe messages so
+// chat latency is measured end to end on one clock. Needs no display.
+//
+// With --max-chat-p99 it is a regression check for chat staying responsive while
+// screens are shared, e.g. --clients 10 --content scroll --max-chat-p99 50.
+//
+//   java -cp benchmarks/target/benchmarks.jar nsync.LoadTest [--option value]...
+//
+//   --clients 20        simulated clients
+//   --chat-rate 2       chat messages per second per client, 0 for none
+//   --chat-size 64      bytes per chat message
+//   --fps 10            frames per second per client, 0 for no screen sharing
+//   --content static    static (some typing), scroll or video
+//   --codec rle         raw, rle, png or jpeg
+//   --size 960x540      frame size
+//   --udp false         frames as datagrams, see ScreenDatagrams
+//   --loss 0            fraction of datagrams dropped on purpose, e.g. 0.05
+//   --warmup 5          seconds before measuring
+//   --duration 30       seconds measured
+//   --interval 5        seconds between progress lines
+//   --json file         also write the summary as JSON
+//   --max-chat-p99 ms   fail (exit status 1) when chat p99 over the run is above this
+//
+// Frames are encoded once per tick and the same payload goes to every client, so
+// the generator's own CPU stays small next to the server's. Server CPU is the
+// selector thread's, which does the server's socket and protocol work; frames
+// are decoded on threads of their own (see FrameDecoder) and, like the simulated
+// clients, only count in process CPU and heap.
+public class LoadTest {
+    private final Map<String, String> options = new HashMap<>();
+    private final ServerEngine engine = new ServerEngine();
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final LatencyRecorder chatLatency = new LatencyRecorder();
+    private final LatencyRecorder frameLatency = new LatencyRecorder();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final TileEncoder encoder = new TileEncoder();
+    private BufferedImage screen;
+    private int step;
+    private long selectorThreadId = -1;
+
+    // Totals over the measured part of the run
+    private long[] chatSamples = new long[0];
+    private long[] frameSamples = new long[0];
+    private final Sample measuredStart = new Sample();
+
+    // Counters at one point in time
+    private final class Sample {
+        long nanos;
+        long chatsSent;
+        long chatsReceived;
+        long framesSent;
+        long framesAcked;
+        long framesDropped;
+        long refreshRequests;
+        int onDatagrams;
+        long bytesSent;
+        long bytesReceived;
+        long serverCpuNanos;
+        long processCpuNanos;
+        int connected;
+
+        void take() {
+            nanos = System.nanoTime();
+            chatsSent = chatsReceived = framesSent = framesAcked = framesDropped = refreshRequests = 0;
+            bytesSent = bytesReceived = 0;
+            connected = onDatagrams = 0;
+            for (SimulatedClient client : clients) {
+                chatsSent += client.getChatsSent();
+                chatsReceived += client.getChatsReceived();
+                framesSent += client.getFramesSent();
+                framesAcked += client.getFramesAcked();
+                framesDropped += client.getFramesDropped();
+                refreshRequests += client.getRefreshRequests();
+                onDatagrams += client.isOnDatagrams() ? 1 : 0;
+                bytesSent += client.getBytesSent();
+                bytesReceived += client.getBytesReceived();
+                connected += client.isConnected() ? 1 : 0;
+            }
+            serverCpuNanos = selectorThreadId >= 0 ? threads.getThreadCpuTime(selectorThreadId) : 0;
+            processCpuNanos = processCpuTime();
+        }
+
+        void copy(Sample other) {
+            nanos = other.nanos;
+            chatsSent = other.chatsSent;
+            chatsReceived = other.chatsReceived;
+            framesSent = other.framesSent;
+            framesAcked = other.framesAcked;
+            framesDropped = other.framesDropped;
+            refreshRequests = other.refreshRequests;
+            onDatagrams = other.onDatagrams;
+            bytesSent = other.bytesSent;
+            bytesReceived = other.bytesReceived;
+            serverCpuNanos = other.serverCpuNanos;
+            processCpuNanos = other.processCpuNanos;
+            connected = other.connected;
+        }
+    }
+
+    private LoadTest(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an --option, got " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        if (args.length % 2 != 0) {
+            throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+        }
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+
+    private double doubleOption(String name, double defaultValue) {
+        return options.containsKey(name) ? Double.parseDouble(options.get(name)) : defaultValue;
+    }
+
+    private String option(String name, String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    // Returns false when a --max-chat-p99 limit was exceeded
+    private boolean run() throws IOException, InterruptedException {
+        int clientCount = intOption("clients", 20);
+        double chatRate = doubleOption("chat-rate", 2);
+        int chatSize = intOption("chat-size", 64);
+        double fps = doubleOption("fps", 10);
+        String content = option("content", "static");
+        byte codec = codecOf(option("codec", "rle"));
+        String[] size = option("size", "960x540").split("x");
+        int warmup = intOption("warmup", 5);
+        int duration = intOption("duration", 30);
+        int interval = intOption("interval", 5);
+        boolean udp = Boolean.parseBoolean(option("udp", "false"));
+        double loss = doubleOption("loss", 0);
+        if (!content.equals("static") && !content.equals("scroll") && !content.equals("video")) {
+            throw new IllegalArgumentException("Unknown content " + content);
+        }
+
+        // The echo that closes the loop for chat latency
+        engine.addListener(new ServerEngine.Listener() {
+            @Override
+            public void chatReceived(Session session, String text) {
+                if (text.startsWith(SimulatedClient.PROBE)) {
+                    engine.sendChat(session, text);
+                }
+            }
+        });
+        engine.start(intOption("port", 0));
+        selectorThreadId = findThread("nsync-selector");
+
+        System.out.printf(Locale.ROOT, "Load test: %d clients, %.1f chats/s and %.1f fps each, %s %s frames of %sx%s%s%n",
+            clientCount, chatRate, fps, content, FrameCodec.name(codec), size[0], size[1],
+            udp ? String.format(Locale.ROOT, " over UDP with %.1f%% loss", loss * 100) : "");
+        InetSocketAddress address = new InetSocketAddress("localhost", engine.getPort());
+        for (int i = 0; i < clientCount; i++) {
+            SimulatedClient client = new SimulatedClient(i + 1, address, chatSize, chatLatency, frameLatency);
+            if (fps > 0) {
+                client.startScreenSharing(codec, udp, loss);
+            }
+            clients.add(client);
+        }
+
+        int workers = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(workers);
+        ExecutorService senders = Executors.newFixedThreadPool(workers);
+        Random random = new Random(1);
+        if (chatRate > 0) {
+            long period = (long) (1e9 / chatRate);
+            for (SimulatedClient client : clients) {
+                // Spread over the period so the clients do not all chat at once
+                scheduler.scheduleAtFixedRate(client::sendChat, (long) (random.nextDouble() * period), period,
+                    TimeUnit.NANOSECONDS);
+            }
+        }
+        if (fps > 0) {
+            screen = SyntheticDesktop.create(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            encoder.setCodec(FrameCodec.create(codec, FrameCodec.DEFAULT_QUALITY));
+            scheduler.scheduleAtFixedRate(() -> tick(content, senders), 0, (long) (1e9 / fps), TimeUnit.NANOSECONDS);
+        }
+
+        Sample previous = new Sample();
+        Sample current = new Sample();
+        previous.take();
+        long start = previous.nanos;
+        long end = start + TimeUnit.SECONDS.toNanos(warmup + duration);
+        boolean measuring = warmup == 0;
+        if (measuring) {
+            measuredStart.copy(previous);
+        }
+        chatLatency.drain();
+        frameLatency.drain();
+        while (System.nanoTime() < end) {
+            long next = Math.min(end, previous.nanos + TimeUnit.SECONDS.toNanos(interval));
+            if (!measuring) {
+                next = Math.min(next, start + TimeUnit.SECONDS.toNanos(warmup));
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(0, next - System.nanoTime()));
+            current.take();
+            long[] chats = chatLatency.drain();
+            long[] frames = frameLatency.drain();
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(current.nanos - start + 500_000_000);
+            System.out.println(String.format(Locale.ROOT, "%4ds ", elapsed) + describe(previous, current, chats, frames)
+                + (measuring ? "" : "  (warmup)"));
+            if (measuring) {
+                chatSamples = LatencyRecorder.merge(chatSamples, chats);
+                frameSamples = LatencyRecorder.merge(frameSamples, frames);
+            } else if (current.nanos - start >= TimeUnit.SECONDS.toNanos(warmup)) {
+                measuring = true;
+                measuredStart.copy(current);
+            }
+            previous.copy(current);
+        }
+
+        // Interrupting a sender would close its channel, so let the last frames go out
+        scheduler.shutdownNow();
+        scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        senders.shutdown();
+        senders.awaitTermination(5, TimeUnit.SECONDS);
+        System.out.println();
+        System.out.println("Summary over " + duration + " s:");
+        System.out.println("  " + describe(measuredStart, current, chatSamples, frameSamples).replace("  ", "\n  "));
+        if (options.containsKey("json")) {
+            writeJson(option("json", null), measuredStart, current);
+        }
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        engine.stop();
+
+        if (!options.containsKey("max-chat-p99")) {
+            return true;
+        }
+        double limit = doubleOption("max-chat-p99", 0);
+        double p99 = millis(LatencyRecorder.percentile(chatSamples, 99));
+        if (chatSamples.length == 0) {
+            System.out.println("FAIL: no chat messages were measured");
+            return false;
+        }
+        if (p99 > limit) {
+            System.out.printf(Locale.ROOT, "FAIL: chat p99 %.2f ms is above %.2f ms%n", p99, limit);
+            return false;
+        }
+        System.out.printf(Locale.ROOT, "PASS: chat p99 %.2f ms is within %.2f ms%n", p99, limit);
+        return true;
+    }
+
+    // Advances the synthetic screen, encodes it once and hands it to every client
+    private void tick(String content, ExecutorService senders) {
+        try {
+            step++;
+            switch (content) {
+                case "scroll":
+                    SyntheticDesktop.scroll(screen, step);
+                    break;
+                case "video":
+                    SyntheticDesktop.video(screen, step);
+                    break;
+                default:
+                    SyntheticDesktop.change(screen, step);
+            }
+            ByteBuffer encoded = encoder.encode(screen);
+            if (encoded == null) {
+                return;
+            }
+            ByteBuffer frame = ByteBuffer.allocateDirect(encoded.remaining());
+            frame.put(encoded).flip();
+            int sequence = encoder.getSequence();
+            for (SimulatedClient client : clients) {
+                senders.execute(() -> client.sendFrame(frame, sequence));
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Frame generation failed: " + e);
+        }
+    }
+
+    private String describe(Sample from, Sample to, long[] chats, long[] frames) {
+        double seconds = Math.max(1e-9, (to.nanos - from.nanos) / 1e9);
+        int clientCount = Math.max(1, clients.size());
+        return String.format(Locale.ROOT,
+            "clients %d/%d  chat %.0f/s p50 %.2f p99 %.2f p999 %.2f ms  "
+                + "frames %.1f fps/client, %.1f dropped, %d on UDP, %.1f refreshes/s, ack p50 %.1f p99 %.1f ms  "
+                + "up %.2f MB/s down %.2f MB/s  server CPU %.0f%% process %.0f%% heap %d MB",
+            to.connected, clients.size(),
+            (to.chatsReceived - from.chatsReceived) / seconds,
+            millis(LatencyRecorder.percentile(chats, 50)),
+            millis(LatencyRecorder.percentile(chats, 99)),
+            millis(LatencyRecorder.percentile(chats, 99.9)),
+            (to.framesAcked - from.framesAcked) / seconds / clientCount,
+            (to.framesDropped - from.framesDropped) / seconds / clientCount,
+            to.onDatagrams,
+            (to.refreshRequests - from.refreshRequests) / seconds / clientCount,
+            millis(LatencyRecorder.percentile(frames, 50)),
+            millis(LatencyRecorder.percentile(frames, 99)),
+            (to.bytesSent - from.bytesSent) / seconds / 1e6,
+            (to.bytesReceived - from.bytesReceived) / seconds / 1e6,
+            100.0 * (to.serverCpuNanos - from.serverCpuNanos) / (to.nanos - from.nanos),
+            100.0 * (to.processCpuNanos - from.processCpuNanos) / (to.nanos - from.nanos),
+            ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed() >> 20);
+    }
+
+    private void writeJson(String path, Sample from, Sample to) throws IOException {
+        double seconds = (to.nanos - from.nanos) / 1e9;
+        int clientCount = Math.max(1, clients.size());
+        try (Writer out = new FileWriter(path)) {
+            out.write(String.format(Locale.ROOT, "{%n"
+                + "  \"clients\": %d,%n  \"connected\": %d,%n  \"options\": \"%s\",%n"
+                + "  \"chatPerSecond\": %.1f,%n  \"chatLatencyMillis\": {\"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f, \"max\": %.3f},%n"
+                + "  \"fpsPerClient\": %.2f,%n  \"droppedFpsPerClient\": %.2f,%n"
+                + "  \"clientsOnUdp\": %d,%n  \"refreshesPerSecondPerClient\": %.2f,%n"
+                + "  \"frameAckMillis\": {\"p50\": %.3f, \"p99\": %.3f, \"p999\": %.3f},%n"
+                + "  \"bytesSentPerSecond\": %.0f,%n  \"bytesReceivedPerSecond\": %.0f,%n"
+                + "  \"serverCpuPercent\": %.1f,%n  \"processCpuPercent\": %.1f,%n  \"heapUsedBytes\": %d%n}%n",
+                clients.size(), to.connected, options.toString().replace("\"", "'"),
+                (to.chatsReceived - from.chatsReceived) / seconds,
+                millis(LatencyRecorder.percentile(chatSamples, 50)),
+                millis(LatencyRecorder.percentile(chatSamples, 99)),
+                millis(LatencyRecorder.percentile(chatSamples, 99.9)),
+                millis(LatencyRecorder.percentile(chatSamples, 100)),
+                (to.framesAcked - from.framesAcked) / seconds / clientCount,
+                (to.framesDropped - from.framesDropped) / seconds / clientCount,
+                to.onDatagrams,
+                (to.refreshRequests - from.refreshRequests) / seconds / clientCount,
+                millis(LatencyRecorder.percentile(frameSamples, 50)),
+                millis(LatencyRecorder.percentile(frameSamples, 99)),
+                millis(LatencyRecorder.percentile(frameSamples, 99.9)),
+                (to.bytesSent - from.bytesSent) / seconds,
+                (to.bytesReceived - from.bytesReceived) / seconds,
+                100.0 * (to.serverCpuNanos - from.serverCpuNanos) / (to.nanos - from.nanos),
+                100.0 * (to.processCpuNanos - from.processCpuNanos) / (to.nanos - from.nanos),
+                ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed()));
+        }
+        System.out.println("Summary written to " + path);
+    }
+
+    private long findThread(String name) {
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info != null && info.getThreadName().equals(name)) {
+                return info.getThreadId();
+            }
+        }
+        return -1;
+    }
+
+    private static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        return os instanceof com.sun.management.OperatingSystemMXBean
+            ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : 0;
+    }
+
+    private static byte codecOf(String name) {
+        for (byte id = FrameCodec.RAW; id <= FrameCodec.JPEG; id++) {
+            if (FrameCodec.name(id).equalsIgnoreCase(name)) {
+                return id;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + name);
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        boolean passed = false;
+        try {
+            passed = new LoadTest(args).run();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
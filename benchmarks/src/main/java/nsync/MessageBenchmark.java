@@ -0,0 +1,130 @@
+package nsync;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Message encode/decode throughput: the per-channel compression, fragment
+// reassembly and history codec in isolation, and a chat message echoed by a
+// SessionServer over loopback, which adds framing, the selector and the kernel.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class MessageBenchmark {
+    private final MessageCompressor compressor = new MessageCompressor();
+    private final MessageDecompressor decompressor = new MessageDecompressor();
+    private final FragmentAssembler assembler = new FragmentAssembler();
+    private final List<ChatLog.Entry> history = new ArrayList<>();
+    private ByteBuffer chat;
+    private ByteBuffer tiles;
+    private ByteBuffer bulk;
+    private byte[] historyPayload;
+    private SessionServer server;
+    private Connection connection;
+
+    @Setup
+    public void setUp() throws IOException {
+        chat = ByteBuffer.wrap("Did the build on the release branch pass? 👍".getBytes(StandardCharsets.UTF_8));
+        TileEncoder encoder = new TileEncoder();
+        ByteBuffer encoded = encoder.encode(SyntheticDesktop.create(960, 540));
+        tiles = ByteBuffer.allocate(encoded.remaining());
+        tiles.put(encoded).flip();
+        bulk = ByteBuffer.allocate(1024 * 1024);
+
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++) {
+            history.add(new ChatLog.Entry(i + 1, now + i, (byte) (i & 1), null, "History line " + i + " with some text"));
+        }
+        historyPayload = ChatLog.toHistory(history);
+    }
+
+    @Setup
+    public void connect() throws IOException {
+        server = new SessionServer(0, new SessionServer.Listener() {
+            @Override
+            public void sessionOpened(Session session) {
+            }
+
+            @Override
+            public void messageReceived(Session session, byte type, ByteBuffer payload) throws IOException {
+                session.send(type, payload);
+            }
+
+            @Override
+            public void sessionClosed(Session session, IOException cause) {
+            }
+        });
+        server.start();
+        connection = new Connection(SocketChannel.open(new InetSocketAddress("localhost", server.getPort())));
+    }
+
+    @TearDown
+    public void disconnect() throws IOException {
+        connection.close();
+        server.stop();
+    }
+
+    @Benchmark
+    public ByteBuffer compressChat() throws IOException {
+        return roundTrip(Protocol.CHAT, chat);
+    }
+
+    @Benchmark
+    public ByteBuffer compressTiles() throws IOException {
+        return roundTrip(Protocol.SCREEN_TILES, tiles);
+    }
+
+    // A 1 MB bulk message arriving in CHUNK_SIZE fragments
+    @Benchmark
+    public ByteBuffer reassembleFragments() throws IOException {
+        ByteBuffer message = null;
+        for (int offset = 0; offset < bulk.capacity(); offset += Protocol.CHUNK_SIZE) {
+            int end = Math.min(bulk.capacity(), offset + Protocol.CHUNK_SIZE);
+            byte type = end < bulk.capacity()
+                ? (byte) (Protocol.SCREEN_TILES | Protocol.MORE_FRAGMENTS)
+                : Protocol.SCREEN_TILES;
+            message = assembler.add(type, bulk.duplicate().position(offset).limit(end));
+        }
+        return message;
+    }
+
+    @Benchmark
+    public byte[] encodeHistory() {
+        return ChatLog.toHistory(history);
+    }
+
+    @Benchmark
+    public List<ChatLog.Entry> decodeHistory() throws IOException {
+        return ChatLog.fromHistory(ByteBuffer.wrap(historyPayload));
+    }
+
+    @Benchmark
+    public String loopbackChatEcho() throws IOException {
+        connection.send(Protocol.CHAT, chat.duplicate());
+        return connection.receive().getText();
+    }
+
+    private ByteBuffer roundTrip(byte type, ByteBuffer payload) throws IOException {
+        ByteBuffer compressed = compressor.compress(type, payload);
+        return compressed != null ? decompressor.decompress(type, compressed) : payload;
+    }
+}
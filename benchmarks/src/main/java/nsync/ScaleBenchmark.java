@@ -0,0 +1,88 @@
+package nsync;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Downscaling one full HD capture, the step between Robot and TileEncoder.
+// ScreenCapturer's box filter against the Java2D ways of doing the same.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ScaleBenchmark {
+    @Param({ "2", "3" })
+    public int divisor;
+
+    private BufferedImage source;
+    private BufferedImage target;
+    private ScreenCapturer capturer;
+
+    @Setup
+    public void setUp() {
+        source = SyntheticDesktop.create(1920, 1080);
+        target = new BufferedImage(source.getWidth() / divisor, source.getHeight() / divisor, BufferedImage.TYPE_INT_RGB);
+        // downscale() never touches the robot
+        capturer = new ScreenCapturer(null, new Rectangle(0, 0, 1920, 1080), divisor);
+    }
+
+    @Benchmark
+    public BufferedImage boxFilter() {
+        return capturer.downscale(source, target);
+    }
+
+    @Benchmark
+    public BufferedImage drawImageBilinear() {
+        return draw(RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+    }
+
+    @Benchmark
+    public BufferedImage drawImageNearest() {
+        return draw(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+    }
+
+    @Benchmark
+    public BufferedImage scaledInstanceFast() {
+        return drawScaledInstance(Image.SCALE_FAST);
+    }
+
+    @Benchmark
+    public BufferedImage scaledInstanceSmooth() {
+        return drawScaledInstance(Image.SCALE_SMOOTH);
+    }
+
+    private BufferedImage draw(Object interpolation) {
+        Graphics2D g2d = target.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+        g2d.drawImage(source, 0, 0, target.getWidth(), target.getHeight(), null);
+        g2d.dispose();
+        return target;
+    }
+
+    // getScaledInstance only filters when the image is drawn, which for a
+    // BufferedImage source happens synchronously in drawImage
+    private BufferedImage drawScaledInstance(int hints) {
+        Image scaled = source.getScaledInstance(target.getWidth(), target.getHeight(), hints);
+        Graphics2D g2d = target.createGraphics();
+        g2d.drawImage(scaled, 0, 0, null);
+        g2d.dispose();
+        scaled.flush();
+        return target;
+    }
+}
@@ -0,0 +1,228 @@
+package nsync;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+// One client of a LoadTest. It speaks the real protocol over a Connection but
+// has no UI and no Robot: chat messages carry their send time and come back from
+// the server's echo, and screen frames are handed to it already encoded. With
+// UDP the frames go out as datagrams once the server confirmed a hello; refresh
+// requests for lost slices are only counted, the frames are shared by all clients.
+final class SimulatedClient {
+    // Chat messages the echo listener sends back, followed by System.nanoTime()
+    static final String PROBE = "⏱";
+
+    private final int id;
+    private final LatencyRecorder chatLatency;
+    private final LatencyRecorder frameLatency;
+    private final InetSocketAddress server;
+    private final Connection connection;
+    // Send times of frames waiting for their FRAME_ACK, by sequence
+    private final long[] sendTimes = new long[64];
+    // Acks are cumulative, a frame lost on UDP is never acked on its own
+    private volatile int lastSent = -1;
+    private volatile int lastAcked = -1;
+    // Fraction of datagrams dropped on purpose
+    private double datagramLoss;
+    private volatile ScreenDatagrams.Sender pendingDatagrams;
+    private volatile ScreenDatagrams.Sender datagrams;
+    private final LongAdder refreshRequests = new LongAdder();
+    private final AtomicBoolean sending = new AtomicBoolean();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesAcked = new LongAdder();
+    private final LongAdder framesDropped = new LongAdder();
+    private final LongAdder chatsSent = new LongAdder();
+    private final LongAdder chatsReceived = new LongAdder();
+    private final String padding;
+    private volatile IOException failure;
+
+    SimulatedClient(int id, InetSocketAddress server, int chatSize, LatencyRecorder chatLatency,
+            LatencyRecorder frameLatency) throws IOException {
+        this.id = id;
+        this.chatLatency = chatLatency;
+        this.frameLatency = frameLatency;
+        this.server = server;
+        StringBuilder text = new StringBuilder(" ");
+        while (text.length() < chatSize) {
+            text.append("load test message ");
+        }
+        padding = text.substring(0, Math.max(1, chatSize));
+        // Acknowledges the server's chat and control messages like a real client
+        connection = new Connection(SocketChannel.open(server), new ResendBuffer());
+        Thread reader = new Thread(this::readMessages, "nsync-load-client-" + id);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    // SCREEN_SHARE_START with [byte codec][byte quality], as a real client sends,
+    // then UDP_OFFER when the frames should go over UDP
+    void startScreenSharing(byte codec, boolean udp, double loss) throws IOException {
+        connection.send(Protocol.SCREEN_SHARE_START, new byte[] { codec, FrameCodec.DEFAULT_QUALITY });
+        if (udp) {
+            datagramLoss = loss;
+            connection.send(Protocol.UDP_OFFER);
+        }
+    }
+
+    void sendChat() {
+        try {
+            connection.send(Protocol.CHAT, PROBE + System.nanoTime() + padding);
+            chatsSent.increment();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // frame is shared by every client and must not be modified. A client that
+    // still waits for MAX_IN_FLIGHT acks, or is still writing its last frame,
+    // skips this one, as the real pipeline does under backpressure.
+    void sendFrame(ByteBuffer frame, int sequence) {
+        if (lastSent - lastAcked >= RateController.MAX_IN_FLIGHT || !sending.compareAndSet(false, true)) {
+            framesDropped.increment();
+            return;
+        }
+        try {
+            sendTimes[sequence & (sendTimes.length - 1)] = System.nanoTime();
+            lastSent = sequence;
+            ScreenDatagrams.Sender udp = datagrams;
+            if (udp != null) {
+                udp.send(frame, new FrameStats.Timing(sequence, 0, -1, -1, 0).toPayload());
+            } else {
+                connection.send(Protocol.SCREEN_TILES, frame.duplicate());
+            }
+            framesSent.increment();
+        } catch (IOException e) {
+            fail(e);
+        } finally {
+            sending.set(false);
+        }
+    }
+
+    private void readMessages() {
+        try {
+            while (connection.isOpen()) {
+                Connection.Message message = connection.receive();
+                switch (message.getType()) {
+                    case Protocol.CHAT:
+                        String text = message.getText();
+                        if (text.startsWith(PROBE)) {
+                            int end = text.indexOf(' ', PROBE.length());
+                            long sent = Long.parseLong(text.substring(PROBE.length(), end < 0 ? text.length() : end));
+                            chatLatency.record(System.nanoTime() - sent);
+                            chatsReceived.increment();
+                        }
+                        break;
+                    case Protocol.FRAME_ACK:
+                        int sequence = message.getInt();
+                        frameLatency.record(System.nanoTime() - sendTimes[sequence & (sendTimes.length - 1)]);
+                        lastAcked = Math.max(lastAcked, sequence);
+                        framesAcked.increment();
+                        if (datagrams != null) {
+                            datagrams.acked();
+                        }
+                        break;
+                    case Protocol.UDP_OFFER:
+                        if (message.getPayload().remaining() >= 8) {
+                            sayHello(message.getPayload().getInt(), message.getPayload().getInt());
+                        }
+                        break;
+                    case Protocol.UDP_READY:
+                        datagrams = pendingDatagrams;
+                        break;
+                    case Protocol.SCREEN_REFRESH:
+                        refreshRequests.increment();
+                        break;
+                    default:
+                        // SCREEN_CODEC, VOLUME and the like change nothing here
+                }
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (RuntimeException e) {
+            fail(new IOException("Malformed message: " + e, e));
+        }
+    }
+
+    // Hellos on their own thread, as ClientEngine does, until UDP_READY
+    private void sayHello(int port, int token) throws IOException {
+        ScreenDatagrams.Sender sender = new ScreenDatagrams.Sender(
+            new InetSocketAddress(server.getAddress(), port), token, datagramLoss);
+        pendingDatagrams = sender;
+        Thread hello = new Thread(() -> {
+            for (int i = 0; i < 10 && datagrams != sender; i++) {
+                sender.sendHello();
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "nsync-load-hello-" + id);
+        hello.setDaemon(true);
+        hello.start();
+    }
+
+    private void fail(IOException e) {
+        if (failure == null && connection.isOpen()) {
+            failure = e;
+            System.err.println("Client " + id + " failed: " + e.getMessage());
+        }
+        close();
+    }
+
+    void close() {
+        if (pendingDatagrams != null) {
+            pendingDatagrams.close();
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    boolean isConnected() {
+        return failure == null && connection.isOpen();
+    }
+
+    long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    long getFramesAcked() {
+        return framesAcked.sum();
+    }
+
+    long getFramesDropped() {
+        return framesDropped.sum();
+    }
+
+    long getChatsSent() {
+        return chatsSent.sum();
+    }
+
+    long getChatsReceived() {
+        return chatsReceived.sum();
+    }
+
+    long getRefreshRequests() {
+        return refreshRequests.sum();
+    }
+
+    boolean isOnDatagrams() {
+        return datagrams != null;
+    }
+
+    long getBytesSent() {
+        ScreenDatagrams.Sender udp = datagrams;
+        return connection.getBytesSent() + (udp != null ? udp.getBytesSent() : 0);
+    }
+
+    long getBytesReceived() {
+        return connection.getBytesReceived();
+    }
+}
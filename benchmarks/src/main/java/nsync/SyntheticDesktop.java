@@ -0,0 +1,116 @@
+package nsync;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.Random;
+
+// Deterministic stand-ins for captured screens: a gradient wallpaper, a few windows
+// with title bars and lines of text-like glyphs, and a taskbar. Real desktops are
+// mostly flat areas with small high-contrast details, which is what the tile
+// codecs and scalers are tuned for, so random noise would measure the wrong thing.
+final class SyntheticDesktop {
+    private static final int LINE_HEIGHT = 16;
+
+    private SyntheticDesktop() {
+    }
+
+    static BufferedImage create(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = pixels(image);
+        for (int y = 0; y < height; y++) {
+            int shade = 40 + 80 * y / height;
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = shade << 16 | (shade + 30) << 8 | (shade + 90);
+            }
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < 4; i++) {
+            int w = width / 3 + random.nextInt(width / 3);
+            int h = height / 3 + random.nextInt(height / 3);
+            int x = random.nextInt(width - w);
+            int y = random.nextInt(height - h);
+            fill(image, x, y, w, h, 0xF0F0F0);
+            fill(image, x, y, w, Math.min(h, 24), 0x3070B0);
+            for (int line = y + 32; line + 12 < y + h; line += 16) {
+                text(image, x + 8, line, w - 16 - random.nextInt(w / 2), random);
+            }
+        }
+        fill(image, 0, height - Math.min(height, 40), width, Math.min(height, 40), 0x202428);
+        return image;
+    }
+
+    // Types a few more glyphs at a spot that moves with step, as a user typing or a
+    // clock ticking would, so consecutive frames differ in a handful of tiles
+    static void change(BufferedImage image, int step) {
+        Random random = new Random(step);
+        int x = 32 + (step * 48) % Math.max(1, image.getWidth() - 128);
+        int y = 64 + (step * 16) % Math.max(1, image.getHeight() - 128);
+        fill(image, x, y, 96, 12, 0xF0F0F0);
+        text(image, x, y, 96, random);
+    }
+
+    // Scrolls the middle of the screen up by one line of text and types a new line at
+    // the bottom, as a terminal or a long page would, so most tiles change every frame
+    static void scroll(BufferedImage image, int step) {
+        int[] pixels = pixels(image);
+        int stride = image.getWidth();
+        int x = stride / 8;
+        int width = stride * 3 / 4;
+        int top = image.getHeight() / 8;
+        int bottom = image.getHeight() * 7 / 8;
+        for (int y = top; y < bottom - LINE_HEIGHT; y++) {
+            System.arraycopy(pixels, (y + LINE_HEIGHT) * stride + x, pixels, y * stride + x, width);
+        }
+        fill(image, x, bottom - LINE_HEIGHT, width, LINE_HEIGHT, 0xF0F0F0);
+        Random random = new Random(step);
+        text(image, x + 8, bottom - LINE_HEIGHT + 3, width / 2 + random.nextInt(width / 2 - 16), random);
+    }
+
+    // Redraws a quarter of the screen with moving, noisy content, as a playing
+    // video does, so that area never matches the previous frame
+    static void video(BufferedImage image, int step) {
+        int[] pixels = pixels(image);
+        int stride = image.getWidth();
+        int x0 = stride / 4;
+        int y0 = image.getHeight() / 4;
+        Random random = new Random(step);
+        for (int y = y0; y < y0 + image.getHeight() / 2; y++) {
+            for (int x = x0; x < x0 + stride / 2; x++) {
+                int wave = (x + step * 4 ^ y + step * 2) & 0xFF;
+                int noise = random.nextInt(16);
+                pixels[y * stride + x] = (wave + noise & 0xFF) << 16 | (wave / 2 + noise & 0xFF) << 8 | (255 - wave);
+            }
+        }
+    }
+
+    static int[] pixels(BufferedImage image) {
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    private static void text(BufferedImage image, int x, int y, int width, Random random) {
+        int[] pixels = pixels(image);
+        int stride = image.getWidth();
+        for (int glyph = x; glyph + 6 < x + width; glyph += 8) {
+            if (random.nextInt(6) == 0) {
+                continue;
+            }
+            int bits = random.nextInt();
+            for (int row = 0; row < 10; row++) {
+                for (int col = 0; col < 6; col++) {
+                    if ((bits >>> ((row * 6 + col) % 32) & 1) != 0) {
+                        pixels[(y + row) * stride + glyph + col] = 0x101010;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void fill(BufferedImage image, int x, int y, int w, int h, int rgb) {
+        int[] pixels = pixels(image);
+        int stride = image.getWidth();
+        for (int row = y; row < y + h; row++) {
+            Arrays.fill(pixels, row * stride + x, row * stride + x + w, rgb);
+        }
+    }
+}
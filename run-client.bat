@@ -1,2 +1,2 @@
 @echo off 
-java -jar dist\ChatClient.jar 
+java -cp app\target\nsync.jar nsync.Client 
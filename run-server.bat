@@ -1,2 +1,2 @@
 @echo off 
-java -jar dist\ChatServer.jar 
+java -jar app\target\nsync.jar 